@@ -1,13 +1,8 @@
 package api_calls;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import database.Json_util;
 
 /**
  * Handler for making API calls to the OpenAI ChatGPT API
@@ -15,17 +10,43 @@ import java.util.concurrent.Executors;
  */
 public class ChatGPT_api_handler {
     private static final String API_ENDPOINT = "https://api.openai.com/v1/chat/completions";
-    private String apiKey;
-    private final ExecutorService executor;
+    // Maximum number of requests this handler runs at the same time
+    public static final int MAX_CONCURRENT_REQUESTS = 4;
+    // Sends the requests; the transport is the same for every provider
+    private final Provider_client client;
     
     /**
      * Constructor initializes thread pool for API requests
      */
     public ChatGPT_api_handler() {
-        // Initialize with an empty API key - should be set later through settings
-        this.apiKey = "";
-        // Create a thread pool for managing concurrent API requests
-        this.executor = Executors.newFixedThreadPool(2);
+        // The client's thread pool is sized for the queries the input pipeline may keep in flight,
+        // and each query is routed to a model based on prompt length and observed latency and errors
+        this.client = new Provider_client("chatgpt", "ChatGPT", API_ENDPOINT, MAX_CONCURRENT_REQUESTS,
+            new Model_router("chatgpt", "gpt-4", "gpt-4o-mini", "gpt-4o"));
+    }
+    
+    /**
+     * Gets the router that chooses the model for each query
+     * @return the model router
+     */
+    public Model_router getRouter() {
+        return client.getRouter();
+    }
+    
+    /**
+     * Gets the cassette that records or replays this handler's traffic
+     * @return the traffic cassette
+     */
+    public Traffic_cassette getCassette() {
+        return client.getCassette();
+    }
+    
+    /**
+     * Gets the hedger that duplicates requests slow to answer
+     * @return the request hedger
+     */
+    public Request_hedger getHedger() {
+        return client.getHedger();
     }
     
     /**
@@ -33,90 +54,128 @@ public class ChatGPT_api_handler {
      * @param apiKey The OpenAI API key
      */
     public void setApiKey(String apiKey) {
-        this.apiKey = apiKey;
+        client.setApiKey(apiKey);
+    }
+    
+    /**
+     * Gets the endpoint URL used for ChatGPT API requests
+     * @return the API endpoint URL
+     */
+    public String getApiEndpoint() {
+        return client.getEndpoint();
     }
     
     /**
      * Checks if the API key has been set
+     * Replayed traffic needs no key, and neither do calls made through an assistant server,
+     * so this is always true in those modes
      * @return true if API key is valid
      */
     public boolean hasValidApiKey() {
-        return apiKey != null && !apiKey.isEmpty();
+        return client.hasValidApiKey();
     }
     
     /**
-     * Makes an asynchronous call to the ChatGPT API
+     * Makes an asynchronous call to the ChatGPT API on the model chosen by the router
      * @param prompt The user's input query
      * @return CompletableFuture containing the API response
      */
     public CompletableFuture<String> makeAsyncApiCall(String prompt) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                return makeApiCall(prompt);
-            } catch (Exception e) {
-                return "Error calling ChatGPT API: " + e.getMessage();
+        return makeAsyncApiCall(prompt, client.getRouter().route(prompt));
+    }
+    
+    /**
+     * Makes an asynchronous call to the ChatGPT API on a given route
+     * The latency and outcome of the call are fed back to the router
+     * @param prompt The user's input query
+     * @param route the route chosen by getRouter().route(prompt)
+     * @return CompletableFuture containing the API response, cut to the preview length
+     */
+    public CompletableFuture<String> makeAsyncApiCall(String prompt, Model_router.Route route) {
+        return makeAsyncBodyCall(prompt, route).thenApply(body -> {
+            try (body) {
+                return body.preview(Response_body.PREVIEW_CHARS);
             }
-        }, executor);
+        });
     }
     
     /**
-     * Makes a synchronous call to the ChatGPT API
+     * Makes an asynchronous call to the ChatGPT API on a given route, keeping the whole answer
+     * The answer stays on disk when it is large; the caller must close the body.
+     * The latency and outcome of the call are fed back to the router, and the call is traced
+     * as a child of the caller's current span
+     * @param prompt The user's input query
+     * @param route the route chosen by getRouter().route(prompt)
+     * @return CompletableFuture containing the API response body
+     */
+    public CompletableFuture<Response_body> makeAsyncBodyCall(String prompt, Model_router.Route route) {
+        return client.callAsync(prompt, route, this::makeApiCallBody);
+    }
+    
+    /**
+     * Makes a synchronous call to the ChatGPT API using the primary model
      * @param prompt The user's input query
      * @return The API response as a string
      * @throws Exception if the API call fails
      */
     public String makeApiCall(String prompt) throws Exception {
+        return makeApiCall(prompt, "gpt-4");
+    }
+    
+    /**
+     * Makes a synchronous call to the ChatGPT API
+     * @param prompt The user's input query
+     * @param model the model to query
+     * @return The API response as a string, cut to the preview length
+     * @throws Exception if the API call fails
+     */
+    public String makeApiCall(String prompt, String model) throws Exception {
+        try (Response_body response = makeApiCallBody(prompt, model)) {
+            return response.preview(Response_body.PREVIEW_CHARS);
+        }
+    }
+    
+    /**
+     * Makes a synchronous call to the ChatGPT API, keeping the whole answer
+     * The response is read into a memory-bounded body that spills to a temporary file
+     * when large and stops at the size cap; the caller must close it.
+     * @param prompt The user's input query
+     * @param model the model to query
+     * @return The answer, or an error body
+     * @throws Exception if the API call fails
+     */
+    public Response_body makeApiCallBody(String prompt, String model) throws Exception {
+        if (client.getRemote().isEnabled()) {
+            return client.getRemote().call(prompt, model);
+        }
         if (!hasValidApiKey()) {
-            return "Error: API key not set. Please configure your OpenAI API key in Settings.";
+            return Response_body.ofText("Error: API key not set. Please configure your OpenAI API key in Settings.", true);
         }
         
-        // Create connection to the API endpoint
-        URL url = new URL(API_ENDPOINT);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("Authorization", "Bearer " + apiKey);
-        connection.setDoOutput(true);
-        
         // Prepare the request payload
         // NOTE: In a real implementation, you would need to format this according to the OpenAI API specs
-        String jsonInputString = String.format(
-            "{\"model\": \"gpt-4\", \"messages\": [{\"role\": \"user\", \"content\": \"%s\"}], \"temperature\": 0.7}",
-            prompt.replace("\"", "\\\"") // Escape quotes in the prompt
-        );
+        // Both strings go through Json_util so newlines and control characters in a prompt stay valid JSON
+        StringBuilder payload = new StringBuilder("{\"model\": ");
+        Json_util.appendQuoted(payload, model);
+        payload.append(", \"messages\": [{\"role\": \"user\", \"content\": ");
+        Json_util.appendQuoted(payload, prompt);
+        payload.append("}], \"temperature\": 0.7}");
+        String jsonInputString = payload.toString();
         
-        // Send the request
-        try (OutputStream os = connection.getOutputStream()) {
-            byte[] input = jsonInputString.getBytes("utf-8");
-            os.write(input, 0, input.length);
+        // Send the request and read the response
+        Response_body response = client.send(jsonInputString);
+        if (response.isError()) {
+            return response;
         }
         
-        // Read the response
-        StringBuilder response = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(connection.getInputStream(), "utf-8"))) {
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
-            }
-        } catch (Exception e) {
-            // If there was an error reading the input stream, try to read the error stream
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(connection.getErrorStream(), "utf-8"))) {
-                String responseLine;
-                StringBuilder errorResponse = new StringBuilder("API Error: ");
-                while ((responseLine = br.readLine()) != null) {
-                    errorResponse.append(responseLine.trim());
-                }
-                return errorResponse.toString();
-            }
+        // Stream the message content out of the JSON without building either as a String
+        Response_body content = client.extractContent(response);
+        if (content != null) {
+            return content;
         }
         
-        // In a real implementation, you would parse the JSON response to extract the message content
-        // For example: return parseJsonResponse(response.toString());
-        
         // For demonstration, return a simplified version
-        return "ChatGPT response to: " + prompt + "\n\n" + simulateResponse(prompt);
+        return Response_body.ofText("ChatGPT response to: " + prompt + "\n\n" + simulateResponse(prompt), false);
     }
     
     /**
@@ -141,11 +200,9 @@ public class ChatGPT_api_handler {
     }
     
     /**
-     * Shuts down the executor service
+     * Shuts down the executor service and the hedging threads
      */
     public void shutdown() {
-        if (executor != null && !executor.isShutdown()) {
-            executor.shutdown();
-        }
+        client.shutdown();
     }
 }
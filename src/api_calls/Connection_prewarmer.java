@@ -0,0 +1,144 @@
+package api_calls;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections to the AI provider endpoints warm while the user is active
+ * Resolves DNS and completes the TCP and TLS handshakes in the background so that
+ * the next query can reuse a pooled keep-alive connection instead of opening a new one
+ */
+public class Connection_prewarmer {
+    private static final long DEFAULT_IDLE_WINDOW_MS = 120_000;
+    private static final long DEFAULT_REFRESH_INTERVAL_MS = 4_000;
+    private static final int WARM_TIMEOUT_MS = 5_000;
+    
+    private final List<String> endpoints;
+    private final long idleWindowMillis;
+    private final long refreshIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private volatile long lastActivityMillis;
+    private ScheduledFuture<?> refreshTask;
+    
+    /**
+     * Constructor using the idle window and refresh interval from system properties
+     * (assistant.prewarm.idleMs and assistant.prewarm.refreshMs)
+     * @param endpoints the provider endpoints to keep warm
+     */
+    public Connection_prewarmer(List<String> endpoints) {
+        this(endpoints,
+             Long.getLong("assistant.prewarm.idleMs", DEFAULT_IDLE_WINDOW_MS),
+             Long.getLong("assistant.prewarm.refreshMs", DEFAULT_REFRESH_INTERVAL_MS));
+    }
+    
+    /**
+     * Constructor initializes the pre-warmer with explicit timings
+     * @param endpoints the provider endpoints to keep warm
+     * @param idleWindowMillis how long connections are kept warm after the last user activity
+     * @param refreshIntervalMillis how often pooled connections are refreshed; should stay below
+     *        the keep-alive timeout of the JDK connection cache (5 seconds by default)
+     */
+    public Connection_prewarmer(List<String> endpoints, long idleWindowMillis, long refreshIntervalMillis) {
+        this.endpoints = new ArrayList<>(endpoints);
+        this.idleWindowMillis = idleWindowMillis;
+        this.refreshIntervalMillis = Math.max(500, refreshIntervalMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-prewarmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Records user activity and starts warming connections if they are not warm already
+     * Cheap enough to be called on every keystroke
+     */
+    public void onUserActivity() {
+        lastActivityMillis = System.currentTimeMillis();
+        if (idleWindowMillis <= 0) {
+            return;
+        }
+        
+        synchronized (this) {
+            if (refreshTask == null && !scheduler.isShutdown()) {
+                refreshTask = scheduler.scheduleWithFixedDelay(
+                    this::refreshConnections, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    /**
+     * Refreshes the pooled connections, or stops once the idle window has passed
+     */
+    private void refreshConnections() {
+        if (isIdle()) {
+            synchronized (this) {
+                // Checked again under the lock that onUserActivity takes after recording activity:
+                // a keystroke either lands before this check and keeps the task running, or finds
+                // the task cancelled and schedules a new one
+                if (isIdle()) {
+                    if (refreshTask != null) {
+                        refreshTask.cancel(false);
+                        refreshTask = null;
+                    }
+                    return;
+                }
+            }
+        }
+        
+        for (String endpoint : endpoints) {
+            warmEndpoint(endpoint);
+        }
+    }
+    
+    private boolean isIdle() {
+        return System.currentTimeMillis() - lastActivityMillis > idleWindowMillis;
+    }
+    
+    /**
+     * Opens and handshakes a connection to the endpoint and hands it back to the keep-alive cache
+     * @param endpoint the endpoint URL
+     */
+    private void warmEndpoint(String endpoint) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(endpoint);
+            // Resolve DNS first so the address lands in the JVM resolver cache
+            InetAddress.getAllByName(url.getHost());
+            
+            // A HEAD request establishes TCP and TLS without a body; once the response
+            // headers are read the socket is returned to the keep-alive cache for reuse
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(WARM_TIMEOUT_MS);
+            connection.setReadTimeout(WARM_TIMEOUT_MS);
+            int status = connection.getResponseCode();
+            
+            // Close (never disconnect) so the underlying socket stays pooled
+            InputStream stream = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (Exception e) {
+            // Pre-warming is best effort; the real request will report any connection problem
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Stops warming connections and releases the scheduler thread
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,102 @@
+package api_calls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import tracing.Span;
+import tracing.Tracer;
+
+/**
+ * One try at a provider request, from opening the connection to the status line
+ * Kept apart from reading the body so that a Request_hedger can run two tries of a slow
+ * request and abort the one that answers second by disconnecting it.
+ */
+class Http_attempt implements Request_hedger.Attempt {
+    private final String endpoint;
+    private final String apiKey;
+    private final String payload;
+    private volatile HttpURLConnection connection;
+    private volatile boolean aborted;
+    private long startNanos;
+    private int requestBytes;
+    private int status;
+    
+    /**
+     * Constructor for an unstarted try
+     * @param endpoint the API endpoint URL
+     * @param apiKey the bearer token
+     * @param payload the JSON request payload
+     */
+    Http_attempt(String endpoint, String apiKey, String payload) {
+        this.endpoint = endpoint;
+        this.apiKey = apiKey;
+        this.payload = payload;
+    }
+    
+    @Override
+    public void run() throws IOException {
+        // Create connection to the API endpoint
+        startNanos = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Authorization", "Bearer " + apiKey);
+        connection.setDoOutput(true);
+        this.connection = connection;
+        if (aborted) {
+            throw new IOException("Request aborted");
+        }
+        try (Span span = Tracer.startSpan("http.connect")) {
+            connection.connect();
+        }
+        
+        // Send the request
+        try (Span span = Tracer.startSpan("http.send"); OutputStream os = connection.getOutputStream()) {
+            byte[] input = payload.getBytes(StandardCharsets.UTF_8);
+            os.write(input, 0, input.length);
+            requestBytes = input.length;
+        }
+        
+        // Waiting for the status line measures the time to first byte
+        try (Span span = Tracer.startSpan("http.ttfb")) {
+            status = connection.getResponseCode();
+            span.setAttribute("http.status_code", status);
+        }
+    }
+    
+    @Override
+    public void abort() {
+        aborted = true;
+        HttpURLConnection current = connection;
+        if (current != null) {
+            current.disconnect();
+        }
+    }
+    
+    /**
+     * Gets the connection, to read the response from once run has returned
+     * @return the connection
+     */
+    HttpURLConnection getConnection() {
+        return connection;
+    }
+    
+    /**
+     * Gets when the try started
+     * @return the System.nanoTime() at the start
+     */
+    long getStartNanos() {
+        return startNanos;
+    }
+    
+    int getRequestBytes() {
+        return requestBytes;
+    }
+    
+    int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,453 @@
+package api_calls;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import tracing.Span;
+import tracing.Tracer;
+
+/**
+ * Answers a question about a long document by map-reduce across both providers
+ * The document is split into token-bounded chunks that overlap a little, so text at a
+ * boundary is seen in context. Each chunk is asked the question on its own (map); the
+ * chunks are shared between ChatGPT and Perplexity, each running a limited number of
+ * calls at once and taking the next chunk as soon as one finishes, so the faster provider
+ * does more of the work. The partial answers are then merged (reduce), in several rounds
+ * if they do not fit one prompt, and each provider writes a final answer from them. Partial
+ * answers are cut at half a chunk, so every merge call combines at least two of them and
+ * each round at least halves their number.
+ *
+ * Chunk boundaries are chosen by the content of the paragraphs rather than by offset, so
+ * an edit to a document moves only nearby boundaries. Partial answers are cached by
+ * question and chunk text, so re-asking about the same or a slightly changed document
+ * only calls the providers for the chunks that changed.
+ *
+ * Tokens are estimated as four characters each.
+ *
+ * Configuration (system properties):
+ * assistant.mapreduce.thresholdTokens (inputs above this use map-reduce, default 3000),
+ * assistant.mapreduce.chunkTokens (default 1500), assistant.mapreduce.overlapTokens
+ * (default 150), assistant.mapreduce.callsPerProvider (default 2) and
+ * assistant.mapreduce.cacheEntries (default 512)
+ */
+public class Map_reduce_query {
+    private static final int CHARS_PER_TOKEN = 4;
+    // The last paragraph of the input is taken as the question when it is at most this long
+    private static final int MAX_QUESTION_CHARS = 1000;
+    private static final String DEFAULT_QUESTION = "Summarize the document.";
+    // Answer used for a chunk whose call failed
+    private static final String FAILED_PART = "(This part could not be processed.)";
+    
+    private final int thresholdChars;
+    private final int chunkChars;
+    // Longest partial answer kept, so that any two fit in one merge prompt
+    private final int partChars;
+    private final int overlapChars;
+    private final int callsPerProvider;
+    private final int cacheEntries;
+    private final List<Provider> providers = new ArrayList<>();
+    // Partial answers by hash of the prompt that produced them, least recently used first
+    private final Map<String, String> cache;
+    
+    /**
+     * A provider the chunks can be sent to
+     */
+    private static class Provider {
+        private final Model_router router;
+        private final BiFunction<String, Model_router.Route, CompletableFuture<Response_body>> call;
+        
+        Provider(Model_router router, BiFunction<String, Model_router.Route, CompletableFuture<Response_body>> call) {
+            this.router = router;
+            this.call = call;
+        }
+    }
+    
+    /**
+     * The final answers of both providers
+     */
+    public static class Result {
+        private final CompletableFuture<Response_body> chatGPTAnswer;
+        private final CompletableFuture<Response_body> perplexityAnswer;
+        
+        Result(CompletableFuture<Response_body> chatGPTAnswer, CompletableFuture<Response_body> perplexityAnswer) {
+            this.chatGPTAnswer = chatGPTAnswer;
+            this.perplexityAnswer = perplexityAnswer;
+        }
+        
+        /**
+         * Gets ChatGPT's final answer, written from the merged partial answers
+         * @return the answer, which the caller must close
+         */
+        public CompletableFuture<Response_body> getChatGPTAnswer() {
+            return chatGPTAnswer;
+        }
+        
+        /**
+         * Gets Perplexity's final answer, written from the merged partial answers
+         * @return the answer, which the caller must close
+         */
+        public CompletableFuture<Response_body> getPerplexityAnswer() {
+            return perplexityAnswer;
+        }
+    }
+    
+    /**
+     * Constructor reading the chunking and concurrency settings from system properties
+     * @param chatGPTHandler the ChatGPT API handler
+     * @param perplexityHandler the Perplexity API handler
+     */
+    public Map_reduce_query(ChatGPT_api_handler chatGPTHandler, Perplexity_api_handler perplexityHandler) {
+        this(chatGPTHandler, perplexityHandler,
+             Integer.getInteger("assistant.mapreduce.thresholdTokens", 3000),
+             Integer.getInteger("assistant.mapreduce.chunkTokens", 1500),
+             Integer.getInteger("assistant.mapreduce.overlapTokens", 150),
+             Integer.getInteger("assistant.mapreduce.callsPerProvider", 2),
+             Integer.getInteger("assistant.mapreduce.cacheEntries", 512));
+    }
+    
+    /**
+     * Constructor with explicit settings
+     * @param chatGPTHandler the ChatGPT API handler
+     * @param perplexityHandler the Perplexity API handler
+     * @param thresholdTokens inputs longer than this are answered by map-reduce
+     * @param chunkTokens maximum size of a chunk, and of the partial answers merged in one call
+     * @param overlapTokens text repeated from the end of the previous chunk
+     * @param callsPerProvider chunks each provider works on at once; capped by its thread pool
+     * @param cacheEntries number of partial answers cached
+     */
+    public Map_reduce_query(ChatGPT_api_handler chatGPTHandler, Perplexity_api_handler perplexityHandler,
+                            int thresholdTokens, int chunkTokens, int overlapTokens, int callsPerProvider,
+                            int cacheEntries) {
+        this.thresholdChars = thresholdTokens * CHARS_PER_TOKEN;
+        this.chunkChars = Math.max(100, chunkTokens) * CHARS_PER_TOKEN;
+        this.partChars = chunkChars / 2;
+        this.overlapChars = Math.max(0, Math.min(overlapTokens * CHARS_PER_TOKEN, chunkChars / 4));
+        this.callsPerProvider = Math.max(1, Math.min(callsPerProvider, ChatGPT_api_handler.MAX_CONCURRENT_REQUESTS));
+        this.cacheEntries = Math.max(0, cacheEntries);
+        this.cache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > Map_reduce_query.this.cacheEntries;
+            }
+        };
+        providers.add(new Provider(chatGPTHandler.getRouter(), chatGPTHandler::makeAsyncBodyCall));
+        providers.add(new Provider(perplexityHandler.getRouter(), perplexityHandler::makeAsyncBodyCall));
+    }
+    
+    /**
+     * Checks whether an input is long enough to be answered by map-reduce
+     * @param input the user's input
+     * @return true if it is over the threshold
+     */
+    public boolean isLongInput(String input) {
+        return input.length() > thresholdChars;
+    }
+    
+    /**
+     * Answers the input by map-reduce
+     * The last paragraph is taken as the question when it is short; otherwise the document
+     * is summarized. Provider calls are traced under the caller's current span.
+     * @param input the document, optionally followed by a question in its own paragraph
+     * @param chatGPTRoute the route for ChatGPT's final answer
+     * @param perplexityRoute the route for Perplexity's final answer
+     * @return the final answers, which callers must close
+     */
+    public Result run(String input, Model_router.Route chatGPTRoute, Model_router.Route perplexityRoute) {
+        String[] parts = splitQuestion(input);
+        String document = parts[0];
+        String question = parts[1];
+        List<String> chunks = split(document);
+        
+        Span span = Tracer.startSpan("mapreduce")
+            .setAttribute("mapreduce.chunks", chunks.size())
+            .setAttribute("mapreduce.chars", document.length());
+        List<String> prompts = new ArrayList<>();
+        for (String chunk : chunks) {
+            // The prompt depends only on the question and the chunk, so it can be cached
+            prompts.add("You are reading one part of a longer document.\n"
+                + "Question: " + question + "\n\n"
+                + "Document part:\n" + chunk + "\n\n"
+                + "Answer the question using only this part. "
+                + "If it contains nothing relevant, reply \"No relevant information.\"");
+        }
+        
+        CompletableFuture<List<String>> partials = mapAll(prompts, span);
+        CompletableFuture<List<String>> merged = partials.thenCompose(answers -> reduceToFit(question, answers, span));
+        CompletableFuture<Response_body> chatGPTAnswer =
+            merged.thenCompose(answers -> finalAnswer(providers.get(0), chatGPTRoute, question, answers, span));
+        CompletableFuture<Response_body> perplexityAnswer =
+            merged.thenCompose(answers -> finalAnswer(providers.get(1), perplexityRoute, question, answers, span));
+        CompletableFuture.allOf(chatGPTAnswer, perplexityAnswer).whenComplete((v, ex) -> {
+            if (ex != null) {
+                span.recordError(ex.getMessage());
+            }
+            span.end();
+        });
+        return new Result(chatGPTAnswer, perplexityAnswer);
+    }
+    
+    /**
+     * Splits the input into the document and the question
+     * @return the document and the question
+     */
+    static String[] splitQuestion(String input) {
+        String trimmed = input.trim();
+        int lastBreak = trimmed.lastIndexOf("\n\n");
+        if (lastBreak > 0) {
+            String last = trimmed.substring(lastBreak).trim();
+            if (!last.isEmpty() && last.length() <= MAX_QUESTION_CHARS) {
+                return new String[] {trimmed.substring(0, lastBreak).trim(), last};
+            }
+        }
+        return new String[] {trimmed, DEFAULT_QUESTION};
+    }
+    
+    /**
+     * Splits a document into overlapping chunks of at most the chunk size plus the overlap
+     * Paragraphs are packed together; a chunk ends early after a paragraph whose hash picks
+     * it as a boundary, so boundaries depend on nearby content only and survive edits elsewhere
+     * @param document the document
+     * @return the chunks, each starting with the end of the previous one
+     */
+    List<String> split(String document) {
+        List<String> pieces = new ArrayList<>();
+        for (String paragraph : document.split("\\n\\s*\\n")) {
+            String text = paragraph.trim();
+            // Paragraphs over the chunk size are cut at whitespace
+            while (text.length() > chunkChars) {
+                int cut = text.lastIndexOf(' ', chunkChars);
+                if (cut < chunkChars / 2) {
+                    cut = chunkChars;
+                }
+                pieces.add(text.substring(0, cut));
+                text = text.substring(cut).trim();
+            }
+            if (!text.isEmpty()) {
+                pieces.add(text);
+            }
+        }
+        
+        List<String> chunks = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String piece : pieces) {
+            if (current.length() > 0 && current.length() + 2 + piece.length() > chunkChars) {
+                chunks.add(current.toString());
+                current.setLength(0);
+            }
+            if (current.length() > 0) {
+                current.append("\n\n");
+            }
+            current.append(piece);
+            if (current.length() >= chunkChars / 2 && (piece.hashCode() & 3) == 0) {
+                chunks.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        if (current.length() > 0) {
+            chunks.add(current.toString());
+        }
+        
+        // Prefix each chunk with the end of the previous one, starting at a word
+        List<String> overlapping = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            if (i == 0 || overlapChars == 0) {
+                overlapping.add(chunks.get(i));
+                continue;
+            }
+            String previous = chunks.get(i - 1);
+            int start = Math.max(0, previous.length() - overlapChars);
+            int word = previous.indexOf(' ', start);
+            String tail = previous.substring(word >= 0 && word < previous.length() - 1 ? word + 1 : start);
+            overlapping.add("..." + tail + "\n\n" + chunks.get(i));
+        }
+        return overlapping;
+    }
+    
+    /**
+     * Runs prompts across both providers, each with a limited number of calls at once
+     * Cached answers are used without a call
+     * @return the answers in prompt order
+     */
+    private CompletableFuture<List<String>> mapAll(List<String> prompts, Span span) {
+        String[] answers = new String[prompts.size()];
+        ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        int cached = 0;
+        for (int i = 0; i < prompts.size(); i++) {
+            String answer = cached(prompts.get(i));
+            if (answer != null) {
+                answers[i] = answer;
+                cached++;
+            } else {
+                pending.add(i);
+            }
+        }
+        span.setAttribute("mapreduce.cached", cached);
+        
+        CompletableFuture<List<String>> done = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(pending.size());
+        if (pending.isEmpty()) {
+            done.complete(List.of(answers));
+            return done;
+        }
+        for (Provider provider : providers) {
+            for (int slot = 0; slot < callsPerProvider; slot++) {
+                pump(provider, prompts, answers, pending, remaining, done, span);
+            }
+        }
+        return done;
+    }
+    
+    /**
+     * Takes the next pending prompt for a provider and, when its answer arrives, the one after
+     */
+    private void pump(Provider provider, List<String> prompts, String[] answers, ConcurrentLinkedQueue<Integer> pending,
+                      AtomicInteger remaining, CompletableFuture<List<String>> done, Span span) {
+        Integer index = pending.poll();
+        if (index == null) {
+            return;
+        }
+        String prompt = prompts.get(index);
+        call(provider, provider.router.route(prompt), prompt, span).whenComplete((answer, ex) -> {
+            answers[index] = ex == null && answer != null ? answer : FAILED_PART;
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(List.of(answers));
+            } else {
+                pump(provider, prompts, answers, pending, remaining, done, span);
+            }
+        });
+    }
+    
+    /**
+     * Merges partial answers in rounds until they fit in one prompt
+     * @return the partial answers, at most one chunk long in total
+     */
+    private CompletableFuture<List<String>> reduceToFit(String question, List<String> answers, Span span) {
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        int groupChars = 0;
+        for (String answer : answers) {
+            if (!group.isEmpty() && groupChars + answer.length() > chunkChars) {
+                groups.add(group);
+                group = new ArrayList<>();
+                groupChars = 0;
+            }
+            group.add(answer);
+            groupChars += answer.length();
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        if (groups.size() <= 1) {
+            return CompletableFuture.completedFuture(answers);
+        }
+        
+        // Each group becomes one answer; a group of one cannot be merged further and is kept as is
+        List<String> prompts = new ArrayList<>();
+        for (List<String> members : groups) {
+            if (members.size() > 1) {
+                prompts.add(mergePrompt(question, members, false));
+            }
+        }
+        return mapAll(prompts, span).thenCompose(mergedGroups -> {
+            List<String> merged = new ArrayList<>(groups.size());
+            int next = 0;
+            for (List<String> members : groups) {
+                merged.add(members.size() > 1 ? mergedGroups.get(next++) : members.get(0));
+            }
+            return merged.size() < answers.size()
+                ? reduceToFit(question, merged, span)
+                : CompletableFuture.completedFuture(merged);
+        });
+    }
+    
+    private CompletableFuture<Response_body> finalAnswer(Provider provider, Model_router.Route route,
+                                                         String question, List<String> answers, Span span) {
+        try (Span.Scope scope = span.makeCurrent()) {
+            return provider.call.apply(mergePrompt(question, answers, true), route);
+        }
+    }
+    
+    private static String mergePrompt(String question, List<String> answers, boolean isFinal) {
+        StringBuilder prompt = new StringBuilder();
+        prompt.append("Question: ").append(question).append("\n\n")
+              .append("These are answers to the question, each based on a different part of one document:\n");
+        for (int i = 0; i < answers.size(); i++) {
+            prompt.append("\n[").append(i + 1).append("] ").append(answers.get(i)).append('\n');
+        }
+        prompt.append(isFinal
+            ? "\nWrite one complete answer to the question from them, ignoring parts with no relevant information."
+            : "\nCombine them into one answer that keeps every relevant detail.");
+        return prompt.toString();
+    }
+    
+    /**
+     * Calls a provider and reads the answer text, caching successful answers
+     * @return the answer, or null if the call failed
+     */
+    private CompletableFuture<String> call(Provider provider, Model_router.Route route, String prompt, Span span) {
+        CompletableFuture<Response_body> response;
+        try (Span.Scope scope = span.makeCurrent()) {
+            response = provider.call.apply(prompt, route);
+        }
+        return response.thenApply(body -> {
+            try (body) {
+                if (body.isError()) {
+                    return null;
+                }
+                String answer = readPart(body);
+                synchronized (cache) {
+                    cache.put(cacheKey(prompt), answer);
+                }
+                return answer;
+            } catch (IOException e) {
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Reads an answer up to the longest partial answer kept
+     */
+    private String readPart(Response_body body) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = body.openReader()) {
+            char[] buffer = new char[4096];
+            int read;
+            while (text.length() < partChars
+                   && (read = reader.read(buffer, 0, Math.min(buffer.length, partChars - text.length()))) >= 0) {
+                text.append(buffer, 0, read);
+            }
+        }
+        return text.toString();
+    }
+    
+    private String cached(String prompt) {
+        synchronized (cache) {
+            return cache.get(cacheKey(prompt));
+        }
+    }
+    
+    private static String cacheKey(String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(prompt.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package api_calls;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Chooses which model of a provider answers each query
+ * Keeps exponentially weighted moving averages (EWMA) of latency and error rate per model
+ * and applies these rules in order:
+ * 1. Prompts up to the short prompt length go to the fast model while it is healthy
+ * 2. Otherwise the primary model is used while it is healthy
+ * 3. When the primary is degraded (error rate or latency over budget) the fallback is used
+ * A healthy candidate is also skipped for another healthy one that is at least twice as fast.
+ * Degraded models get a single probe request every recovery interval, so they return to
+ * service once they recover.
+ *
+ * Configuration (system properties, with provider being e.g. "chatgpt"):
+ * assistant.provider.model, assistant.provider.fastModel, assistant.provider.fallbackModel,
+ * assistant.router.shortPromptChars, assistant.router.maxErrorRate,
+ * assistant.router.latencyBudgetMs and assistant.router.recoveryMs
+ */
+public class Model_router {
+    // Weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.2;
+    // A candidate must be this much faster to override the rule order
+    private static final double FASTER_FACTOR = 2.0;
+    
+    /**
+     * Receives the outcome of every routed call, e.g. for metrics
+     */
+    public interface Route_listener {
+        /**
+         * Called after a call completes, on the thread that made it
+         * @param route the route that was used
+         * @param latencyMillis time the call took
+         * @param success false if the call failed
+         */
+        void onResult(Route route, long latencyMillis, boolean success);
+    }
+    
+    /**
+     * The model chosen for one query and why
+     */
+    public static class Route {
+        private final String provider;
+        private final String model;
+        private final String reason;
+        private final boolean probe;
+        
+        Route(String provider, String model, String reason, boolean probe) {
+            this.provider = provider;
+            this.model = model;
+            this.reason = reason;
+            this.probe = probe;
+        }
+        
+        /**
+         * Gets the provider the route belongs to
+         * @return the provider, e.g. "chatgpt"
+         */
+        public String getProvider() {
+            return provider;
+        }
+        
+        /**
+         * Gets the model chosen for the query
+         * @return the model name
+         */
+        public String getModel() {
+            return model;
+        }
+        
+        /**
+         * Gets why the model was chosen, as shown to the user
+         * @return the reason
+         */
+        public String getReason() {
+            return reason;
+        }
+        
+        @Override
+        public String toString() {
+            return model + " (" + reason + ")";
+        }
+    }
+    
+    /**
+     * Moving averages for one model
+     */
+    private static class Model_stats {
+        private double latencyMillis = Double.NaN;
+        private double errorRate;
+        private long samples;
+        private long lastUsedMillis;
+    }
+    
+    private final String provider;
+    private final String primaryModel;
+    private final String fastModel;
+    private final String fallbackModel;
+    private final int shortPromptChars;
+    private final double maxErrorRate;
+    private final long latencyBudgetMillis;
+    private final long recoveryMillis;
+    private final Map<String, Model_stats> stats = new LinkedHashMap<>();
+    private final List<Route_listener> listeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Constructor reading the models and thresholds from system properties
+     * @param provider provider name used in property names, e.g. "chatgpt"
+     * @param defaultPrimary model used when no rule applies
+     * @param defaultFast model for short prompts
+     * @param defaultFallback model used while the primary is degraded
+     */
+    public Model_router(String provider, String defaultPrimary, String defaultFast, String defaultFallback) {
+        this(provider,
+             System.getProperty("assistant." + provider + ".model", defaultPrimary),
+             System.getProperty("assistant." + provider + ".fastModel", defaultFast),
+             System.getProperty("assistant." + provider + ".fallbackModel", defaultFallback),
+             Integer.getInteger("assistant.router.shortPromptChars", 200),
+             Double.parseDouble(System.getProperty("assistant.router.maxErrorRate", "0.3")),
+             Long.getLong("assistant.router.latencyBudgetMs", 20_000),
+             Long.getLong("assistant.router.recoveryMs", 30_000));
+    }
+    
+    /**
+     * Constructor with explicit models and thresholds
+     * @param provider provider name reported in routes
+     * @param primaryModel model used when no rule applies
+     * @param fastModel model for short prompts, or null
+     * @param fallbackModel model used while the primary is degraded, or null
+     * @param shortPromptChars prompts up to this length count as short
+     * @param maxErrorRate error rate above which a model is degraded
+     * @param latencyBudgetMillis average latency above which a model is degraded
+     * @param recoveryMillis how often a degraded model is probed
+     */
+    public Model_router(String provider, String primaryModel, String fastModel, String fallbackModel,
+                        int shortPromptChars, double maxErrorRate, long latencyBudgetMillis, long recoveryMillis) {
+        this.provider = provider;
+        this.primaryModel = primaryModel;
+        this.fastModel = emptyToNull(fastModel);
+        this.fallbackModel = emptyToNull(fallbackModel);
+        this.shortPromptChars = shortPromptChars;
+        this.maxErrorRate = maxErrorRate;
+        this.latencyBudgetMillis = latencyBudgetMillis;
+        this.recoveryMillis = recoveryMillis;
+    }
+    
+    /**
+     * Registers a listener for call outcomes
+     * @param listener the listener
+     */
+    public void addListener(Route_listener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Chooses the model for a prompt
+     * @param prompt the user's prompt
+     * @return the route to use
+     */
+    public synchronized Route route(String prompt) {
+        long now = System.currentTimeMillis();
+        List<String> candidates = new ArrayList<>();
+        List<String> reasons = new ArrayList<>();
+        if (fastModel != null && prompt.length() <= shortPromptChars) {
+            candidates.add(fastModel);
+            reasons.add("short prompt");
+        }
+        candidates.add(primaryModel);
+        reasons.add("primary");
+        if (fallbackModel != null && !candidates.contains(fallbackModel)) {
+            candidates.add(fallbackModel);
+            reasons.add("primary degraded");
+        }
+        
+        // Take the first healthy candidate in rule order
+        int chosen = -1;
+        for (int i = 0; i < candidates.size() && chosen < 0; i++) {
+            if (isHealthy(candidates.get(i))) {
+                chosen = i;
+            }
+        }
+        
+        if (chosen < 0) {
+            // Everything is degraded: probe a model that has rested long enough, else the fastest
+            for (int i = 0; i < candidates.size() && chosen < 0; i++) {
+                if (now - statsFor(candidates.get(i)).lastUsedMillis >= recoveryMillis) {
+                    chosen = i;
+                    reasons.set(i, "recovery probe");
+                }
+            }
+            if (chosen < 0) {
+                chosen = fastest(candidates, 0, false);
+                reasons.set(chosen, "all degraded");
+            }
+        } else {
+            // Prefer a much faster healthy candidate
+            int preferred = chosen;
+            int fastest = fastest(candidates, chosen, true);
+            if (statsFor(candidates.get(fastest)).latencyMillis * FASTER_FACTOR
+                < statsFor(candidates.get(chosen)).latencyMillis) {
+                chosen = fastest;
+                reasons.set(chosen, "fastest");
+            }
+            // A degraded candidate ahead in rule order gets an occasional probe
+            for (int i = 0; i < preferred; i++) {
+                if (now - statsFor(candidates.get(i)).lastUsedMillis >= recoveryMillis) {
+                    chosen = i;
+                    reasons.set(i, "recovery probe");
+                    break;
+                }
+            }
+        }
+        
+        String model = candidates.get(chosen);
+        statsFor(model).lastUsedMillis = now;
+        String reason = reasons.get(chosen);
+        return new Route(provider, model, reason, "recovery probe".equals(reason));
+    }
+    
+    /**
+     * Makes a route for a model chosen elsewhere, e.g. by a client of the assistant server
+     * Calls on the route still feed the model's estimates. Only the models this router is
+     * configured with are accepted, so callers cannot grow the estimates without bound.
+     * @param model the model to use
+     * @return the route to use
+     * @throws IllegalArgumentException if the model is not one of this router's models
+     */
+    public synchronized Route requested(String model) {
+        if (!model.equals(primaryModel) && !model.equals(fastModel) && !model.equals(fallbackModel)) {
+            throw new IllegalArgumentException("Model not configured for " + provider + ": " + model);
+        }
+        statsFor(model).lastUsedMillis = System.currentTimeMillis();
+        return new Route(provider, model, "requested", false);
+    }
+    
+    /**
+     * Records the outcome of a call made on a route
+     * @param route the route used
+     * @param latencyMillis time the call took
+     * @param success false if the call failed
+     */
+    public void record(Route route, long latencyMillis, boolean success) {
+        synchronized (this) {
+            Model_stats model = statsFor(route.getModel());
+            // A probe measures the current state of a degraded model, so it replaces the history
+            boolean reset = model.samples == 0 || route.probe;
+            model.latencyMillis = reset || Double.isNaN(model.latencyMillis)
+                ? latencyMillis : ALPHA * latencyMillis + (1 - ALPHA) * model.latencyMillis;
+            model.errorRate = reset
+                ? (success ? 0 : 1) : ALPHA * (success ? 0 : 1) + (1 - ALPHA) * model.errorRate;
+            model.samples++;
+            model.lastUsedMillis = System.currentTimeMillis();
+        }
+        for (Route_listener listener : listeners) {
+            listener.onResult(route, latencyMillis, success);
+        }
+    }
+    
+    /**
+     * Describes the current estimates, e.g. "gpt-4: 850 ms, 0% errors"
+     * @return one line per model that has been used
+     */
+    public synchronized String describe() {
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, Model_stats> entry : stats.entrySet()) {
+            Model_stats model = entry.getValue();
+            if (model.samples > 0) {
+                description.append(String.format("%s: %.0f ms, %.0f%% errors%n",
+                    entry.getKey(), model.latencyMillis, model.errorRate * 100));
+            }
+        }
+        return description.toString();
+    }
+    
+    private boolean isHealthy(String model) {
+        Model_stats modelStats = statsFor(model);
+        return modelStats.errorRate <= maxErrorRate
+            && (Double.isNaN(modelStats.latencyMillis) || modelStats.latencyMillis <= latencyBudgetMillis);
+    }
+    
+    /**
+     * Index of the candidate with the lowest known latency, or the given default
+     */
+    private int fastest(List<String> candidates, int defaultIndex, boolean healthyOnly) {
+        int fastest = defaultIndex;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (healthyOnly && !isHealthy(candidates.get(i))) {
+                continue;
+            }
+            double latency = statsFor(candidates.get(i)).latencyMillis;
+            double best = statsFor(candidates.get(fastest)).latencyMillis;
+            if (!Double.isNaN(latency) && (Double.isNaN(best) || latency < best)) {
+                fastest = i;
+            }
+        }
+        return fastest;
+    }
+    
+    private Model_stats statsFor(String model) {
+        return stats.computeIfAbsent(model, key -> new Model_stats());
+    }
+    
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,307 @@
+package api_calls;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import database.Json_util;
+
+/**
+ * Packs short prompts bound for the same provider and model into one request
+ * Prompts submitted within a short window are collected per model and sent together as a
+ * numbered list, with instructions to reply with a JSON object mapping each number to its
+ * answer; the reply is then split back into one result per prompt. The round trip, the
+ * headers and the instructions are paid once for the whole batch, so bulk jobs of small
+ * classification or extraction prompts make far fewer requests against the rate limit.
+ * A prompt whose answer is missing or cannot be parsed is sent again on its own; when the
+ * request itself fails, as on a rate limit, every prompt of the batch gets that failure
+ * rather than being resent at once, so a struggling provider is not hit harder. Long
+ * prompts are never packed.
+ *
+ * Configuration (system properties):
+ * assistant.batch.windowMillis (how long a batch waits for more prompts, default 50),
+ * assistant.batch.maxItems (default 20), assistant.batch.maxPromptChars (longer prompts
+ * are sent alone, default 500) and assistant.batch.maxBatchChars (default 8000)
+ */
+public class Prompt_batcher {
+    private static final String INSTRUCTIONS =
+        "Answer each numbered prompt below on its own, as if it were the only one. "
+        + "Reply with only a JSON object that maps each prompt number to its answer as a string, "
+        + "for example {\"1\": \"...\", \"2\": \"...\"}.\n";
+    
+    private final Model_router router;
+    private final BiFunction<String, Model_router.Route, CompletableFuture<Response_body>> call;
+    private final long windowMillis;
+    private final int maxItems;
+    private final int maxPromptChars;
+    private final int maxBatchChars;
+    // Batches still collecting prompts, by model; a batch is sent by whoever removes it
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    private final ScheduledExecutorService timer;
+    private final AtomicLong promptCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    
+    /**
+     * Prompts collected for one request
+     */
+    private static class Batch {
+        private final Model_router.Route route;
+        private final List<String> prompts = new ArrayList<>();
+        private final List<CompletableFuture<String>> results = new ArrayList<>();
+        private int chars;
+        
+        Batch(Model_router.Route route) {
+            this.route = route;
+        }
+    }
+    
+    /**
+     * Constructor for batching ChatGPT prompts, reading the settings from system properties
+     * @param handler the ChatGPT API handler
+     */
+    public Prompt_batcher(ChatGPT_api_handler handler) {
+        this(handler.getRouter(), handler::makeAsyncBodyCall);
+    }
+    
+    /**
+     * Constructor for batching Perplexity prompts, reading the settings from system properties
+     * @param handler the Perplexity API handler
+     */
+    public Prompt_batcher(Perplexity_api_handler handler) {
+        this(handler.getRouter(), handler::makeAsyncBodyCall);
+    }
+    
+    private Prompt_batcher(Model_router router,
+                           BiFunction<String, Model_router.Route, CompletableFuture<Response_body>> call) {
+        this(router, call,
+             Long.getLong("assistant.batch.windowMillis", 50),
+             Integer.getInteger("assistant.batch.maxItems", 20),
+             Integer.getInteger("assistant.batch.maxPromptChars", 500),
+             Integer.getInteger("assistant.batch.maxBatchChars", 8000));
+    }
+    
+    /**
+     * Constructor with explicit settings
+     * @param router chooses the model of each prompt; prompts are only packed with others for the same model
+     * @param call sends one request on a route
+     * @param windowMillis how long the first prompt of a batch waits for others
+     * @param maxItems most prompts in one request
+     * @param maxPromptChars longer prompts are sent on their own
+     * @param maxBatchChars most prompt characters in one request
+     */
+    Prompt_batcher(Model_router router,
+                   BiFunction<String, Model_router.Route, CompletableFuture<Response_body>> call,
+                   long windowMillis, int maxItems, int maxPromptChars, int maxBatchChars) {
+        this.router = router;
+        this.call = call;
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxItems = Math.max(1, maxItems);
+        this.maxPromptChars = maxPromptChars;
+        this.maxBatchChars = Math.max(maxPromptChars, maxBatchChars);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "prompt-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Submits a prompt, to be sent with others for the same model if it is short
+     * @param prompt the prompt
+     * @return the answer, or the error text of a failed call as the handlers return it
+     */
+    public CompletableFuture<String> submit(String prompt) {
+        promptCount.incrementAndGet();
+        Model_router.Route route = router.route(prompt);
+        if (prompt.length() > maxPromptChars) {
+            return callAlone(prompt, route);
+        }
+        
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Batch ready = null;
+        Batch full = null;
+        synchronized (openBatches) {
+            Batch batch = openBatches.get(route.getModel());
+            if (batch != null && batch.chars + prompt.length() > maxBatchChars) {
+                // No room for this prompt; the batch goes now and a new one is started
+                openBatches.remove(route.getModel());
+                ready = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(route);
+                openBatches.put(route.getModel(), batch);
+                Batch scheduled = batch;
+                timer.schedule(() -> flush(scheduled), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.prompts.add(prompt);
+            batch.results.add(result);
+            batch.chars += prompt.length();
+            if (batch.prompts.size() >= maxItems) {
+                openBatches.remove(route.getModel());
+                full = batch;
+            }
+        }
+        if (ready != null) {
+            send(ready);
+        }
+        if (full != null) {
+            send(full);
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the number of prompts submitted so far
+     * @return the prompt count
+     */
+    public long getPromptCount() {
+        return promptCount.get();
+    }
+    
+    /**
+     * Gets the number of requests made so far, packed and single
+     * @return the request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+    
+    /**
+     * Gets the number of prompts that were packed but had to be sent again on their own
+     * @return the retry count
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+    
+    /**
+     * Sends the batches still collecting prompts and stops the timer
+     */
+    public void shutdown() {
+        List<Batch> remaining;
+        synchronized (openBatches) {
+            remaining = new ArrayList<>(openBatches.values());
+            openBatches.clear();
+        }
+        for (Batch batch : remaining) {
+            send(batch);
+        }
+        timer.shutdown();
+    }
+    
+    /**
+     * Sends a batch when its window is over, unless it was already sent because it filled up
+     */
+    private void flush(Batch batch) {
+        synchronized (openBatches) {
+            if (openBatches.get(batch.route.getModel()) != batch) {
+                return;
+            }
+            openBatches.remove(batch.route.getModel());
+        }
+        send(batch);
+    }
+    
+    /**
+     * Sends a batch as one request and completes each prompt's result from the reply
+     */
+    private void send(Batch batch) {
+        if (batch.prompts.size() == 1) {
+            forward(callAlone(batch.prompts.get(0), batch.route), batch.results.get(0));
+            return;
+        }
+        
+        requestCount.incrementAndGet();
+        call.apply(pack(batch.prompts), batch.route).whenComplete((body, ex) -> {
+            if (ex != null) {
+                for (CompletableFuture<String> result : batch.results) {
+                    result.completeExceptionally(ex);
+                }
+                return;
+            }
+            if (body.isError()) {
+                // An error reply, e.g. 429 or 5xx, would most likely be repeated for each prompt
+                String error;
+                try (body) {
+                    error = body.preview(Response_body.PREVIEW_CHARS);
+                }
+                for (CompletableFuture<String> result : batch.results) {
+                    result.complete(error);
+                }
+                return;
+            }
+            Map<?, ?> answers = parseAnswers(body);
+            for (int i = 0; i < batch.prompts.size(); i++) {
+                Object answer = answers != null ? answers.get(String.valueOf(i + 1)) : null;
+                if (answer instanceof String && !((String) answer).trim().isEmpty()) {
+                    batch.results.get(i).complete((String) answer);
+                } else {
+                    retryCount.incrementAndGet();
+                    forward(callAlone(batch.prompts.get(i), batch.route), batch.results.get(i));
+                }
+            }
+        });
+    }
+    
+    private CompletableFuture<String> callAlone(String prompt, Model_router.Route route) {
+        requestCount.incrementAndGet();
+        return call.apply(prompt, route).thenApply(body -> {
+            try (body) {
+                return body.preview(Response_body.PREVIEW_CHARS);
+            }
+        });
+    }
+    
+    private static void forward(CompletableFuture<String> source, CompletableFuture<String> target) {
+        source.whenComplete((answer, ex) -> {
+            if (ex != null) {
+                target.completeExceptionally(ex);
+            } else {
+                target.complete(answer);
+            }
+        });
+    }
+    
+    /**
+     * Builds the packed prompt; line breaks inside a prompt are flattened so the numbering stays unambiguous
+     */
+    static String pack(List<String> prompts) {
+        StringBuilder packed = new StringBuilder(INSTRUCTIONS);
+        for (int i = 0; i < prompts.size(); i++) {
+            packed.append('\n').append(i + 1).append(". ")
+                .append(prompts.get(i).replaceAll("\\s*[\\r\\n]+\\s*", " ").trim());
+        }
+        return packed.toString();
+    }
+    
+    /**
+     * Reads the JSON object of answers out of a reply, tolerating text or code fences around it
+     * @return the answers by prompt number, or null if the call failed or the reply has no such object
+     */
+    static Map<?, ?> parseAnswers(Response_body body) {
+        try (body) {
+            if (body.isError()) {
+                return null;
+            }
+            String reply = body.preview(Response_body.PREVIEW_CHARS);
+            int start = reply.indexOf('{');
+            int end = reply.lastIndexOf('}');
+            if (start < 0 || end < start) {
+                return null;
+            }
+            Object parsed = Json_util.parse(reply.substring(start, end + 1));
+            return parsed instanceof Map ? (Map<?, ?>) parsed : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package api_calls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import tracing.Flight_events;
+import tracing.Span;
+import tracing.Tracer;
+
+/**
+ * The transport shared by the provider handlers, from queueing a call to reading its answer
+ * A handler builds its provider's payload and picks the answer out of the reply; everything
+ * in between is the same for every provider and lives here: the bounded call executor,
+ * forwarding to an assistant server, recording and replaying a cassette, hedged requests,
+ * bounded response bodies, the router's latency and error feedback, and the trace spans and
+ * flight recorder events of each phase.
+ */
+class Provider_client {
+    // Error bodies are only shown, so only their beginning is kept
+    private static final int ERROR_PREVIEW_CHARS = 4096;
+    
+    /**
+     * Makes one synchronous call for a prompt on a model, as the handlers' makeApiCallBody does
+     */
+    interface Body_call {
+        Response_body call(String prompt, String model) throws Exception;
+    }
+    
+    private final String provider;
+    private final String displayName;
+    private final String endpoint;
+    private final ExecutorService executor;
+    private final Model_router router;
+    private final Traffic_cassette cassette;
+    private final Remote_provider remote;
+    private final Request_hedger hedger;
+    private volatile String apiKey = "";
+    
+    /**
+     * Constructor creates the call executor and reads the cassette, server and hedging settings
+     * @param provider the provider name used in property names, spans and events, e.g. "chatgpt"
+     * @param displayName the name used in error messages, e.g. "ChatGPT"
+     * @param endpoint the API endpoint URL
+     * @param maxConcurrentRequests most calls run at the same time
+     * @param router chooses the model of each call and is told how each call went
+     */
+    Provider_client(String provider, String displayName, String endpoint, int maxConcurrentRequests,
+                    Model_router router) {
+        this.provider = provider;
+        this.displayName = displayName;
+        this.endpoint = endpoint;
+        this.router = router;
+        this.executor = Executors.newFixedThreadPool(maxConcurrentRequests);
+        this.cassette = new Traffic_cassette(provider);
+        this.remote = new Remote_provider(provider);
+        this.hedger = new Request_hedger(provider);
+    }
+    
+    /**
+     * Gets the router that chooses the model of each call
+     * @return the model router
+     */
+    Model_router getRouter() {
+        return router;
+    }
+    
+    /**
+     * Gets the cassette that records or replays the traffic
+     * @return the traffic cassette
+     */
+    Traffic_cassette getCassette() {
+        return cassette;
+    }
+    
+    /**
+     * Gets the hedger that duplicates requests slow to answer
+     * @return the request hedger
+     */
+    Request_hedger getHedger() {
+        return hedger;
+    }
+    
+    /**
+     * Gets the endpoint URL requests are sent to
+     * @return the API endpoint URL
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+    
+    /**
+     * Gets the assistant server calls are forwarded to, when one is configured
+     * @return the remote provider
+     */
+    Remote_provider getRemote() {
+        return remote;
+    }
+    
+    /**
+     * Sets the bearer token sent with live requests
+     * @param apiKey the API key
+     */
+    void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+    
+    /**
+     * Checks if calls can be made: replayed traffic and calls through an assistant server need no key
+     * @return true if an API key is set or none is needed
+     */
+    boolean hasValidApiKey() {
+        return remote.isEnabled() || cassette.isReplaying() || (apiKey != null && !apiKey.isEmpty());
+    }
+    
+    /**
+     * Runs a call on the executor, traced as a child of the caller's current span
+     * The latency and outcome of the call are fed back to the router, and a failure becomes
+     * an error body rather than a failed future.
+     * @param prompt the prompt
+     * @param route the route to call on
+     * @param call makes the call on the executor thread
+     * @return the answer, which the caller must close
+     */
+    CompletableFuture<Response_body> callAsync(String prompt, Model_router.Route route, Body_call call) {
+        String conversationId = Tracer.currentConversationId();
+        // The call span also covers the time spent waiting for a free executor thread
+        Span callSpan = Tracer.startSpan(provider + ".call")
+            .setAttribute("model", route.getModel())
+            .setAttribute("route.reason", route.getReason());
+        Span queueSpan = Tracer.startSpan("executor.queue", callSpan);
+        return CompletableFuture.supplyAsync(() -> {
+            queueSpan.end();
+            Flight_events.Provider_request_event event = new Flight_events.Provider_request_event();
+            event.begin();
+            long start = System.nanoTime();
+            boolean success = false;
+            try (Span.Scope scope = callSpan.makeCurrent()) {
+                Response_body response = call.call(prompt, route.getModel());
+                success = !response.isError();
+                callSpan.setAttribute("response.bytes", response.length());
+                if (!success) {
+                    callSpan.recordError("API error");
+                }
+                return response;
+            } catch (Exception e) {
+                callSpan.recordError(e.getMessage());
+                return Response_body.ofText("Error calling " + displayName + " API: " + e.getMessage(), true);
+            } finally {
+                // Calls that never reached the endpoint say nothing about its performance
+                if (hasValidApiKey()) {
+                    router.record(route, (System.nanoTime() - start) / 1_000_000, success);
+                }
+                callSpan.end();
+                event.model = route.getModel();
+                event.failed = !success;
+                event.finish(conversationId, provider);
+            }
+        }, executor);
+    }
+    
+    /**
+     * Sends a request and reads its response, or serves the recorded response in replay mode
+     * In record mode the live response is copied to the cassette as it is read.
+     * @param payload the JSON request payload
+     * @return the response body, or an error body
+     * @throws IOException if the request fails or no recorded response matches it
+     */
+    Response_body send(String payload) throws IOException {
+        Flight_events.Transfer_event event = new Flight_events.Transfer_event();
+        event.begin();
+        try {
+            return transfer(payload, event);
+        } finally {
+            event.finish(Tracer.currentConversationId(), provider);
+        }
+    }
+    
+    /**
+     * Streams the "content" string out of a successful reply without building either as a String
+     * @param response the reply, closed when done
+     * @return the content, or null if the reply has none
+     * @throws IOException if the reply cannot be read
+     */
+    Response_body extractContent(Response_body response) throws IOException {
+        Flight_events.Parse_event parseEvent = new Flight_events.Parse_event();
+        parseEvent.begin();
+        try (response; Span span = Tracer.startSpan("parse")) {
+            parseEvent.bytes = response.length();
+            return Response_body.extractJsonString(response, "content");
+        } finally {
+            parseEvent.finish(Tracer.currentConversationId(), provider);
+        }
+    }
+    
+    /**
+     * Shuts down the call executor and the hedging threads
+     */
+    void shutdown() {
+        if (!executor.isShutdown()) {
+            executor.shutdown();
+        }
+        hedger.shutdown();
+    }
+    
+    /**
+     * Does the work of send, noting the status and sizes on its flight recorder event
+     */
+    private Response_body transfer(String payload, Flight_events.Transfer_event event) throws IOException {
+        if (cassette.isReplaying()) {
+            event.replayed = true;
+            Traffic_cassette.Replayed_response replayed;
+            try (Span span = Tracer.startSpan("http.ttfb").setAttribute("replayed", true)) {
+                replayed = cassette.replay(endpoint, payload);
+                span.setAttribute("http.status_code", replayed.getStatus());
+                event.status = replayed.getStatus();
+            }
+            try (Span span = Tracer.startSpan("http.read")) {
+                Response_body response = readResponse(replayed.getStatus(), replayed.getBody());
+                span.setAttribute("http.bytes", response.length());
+                event.responseBytes = response.length();
+                return response;
+            }
+        }
+        
+        // Send the request and wait for the status line; a request that is slow to answer
+        // may be sent twice, in which case the first to answer is read
+        String key = apiKey;
+        Http_attempt attempt = hedger.firstToRespond(() -> new Http_attempt(endpoint, key, payload));
+        HttpURLConnection connection = attempt.getConnection();
+        int status = attempt.getStatus();
+        event.requestBytes = attempt.getRequestBytes();
+        event.status = status;
+        
+        // Read the response, or the error stream if the request failed
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (cassette.isRecording() && body != null) {
+            body = cassette.record(endpoint, payload, status, System.nanoTime() - attempt.getStartNanos(), body);
+        }
+        Response_body response;
+        try (Span span = Tracer.startSpan("http.read")) {
+            response = readResponse(status, body);
+            span.setAttribute("http.bytes", response.length());
+        }
+        event.responseBytes = response.length();
+        if (response.isTruncated()) {
+            // The rest of an oversized body is not drained, so the connection cannot be reused
+            connection.disconnect();
+        }
+        return response;
+    }
+    
+    /**
+     * Reads a response body, or an error body for a failed request, into a bounded body
+     * @param status the HTTP status code
+     * @param stream the response or error stream, closed when done; may be null for errors
+     * @return the response body, or an error body
+     * @throws IOException if the stream cannot be read, or a failed request has no body
+     */
+    private static Response_body readResponse(int status, InputStream stream) throws IOException {
+        if (stream == null) {
+            throw new IOException("Server returned HTTP response code: " + status);
+        }
+        try (InputStream in = stream) {
+            if (status < 400) {
+                return Response_body.read(in, false);
+            }
+            // Only the start of an error body is shown, so only that much is read
+            try (Response_body error = Response_body.read(in, true, ERROR_PREVIEW_CHARS * 4L)) {
+                return Response_body.ofText("API Error: " + error.preview(ERROR_PREVIEW_CHARS), true);
+            }
+        }
+    }
+}
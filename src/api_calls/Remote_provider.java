@@ -0,0 +1,94 @@
+package api_calls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import database.Json_util;
+import tracing.Span;
+import tracing.Tracer;
+
+/**
+ * Sends a handler's provider calls to a shared assistant server instead of the provider
+ * When assistant.server.url is set, e.g. to http://localhost:8470, the handlers act as thin
+ * clients: the prompt and the routed model are posted to the server, which makes the call
+ * with its own keys, keep-alive connections and concurrency limit, and the answer streams
+ * back into a bounded body. The conversation id of the current trace goes along in a header,
+ * so the server's traces and flight recorder events carry the same id as the client's.
+ */
+class Remote_provider {
+    static final String CONVERSATION_HEADER = "X-Conversation-Id";
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+    
+    // Null when no server is configured
+    private final String url;
+    
+    /**
+     * Constructor reads the server URL from the assistant.server.url system property
+     * @param provider the provider name used in the server's paths, e.g. "chatgpt"
+     */
+    Remote_provider(String provider) {
+        String base = System.getProperty("assistant.server.url", "").trim();
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        this.url = base.isEmpty() ? null : base + "/api/providers/" + provider;
+    }
+    
+    /**
+     * Checks whether calls go to an assistant server
+     * @return true if a server URL is configured
+     */
+    boolean isEnabled() {
+        return url != null;
+    }
+    
+    /**
+     * Has the server answer a prompt on a given model
+     * @param prompt the prompt
+     * @param model the model to query
+     * @return the answer, or an error body with the server's error text
+     * @throws IOException if the server cannot be reached
+     */
+    Response_body call(String prompt, String model) throws IOException {
+        try (Span span = Tracer.startSpan("server.call").setAttribute("model", model)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            String conversationId = Tracer.currentConversationId();
+            if (!conversationId.isEmpty()) {
+                connection.setRequestProperty(CONVERSATION_HEADER, conversationId);
+            }
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            
+            Map<String, Object> request = new LinkedHashMap<>();
+            request.put("prompt", prompt);
+            request.put("model", model);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(Json_util.toJson(request).getBytes(StandardCharsets.UTF_8));
+            }
+            
+            int status = connection.getResponseCode();
+            span.setAttribute("http.status_code", status);
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body == null) {
+                throw new IOException("Assistant server returned HTTP response code: " + status);
+            }
+            try (InputStream in = body) {
+                Response_body response = Response_body.read(in, status >= 400);
+                span.setAttribute("http.bytes", response.length());
+                if (response.isTruncated()) {
+                    // The rest of an oversized body is not drained, so the connection cannot be reused
+                    connection.disconnect();
+                }
+                return response;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package api_calls;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import tracing.Tracer;
+
+/**
+ * Duplicates provider requests that are slow to start answering and keeps the faster one
+ * Remembers the time to first byte of recent requests. When a request has had no status
+ * line for longer than a configurable percentile of those times, an identical request is
+ * sent alongside it; whichever answers first is read and the other is aborted. Hedges are
+ * paid from a budget that grows by a fixed fraction of every request, so extra requests
+ * stay under that fraction of all requests (5% by default) however slow the provider gets,
+ * while a stalled connection no longer sets the tail latency. Nothing is hedged until
+ * enough requests have been seen to estimate the percentile.
+ *
+ * Configuration (system properties):
+ * assistant.hedge.enabled (default false), assistant.hedge.percentile (default 95),
+ * assistant.hedge.budget (extra requests as a fraction of all requests, default 0.05),
+ * assistant.hedge.minDelayMs (shortest wait before hedging, default 100) and
+ * assistant.hedge.minSamples (default 20)
+ */
+public class Request_hedger {
+    // Number of recent times to first byte the percentile is taken over
+    private static final int WINDOW = 256;
+    // Unused budget is kept up to this many hedges, so a burst of slow requests can all be hedged
+    private static final double MAX_SAVED_HEDGES = 5;
+    
+    /**
+     * One try at a request, up to the first byte of its response
+     */
+    interface Attempt {
+        /**
+         * Sends the request and waits for the status line
+         * @throws IOException if the request fails or is aborted
+         */
+        void run() throws IOException;
+        
+        /**
+         * Aborts the try from another thread; may be called more than once, and after run has returned
+         */
+        void abort();
+    }
+    
+    private final boolean enabled;
+    private final double percentile;
+    private final double budget;
+    private final long minDelayNanos;
+    private final int minSamples;
+    private final ExecutorService executor;
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int nextSample;
+    private double savedHedges;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    
+    /**
+     * Constructor reading the settings from system properties
+     * @param provider the provider name, used for thread names
+     */
+    Request_hedger(String provider) {
+        this(provider,
+             Boolean.getBoolean("assistant.hedge.enabled"),
+             Double.parseDouble(System.getProperty("assistant.hedge.percentile", "95")),
+             Double.parseDouble(System.getProperty("assistant.hedge.budget", "0.05")),
+             Long.getLong("assistant.hedge.minDelayMs", 100),
+             Integer.getInteger("assistant.hedge.minSamples", 20));
+    }
+    
+    /**
+     * Constructor with explicit settings
+     * @param provider the provider name, used for thread names
+     * @param enabled false to send every request once, as before
+     * @param percentile percentile of recent times to first byte after which a request is hedged, e.g. 95
+     * @param budget most hedges as a fraction of all requests, e.g. 0.05
+     * @param minDelayMillis shortest wait before hedging, so fast providers are not hedged over jitter
+     * @param minSamples requests to observe before hedging
+     */
+    Request_hedger(String provider, boolean enabled, double percentile, double budget,
+                   long minDelayMillis, int minSamples) {
+        this.enabled = enabled;
+        this.percentile = Math.min(100, Math.max(1, percentile));
+        this.budget = Math.max(0, budget);
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDelayMillis));
+        this.minSamples = Math.max(1, Math.min(WINDOW, minSamples));
+        if (enabled) {
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, provider + "-hedge-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+    
+    /**
+     * Runs a request up to its first byte, duplicating it if it is slow
+     * The caller's current span is marked when a request is hedged.
+     * @param newAttempt creates an unstarted try of the request; called once, or twice when hedging
+     * @return the try that answered first; the other one, if any, has been aborted
+     * @throws IOException if every try failed, with the error of the last one to fail
+     */
+    <A extends Attempt> A firstToRespond(Supplier<A> newAttempt) throws IOException {
+        requestCount.incrementAndGet();
+        long delayNanos = hedgeDelayNanos();
+        long start = System.nanoTime();
+        A primary = newAttempt.get();
+        if (delayNanos < 0) {
+            primary.run();
+            record(System.nanoTime() - start);
+            return primary;
+        }
+        
+        CompletableFuture<A> primaryDone = runAsync(primary);
+        A hedge = null;
+        try {
+            try {
+                A winner = primaryDone.get(delayNanos, TimeUnit.NANOSECONDS);
+                record(System.nanoTime() - start);
+                return winner;
+            } catch (TimeoutException e) {
+                if (!takeHedge()) {
+                    A winner = primaryDone.get();
+                    record(System.nanoTime() - start);
+                    return winner;
+                }
+            }
+            
+            hedgeCount.incrementAndGet();
+            Tracer.current().setAttribute("hedged", true);
+            hedge = newAttempt.get();
+            CompletableFuture<A> hedgeDone = runAsync(hedge);
+            A winner = firstSuccessful(primaryDone, hedgeDone).get();
+            // The time the primary kept the caller waiting is what the percentile should reflect
+            record(System.nanoTime() - start);
+            A loser = winner == primary ? hedge : primary;
+            loser.abort();
+            // A loser that was still connecting is aborted again once it gets further
+            (winner == primary ? hedgeDone : primaryDone).whenComplete((attempt, ex) -> loser.abort());
+            if (winner == hedge) {
+                hedgeWinCount.incrementAndGet();
+                Tracer.current().setAttribute("hedge.won", true);
+            }
+            return winner;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            // Neither try is read any more; both give up their connections
+            primary.abort();
+            if (hedge != null) {
+                hedge.abort();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+    }
+    
+    /**
+     * Gets the number of requests made so far, not counting hedges
+     * @return the request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+    
+    /**
+     * Gets the number of duplicate requests sent so far
+     * @return the hedge count
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+    
+    /**
+     * Gets the number of hedges that answered before the request they duplicated
+     * @return the number of hedges that won
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+    
+    /**
+     * Stops the hedging threads; requests are sent once from then on
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Adds this request's share of the budget and gets how long to wait before hedging it
+     * @return the wait, or -1 if the request is not to be hedged
+     */
+    private synchronized long hedgeDelayNanos() {
+        if (!enabled || executor.isShutdown()) {
+            return -1;
+        }
+        savedHedges = Math.min(MAX_SAVED_HEDGES, savedHedges + budget);
+        if (savedHedges < 1 || sampleCount < minSamples) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return Math.max(minDelayNanos, sorted[Math.max(0, index)]);
+    }
+    
+    /**
+     * Spends one hedge from the budget, unless concurrent requests have used it up
+     */
+    private synchronized boolean takeHedge() {
+        if (savedHedges < 1) {
+            return false;
+        }
+        savedHedges -= 1;
+        return true;
+    }
+    
+    private synchronized void record(long nanos) {
+        samples[nextSample] = nanos;
+        nextSample = (nextSample + 1) % WINDOW;
+        sampleCount = Math.min(WINDOW, sampleCount + 1);
+    }
+    
+    /**
+     * Runs a try on a hedging thread, as a child of the caller's current span
+     */
+    private <A extends Attempt> CompletableFuture<A> runAsync(A attempt) {
+        return CompletableFuture.supplyAsync(Tracer.wrap(() -> {
+            try {
+                attempt.run();
+                return attempt;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }), executor);
+    }
+    
+    /**
+     * Completes with the first try to succeed, or fails once both have failed
+     */
+    private static <A> CompletableFuture<A> firstSuccessful(CompletableFuture<A> first, CompletableFuture<A> second) {
+        CompletableFuture<A> result = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<A> attempt : Arrays.asList(first, second)) {
+            attempt.whenComplete((value, ex) -> {
+                if (ex == null) {
+                    result.complete(value);
+                } else if (failures.incrementAndGet() == 2) {
+                    result.completeExceptionally(ex);
+                }
+            });
+        }
+        return result;
+    }
+    
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+}
@@ -0,0 +1,340 @@
+package api_calls;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import database.Spill_output;
+
+/**
+ * Memory-bounded holder for a response body
+ * Bodies are kept in memory up to a threshold and spill to a temporary file beyond it,
+ * and reading stops at a hard size cap, so a runaway or hostile response cannot exhaust
+ * the heap even with many queries in flight. Large bodies should be consumed through
+ * openReader() or preview() rather than turned into one String.
+ *
+ * Configuration (system properties):
+ * assistant.response.maxBytes (default 32 MiB), assistant.response.memoryThreshold
+ * (default 256 KiB) and assistant.response.previewChars (default 100000)
+ */
+public class Response_body implements Closeable {
+    public static final long MAX_BYTES = Long.getLong("assistant.response.maxBytes", 32L << 20);
+    public static final int MEMORY_THRESHOLD = Integer.getInteger("assistant.response.memoryThreshold", 256 << 10);
+    // Number of characters shown in the response panels
+    public static final int PREVIEW_CHARS = Integer.getInteger("assistant.response.previewChars", 100_000);
+    private static final int BUFFER_SIZE = 8192;
+    
+    private final byte[] memory;
+    private final int memoryLength;
+    private final Path file;
+    private final long length;
+    private final boolean truncated;
+    private final boolean error;
+    
+    private Response_body(byte[] memory, int memoryLength, Path file, long length,
+                          boolean truncated, boolean error) {
+        this.memory = memory;
+        this.memoryLength = memoryLength;
+        this.file = file;
+        this.length = length;
+        this.truncated = truncated;
+        this.error = error;
+    }
+    
+    /**
+     * Reads a stream into a bounded body; reading stops at the size cap
+     * @param in the stream to read, which is not closed
+     * @param error true if this is an error response
+     * @return the body
+     * @throws IOException if reading or spilling fails
+     */
+    public static Response_body read(InputStream in, boolean error) throws IOException {
+        return read(in, error, MAX_BYTES);
+    }
+    
+    /**
+     * Reads a stream into a body of at most the given size, e.g. the start of an error response
+     * @param in the stream to read, which is not closed
+     * @param error true if this is an error response
+     * @param maxBytes the size at which reading stops, at most the size cap
+     * @return the body
+     * @throws IOException if reading or spilling fails
+     */
+    public static Response_body read(InputStream in, boolean error, long maxBytes) throws IOException {
+        Spill_output out = newOutput(Math.min(maxBytes, MAX_BYTES));
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while (!out.isFull() && (read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            if (out.isFull() && in.read() >= 0) {
+                out.markTruncated();
+            }
+            return toBody(out, error);
+        } catch (IOException e) {
+            discard(out);
+            throw e;
+        }
+    }
+    
+    /**
+     * Wraps a short text, e.g. an error message
+     * @param text the text
+     * @param error true if the text describes an error
+     * @return the body
+     */
+    public static Response_body ofText(String text, boolean error) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new Response_body(bytes, bytes.length, null, bytes.length, false, error);
+    }
+    
+    /**
+     * Streams the value of the first string field with the given name out of a JSON body
+     * The JSON is tokenized as it is read, so field names inside string values are not
+     * matched and neither body is ever held in memory as a whole. For chat completion
+     * responses the first "content" field is the answer in choices[0].message.content.
+     * @param json the JSON body
+     * @param field the field name
+     * @return the decoded value as a new body, or null if the field is absent or not a string
+     * @throws IOException if reading or spilling fails
+     */
+    public static Response_body extractJsonString(Response_body json, String field) throws IOException {
+        try (PushbackReader in = new PushbackReader(new BufferedReader(json.openReader(), BUFFER_SIZE))) {
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c != '"') {
+                    continue;
+                }
+                // Only a prefix long enough to compare with the field name is kept
+                String name = readStringPrefix(in, field.length() + 1);
+                int next = skipWhitespace(in);
+                if (next != ':') {
+                    if (next >= 0) {
+                        in.unread(next);
+                    }
+                    continue;
+                }
+                if (!field.equals(name)) {
+                    continue;
+                }
+                if (skipWhitespace(in) != '"') {
+                    return null;
+                }
+                
+                Spill_output out = newOutput(MAX_BYTES);
+                try {
+                    // Flushed rather than closed, as closing the output would delete its spill file
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+                    decodeString(in, writer, out);
+                    writer.flush();
+                } catch (IOException e) {
+                    discard(out);
+                    throw e;
+                }
+                return toBody(out, json.error);
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the stored size
+     * @return the number of bytes kept
+     */
+    public long length() {
+        return length;
+    }
+    
+    /**
+     * Checks whether the body was cut off at the size cap
+     * @return true if bytes beyond the cap were dropped
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+    
+    /**
+     * Checks whether this is an error response
+     * @return true for HTTP errors and error messages
+     */
+    public boolean isError() {
+        return error;
+    }
+    
+    /**
+     * Opens the body as a byte stream
+     * @return a new stream, to be closed by the caller
+     * @throws IOException if the spill file cannot be opened
+     */
+    public InputStream openStream() throws IOException {
+        if (file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(memory, 0, memoryLength);
+    }
+    
+    /**
+     * Opens the body as UTF-8 text
+     * @return a new reader, to be closed by the caller
+     * @throws IOException if the spill file cannot be opened
+     */
+    public Reader openReader() throws IOException {
+        return new InputStreamReader(openStream(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Gets the beginning of the body as text, for display
+     * @param maxChars maximum number of characters
+     * @return the text, with a note appended when it is cut short
+     */
+    public String preview(int maxChars) {
+        StringBuilder text = new StringBuilder((int) Math.min(maxChars, length) + 16);
+        try (Reader reader = openReader()) {
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while (text.length() < maxChars
+                   && (read = reader.read(buffer, 0, Math.min(buffer.length, maxChars - text.length()))) >= 0) {
+                text.append(buffer, 0, read);
+            }
+            boolean more = reader.read() >= 0;
+            if (more || truncated) {
+                text.append(String.format("%n%n[Response is %,d KB%s; showing the first %,d characters]",
+                    length / 1024, truncated ? ", cut off at the size limit" : "", text.length()));
+            }
+        } catch (IOException e) {
+            text.append("\n\n[Response could not be read: ").append(e.getMessage()).append(']');
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Deletes the spill file, if any
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Could not delete response spill file: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Reads the rest of a JSON string, returning its first characters or null if it is longer
+     */
+    private static String readStringPrefix(Reader in, int limit) throws IOException {
+        StringBuilder prefix = new StringBuilder();
+        boolean tooLong = false;
+        int c;
+        while ((c = in.read()) >= 0 && c != '"') {
+            if (c == '\\') {
+                c = in.read();
+            }
+            if (prefix.length() < limit) {
+                prefix.append((char) c);
+            } else {
+                tooLong = true;
+            }
+        }
+        return tooLong ? null : prefix.toString();
+    }
+    
+    private static int skipWhitespace(Reader in) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+    
+    /**
+     * Decodes the rest of a JSON string with its escapes, stopping early at the size cap
+     * A string cut off by the end of the body, e.g. a truncated response, is marked truncated
+     */
+    private static void decodeString(Reader in, Writer writer, Spill_output out) throws IOException {
+        int c;
+        while ((c = in.read()) >= 0 && c != '"') {
+            if (out.isFull()) {
+                out.markTruncated();
+                return;
+            }
+            if (c != '\\') {
+                writer.write(c);
+                continue;
+            }
+            c = in.read();
+            switch (c) {
+                case 'n': writer.write('\n'); break;
+                case 'r': writer.write('\r'); break;
+                case 't': writer.write('\t'); break;
+                case 'b': writer.write('\b'); break;
+                case 'f': writer.write('\f'); break;
+                case 'u': {
+                    char[] hex = new char[4];
+                    for (int i = 0; i < 4; i++) {
+                        hex[i] = (char) in.read();
+                    }
+                    try {
+                        writer.write(Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid unicode escape in JSON string");
+                    }
+                    break;
+                }
+                case -1:
+                    out.markTruncated();
+                    return;
+                default:
+                    writer.write(c);
+            }
+        }
+        if (c < 0) {
+            out.markTruncated();
+        }
+    }
+    
+    /**
+     * Creates the output a body is read into: in memory up to the threshold, then spilled to a
+     * temporary file, dropping bytes past the given size
+     */
+    private static Spill_output newOutput(long maxBytes) {
+        return new Spill_output("response-", MEMORY_THRESHOLD, maxBytes);
+    }
+    
+    /**
+     * Turns a filled output into a body, which takes over its temporary file
+     */
+    private static Response_body toBody(Spill_output out, boolean error) throws IOException {
+        Path file = out.finish();
+        if (file != null) {
+            return new Response_body(null, 0, file, out.length(), out.isTruncated(), error);
+        }
+        byte[] bytes = out.toByteArray();
+        return new Response_body(bytes, bytes.length, null, out.length(), out.isTruncated(), error);
+    }
+    
+    /**
+     * Deletes the temporary file of an output that will not become a body
+     */
+    private static void discard(Spill_output out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Could not delete response spill file: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package api_calls;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Records provider HTTP exchanges to a cassette file and replays them
+ * In record mode the response of every real request is captured together with its
+ * timing: the time to the status line and the delay before each chunk the body arrived
+ * in. In replay mode no connection is made; recorded responses are served back with their
+ * original timing multiplied by a scale factor (0 serves them instantly), which makes
+ * benchmark runs of the app and of the headless paths reproducible offline.
+ *
+ * Exchanges are matched by a hash of the endpoint and the request body; the API key is
+ * never recorded. Identical requests are answered in recorded order, starting over once
+ * all recordings of a request have been used. Only responses that were read to the end are
+ * recorded; a body cut short by a read error or by the response size cap is left out, so a
+ * replay never serves a partial body as a complete one.
+ *
+ * A cassette is a magic number and a sequence of records, each an int length followed by the deflated
+ * exchange: request hash, status code, time to status line, then the chunks as
+ * (delay, length, bytes) until a negative length. Replay keeps only an index of the records
+ * and inflates a body from the file as it is served; a partial record at the end of the file,
+ * left by a crash while recording, is ignored.
+ *
+ * Configuration (system properties):
+ * assistant.cassette.mode (off, record or replay; default off), assistant.cassette.dir
+ * (default the cassettes folder in the working directory) and assistant.cassette.timeScale
+ * (default 1.0)
+ */
+public class Traffic_cassette {
+    private static final int MAGIC = 0x43415331; // "CAS1"
+    
+    /**
+     * What the cassette does with provider traffic
+     */
+    public enum Mode {
+        OFF, RECORD, REPLAY;
+        
+        static Mode fromProperty(String value) {
+            try {
+                return value == null ? OFF : Mode.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown cassette mode '" + value + "', recording is off");
+                return OFF;
+            }
+        }
+    }
+    
+    /**
+     * Where one recorded response is in the cassette file
+     */
+    private static class Exchange {
+        // Offset of the deflated record in the file
+        private final long offset;
+        private final int status;
+        private final long statusDelayNanos;
+        
+        Exchange(long offset, int status, long statusDelayNanos) {
+            this.offset = offset;
+            this.status = status;
+            this.statusDelayNanos = statusDelayNanos;
+        }
+    }
+    
+    private final File file;
+    private final Mode mode;
+    private final double timeScale;
+    // Recorded exchanges by request hash, indexed on first replay
+    private Map<String, List<Exchange>> recorded;
+    private final Map<String, Integer> replayPositions = new HashMap<>();
+    
+    /**
+     * Constructor reading the mode, directory and time scale from system properties
+     * @param provider provider name used as the cassette file name, e.g. "chatgpt"
+     */
+    public Traffic_cassette(String provider) {
+        this(new File(System.getProperty("assistant.cassette.dir", "cassettes"), provider + ".cassette"),
+             Mode.fromProperty(System.getProperty("assistant.cassette.mode")),
+             Double.parseDouble(System.getProperty("assistant.cassette.timeScale", "1.0")));
+    }
+    
+    /**
+     * Constructor with an explicit file, mode and time scale
+     * @param file the cassette file
+     * @param mode whether to record, replay or do nothing
+     * @param timeScale factor applied to recorded delays when replaying
+     */
+    public Traffic_cassette(File file, Mode mode, double timeScale) {
+        this.file = file;
+        this.mode = mode;
+        this.timeScale = Math.max(0, timeScale);
+    }
+    
+    /**
+     * Gets what the cassette does with provider traffic
+     * @return the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+    
+    /**
+     * Checks if live responses are copied to the cassette
+     * @return true in record mode
+     */
+    public boolean isRecording() {
+        return mode == Mode.RECORD;
+    }
+    
+    /**
+     * Checks if responses are served from the cassette instead of the network
+     * @return true in replay mode
+     */
+    public boolean isReplaying() {
+        return mode == Mode.REPLAY;
+    }
+    
+    /**
+     * Wraps a live response stream so the exchange is appended to the cassette when it is closed
+     * @param endpoint the endpoint the request was sent to
+     * @param requestBody the request payload
+     * @param status the HTTP status code
+     * @param statusDelayNanos time from sending the request to receiving the status line
+     * @param body the response or error stream
+     * @return a stream reading through to the body
+     */
+    public InputStream record(String endpoint, String requestBody, int status, long statusDelayNanos,
+                              InputStream body) {
+        return new Recording_stream(body, requestHash(endpoint, requestBody), status, statusDelayNanos);
+    }
+    
+    /**
+     * Serves the next recorded response to a request, waiting for the scaled time to the status line
+     * @param endpoint the endpoint the request would be sent to
+     * @param requestBody the request payload
+     * @return the recorded response, whose body is served with the scaled chunk timing
+     * @throws IOException if the cassette cannot be read or holds no response to the request
+     */
+    public Replayed_response replay(String endpoint, String requestBody) throws IOException {
+        String hash = requestHash(endpoint, requestBody);
+        Exchange exchange;
+        synchronized (this) {
+            if (recorded == null) {
+                recorded = load();
+            }
+            List<Exchange> exchanges = recorded.get(hash);
+            if (exchanges == null) {
+                throw new IOException("No recorded response for this request in " + file);
+            }
+            int position = replayPositions.getOrDefault(hash, 0);
+            exchange = exchanges.get(position % exchanges.size());
+            replayPositions.put(hash, position + 1);
+        }
+        pause(exchange.statusDelayNanos);
+        return new Replayed_response(exchange.status, new Replay_stream(openRecord(exchange.offset)));
+    }
+    
+    /**
+     * A response served from the cassette
+     */
+    public static class Replayed_response {
+        private final int status;
+        private final InputStream body;
+        
+        Replayed_response(int status, InputStream body) {
+            this.status = status;
+            this.body = body;
+        }
+        
+        /**
+         * Gets the recorded HTTP status code
+         * @return the status code
+         */
+        public int getStatus() {
+            return status;
+        }
+        
+        /**
+         * Gets the recorded body, served with the scaled chunk timing
+         * @return the body stream
+         */
+        public InputStream getBody() {
+            return body;
+        }
+    }
+    
+    /**
+     * Appends one deflated exchange record to the cassette file
+     * @param record file holding the deflated record
+     * @throws IOException if the record cannot be read or the cassette written
+     */
+    private synchronized void append(File record) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        boolean isNew = !file.exists() || file.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            if (isNew) {
+                out.writeInt(MAGIC);
+            }
+            out.writeInt((int) record.length());
+            Files.copy(record.toPath(), out);
+        }
+    }
+    
+    /**
+     * Indexes every complete exchange in the cassette file by request hash
+     * Only the start of each record is inflated; a partial record at the end is ignored.
+     */
+    private Map<String, List<Exchange>> load() throws IOException {
+        Map<String, List<Exchange>> exchanges = new HashMap<>();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < 4 || in.readInt() != MAGIC) {
+                throw new IOException("Not a cassette file: " + file);
+            }
+            long fileLength = in.length();
+            long position = 4;
+            while (position + 4 <= fileLength) {
+                in.seek(position);
+                int length = in.readInt();
+                long offset = position + 4;
+                if (length < 0 || offset + length > fileLength) {
+                    System.err.println("Ignoring a partial exchange at the end of " + file);
+                    break;
+                }
+                try (DataInputStream record = openRecord(offset)) {
+                    String hash = record.readUTF();
+                    Exchange exchange = new Exchange(offset, record.readInt(), record.readLong());
+                    exchanges.computeIfAbsent(hash, key -> new ArrayList<>()).add(exchange);
+                }
+                position = offset + length;
+            }
+        }
+        return exchanges;
+    }
+    
+    /**
+     * Opens the inflated record that starts at an offset in the cassette file
+     */
+    private DataInputStream openRecord(long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+            return new DataInputStream(new InflaterInputStream(new BufferedInputStream(in)));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
+    private void pause(long recordedNanos) throws IOException {
+        long nanos = (long) (recordedNanos * timeScale);
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay interrupted");
+        }
+    }
+    
+    private static String requestHash(String endpoint, String requestBody) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(endpoint.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(requestBody.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    /**
+     * Deflates each chunk read from the live stream, with its delay, into a temporary record file
+     * Chunks are written out as they are read, so recording a large body does not keep it in
+     * the heap. The record is appended to the cassette when the stream is closed after reaching
+     * its end; if the body was not read to the end, or the record cannot be written, the record
+     * is dropped and the live stream is read as usual.
+     */
+    private class Recording_stream extends FilterInputStream {
+        private File recordFile;
+        private DataOutputStream record;
+        private long lastNanos = System.nanoTime();
+        private boolean complete;
+        
+        Recording_stream(InputStream in, String hash, int status, long statusDelayNanos) {
+            super(in);
+            try {
+                recordFile = File.createTempFile("exchange-", ".record");
+                record = new DataOutputStream(new DeflaterOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(recordFile))));
+                record.writeUTF(hash);
+                record.writeInt(status);
+                record.writeLong(statusDelayNanos);
+            } catch (IOException e) {
+                stopRecording(e);
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count;
+            try {
+                count = super.read(buffer, offset, length);
+            } catch (IOException e) {
+                stopRecording(null);
+                throw e;
+            }
+            if (count < 0 && length > 0) {
+                complete = true;
+            }
+            if (count > 0 && record != null) {
+                long now = System.nanoTime();
+                try {
+                    record.writeLong(now - lastNanos);
+                    record.writeInt(count);
+                    record.write(buffer, offset, count);
+                } catch (IOException e) {
+                    stopRecording(e);
+                }
+                lastNanos = now;
+            }
+            return count;
+        }
+        
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes are read through so they are recorded too
+            byte[] buffer = new byte[(int) Math.min(8192, Math.max(1, count))];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (record == null) {
+                return;
+            }
+            if (!complete) {
+                // A body that was not read to the end would replay as a complete, shorter one
+                stopRecording(null);
+                return;
+            }
+            try {
+                record.writeLong(0);
+                record.writeInt(-1);
+                record.close();
+                record = null;
+                append(recordFile);
+                recordFile.delete();
+            } catch (IOException e) {
+                stopRecording(e);
+            }
+        }
+        
+        /**
+         * Gives up on this exchange and deletes its partial record
+         * @param e the write error to report, or null if the response itself was incomplete
+         */
+        private void stopRecording(IOException e) {
+            if (e != null) {
+                System.err.println("Failed to record exchange to " + file + ": " + e.getMessage());
+            }
+            try {
+                if (record != null) {
+                    record.close();
+                }
+            } catch (IOException ignored) {
+                // The partial record is deleted either way
+            }
+            record = null;
+            if (recordFile != null) {
+                recordFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Serves a recorded body chunk by chunk as it is inflated, waiting the scaled delay before each chunk
+     */
+    private class Replay_stream extends InputStream {
+        private final DataInputStream record;
+        // Bytes left of the current chunk; -1 once the last chunk has been served
+        private int remaining;
+        
+        Replay_stream(DataInputStream record) throws IOException {
+            this.record = record;
+            try {
+                // Skip the hash, status and time to status line, already known from the index
+                record.readUTF();
+                record.readInt();
+                record.readLong();
+            } catch (IOException e) {
+                record.close();
+                throw e;
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (remaining == 0) {
+                long delay = record.readLong();
+                remaining = record.readInt();
+                if (remaining < 0) {
+                    remaining = -1;
+                    break;
+                }
+                pause(delay);
+            }
+            if (remaining < 0) {
+                return -1;
+            }
+            int count = record.read(buffer, offset, Math.min(length, remaining));
+            if (count < 0) {
+                throw new EOFException("Recorded response ended early in " + file);
+            }
+            remaining -= count;
+            return count;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            record.close();
+        }
+    }
+}
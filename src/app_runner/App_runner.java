@@ -1,22 +1,40 @@
 package app_runner;
 
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import panels.*;
 import api_calls.*;
 import database.*;
+import tracing.Tracer;
 
 /**
  * Main application class that initializes the Combined AI Assistant
  * This class sets up the main frame, arranges all panels, and starts the application
  */
 public class App_runner {
+    // How often the queue depth in the status bar is refreshed
+    private static final int QUEUE_STATUS_INTERVAL_MS = 1000;
+    
     private JFrame mainFrame;
     private ChatGPT_panel chatGPTPanel;
     private Perplexity_panel perplexityPanel;
     private Input_panel inputPanel;
     private Background_panel backgroundPanel;
+    private Agreement_panel agreementPanel;
     private Database_handler dbHandler;
+    private ChatGPT_api_handler chatGPTHandler;
+    private Perplexity_api_handler perplexityHandler;
+    private JLabel queueStatusLabel;
+    private Timer queueStatusTimer;
     
     /**
      * Constructor that initializes all UI components and database connection
@@ -35,8 +53,8 @@ public class App_runner {
         mainFrame.setLayout(new BorderLayout());
         
         // Set up the API handlers for both AI services
-        ChatGPT_api_handler chatGPTHandler = new ChatGPT_api_handler();
-        Perplexity_api_handler perplexityHandler = new Perplexity_api_handler();
+        chatGPTHandler = new ChatGPT_api_handler();
+        perplexityHandler = new Perplexity_api_handler();
         
         // Initialize UI panels
         chatGPTPanel = new ChatGPT_panel(chatGPTHandler);
@@ -45,6 +63,8 @@ public class App_runner {
         
         // Connect the panels
         inputPanel.setPanels(chatGPTPanel, perplexityPanel);
+        agreementPanel = new Agreement_panel(chatGPTPanel, perplexityPanel, backgroundPanel);
+        inputPanel.setAgreementPanel(agreementPanel);
         
         // Create a split pane for the two AI response panels
         JSplitPane splitPane = new JSplitPane(
@@ -54,9 +74,25 @@ public class App_runner {
         );
         splitPane.setResizeWeight(0.5); // Equal resizing
         
+        // Show the agreement summary above the two answers
+        JPanel responsesPanel = new JPanel(new BorderLayout());
+        responsesPanel.add(agreementPanel, BorderLayout.NORTH);
+        responsesPanel.add(splitPane, BorderLayout.CENTER);
+        
+        // Status bar showing how much background work is queued in each lane
+        queueStatusLabel = new JLabel(" ");
+        queueStatusLabel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        queueStatusTimer = new Timer(QUEUE_STATUS_INTERVAL_MS, e -> updateQueueStatus());
+        queueStatusTimer.start();
+        updateQueueStatus();
+        
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(inputPanel, BorderLayout.CENTER);
+        bottomPanel.add(queueStatusLabel, BorderLayout.SOUTH);
+        
         // Add components to the main frame
-        mainFrame.add(splitPane, BorderLayout.CENTER);
-        mainFrame.add(inputPanel, BorderLayout.SOUTH);
+        mainFrame.add(responsesPanel, BorderLayout.CENTER);
+        mainFrame.add(bottomPanel, BorderLayout.SOUTH);
         
         // Setup menu
         setupMenu();
@@ -92,23 +128,174 @@ public class App_runner {
         settingsMenu.add(apiSettingsItem);
         settingsMenu.add(themeItem);
         
+        // View menu
+        JMenu viewMenu = new JMenu("View");
+        JMenuItem historyItem = new JMenuItem("Conversation History");
+        JMenuItem tracesItem = new JMenuItem("Slowest Queries");
+        JMenuItem reportItem = new JMenuItem("Performance Report");
+        viewMenu.add(historyItem);
+        viewMenu.add(tracesItem);
+        viewMenu.add(reportItem);
+        
+        // Tools menu
+        JMenu toolsMenu = new JMenu("Tools");
+        JMenuItem bulkItem = new JMenuItem("Bulk Prompts");
+        toolsMenu.add(bulkItem);
+        
         // Add action listeners
         exitItem.addActionListener(e -> shutdownApplication());
+        exportItem.addActionListener(e -> exportConversations());
         clearItem.addActionListener(e -> {
             chatGPTPanel.clearConversation();
             perplexityPanel.clearConversation();
         });
         
         apiSettingsItem.addActionListener(e -> showApiSettingsDialog());
+        historyItem.addActionListener(e -> showHistory());
+        tracesItem.addActionListener(e -> showTraceViewer());
+        reportItem.addActionListener(e -> showPerformanceReport());
+        bulkItem.addActionListener(e -> showBulkPrompts());
         
         // Add menus to menu bar
         menuBar.add(fileMenu);
         menuBar.add(settingsMenu);
+        menuBar.add(viewMenu);
+        menuBar.add(toolsMenu);
         
         // Set the menu bar
         mainFrame.setJMenuBar(menuBar);
     }
     
+    /**
+     * Asks for a target file and streams the stored conversations to it in the background
+     * The format is chosen from the file extension (.jsonl, .md or .html)
+     */
+    private void exportConversations() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Export Conversations");
+        FileNameExtensionFilter jsonlFilter = new FileNameExtensionFilter("JSON Lines (*.jsonl)", "jsonl");
+        FileNameExtensionFilter markdownFilter = new FileNameExtensionFilter("Markdown (*.md)", "md");
+        FileNameExtensionFilter htmlFilter = new FileNameExtensionFilter("HTML (*.html)", "html");
+        chooser.addChoosableFileFilter(jsonlFilter);
+        chooser.addChoosableFileFilter(markdownFilter);
+        chooser.addChoosableFileFilter(htmlFilter);
+        chooser.setFileFilter(jsonlFilter);
+        
+        if (chooser.showSaveDialog(mainFrame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        // Use the extension typed by the user, otherwise the one of the selected filter
+        File selected = chooser.getSelectedFile();
+        Conversation_exporter.Format format = Conversation_exporter.Format.fromFileName(selected.getName());
+        if (format == null) {
+            if (chooser.getFileFilter() == markdownFilter) {
+                format = Conversation_exporter.Format.MARKDOWN;
+            } else if (chooser.getFileFilter() == htmlFilter) {
+                format = Conversation_exporter.Format.HTML;
+            } else {
+                format = Conversation_exporter.Format.JSONL;
+            }
+            selected = new File(selected.getParentFile(), selected.getName() + format.getExtension());
+        }
+        
+        File target = selected;
+        Conversation_exporter.Format exportFormat = format;
+        Conversation_exporter exporter = new Conversation_exporter(dbHandler);
+        ProgressMonitor monitor = new ProgressMonitor(mainFrame,
+            "Exporting conversations to " + target.getName(), null, 0, 1000);
+        monitor.setMillisToDecideToPopup(200);
+        
+        Future<?>[] exportTask = new Future<?>[1];
+        try {
+            exportTask[0] = backgroundPanel.executeTask(
+                progress -> exporter.export(target.toPath(), exportFormat, progress::report),
+                new Background_panel.ProgressListener() {
+                    @Override
+                    public void onProgress(long completed, long total) {
+                        if (monitor.isCanceled()) {
+                            exportTask[0].cancel(true);
+                            return;
+                        }
+                        monitor.setProgress((int) (completed * 1000 / Math.max(1, total)));
+                    }
+                    
+                    @Override
+                    public void onComplete(Exception error) {
+                        monitor.close();
+                        if (error != null && !(error instanceof CancellationException)) {
+                            JOptionPane.showMessageDialog(mainFrame,
+                                "Export failed: " + error.getMessage(),
+                                "Export Conversation",
+                                JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            exportTask[0] = null;
+        }
+        if (exportTask[0] == null) {
+            // The bulk lane is full or the app is shutting down, so the export never started
+            monitor.close();
+            JOptionPane.showMessageDialog(mainFrame,
+                "The export could not be started because too much background work is queued. Please try again later.",
+                "Export Conversation",
+                JOptionPane.WARNING_MESSAGE);
+        }
+    }
+    
+    /**
+     * Shows the browser of past conversations
+     */
+    private void showHistory() {
+        JDialog historyDialog = new JDialog(mainFrame, "Conversation History", false);
+        historyDialog.add(new History_panel(dbHandler, backgroundPanel));
+        historyDialog.setSize(900, 700);
+        historyDialog.setLocationRelativeTo(mainFrame);
+        historyDialog.setVisible(true);
+    }
+    
+    /**
+     * Shows the slowest recent queries and where their time went
+     */
+    private void showTraceViewer() {
+        JDialog traceDialog = new JDialog(mainFrame, "Slowest Queries", false);
+        traceDialog.add(new Trace_viewer_panel());
+        traceDialog.setSize(900, 600);
+        traceDialog.setLocationRelativeTo(mainFrame);
+        traceDialog.setVisible(true);
+    }
+    
+    /**
+     * Shows latency, response length, error and cache hit rates per provider and day
+     */
+    private void showPerformanceReport() {
+        JDialog reportDialog = new JDialog(mainFrame, "Performance Report", false);
+        reportDialog.add(new Performance_report_panel(dbHandler, backgroundPanel));
+        reportDialog.setSize(900, 500);
+        reportDialog.setLocationRelativeTo(mainFrame);
+        reportDialog.setVisible(true);
+    }
+    
+    /**
+     * Shows the panel for running many short prompts against one provider
+     */
+    private void showBulkPrompts() {
+        JDialog bulkDialog = new JDialog(mainFrame, "Bulk Prompts", false);
+        Bulk_prompts_panel bulkPanel = new Bulk_prompts_panel(chatGPTHandler, perplexityHandler);
+        bulkDialog.add(bulkPanel);
+        bulkDialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        bulkDialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                bulkPanel.shutdown();
+            }
+        });
+        bulkDialog.setSize(900, 600);
+        bulkDialog.setLocationRelativeTo(mainFrame);
+        bulkDialog.setVisible(true);
+    }
+    
     /**
      * Shows the API settings dialog
      */
@@ -174,15 +361,37 @@ public class App_runner {
         settingsDialog.setVisible(true);
     }
     
+    /**
+     * Shows the queue depth of every background lane in the status bar
+     */
+    private void updateQueueStatus() {
+        queueStatusLabel.setText(backgroundPanel.isRunning()
+            ? "Background queue: " + backgroundPanel.describeQueues()
+            : "Background tasks are stopped");
+    }
+    
     /**
      * Cleans up resources and shuts down the application
      */
     private void shutdownApplication() {
+        // Stop refreshing the status bar
+        if (queueStatusTimer != null) {
+            queueStatusTimer.stop();
+        }
+        
         // Shut down background tasks
         if (backgroundPanel != null) {
             backgroundPanel.shutdown();
         }
         
+        // Stop connection pre-warming and finish saving conversations
+        if (inputPanel != null) {
+            inputPanel.shutdown();
+        }
+        
+        // Write the remaining trace spans
+        Tracer.shutdown();
+        
         // Close database connection
         if (dbHandler != null) {
             dbHandler.close();
@@ -201,9 +410,22 @@ public class App_runner {
     
     /**
      * Application entry point
+     * Starts the desktop app, or with --server [port] the shared assistant server instead.
+     * The desktop app sends its provider calls through a running server when started with
+     * -Dassistant.server.url=http://localhost:&lt;port&gt;.
      * @param args command line arguments
      */
     public static void main(String[] args) {
+        if (args.length > 0 && "--server".equals(args[0])) {
+            try {
+                Assistant_server.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IOException e) {
+                System.err.println("Failed to start the assistant server: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        
         // Use the Event Dispatch Thread for Swing applications
         SwingUtilities.invokeLater(() -> {
             try {
@@ -0,0 +1,520 @@
+package app_runner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import api_calls.ChatGPT_api_handler;
+import api_calls.Connection_prewarmer;
+import api_calls.Map_reduce_query;
+import api_calls.Model_router;
+import api_calls.Perplexity_api_handler;
+import api_calls.Response_body;
+import database.Conversation_record;
+import database.Database_handler;
+import database.Json_util;
+import tracing.Flight_events;
+import tracing.Span;
+import tracing.Tracer;
+
+/**
+ * Serves the combined assistant over a local HTTP/JSON API so many clients share one process
+ * All clients go through the same API handlers, so they share the keep-alive connections
+ * to the providers, the handlers' concurrency limits, the model routers' latency and error
+ * estimates, and one conversation history and search index. Each request runs on its own
+ * virtual thread when the runtime has them (Java 21 and later) and on a pooled daemon
+ * thread otherwise. The server binds to the loopback address only, and refuses requests
+ * that carry an Origin header or name another host than localhost or 127.0.0.1, so web
+ * pages in a local browser cannot reach it, not even through DNS rebinding.
+ *
+ * Endpoints:
+ * POST /api/query with {"query": "..."} asks both providers and saves the conversation; the
+ * reply has the conversation id and one answer per provider. With "Accept: text/event-stream"
+ * the answers are sent as server-sent events instead: "start", one "answer" per provider as
+ * it arrives, then "done".
+ * POST /api/providers/chatgpt or /api/providers/perplexity with {"prompt": "...", "model": "..."}
+ * makes a single call and streams the answer back as text; the model is optional, and must be
+ * one the server's router is configured with. This is what the desktop app uses when started
+ * with -Dassistant.server.url.
+ * GET /api/history?before=&lt;timestamp&gt;&amp;limit=&lt;n&gt; pages through saved conversations, newest first.
+ * GET /api/search?q=...&amp;limit=&lt;n&gt;&amp;minSimilarity=&lt;0..1&gt; finds conversations with similar queries.
+ * GET /api/status reports the request and conversation counts.
+ *
+ * Usage: java app_runner.Assistant_server [port], or java app_runner.App_runner --server [port],
+ * with the provider keys in OPENAI_API_KEY and PERPLEXITY_API_KEY (or -Dassistant.chatgpt.key
+ * and -Dassistant.perplexity.key). Then, for example:
+ * curl -d '{"query": "What is TCP?"}' http://localhost:8470/api/query
+ */
+public class Assistant_server {
+    public static final int DEFAULT_PORT = 8470;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final int DEFAULT_SEARCH_RESULTS = 5;
+    private static final double DEFAULT_MIN_SIMILARITY = 0.4;
+    private static final String CONVERSATION_HEADER = "X-Conversation-Id";
+    
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final ChatGPT_api_handler chatGPTHandler;
+    private final Perplexity_api_handler perplexityHandler;
+    private final Database_handler dbHandler;
+    private final Map_reduce_query mapReduce;
+    private final Connection_prewarmer prewarmer;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong queryCount = new AtomicLong();
+    
+    /**
+     * Constructor binds the server to a localhost port
+     * @param port the port, or 0 for any free port
+     * @param chatGPTHandler the ChatGPT API handler shared by all clients
+     * @param perplexityHandler the Perplexity API handler shared by all clients
+     * @param dbHandler the database handler shared by all clients
+     * @throws IOException if the port cannot be bound
+     */
+    public Assistant_server(int port, ChatGPT_api_handler chatGPTHandler, Perplexity_api_handler perplexityHandler,
+                            Database_handler dbHandler) throws IOException {
+        this.chatGPTHandler = chatGPTHandler;
+        this.perplexityHandler = perplexityHandler;
+        this.dbHandler = dbHandler;
+        this.mapReduce = new Map_reduce_query(chatGPTHandler, perplexityHandler);
+        this.prewarmer = new Connection_prewarmer(Arrays.asList(
+            chatGPTHandler.getApiEndpoint(), perplexityHandler.getApiEndpoint()));
+        this.requestExecutor = newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestExecutor);
+        server.createContext("/api/query", exchange -> handle(exchange, "POST", this::handleQuery));
+        server.createContext("/api/providers/", exchange -> handle(exchange, "POST", this::handleProviderCall));
+        server.createContext("/api/history", exchange -> handle(exchange, "GET", this::handleHistory));
+        server.createContext("/api/search", exchange -> handle(exchange, "GET", this::handleSearch));
+        server.createContext("/api/status", exchange -> handle(exchange, "GET", this::handleStatus));
+    }
+    
+    /**
+     * Starts serving requests
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stops accepting requests, gives running ones a moment to finish, and stops pre-warming
+     */
+    public void stop() {
+        server.stop(1);
+        requestExecutor.shutdown();
+        prewarmer.shutdown();
+    }
+    
+    /**
+     * Gets the base URL clients connect to
+     * @return the URL, e.g. http://localhost:8470
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+    
+    /**
+     * Gets the number of requests served so far
+     * @return the request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+    
+    /**
+     * Handles one API request
+     */
+    private interface Endpoint {
+        void handle(HttpExchange exchange) throws IOException, InterruptedException;
+    }
+    
+    /**
+     * Checks the origin and method, runs an endpoint and turns its failures into error replies
+     */
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            if (!isLocalRequest(exchange)) {
+                sendError(exchange, 403, "Only local, non-browser clients are served");
+                return;
+            }
+            if (!method.equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", method);
+                sendError(exchange, 405, "Use " + method);
+                return;
+            }
+            endpoint.handle(exchange);
+        } catch (IllegalArgumentException e) {
+            // Malformed JSON or parameters
+            sendError(exchange, 400, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Server is stopping");
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Asks both providers, replies with both answers, then saves the conversation
+     */
+    private void handleQuery(HttpExchange exchange) throws IOException, InterruptedException {
+        String query = stringField(Json_util.parse(readBody(exchange)), "query");
+        if (query == null || query.trim().isEmpty()) {
+            sendError(exchange, 400, "The request needs a non-empty \"query\"");
+            return;
+        }
+        queryCount.incrementAndGet();
+        prewarmer.onUserActivity();
+        
+        String conversationId = UUID.randomUUID().toString();
+        Span span = Tracer.startTrace(conversationId, "server.query").setAttribute("query.chars", query.length());
+        Flight_events.Submit_event submitEvent = new Flight_events.Submit_event();
+        submitEvent.begin();
+        submitEvent.queryChars = query.length();
+        submitEvent.finish(conversationId, "");
+        
+        // Each answer is queued as it arrives, so the request thread is the only writer
+        BlockingQueue<Map<String, Object>> answers = new LinkedBlockingQueue<>();
+        CompletableFuture<Response_body> chatGPTCall;
+        CompletableFuture<Response_body> perplexityCall;
+        try (Span.Scope scope = span.makeCurrent()) {
+            Model_router.Route chatGPTRoute = chatGPTHandler.getRouter().route(query);
+            Model_router.Route perplexityRoute = perplexityHandler.getRouter().route(query);
+            if (mapReduce.isLongInput(query)) {
+                Map_reduce_query.Result result = mapReduce.run(query, chatGPTRoute, perplexityRoute);
+                chatGPTCall = result.getChatGPTAnswer();
+                perplexityCall = result.getPerplexityAnswer();
+            } else {
+                chatGPTCall = chatGPTHandler.makeAsyncBodyCall(query, chatGPTRoute);
+                perplexityCall = perplexityHandler.makeAsyncBodyCall(query, perplexityRoute);
+            }
+            chatGPTCall = answerOrError(chatGPTCall);
+            perplexityCall = answerOrError(perplexityCall);
+            long start = System.nanoTime();
+            chatGPTCall.thenAccept(body -> answers.add(describeAnswer(Flight_events.CHATGPT, chatGPTRoute, body, start)));
+            perplexityCall.thenAccept(body -> answers.add(describeAnswer(Flight_events.PERPLEXITY, perplexityRoute, body, start)));
+        }
+        
+        try {
+            try {
+                sendAnswers(exchange, conversationId, answers);
+            } catch (IOException e) {
+                // The client went away, e.g. closed an event stream; the conversation is still saved
+                span.recordError("client disconnected: " + e.getMessage());
+            } catch (InterruptedException e) {
+                // The server is stopping: the bodies are released once they arrive, without a save
+                chatGPTCall.thenAccept(Response_body::close);
+                perplexityCall.thenAccept(Response_body::close);
+                throw e;
+            }
+            exchange.close();
+            
+            // The reply is complete, so the client does not wait for the save; the bodies are
+            // closed whether or not it succeeds
+            try (Span.Scope scope = span.makeCurrent(); Span saveSpan = Tracer.startSpan("saveConversation");
+                 Response_body chatGPT = chatGPTCall.join();
+                 Response_body perplexity = perplexityCall.join();
+                 Reader chatGPTReader = chatGPT.openReader();
+                 Reader perplexityReader = perplexity.openReader()) {
+                if (!dbHandler.saveConversation(conversationId, query, chatGPTReader, perplexityReader)) {
+                    saveSpan.recordError("not saved");
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to save conversation " + conversationId + ": " + e.getMessage());
+            }
+        } finally {
+            span.end();
+        }
+    }
+    
+    /**
+     * Replies with both answers, as one JSON object or as server-sent events as they arrive
+     */
+    private static void sendAnswers(HttpExchange exchange, String conversationId,
+                                    BlockingQueue<Map<String, Object>> answers) throws IOException, InterruptedException {
+        boolean events = acceptsEventStream(exchange);
+        Map<String, Object> reply = new LinkedHashMap<>();
+        reply.put("conversationId", conversationId);
+        if (events) {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            sendEvent(exchange, "start", reply);
+        }
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> answer = answers.take();
+            if (events) {
+                sendEvent(exchange, "answer", answer);
+            } else {
+                reply.put((String) answer.get("provider"), answer);
+            }
+        }
+        if (events) {
+            sendEvent(exchange, "done", Map.of("conversationId", conversationId));
+        } else {
+            sendJson(exchange, 200, reply);
+        }
+    }
+    
+    /**
+     * Makes one provider call on behalf of a thin client and streams the answer back
+     */
+    private void handleProviderCall(HttpExchange exchange) throws IOException {
+        String provider = exchange.getRequestURI().getPath().substring("/api/providers/".length());
+        boolean chatGPT = Flight_events.CHATGPT.equals(provider);
+        if (!chatGPT && !Flight_events.PERPLEXITY.equals(provider)) {
+            sendError(exchange, 404, "Unknown provider: " + provider);
+            return;
+        }
+        Object request = Json_util.parse(readBody(exchange));
+        String prompt = stringField(request, "prompt");
+        String model = stringField(request, "model");
+        if (prompt == null) {
+            sendError(exchange, 400, "The request needs a \"prompt\"");
+            return;
+        }
+        prewarmer.onUserActivity();
+        
+        // Continue the client's trace id when it sent one
+        String conversationId = exchange.getRequestHeaders().getFirst(CONVERSATION_HEADER);
+        if (conversationId == null || conversationId.isEmpty()) {
+            conversationId = UUID.randomUUID().toString();
+        }
+        Model_router router = chatGPT ? chatGPTHandler.getRouter() : perplexityHandler.getRouter();
+        Model_router.Route route = model == null || model.isEmpty() ? router.route(prompt) : router.requested(model);
+        try (Span span = Tracer.startTrace(conversationId, "server.provider").setAttribute("provider", provider);
+             Span.Scope scope = span.makeCurrent();
+             Response_body answer = (chatGPT
+                 ? chatGPTHandler.makeAsyncBodyCall(prompt, route)
+                 : perplexityHandler.makeAsyncBodyCall(prompt, route)).join()) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("X-Assistant-Model", route.getModel());
+            exchange.sendResponseHeaders(answer.isError() ? 502 : 200, answer.length());
+            try (InputStream in = answer.openStream(); OutputStream out = exchange.getResponseBody()) {
+                in.transferTo(out);
+            }
+        }
+    }
+    
+    private void handleHistory(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        long before = longParameter(parameters, "before", Long.MAX_VALUE);
+        int limit = (int) Math.min(MAX_PAGE_SIZE, longParameter(parameters, "limit", DEFAULT_PAGE_SIZE));
+        sendConversations(exchange, dbHandler.page(before, limit));
+    }
+    
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        String query = parameters.get("q");
+        if (query == null || query.trim().isEmpty()) {
+            sendError(exchange, 400, "The search needs a non-empty q parameter");
+            return;
+        }
+        int limit = (int) Math.min(MAX_PAGE_SIZE, longParameter(parameters, "limit", DEFAULT_SEARCH_RESULTS));
+        double minSimilarity = parameters.containsKey("minSimilarity")
+            ? parseNumber(parameters.get("minSimilarity")) : DEFAULT_MIN_SIMILARITY;
+        sendConversations(exchange, dbHandler.relatedConversations(query, limit, minSimilarity));
+    }
+    
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("status", "ok");
+        status.put("requests", requestCount.get());
+        status.put("queries", queryCount.get());
+        status.put("conversations", dbHandler.getConversationCount());
+        sendJson(exchange, 200, status);
+    }
+    
+    /**
+     * Turns a failed call into an error body, as the handlers do for their own failures
+     */
+    private static CompletableFuture<Response_body> answerOrError(CompletableFuture<Response_body> call) {
+        return call.exceptionally(ex -> Response_body.ofText("Error: " + ex.getMessage(), true));
+    }
+    
+    private static Map<String, Object> describeAnswer(String provider, Model_router.Route route,
+                                                      Response_body body, long startNanos) {
+        Map<String, Object> answer = new LinkedHashMap<>();
+        answer.put("provider", provider);
+        answer.put("model", route.getModel());
+        answer.put("reason", route.getReason());
+        answer.put("latencyMillis", (System.nanoTime() - startNanos) / 1_000_000);
+        answer.put("error", body.isError());
+        answer.put("truncated", body.isTruncated());
+        answer.put("answer", body.preview(Response_body.PREVIEW_CHARS));
+        return answer;
+    }
+    
+    /**
+     * Checks that a request names this machine as its host and does not come from a web page
+     * Browsers always send Origin on cross-origin and POST requests; other clients need not.
+     */
+    private static boolean isLocalRequest(HttpExchange exchange) {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            return false;
+        }
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null) {
+            return false;
+        }
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && !host.endsWith("]")) {
+            host = host.substring(0, colon);
+        }
+        return host.equalsIgnoreCase("localhost") || host.equals("127.0.0.1") || host.equals("[::1]");
+    }
+    
+    private static boolean acceptsEventStream(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return accept != null && accept.contains("text/event-stream");
+    }
+    
+    private static void sendEvent(HttpExchange exchange, String name, Map<String, Object> data) throws IOException {
+        // JSON from Json_util has no line breaks, so each event is a single data line
+        OutputStream out = exchange.getResponseBody();
+        out.write(("event: " + name + "\ndata: " + Json_util.toJson(data) + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+    
+    private static void sendConversations(HttpExchange exchange, List<Conversation_record> records) throws IOException {
+        List<Object> conversations = new ArrayList<>();
+        for (Conversation_record record : records) {
+            conversations.add(record.toMap());
+        }
+        Map<String, Object> reply = new LinkedHashMap<>();
+        reply.put("conversations", conversations);
+        sendJson(exchange, 200, reply);
+    }
+    
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", message);
+        sendJson(exchange, status, error);
+    }
+    
+    private static void sendJson(HttpExchange exchange, int status, Object value) throws IOException {
+        byte[] bytes = Json_util.toJson(value).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static String stringField(Object json, String field) {
+        Object value = json instanceof Map ? ((Map<?, ?>) json).get(field) : null;
+        return value instanceof String ? (String) value : null;
+    }
+    
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            parameters.put(key, value);
+        }
+        return parameters;
+    }
+    
+    private static long longParameter(Map<String, String> parameters, String name, long defaultValue) {
+        String value = parameters.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        return Math.max(1, (long) parseNumber(value));
+    }
+    
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+    
+    /**
+     * Creates the executor requests run on: a virtual thread per request where available,
+     * looked up reflectively so the code still builds and runs on Java 17
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "assistant-server-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    private static String configuredKey(String property, String environmentVariable) {
+        String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(environmentVariable);
+        }
+        return value == null ? "" : value;
+    }
+    
+    /**
+     * Runs the server until the process is stopped
+     * @param args optional port (default 8470)
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ChatGPT_api_handler chatGPTHandler = new ChatGPT_api_handler();
+        chatGPTHandler.setApiKey(configuredKey("assistant.chatgpt.key", "OPENAI_API_KEY"));
+        Perplexity_api_handler perplexityHandler = new Perplexity_api_handler();
+        perplexityHandler.setApiKey(configuredKey("assistant.perplexity.key", "PERPLEXITY_API_KEY"));
+        Database_handler dbHandler = new Database_handler();
+        
+        Assistant_server server = new Assistant_server(port, chatGPTHandler, perplexityHandler, dbHandler);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            chatGPTHandler.shutdown();
+            perplexityHandler.shutdown();
+            Tracer.shutdown();
+            dbHandler.close();
+        }));
+        server.start();
+        System.out.println("Assistant server listening on " + server.getUrl());
+    }
+}
@@ -0,0 +1,151 @@
+package database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared preset dictionary for Deflate compression of stored responses
+ * AI responses repeat the same phrases over and over, but each record is compressed on
+ * its own so it stays individually decodable; priming Deflate with a dictionary trained
+ * on earlier responses recovers most of the redundancy across records
+ */
+public final class Compression_dictionary {
+    // Deflate can only reference the last 32 KiB of the dictionary
+    public static final int MAX_SIZE = 32 * 1024;
+    private static final int MIN_PHRASE_WORDS = 2;
+    private static final int MAX_PHRASE_WORDS = 8;
+    // Bounds the containment checks while packing
+    private static final int MAX_CANDIDATES = 20_000;
+    
+    private final int id;
+    private final byte[] bytes;
+    
+    /**
+     * Constructor wraps existing dictionary bytes
+     * @param id the dictionary id stored in each record that uses it,
+     *        at least Record_codec.FIRST_DICTIONARY_ID
+     * @param bytes the dictionary contents
+     */
+    public Compression_dictionary(int id, byte[] bytes) {
+        this.id = id;
+        this.bytes = bytes;
+    }
+    
+    /**
+     * Gets the dictionary id stored in each record that uses it
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Gets the dictionary contents, not to be modified
+     * @return the dictionary bytes
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+    
+    /**
+     * Trains a dictionary from sample texts
+     * Counts recurring word sequences, scores each by the bytes it would save, and packs the
+     * best ones with the most valuable at the end, where Deflate references are cheapest
+     * @param id the id for the new dictionary
+     * @param samples sample texts, typically recent responses
+     * @return the trained dictionary
+     */
+    public static Compression_dictionary train(int id, List<String> samples) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            String[] words = sample.split("\\s+");
+            for (int start = 0; start < words.length; start++) {
+                StringBuilder phrase = new StringBuilder();
+                for (int n = 0; n < MAX_PHRASE_WORDS && start + n < words.length; n++) {
+                    if (n > 0) {
+                        phrase.append(' ');
+                    }
+                    phrase.append(words[start + n]);
+                    if (n + 1 >= MIN_PHRASE_WORDS) {
+                        counts.merge(phrase.toString(), 1, Integer::sum);
+                    }
+                }
+            }
+        }
+        
+        // Keep phrases seen more than once, best savings first
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort((a, b) -> Long.compare(
+            (long) b.getValue() * b.getKey().length(), (long) a.getValue() * a.getKey().length()));
+        
+        // Skip phrases already contained in a better one
+        List<String> chosen = new ArrayList<>();
+        StringBuilder packed = new StringBuilder();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates.subList(0, Math.min(candidates.size(), MAX_CANDIDATES))) {
+            String phrase = candidate.getKey();
+            int length = phrase.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (size + length > MAX_SIZE) {
+                continue;
+            }
+            if (packed.indexOf(phrase) >= 0) {
+                continue;
+            }
+            chosen.add(phrase);
+            packed.append(phrase).append(' ');
+            size += length;
+            if (size >= MAX_SIZE - MIN_PHRASE_WORDS * 4) {
+                break;
+            }
+        }
+        
+        StringBuilder dictionary = new StringBuilder(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.append(chosen.get(i)).append(' ');
+        }
+        return new Compression_dictionary(id, dictionary.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Saves the dictionary as dict-&lt;id&gt;.bin in the given directory
+     * @param directory the dictionary directory
+     * @throws IOException if writing fails
+     */
+    public void save(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create dictionary directory: " + directory);
+        }
+        Files.write(new File(directory, "dict-" + id + ".bin").toPath(), bytes);
+    }
+    
+    /**
+     * Loads every saved dictionary from the given directory
+     * @param directory the dictionary directory
+     * @return the dictionaries keyed by id
+     * @throws IOException if reading fails
+     */
+    public static Map<Integer, Compression_dictionary> loadAll(File directory) throws IOException {
+        Map<Integer, Compression_dictionary> dictionaries = new HashMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.matches("dict-\\d+\\.bin"));
+        if (files == null) {
+            return dictionaries;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int id = Integer.parseInt(name.substring(5, name.length() - 4));
+            dictionaries.put(id, new Compression_dictionary(id, Files.readAllBytes(file.toPath())));
+        }
+        return dictionaries;
+    }
+}
@@ -0,0 +1,271 @@
+package database;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Streams the stored conversation history to a JSONL, Markdown or HTML file
+ * Conversations are read one at a time from a store cursor and written through a
+ * FileChannel with a large reusable buffer, so memory use does not depend on history size
+ */
+public class Conversation_exporter {
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    
+    /**
+     * Supported export formats
+     */
+    public enum Format {
+        JSONL(".jsonl"),
+        MARKDOWN(".md"),
+        HTML(".html");
+        
+        private final String extension;
+        
+        Format(String extension) {
+            this.extension = extension;
+        }
+        
+        /**
+         * Gets the file extension for this format
+         * @return the extension including the dot
+         */
+        public String getExtension() {
+            return extension;
+        }
+        
+        /**
+         * Picks the format matching a file name's extension
+         * @param fileName the target file name
+         * @return the matching format, or null if the extension is not supported
+         */
+        public static Format fromFileName(String fileName) {
+            String lower = fileName.toLowerCase();
+            if (lower.endsWith(".jsonl")) {
+                return JSONL;
+            }
+            if (lower.endsWith(".md") || lower.endsWith(".markdown")) {
+                return MARKDOWN;
+            }
+            if (lower.endsWith(".html") || lower.endsWith(".htm")) {
+                return HTML;
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Receives export progress
+     */
+    public interface Progress {
+        /**
+         * Called periodically while exporting
+         * @param completed bytes of the store processed so far
+         * @param total total bytes in the store
+         */
+        void update(long completed, long total);
+    }
+    
+    private final Database_handler dbHandler;
+    
+    /**
+     * Constructor initializes the exporter for a database
+     * @param dbHandler the database whose conversations are exported
+     */
+    public Conversation_exporter(Database_handler dbHandler) {
+        this.dbHandler = dbHandler;
+    }
+    
+    /**
+     * Exports every stored conversation to the target file
+     * The file is written next to the target and moved into place only when complete,
+     * so a cancelled or failed export never leaves a truncated file behind
+     * Cancellation is signalled by interrupting the exporting thread
+     * @param target the file to write
+     * @param format the output format
+     * @param progress receives progress updates, may be null
+     * @return the number of conversations exported
+     * @throws IOException if reading the store or writing the file fails
+     * @throws InterruptedIOException if the export was cancelled
+     */
+    public long export(Path target, Format format, Progress progress) throws IOException {
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        long exported = 0;
+        boolean completed = false;
+        
+        try (Conversation_store.Cursor cursor = dbHandler.openConversationCursor();
+             FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long total = Math.max(1, dbHandler.getConversationStoreSize());
+            Channel_writer writer = new Channel_writer(channel);
+            StringBuilder record = new StringBuilder();
+            
+            writeHeader(writer, format);
+            while (cursor.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Export cancelled");
+                }
+                
+                record.setLength(0);
+                formatConversation(record, cursor.next(), format);
+                writer.write(record);
+                exported++;
+                
+                if (progress != null && (exported & 0xFF) == 0) {
+                    progress.update(cursor.position(), total);
+                }
+            }
+            writeFooter(writer, format);
+            writer.flush();
+            channel.force(false);
+            
+            if (progress != null) {
+                progress.update(total, total);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                Files.deleteIfExists(partial);
+            }
+        }
+        
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        return exported;
+    }
+    
+    /**
+     * Writes the document prologue for formats that need one
+     */
+    private void writeHeader(Channel_writer writer, Format format) throws IOException {
+        if (format == Format.HTML) {
+            writer.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n"
+                + "<title>Combined AI Assistant Conversations</title>\n</head>\n<body>\n"
+                + "<h1>Combined AI Assistant Conversations</h1>\n");
+        } else if (format == Format.MARKDOWN) {
+            writer.write("# Combined AI Assistant Conversations\n\n");
+        }
+    }
+    
+    /**
+     * Writes the document epilogue for formats that need one
+     */
+    private void writeFooter(Channel_writer writer, Format format) throws IOException {
+        if (format == Format.HTML) {
+            writer.write("</body>\n</html>\n");
+        }
+    }
+    
+    /**
+     * Formats one conversation into the reusable record builder
+     */
+    private void formatConversation(StringBuilder out, Conversation_record conversation, Format format) {
+        String id = conversation.getConversationId();
+        long timestamp = conversation.getTimestamp();
+        String query = conversation.getUserQuery();
+        String chatGPT = conversation.getChatGPTResponse();
+        String perplexity = conversation.getPerplexityResponse();
+        String time = Instant.ofEpochMilli(timestamp).toString();
+        
+        switch (format) {
+            case JSONL:
+                out.append("{\"conversationId\":");
+                Json_util.appendQuoted(out, id);
+                out.append(",\"timestamp\":").append(timestamp);
+                out.append(",\"userQuery\":");
+                Json_util.appendQuoted(out, query);
+                out.append(",\"chatGPTResponse\":");
+                Json_util.appendQuoted(out, chatGPT);
+                out.append(",\"perplexityResponse\":");
+                Json_util.appendQuoted(out, perplexity);
+                out.append("}\n");
+                break;
+            case MARKDOWN:
+                out.append("## ").append(time).append("\n\n");
+                out.append("**Query:** ").append(query).append("\n\n");
+                out.append("### ChatGPT\n\n").append(chatGPT).append("\n\n");
+                out.append("### Perplexity\n\n").append(perplexity).append("\n\n---\n\n");
+                break;
+            case HTML:
+                out.append("<section id=\"");
+                appendHtml(out, id);
+                out.append("\">\n<h2>").append(time).append("</h2>\n<p><strong>Query:</strong> ");
+                appendHtml(out, query);
+                out.append("</p>\n<h3>ChatGPT</h3>\n<pre>");
+                appendHtml(out, chatGPT);
+                out.append("</pre>\n<h3>Perplexity</h3>\n<pre>");
+                appendHtml(out, perplexity);
+                out.append("</pre>\n</section>\n");
+                break;
+        }
+    }
+    
+    /**
+     * Appends text with HTML special characters escaped
+     */
+    private static void appendHtml(StringBuilder out, String text) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '&': out.append("&amp;"); break;
+                case '"': out.append("&quot;"); break;
+                default: out.append(c);
+            }
+        }
+    }
+    
+    /**
+     * Encodes characters into a large direct buffer and writes it to the channel when full
+     */
+    private static class Channel_writer {
+        private final FileChannel channel;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        
+        Channel_writer(FileChannel channel) {
+            this.channel = channel;
+        }
+        
+        void write(CharSequence text) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, false);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    break;
+                }
+            }
+        }
+        
+        void flush() throws IOException {
+            encoder.encode(CharBuffer.allocate(0), buffer, true);
+            encoder.flush(buffer);
+            drain();
+        }
+        
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package database;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A single stored conversation: one user query and the answer from each AI service
+ * Immutable, with the timestamp kept as a primitive so records are cheap to page through
+ */
+public final class Conversation_record {
+    private final String conversationId;
+    private final long timestamp;
+    private final String userQuery;
+    private final String chatGPTResponse;
+    private final String perplexityResponse;
+    
+    /**
+     * Constructor initializes all fields of the record
+     * @param conversationId unique identifier for the conversation
+     * @param timestamp time the conversation was stored, in epoch milliseconds
+     * @param userQuery the user's input query
+     * @param chatGPTResponse response from ChatGPT
+     * @param perplexityResponse response from Perplexity
+     */
+    public Conversation_record(String conversationId, long timestamp, String userQuery,
+                               String chatGPTResponse, String perplexityResponse) {
+        this.conversationId = conversationId;
+        this.timestamp = timestamp;
+        this.userQuery = userQuery;
+        this.chatGPTResponse = chatGPTResponse;
+        this.perplexityResponse = perplexityResponse;
+    }
+    
+    /**
+     * Gets the unique identifier of the conversation
+     * @return the conversation id
+     */
+    public String getConversationId() {
+        return conversationId;
+    }
+    
+    /**
+     * Gets the time the conversation was stored
+     * @return the timestamp in epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Gets the user's query, or only its start for a record read as a summary
+     * @return the query
+     */
+    public String getUserQuery() {
+        return userQuery;
+    }
+    
+    /**
+     * Gets the answer from ChatGPT
+     * @return the response, or null for a record read as a summary
+     */
+    public String getChatGPTResponse() {
+        return chatGPTResponse;
+    }
+    
+    /**
+     * Gets the answer from Perplexity
+     * @return the response, or null for a record read as a summary
+     */
+    public String getPerplexityResponse() {
+        return perplexityResponse;
+    }
+    
+    /**
+     * Converts the record to the map shape returned by the original history API
+     * @return a map with conversationId, userQuery, chatGPTResponse, perplexityResponse and timestamp
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> conversation = new HashMap<>();
+        conversation.put("conversationId", conversationId);
+        conversation.put("userQuery", userQuery);
+        conversation.put("chatGPTResponse", chatGPTResponse);
+        conversation.put("perplexityResponse", perplexityResponse);
+        conversation.put("timestamp", timestamp);
+        return conversation;
+    }
+    
+    @Override
+    public String toString() {
+        return "Conversation_record[" + conversationId + " @ " + timestamp + "]";
+    }
+}
@@ -0,0 +1,781 @@
+package database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Local append-only store for conversations
+ * Each conversation is a varint length-prefixed binary record (see Record_codec) with
+ * response bodies compressed against a shared dictionary trained from earlier responses.
+ * A compact in-memory index of timestamps and file offsets (two primitive arrays) allows
+ * keyset paging by timestamp, with records decoded only when they are actually requested
+ */
+public class Conversation_store implements Closeable {
+    private static final String STORE_FILE_NAME = "conversations.bin";
+    private static final String LEGACY_STORE_FILE_NAME = "conversations.log";
+    // Present while a legacy log is being migrated, so an interrupted migration is redone
+    private static final String MIGRATION_MARKER_FILE_NAME = "conversations.migrating";
+    private static final String DICTIONARY_DIRECTORY_NAME = "dictionaries";
+    // Number of recent records sampled when training a dictionary
+    private static final int TRAINING_SAMPLE_SIZE = 200;
+    // A new dictionary is trained after this many records to follow drift in the responses
+    private static final int RETRAINING_INTERVAL = 10_000;
+    // Only the flags and timestamp are needed when indexing; both fit in this many bytes
+    private static final int MAX_HEADER_SIZE = 20;
+    // Bytes read for a summary besides its query: length prefix, header, a UUID or short id
+    // and the query length; records with longer ids are read whole
+    private static final int SUMMARY_HEADER_SIZE = 128;
+    // Contiguous records are fetched in one read only up to this many bytes in total
+    private static final int MAX_BATCHED_READ = 1 << 20;
+    
+    private final File storeFile;
+    private final File dictionaryDirectory;
+    private final FileChannel channel;
+    private final Record_codec codec = new Record_codec();
+    // Index: timestamps[i], offsets[i] and lengths[i] describe the i-th record, oldest first
+    private long[] timestamps = new long[1024];
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int count;
+    private long endOffset;
+    private int recordsSinceTraining;
+    private boolean trainingInProgress;
+    
+    /**
+     * Constructor opens (or creates) the store in the given data directory and indexes it
+     * A conversation log in the older line format is migrated on first open
+     * @param dataDirectory directory holding the store file
+     * @throws IOException if the directory cannot be created or the store cannot be read
+     */
+    public Conversation_store(File dataDirectory) throws IOException {
+        if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs()) {
+            throw new IOException("Cannot create data directory: " + dataDirectory);
+        }
+        this.storeFile = new File(dataDirectory, STORE_FILE_NAME);
+        this.dictionaryDirectory = new File(dataDirectory, DICTIONARY_DIRECTORY_NAME);
+        File legacyFile = new File(dataDirectory, LEGACY_STORE_FILE_NAME);
+        File migrationMarker = new File(dataDirectory, MIGRATION_MARKER_FILE_NAME);
+        boolean migrate = legacyFile.isFile() && (!storeFile.exists() || migrationMarker.exists());
+        this.channel = FileChannel.open(storeFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (migrate) {
+            // The store only holds records of an interrupted migration, which is started over
+            if (!migrationMarker.exists()) {
+                Files.createFile(migrationMarker.toPath());
+            }
+            channel.truncate(0);
+        } else {
+            Files.deleteIfExists(migrationMarker.toPath());
+        }
+        
+        loadDictionaries();
+        buildIndex();
+        this.recordsSinceTraining = codec.getActiveDictionary() == null ? count : 0;
+        
+        if (migrate) {
+            migrateLegacyLog(legacyFile, migrationMarker);
+        }
+    }
+    
+    /**
+     * Gets the default data directory, configurable with the assistant.data.dir system property
+     * @return the data directory
+     */
+    public static File defaultDataDirectory() {
+        String configured = System.getProperty("assistant.data.dir");
+        if (configured != null && !configured.isEmpty()) {
+            return new File(configured);
+        }
+        return new File(System.getProperty("user.home"), ".combined_ai_assistant");
+    }
+    
+    /**
+     * Appends a conversation to the store
+     * @param conversationId unique identifier for the conversation
+     * @param userQuery the user's input query
+     * @param chatGPTResponse response from ChatGPT
+     * @param perplexityResponse response from Perplexity
+     * @return the timestamp assigned to the stored conversation
+     * @throws IOException if writing fails
+     */
+    public long append(String conversationId, String userQuery,
+                       String chatGPTResponse, String perplexityResponse) throws IOException {
+        return append(conversationId, System.currentTimeMillis(), userQuery, chatGPTResponse, perplexityResponse);
+    }
+    
+    /**
+     * Appends a conversation with a requested timestamp
+     * Timestamps are kept strictly increasing so they can identify a position in the history;
+     * a timestamp not after the newest stored one is moved just past it
+     */
+    private synchronized long append(String conversationId, long requestedTimestamp, String userQuery,
+                                     String chatGPTResponse, String perplexityResponse) throws IOException {
+        long timestamp = nextTimestamp(requestedTimestamp);
+        writeRecord(new Conversation_record(
+            conversationId, timestamp, userQuery, chatGPTResponse, perplexityResponse), 0);
+        return timestamp;
+    }
+    
+    /**
+     * Appends a conversation whose responses are read from streams
+     * The responses are compressed as they are read and staged in memory or, when large,
+     * in temporary files, then copied into the store; neither is held in the heap as a
+     * whole. Compression happens before the store is locked, so other appends and reads
+     * are not held up by a large conversation.
+     * @param conversationId unique identifier for the conversation
+     * @param userQuery the user's input query
+     * @param chatGPTResponse response from ChatGPT, read to the end but not closed
+     * @param perplexityResponse response from Perplexity, read to the end but not closed
+     * @return the timestamp assigned to the stored conversation
+     * @throws IOException if reading a response or writing fails
+     */
+    public long append(String conversationId, String userQuery,
+                       Reader chatGPTResponse, Reader perplexityResponse) throws IOException {
+        try (Record_codec.Streamed_body chatGPT = codec.encodeBody(chatGPTResponse);
+             Record_codec.Streamed_body perplexity = codec.encodeBody(perplexityResponse)) {
+            synchronized (this) {
+                long timestamp = nextTimestamp(System.currentTimeMillis());
+                byte[] header = codec.encodeHeader(conversationId, timestamp, userQuery, 0);
+                long recordLength = header.length + chatGPT.length() + perplexity.length();
+                byte[] length = Record_codec.varLong(recordLength);
+                if (length.length + recordLength > Integer.MAX_VALUE) {
+                    throw new IOException("Conversation too large to store");
+                }
+                
+                ByteBuffer frame = ByteBuffer.allocate(length.length + header.length);
+                frame.put(length).put(header).flip();
+                long offset = endOffset;
+                while (frame.hasRemaining()) {
+                    offset += channel.write(frame, offset);
+                }
+                offset = chatGPT.writeTo(channel, offset);
+                offset = perplexity.writeTo(channel, offset);
+                recordWritten(timestamp, offset);
+                return timestamp;
+            }
+        }
+    }
+    
+    /**
+     * Gets the timestamp for a new local record
+     * Timestamps are kept strictly increasing so they can identify a position in the history
+     */
+    private long nextTimestamp(long requestedTimestamp) {
+        long lastTimestamp = count > 0 ? timestamps[count - 1] : 0;
+        return Math.max(requestedTimestamp, lastTimestamp + 1);
+    }
+    
+    /**
+     * Appends a conversation received from another device through sync
+     * The record keeps its original timestamp (moved by at most a few milliseconds if another
+     * record already has it) so it is paged in its proper place in the history, and it is
+     * flagged as remote so it is never pushed back
+     * @param record the conversation to store
+     * @throws IOException if writing fails
+     */
+    public synchronized void appendRemote(Conversation_record record) throws IOException {
+        long timestamp = record.getTimestamp();
+        while (timestampExists(timestamp)) {
+            timestamp++;
+        }
+        writeRecord(new Conversation_record(record.getConversationId(), timestamp, record.getUserQuery(),
+            record.getChatGPTResponse(), record.getPerplexityResponse()), Record_codec.FLAG_REMOTE_ORIGIN);
+    }
+    
+    /**
+     * Encodes, frames and writes a record at the end of the file and indexes it
+     */
+    private void writeRecord(Conversation_record record, int flags) throws IOException {
+        byte[] encoded = codec.encode(record, flags);
+        byte[] length = Record_codec.varLong(encoded.length);
+        ByteBuffer frame = ByteBuffer.allocate(length.length + encoded.length);
+        frame.put(length).put(encoded).flip();
+        
+        long offset = endOffset;
+        while (frame.hasRemaining()) {
+            offset += channel.write(frame, offset);
+        }
+        recordWritten(record.getTimestamp(), offset);
+    }
+    
+    /**
+     * Indexes the record just written at the end of the file, which now ends at newEndOffset
+     */
+    private void recordWritten(long timestamp, long newEndOffset) {
+        addToIndex(timestamp, endOffset, (int) (newEndOffset - endOffset));
+        endOffset = newEndOffset;
+        
+        recordsSinceTraining++;
+        maybeTrainDictionary();
+    }
+    
+    /**
+     * Gets the number of stored conversations
+     * @return the conversation count
+     */
+    public synchronized int size() {
+        return count;
+    }
+    
+    /**
+     * Gets the current size of the store in bytes, used as the total for progress reporting
+     * @return the store size in bytes
+     */
+    public synchronized long sizeInBytes() {
+        return endOffset;
+    }
+    
+    /**
+     * Gets a page of conversations older than a timestamp, newest first
+     * Pass the timestamp of the last record of a page to get the next (older) page
+     * @param beforeTimestamp exclusive upper bound; Long.MAX_VALUE for the newest page
+     * @param size maximum number of records to return
+     * @return the decoded records, newest first; empty when there are no older records
+     * @throws IOException if the store cannot be read
+     */
+    public List<Conversation_record> page(long beforeTimestamp, int size) throws IOException {
+        long[] recordOffsets;
+        int[] recordLengths;
+        synchronized (this) {
+            int end = lowerBound(beforeTimestamp);
+            int start = Math.max(0, end - Math.max(0, size));
+            recordOffsets = Arrays.copyOfRange(offsets, start, end);
+            recordLengths = Arrays.copyOfRange(lengths, start, end);
+        }
+        return decode(recordOffsets, recordLengths, codec::decode);
+    }
+    
+    /**
+     * Gets the conversations at a range of positions in timestamp order, newest first
+     * Position 0 is the oldest conversation; positions stay valid as conversations are
+     * appended locally, which makes them suitable for random access such as a scrolled list
+     * @param fromIndex first position, inclusive
+     * @param toIndex last position, exclusive; clamped to the store size
+     * @return the decoded records, newest first
+     * @throws IOException if the store cannot be read
+     */
+    public List<Conversation_record> range(int fromIndex, int toIndex) throws IOException {
+        long[] recordOffsets;
+        int[] recordLengths;
+        synchronized (this) {
+            int end = Math.min(count, toIndex);
+            int start = Math.max(0, Math.min(fromIndex, end));
+            recordOffsets = Arrays.copyOfRange(offsets, start, end);
+            recordLengths = Arrays.copyOfRange(lengths, start, end);
+        }
+        return decode(recordOffsets, recordLengths, codec::decode);
+    }
+    
+    /**
+     * Gets the timestamp and the start of the query of the conversations at a range of positions
+     * Positions are as for range; only the start of each record is read and the responses are
+     * neither read nor decompressed, so the cost does not depend on how long the answers are.
+     * @param fromIndex first position, inclusive
+     * @param toIndex last position, exclusive; clamped to the store size
+     * @param maxQueryChars most characters of each query to decode
+     * @return records with the start of their query and null responses, newest first
+     * @throws IOException if the store cannot be read
+     */
+    public List<Conversation_record> summaries(int fromIndex, int toIndex, int maxQueryChars) throws IOException {
+        long[] recordOffsets;
+        int[] recordLengths;
+        synchronized (this) {
+            int end = Math.min(count, toIndex);
+            int start = Math.max(0, Math.min(fromIndex, end));
+            recordOffsets = Arrays.copyOfRange(offsets, start, end);
+            recordLengths = Arrays.copyOfRange(lengths, start, end);
+        }
+        List<Conversation_record> records = new ArrayList<>(recordOffsets.length);
+        for (int i = recordOffsets.length - 1; i >= 0; i--) {
+            records.add(readSummary(recordOffsets[i], recordLengths[i], maxQueryChars));
+        }
+        return records;
+    }
+    
+    /**
+     * Reads the summary of one record from a bounded read of its start
+     */
+    private Conversation_record readSummary(long offset, int length, int maxQueryChars) throws IOException {
+        // A character takes at most three UTF-8 bytes
+        int window = (int) Math.min(length, SUMMARY_HEADER_SIZE + 3L * maxQueryChars);
+        ByteBuffer start = readRange(offset, offset + window);
+        Record_codec.readVarLong(start);
+        try {
+            return codec.decodeSummary(start, maxQueryChars);
+        } catch (IOException e) {
+            if (window == length) {
+                throw e;
+            }
+        }
+        // The id did not fit in the window
+        ByteBuffer record = readRange(offset, offset + length);
+        Record_codec.readVarLong(record);
+        return codec.decodeSummary(record, maxQueryChars);
+    }
+    
+    /**
+     * Decodes one record from a buffer positioned at its start
+     */
+    private interface Record_decoder {
+        Conversation_record decode(ByteBuffer record) throws IOException;
+    }
+    
+    /**
+     * Reads and decodes records given by their index entries, oldest first
+     * @return the records, newest first
+     */
+    private List<Conversation_record> decode(long[] recordOffsets, int[] recordLengths,
+                                             Record_decoder decoder) throws IOException {
+        if (recordOffsets.length == 0) {
+            return Collections.emptyList();
+        }
+        
+        // Locally written records of a page are contiguous in the file, so one read fetches
+        // them all; pages mixing in records synced from elsewhere, or holding large answers,
+        // are read record by record
+        int last = recordOffsets.length - 1;
+        boolean contiguous = recordOffsets[last] + recordLengths[last] - recordOffsets[0] <= MAX_BATCHED_READ;
+        for (int i = 1; i < recordOffsets.length && contiguous; i++) {
+            contiguous = recordOffsets[i] == recordOffsets[i - 1] + recordLengths[i - 1];
+        }
+        ByteBuffer buffer = contiguous
+            ? readRange(recordOffsets[0], recordOffsets[last] + recordLengths[last]) : null;
+        
+        List<Conversation_record> records = new ArrayList<>(recordOffsets.length);
+        for (int i = last; i >= 0; i--) {
+            ByteBuffer record;
+            if (buffer != null) {
+                record = buffer;
+                record.position((int) (recordOffsets[i] - recordOffsets[0]));
+            } else {
+                record = readRange(recordOffsets[i], recordOffsets[i] + recordLengths[i]);
+            }
+            Record_codec.readVarLong(record);
+            records.add(decoder.decode(record));
+        }
+        return records;
+    }
+    
+    /**
+     * Reads the record that starts at a file offset
+     * @param offset a record boundary, such as a cursor position
+     * @return the decoded record
+     * @throws IOException if the store cannot be read or no record starts at the offset
+     */
+    public Conversation_record read(long offset) throws IOException {
+        long end;
+        synchronized (this) {
+            end = endOffset;
+        }
+        if (offset < 0 || offset >= end) {
+            throw new EOFException("No conversation record at " + offset);
+        }
+        // A varint length prefix takes at most 10 bytes
+        ByteBuffer prefix = readRange(offset, Math.min(end, offset + 10));
+        long length = Record_codec.readVarLong(prefix);
+        long start = offset + prefix.position();
+        if (length < 0 || start + length > end) {
+            throw new EOFException("No conversation record at " + offset);
+        }
+        return codec.decode(readRange(start, start + length));
+    }
+    
+    /**
+     * Lazily iterates conversations older than a timestamp, newest first
+     * Records are fetched one page at a time as the iterator advances
+     * @param beforeTimestamp exclusive upper bound; Long.MAX_VALUE to start at the newest
+     * @param pageSize number of records decoded per fetch
+     * @return a lazy iterator over the records
+     */
+    public Iterator<Conversation_record> iterator(long beforeTimestamp, int pageSize) {
+        return new Iterator<Conversation_record>() {
+            private long nextBefore = beforeTimestamp;
+            private Iterator<Conversation_record> current = Collections.emptyIterator();
+            private boolean exhausted;
+            
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && !exhausted) {
+                    List<Conversation_record> records;
+                    try {
+                        records = page(nextBefore, pageSize);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (records.isEmpty()) {
+                        exhausted = true;
+                    } else {
+                        nextBefore = records.get(records.size() - 1).getTimestamp();
+                        current = records.iterator();
+                    }
+                }
+                return current.hasNext();
+            }
+            
+            @Override
+            public Conversation_record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+    
+    /**
+     * Opens a sequential cursor over all stored conversations, oldest first
+     * Conversations appended after the cursor is opened are not visited
+     * @return a new cursor which must be closed by the caller
+     * @throws IOException if the store cannot be read
+     */
+    public Cursor openCursor() throws IOException {
+        return openCursor(0);
+    }
+    
+    /**
+     * Opens a sequential cursor over the records stored from a file offset onwards, in file order
+     * @param fromOffset a record boundary, typically a previous cursor position
+     * @return a new cursor which must be closed by the caller
+     * @throws IOException if the store cannot be read
+     */
+    public Cursor openCursor(long fromOffset) throws IOException {
+        return new Cursor(storeFile, fromOffset, sizeInBytes(), codec);
+    }
+    
+    /**
+     * Closes the store file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+    
+    /**
+     * Finds the index of the first record whose timestamp is not below the given one
+     */
+    private int lowerBound(long timestamp) {
+        int index = Arrays.binarySearch(timestamps, 0, count, timestamp);
+        return index >= 0 ? index : -index - 1;
+    }
+    
+    /**
+     * Checks whether a record with exactly this timestamp is stored
+     */
+    private boolean timestampExists(long timestamp) {
+        return Arrays.binarySearch(timestamps, 0, count, timestamp) >= 0;
+    }
+    
+    /**
+     * Adds a record to the in-memory index, keeping it sorted by timestamp
+     * Local records always arrive in order; only synced records need an insertion
+     */
+    private void addToIndex(long timestamp, long offset, int length) {
+        if (count == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        int index = count;
+        if (count > 0 && timestamps[count - 1] > timestamp) {
+            index = lowerBound(timestamp);
+            System.arraycopy(timestamps, index, timestamps, index + 1, count - index);
+            System.arraycopy(offsets, index, offsets, index + 1, count - index);
+            System.arraycopy(lengths, index, lengths, index + 1, count - index);
+        }
+        timestamps[index] = timestamp;
+        offsets[index] = offset;
+        lengths[index] = length;
+        count++;
+    }
+    
+    /**
+     * Scans the store once, reading only each record's length prefix and header
+     * A trailing partial record (e.g. from a crash mid-write) is cut off, so that the next
+     * record appended cannot leave part of it behind
+     */
+    private void buildIndex() throws IOException {
+        long position = 0;
+        byte[] header = new byte[MAX_HEADER_SIZE];
+        
+        try (InputStream in = new BufferedInputStream(new FileInputStream(storeFile), 1 << 16)) {
+            while (true) {
+                long recordStart = position;
+                long length;
+                try {
+                    length = Record_codec.readVarLong(in);
+                } catch (IOException e) {
+                    break;
+                }
+                if (length < 0) {
+                    break;
+                }
+                position += Record_codec.varLong(length).length;
+                
+                int headerLength = in.readNBytes(header, 0, (int) Math.min(length, MAX_HEADER_SIZE));
+                long remaining = length - headerLength;
+                if (headerLength < Math.min(length, MAX_HEADER_SIZE) || !skipFully(in, remaining)) {
+                    break;
+                }
+                position += length;
+                
+                long[] flagsAndTimestamp = Record_codec.readHeader(ByteBuffer.wrap(header, 0, headerLength));
+                addToIndex(flagsAndTimestamp[1], recordStart, (int) (position - recordStart));
+                endOffset = position;
+            }
+        }
+        if (channel.size() > endOffset) {
+            channel.truncate(endOffset);
+        }
+    }
+    
+    /**
+     * Skips exactly the given number of bytes, as InputStream.skip may skip fewer
+     * @return false if the stream ended first
+     */
+    private static boolean skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+        return true;
+    }
+    
+    /**
+     * Reads the bytes between two file offsets
+     */
+    private ByteBuffer readRange(long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        long position = start;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Conversation store truncated at " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Loads every saved dictionary and activates the newest one
+     */
+    private void loadDictionaries() throws IOException {
+        Compression_dictionary newest = null;
+        for (Compression_dictionary dictionary : Compression_dictionary.loadAll(dictionaryDirectory).values()) {
+            codec.addDictionary(dictionary);
+            if (newest == null || dictionary.getId() > newest.getId()) {
+                newest = dictionary;
+            }
+        }
+        if (newest != null) {
+            codec.setActiveDictionary(newest);
+        }
+    }
+    
+    /**
+     * Starts training a new dictionary in the background once enough new records have accumulated
+     * Records keep the id of the dictionary they were written with, so older ones stay decodable
+     */
+    private void maybeTrainDictionary() {
+        int threshold = codec.getActiveDictionary() == null ? TRAINING_SAMPLE_SIZE : RETRAINING_INTERVAL;
+        if (trainingInProgress || recordsSinceTraining < threshold) {
+            return;
+        }
+        trainingInProgress = true;
+        
+        Thread trainer = new Thread(() -> {
+            try {
+                List<String> samples = new ArrayList<>();
+                for (Conversation_record record : page(Long.MAX_VALUE, TRAINING_SAMPLE_SIZE)) {
+                    samples.add(record.getChatGPTResponse());
+                    samples.add(record.getPerplexityResponse());
+                }
+                Compression_dictionary current = codec.getActiveDictionary();
+                int id = current == null ? Record_codec.FIRST_DICTIONARY_ID : current.getId() + 1;
+                Compression_dictionary dictionary = Compression_dictionary.train(id, samples);
+                // Persist before use so no record can reference a dictionary that was never saved
+                dictionary.save(dictionaryDirectory);
+                codec.setActiveDictionary(dictionary);
+                synchronized (Conversation_store.this) {
+                    recordsSinceTraining = 0;
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to train compression dictionary: " + e.getMessage());
+            } finally {
+                synchronized (Conversation_store.this) {
+                    trainingInProgress = false;
+                }
+            }
+        }, "dictionary-trainer");
+        trainer.setDaemon(true);
+        // Training is CPU-bound and never urgent; it yields to query and UI work
+        trainer.setPriority(Thread.MIN_PRIORITY);
+        trainer.start();
+    }
+    
+    /**
+     * Imports a conversation log written in the earlier tab separated line format
+     * The old file is kept with a .migrated suffix. The marker file is removed once the whole
+     * log has been imported; until then the store is emptied and the import redone on open.
+     */
+    private void migrateLegacyLog(File legacyFile, File migrationMarker) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(legacyFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 5) {
+                    continue;
+                }
+                try {
+                    append(unescapeLegacyField(fields[0]), Long.parseLong(fields[1]),
+                        unescapeLegacyField(fields[2]), unescapeLegacyField(fields[3]),
+                        unescapeLegacyField(fields[4]));
+                } catch (NumberFormatException e) {
+                    // Skip malformed lines
+                }
+            }
+        }
+        channel.force(false);
+        Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath());
+        Files.delete(migrationMarker.toPath());
+    }
+    
+    /**
+     * Reverses the escaping of the earlier line format
+     */
+    private static String unescapeLegacyField(String field) {
+        StringBuilder out = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                switch (next) {
+                    case 't': out.append('\t'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    default: out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Forward-only cursor over the stored conversations, oldest first
+     * Only the current record is held in memory, so iterating any history size runs in constant heap
+     */
+    public static class Cursor implements Iterator<Conversation_record>, Closeable {
+        private final InputStream in;
+        private final long limit;
+        private final Record_codec codec;
+        private long position;
+        private byte[] recordBuffer = new byte[8192];
+        private Conversation_record next;
+        private int nextFlags;
+        private int flags;
+        
+        private Cursor(File file, long start, long limit, Record_codec codec) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            this.limit = limit;
+            this.codec = codec;
+            this.position = start;
+            if (!skipFully(in, start)) {
+                throw new EOFException("Cursor start beyond end of store: " + start);
+            }
+        }
+        
+        /**
+         * Gets the flags of the record last returned by next()
+         * @return the record flags, see Record_codec
+         */
+        public int flags() {
+            return flags;
+        }
+        
+        /**
+         * Gets the number of bytes consumed so far
+         * @return the cursor position in bytes
+         */
+        public long position() {
+            return position;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = readNext();
+            }
+            return next != null;
+        }
+        
+        @Override
+        public Conversation_record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Conversation_record record = next;
+            flags = nextFlags;
+            next = null;
+            return record;
+        }
+        
+        /**
+         * Reads and decodes the next framed record
+         */
+        private Conversation_record readNext() {
+            try {
+                if (position >= limit) {
+                    return null;
+                }
+                long length = Record_codec.readVarLong(in);
+                if (length < 0) {
+                    return null;
+                }
+                if (length > recordBuffer.length) {
+                    recordBuffer = new byte[(int) Math.max(length, recordBuffer.length * 2L)];
+                }
+                if (in.readNBytes(recordBuffer, 0, (int) length) < length) {
+                    throw new EOFException("Conversation record truncated at " + position);
+                }
+                position += Record_codec.varLong(length).length + length;
+                nextFlags = (int) Record_codec.readHeader(ByteBuffer.wrap(recordBuffer, 0, (int) length))[0];
+                return codec.decode(ByteBuffer.wrap(recordBuffer, 0, (int) length));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read conversation store", e);
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
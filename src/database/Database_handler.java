@@ -1,35 +1,92 @@
 package database;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import tracing.Flight_events;
 
 /**
  * Database handler for managing conversation data using Firebase
  * Handles operations like saving, retrieving, and managing conversation history
  */
 public class Database_handler {
+    // Number of records decoded per fetch when streaming history
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // Directory of the vector index under the data directory
+    private static final String VECTOR_INDEX_DIRECTORY_NAME = "vector_index";
+    // Candidates kept when searching the vector index; larger finds more of the true matches
+    private static final int RETRIEVAL_EF = Integer.getInteger("assistant.retrieval.ef", 100);
+    
+    // Placeholder used until a real project URL is configured
+    private static final String PLACEHOLDER_FIREBASE_URL = "https://your-firebase-project.firebaseio.com";
+    
     // Firebase connection configuration
     private String firebaseUrl;
+    private String firebaseAuth;
     private boolean isConnected;
+    // Background sync of the local store with the Firebase REST API, null when not configured
+    private Firebase_sync firebaseSync;
+    // Local copy of every saved conversation, used for history paging and export
+    private Conversation_store conversationStore;
+    // Columnar per-query performance metrics for reports, null when unavailable
+    private Metrics_store metricsStore;
+    // Nearest-neighbor index of the stored queries, keyed by where each conversation starts
+    // in the store file; null when unavailable
+    private Vector_index vectorIndex;
+    private final Text_embedder embedder = new Text_embedder();
+    // Set while a thread is adding conversations to the vector index
+    private final AtomicBoolean indexing = new AtomicBoolean();
+    // Store file offset up to which conversations are indexed, -1 until first worked out
+    private volatile long indexedOffset = -1;
     
     /**
      * Constructor initializes Firebase connection
      */
     public Database_handler() {
-        // Initialize Firebase connection
-        this.firebaseUrl = "https://your-firebase-project.firebaseio.com";
-        // In real implementation, this would connect to Firebase
-        // NOTE: Add your Firebase project URL and credentials here
-        // Firebase configuration would typically look like:
-        // FirebaseOptions options = new FirebaseOptions.Builder()
-        //     .setCredentials(GoogleCredentials.fromStream(serviceAccount))
-        //     .setDatabaseUrl(firebaseUrl)
-        //     .build();
-        // FirebaseApp.initializeApp(options);
+        // Initialize Firebase connection settings
+        // NOTE: Set your Firebase project URL with -Dassistant.firebase.url or FIREBASE_URL, and a
+        // database secret or ID token with -Dassistant.firebase.auth or FIREBASE_AUTH
+        this.firebaseUrl = configuredValue("assistant.firebase.url", "FIREBASE_URL", PLACEHOLDER_FIREBASE_URL);
+        this.firebaseAuth = configuredValue("assistant.firebase.auth", "FIREBASE_AUTH", null);
         
         this.isConnected = false;
+        
+        try {
+            this.conversationStore = new Conversation_store(Conversation_store.defaultDataDirectory());
+        } catch (IOException e) {
+            System.err.println("Local conversation store unavailable: " + e.getMessage());
+        }
+        try {
+            this.metricsStore = new Metrics_store(Conversation_store.defaultDataDirectory());
+        } catch (IOException e) {
+            System.err.println("Local metrics store unavailable: " + e.getMessage());
+        }
+        if (conversationStore != null) {
+            try {
+                this.vectorIndex = new Vector_index(new File(Conversation_store.defaultDataDirectory(),
+                    VECTOR_INDEX_DIRECTORY_NAME), Text_embedder.DIMENSIONS);
+                // Conversations saved before the index existed, or while it was unavailable,
+                // are indexed in the background
+                Thread catchUp = new Thread(this::indexNewConversations, "vector-index-catch-up");
+                catchUp.setDaemon(true);
+                catchUp.setPriority(Thread.MIN_PRIORITY);
+                catchUp.start();
+            } catch (IOException e) {
+                System.err.println("Vector index unavailable: " + e.getMessage());
+            }
+        }
     }
     
     /**
@@ -46,57 +103,353 @@ public class Database_handler {
             connect();
         }
         
-        // In a real implementation, this would save to Firebase
-        // DatabaseReference ref = FirebaseDatabase.getInstance().getReference("conversations");
-        // Map<String, Object> conversation = new HashMap<>();
-        // conversation.put("userQuery", userQuery);
-        // conversation.put("chatGPTResponse", chatGPTResponse);
-        // conversation.put("perplexityResponse", perplexityResponse);
-        // conversation.put("timestamp", ServerValue.TIMESTAMP);
-        // ref.child(conversationId).setValue(conversation);
+        if (conversationStore == null) {
+            return false;
+        }
         
-        System.out.println("Saving conversation to database...");
+        Flight_events.Save_event event = new Flight_events.Save_event();
+        event.begin();
+        long sizeBefore = conversationStore.sizeInBytes();
+        // The local store is the source of truth and doubles as the durable sync queue;
+        // the conversation is pushed to Firebase in the background with other recent saves
+        try {
+            conversationStore.append(conversationId, userQuery, chatGPTResponse, perplexityResponse);
+        } catch (IOException e) {
+            System.err.println("Failed to store conversation locally: " + e.getMessage());
+            event.failed = true;
+            return false;
+        } finally {
+            event.bytes = conversationStore.sizeInBytes() - sizeBefore;
+            event.finish(conversationId, "");
+        }
+        if (firebaseSync != null) {
+            firebaseSync.requestPush();
+        }
+        indexNewConversations();
         return true;
     }
     
+    /**
+     * Saves a conversation whose responses are read from streams
+     * Large responses go straight from their source into the local store without being
+     * held in memory as a whole
+     * @param conversationId unique identifier for the conversation
+     * @param userQuery the user's input query
+     * @param chatGPTResponse response from ChatGPT, read to the end but not closed
+     * @param perplexityResponse response from Perplexity, read to the end but not closed
+     * @return true if saved successfully
+     */
+    public boolean saveConversation(String conversationId, String userQuery,
+                                    Reader chatGPTResponse, Reader perplexityResponse) {
+        if (!isConnected) {
+            connect();
+        }
+        
+        if (conversationStore == null) {
+            return false;
+        }
+        
+        Flight_events.Save_event event = new Flight_events.Save_event();
+        event.begin();
+        long sizeBefore = conversationStore.sizeInBytes();
+        try {
+            conversationStore.append(conversationId, userQuery, chatGPTResponse, perplexityResponse);
+        } catch (IOException e) {
+            System.err.println("Failed to store conversation locally: " + e.getMessage());
+            event.failed = true;
+            return false;
+        } finally {
+            event.bytes = conversationStore.sizeInBytes() - sizeBefore;
+            event.finish(conversationId, "");
+        }
+        if (firebaseSync != null) {
+            firebaseSync.requestPush();
+        }
+        indexNewConversations();
+        return true;
+    }
+    
+    /**
+     * Finds past conversations whose queries are most like a new query
+     * @param query the new query
+     * @param limit maximum number of conversations returned
+     * @param minSimilarity cosine similarity a past query must reach, from 0 to 1
+     * @return the matching conversations, most similar first; empty if there are none or
+     *         the index is unavailable
+     */
+    public List<Conversation_record> relatedConversations(String query, int limit, double minSimilarity) {
+        if (vectorIndex == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        
+        List<Conversation_record> related = new ArrayList<>();
+        try {
+            for (Vector_index.Neighbor neighbor : vectorIndex.search(embedder.embed(query), limit, RETRIEVAL_EF)) {
+                if (neighbor.getSimilarity() < minSimilarity) {
+                    break;
+                }
+                related.add(conversationStore.read(neighbor.getKey()));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read related conversations: " + e.getMessage());
+        }
+        return related;
+    }
+    
+    /**
+     * Adds the conversations not yet in the vector index, in the order they were stored
+     * Returns at once if another thread is already indexing; that thread picks up anything
+     * stored in the meantime.
+     */
+    private void indexNewConversations() {
+        if (vectorIndex == null) {
+            return;
+        }
+        while (indexedOffset < conversationStore.sizeInBytes() && indexing.compareAndSet(false, true)) {
+            try {
+                long offset = indexedOffset < 0 ? resumeOffset() : indexedOffset;
+                try (Conversation_store.Cursor cursor = conversationStore.openCursor(offset)) {
+                    while (cursor.hasNext()) {
+                        // The cursor has read ahead, so its position is already past this record
+                        long next = cursor.position();
+                        vectorIndex.add(embedder.embed(cursor.next().getUserQuery()), offset);
+                        offset = next;
+                        indexedOffset = offset;
+                    }
+                }
+                indexedOffset = offset;
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Failed to update vector index: " + e.getMessage());
+                return;
+            } finally {
+                indexing.set(false);
+            }
+        }
+    }
+    
+    /**
+     * Works out where indexing continues: just past the last indexed conversation
+     * An index pointing beyond the end of the store, which happens when a torn record was
+     * cut off after it had been indexed, is cleared and rebuilt.
+     */
+    private long resumeOffset() throws IOException {
+        int size = vectorIndex.size();
+        if (size == 0) {
+            return 0;
+        }
+        long lastOffset = vectorIndex.getKey(size - 1);
+        if (lastOffset >= conversationStore.sizeInBytes()) {
+            vectorIndex.clear();
+            return 0;
+        }
+        try (Conversation_store.Cursor cursor = conversationStore.openCursor(lastOffset)) {
+            if (cursor.hasNext()) {
+                cursor.next();
+            }
+            return cursor.position();
+        }
+    }
+    
+    /**
+     * Records the performance of one provider call for later reports
+     * @param metrics the call's metrics
+     */
+    public void recordQueryMetrics(Query_metrics metrics) {
+        if (metricsStore == null) {
+            return;
+        }
+        try {
+            metricsStore.append(metrics);
+        } catch (IOException e) {
+            System.err.println("Failed to store query metrics: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Aggregates the recorded query metrics per provider and day
+     * Runs in parallel over the stored partitions; call it off the Event Dispatch Thread
+     * @param fromTimestamp start of the range, inclusive, in epoch milliseconds
+     * @param toTimestamp end of the range, exclusive, in epoch milliseconds
+     * @return one aggregate per provider and day, ordered by day then provider
+     */
+    public List<Metrics_aggregate> aggregateQueryMetrics(long fromTimestamp, long toTimestamp) {
+        if (metricsStore == null) {
+            return Collections.emptyList();
+        }
+        return metricsStore.aggregate(fromTimestamp, toTimestamp);
+    }
+    
+    /**
+     * Opens a cursor over all locally stored conversations, oldest first
+     * The cursor reads one conversation at a time and must be closed by the caller
+     * @return a new cursor
+     * @throws IOException if the local store is unavailable or cannot be read
+     */
+    public Conversation_store.Cursor openConversationCursor() throws IOException {
+        if (conversationStore == null) {
+            throw new IOException("Local conversation store is unavailable");
+        }
+        return conversationStore.openCursor();
+    }
+    
+    /**
+     * Gets the size of the local conversation store, used for progress reporting
+     * @return the store size in bytes
+     */
+    public long getConversationStoreSize() {
+        return conversationStore != null ? conversationStore.sizeInBytes() : 0;
+    }
+    
     /**
      * Retrieves conversation history from the database
+     * Kept for compatibility; prefer page() or history(), which avoid building a map per record
      * @param limit maximum number of conversations to retrieve
-     * @return list of conversation maps
+     * @return list of conversation maps, newest first
      */
     public List<Map<String, Object>> getConversationHistory(int limit) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Conversation_record record : page(Long.MAX_VALUE, limit)) {
+            result.add(record.toMap());
+        }
+        return result;
+    }
+    
+    /**
+     * Retrieves one page of conversation history using keyset pagination
+     * To get the next (older) page, pass the timestamp of the last record of the current page
+     * @param beforeTimestamp only conversations strictly older than this are returned;
+     *        use Long.MAX_VALUE for the most recent page
+     * @param size maximum number of conversations in the page
+     * @return the conversations, newest first
+     */
+    public List<Conversation_record> page(long beforeTimestamp, int size) {
         if (!isConnected) {
             connect();
         }
+        if (conversationStore == null) {
+            return Collections.emptyList();
+        }
         
-        // In a real implementation, this would query Firebase
-        // DatabaseReference ref = FirebaseDatabase.getInstance().getReference("conversations");
-        // Query query = ref.orderByChild("timestamp").limitToLast(limit);
-        // query.addListenerForSingleValueEvent(new ValueEventListener() {...});
+        try {
+            return conversationStore.page(beforeTimestamp, size);
+        } catch (IOException e) {
+            System.err.println("Failed to read conversation history: " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * Retrieves the timestamp and the start of the query of the conversations at a range of positions
+     * Much cheaper than historyRange, since no response is decompressed
+     * @param fromIndex first position, inclusive
+     * @param toIndex last position, exclusive
+     * @param maxQueryChars most characters of each query to read
+     * @return records with the start of their query and null responses, newest first
+     */
+    public List<Conversation_record> historySummaries(int fromIndex, int toIndex, int maxQueryChars) {
+        if (!isConnected) {
+            connect();
+        }
+        if (conversationStore == null) {
+            return Collections.emptyList();
+        }
         
-        // Dummy implementation for demonstration
-        List<Map<String, Object>> result = new ArrayList<>();
-        for (int i = 0; i < limit; i++) {
-            Map<String, Object> conversation = new HashMap<>();
-            conversation.put("userQuery", "Sample query " + i);
-            conversation.put("chatGPTResponse", "ChatGPT response " + i);
-            conversation.put("perplexityResponse", "Perplexity response " + i);
-            conversation.put("timestamp", System.currentTimeMillis() - (i * 60000));
-            result.add(conversation);
+        try {
+            return conversationStore.summaries(fromIndex, toIndex, maxQueryChars);
+        } catch (IOException e) {
+            System.err.println("Failed to read conversation history: " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * Retrieves the conversations at a range of positions, for random access such as a scrolled list
+     * Position 0 is the oldest conversation; positions stay valid as new conversations are saved
+     * @param fromIndex first position, inclusive
+     * @param toIndex last position, exclusive
+     * @return the conversations, newest first
+     */
+    public List<Conversation_record> historyRange(int fromIndex, int toIndex) {
+        if (!isConnected) {
+            connect();
+        }
+        if (conversationStore == null) {
+            return Collections.emptyList();
         }
         
-        return result;
+        try {
+            return conversationStore.range(fromIndex, toIndex);
+        } catch (IOException e) {
+            System.err.println("Failed to read conversation history: " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+    
+    /**
+     * Lazily streams conversation history, newest first
+     * Records are decoded page by page only as the stream is consumed, so
+     * e.g. history(Long.MAX_VALUE).limit(20) reads just the first page
+     * @param beforeTimestamp only conversations strictly older than this are returned
+     * @return a sequential stream of conversations
+     */
+    public Stream<Conversation_record> history(long beforeTimestamp) {
+        if (!isConnected) {
+            connect();
+        }
+        if (conversationStore == null) {
+            return Stream.empty();
+        }
+        
+        Iterator<Conversation_record> iterator = conversationStore.iterator(beforeTimestamp, HISTORY_PAGE_SIZE);
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+    
+    /**
+     * Gets the number of locally stored conversations
+     * @return the conversation count
+     */
+    public int getConversationCount() {
+        return conversationStore != null ? conversationStore.size() : 0;
     }
     
     /**
      * Connects to the Firebase database
      * @return true if connection successful
      */
-    private boolean connect() {
-        // In a real implementation, this would establish the connection if not already connected
-        System.out.println("Connecting to Firebase database at: " + firebaseUrl);
+    private synchronized boolean connect() {
+        if (isConnected) {
+            return true;
+        }
         this.isConnected = true;
-        return true;
+        
+        if (conversationStore == null || PLACEHOLDER_FIREBASE_URL.equals(firebaseUrl)) {
+            // Without a configured project everything stays local
+            return false;
+        }
+        
+        // Sync runs on its own thread and replays anything queued while offline
+        System.out.println("Connecting to Firebase database at: " + firebaseUrl);
+        try {
+            firebaseSync = new Firebase_sync(firebaseUrl, firebaseAuth, conversationStore,
+                Conversation_store.defaultDataDirectory());
+            firebaseSync.start();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to start Firebase sync: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Reads a setting from a system property, falling back to an environment variable
+     */
+    private static String configuredValue(String property, String environmentVariable, String defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(environmentVariable);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value;
     }
     
     /**
@@ -140,8 +493,33 @@ public class Database_handler {
      * Closes the database connection
      */
     public void close() {
-        // In a real implementation, this would close the connection
+        // Stop syncing first; anything not yet pushed stays queued for the next session
+        if (firebaseSync != null) {
+            firebaseSync.shutdown();
+            firebaseSync = null;
+        }
         this.isConnected = false;
+        if (vectorIndex != null) {
+            try {
+                vectorIndex.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close vector index: " + e.getMessage());
+            }
+        }
+        if (metricsStore != null) {
+            try {
+                metricsStore.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close metrics store: " + e.getMessage());
+            }
+        }
+        if (conversationStore != null) {
+            try {
+                conversationStore.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close conversation store: " + e.getMessage());
+            }
+        }
         System.out.println("Closing database connection");
     }
 } 
\ No newline at end of file
@@ -0,0 +1,369 @@
+package database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronizes the local conversation store with the Firebase Realtime Database REST API
+ *
+ * Push: local records written after the pushed offset form a durable outbox (the store file
+ * itself). They are sent in batches as one multi-path PATCH of /conversations, so a burst of
+ * saves costs a single round trip. The offset only advances after the server accepts a batch,
+ * so anything written while offline is replayed automatically once the server is reachable.
+ *
+ * Pull: conversations from other devices are fetched incrementally, ordered by the server
+ * assigned syncedAt timestamp and starting at the last seen value (the watermark). Every
+ * conversation of one push shares a syncedAt, so pages start at the watermark itself and
+ * the keys already pulled at that value are remembered and skipped.
+ * This needs ".indexOn": ["syncedAt"] on /conversations in the database rules.
+ *
+ * All network work runs on a single background thread, never on the caller's thread. It is
+ * its own thread rather than a task on the UI's worker pool because it mostly waits on the
+ * network, with timeouts of several seconds, and backs off by itself.
+ */
+public class Firebase_sync {
+    private static final String STATE_FILE_NAME = "sync_state.properties";
+    private static final int PUSH_BATCH_SIZE = 200;
+    private static final int PULL_PAGE_SIZE = 500;
+    // Saves arriving within this window are pushed together
+    private static final long PUSH_DELAY_MS = 250;
+    private static final long PULL_INTERVAL_MS = 30_000;
+    private static final long MAX_BACKOFF_MS = 5 * 60_000;
+    private static final int TIMEOUT_MS = 15_000;
+    
+    private final String databaseUrl;
+    private final String authToken;
+    private final Conversation_store store;
+    private final File stateFile;
+    private final ScheduledExecutorService executor;
+    private final String deviceId;
+    private long pushedOffset;
+    private long pullWatermark;
+    // Keys already pulled whose syncedAt equals the watermark
+    private Set<String> watermarkKeys;
+    private long backoffMillis;
+    private long retryAtMillis;
+    private ScheduledFuture<?> pendingPush;
+    private volatile int requestCount;
+    
+    /**
+     * Constructor initializes sync state from the data directory
+     * @param databaseUrl the database root, e.g. https://project.firebaseio.com
+     * @param authToken a database secret or ID token, or null for open rules
+     * @param store the local conversation store
+     * @param dataDirectory directory where the sync state is kept
+     * @throws IOException if the sync state cannot be read
+     */
+    public Firebase_sync(String databaseUrl, String authToken, Conversation_store store,
+                         File dataDirectory) throws IOException {
+        this.databaseUrl = databaseUrl.endsWith("/")
+            ? databaseUrl.substring(0, databaseUrl.length() - 1) : databaseUrl;
+        this.authToken = authToken;
+        this.store = store;
+        this.stateFile = new File(dataDirectory, STATE_FILE_NAME);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "firebase-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        Properties state = new Properties();
+        if (stateFile.isFile()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+            }
+        }
+        this.pushedOffset = Long.parseLong(state.getProperty("pushedOffset", "0"));
+        this.pullWatermark = Long.parseLong(state.getProperty("pullWatermark", "0"));
+        String keys = state.getProperty("pullWatermarkKeys", "");
+        this.watermarkKeys = new HashSet<>(keys.isEmpty() ? Set.of() : Arrays.asList(keys.split("/")));
+        this.deviceId = state.getProperty("deviceId", UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Starts periodic sync; replays anything still queued from a previous session
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::syncNow, 0, PULL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Asks for newly saved conversations to be pushed soon
+     * Returns immediately; calls within a short window are coalesced into one batch
+     */
+    public synchronized void requestPush() {
+        if (executor.isShutdown() || (pendingPush != null && !pendingPush.isDone())) {
+            return;
+        }
+        pendingPush = executor.schedule(this::pushPending, PUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Gets the number of HTTP requests made so far, useful to verify batching
+     * @return the request count
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+    
+    /**
+     * Stops syncing, giving queued pushes a few seconds to complete
+     * Anything not pushed stays queued in the store for the next session
+     */
+    public void shutdown() {
+        executor.execute(this::pushPending);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Pushes queued conversations, then pulls remote changes
+     * Unexpected errors, such as a malformed remote record, are logged rather than thrown,
+     * since a periodic task that throws is never run again.
+     */
+    private void syncNow() {
+        try {
+            pushPending();
+            pullChanges();
+        } catch (RuntimeException e) {
+            System.err.println("Firebase sync failed: " + e);
+        }
+    }
+    
+    /**
+     * Sends every queued local conversation in multi-path PATCH batches
+     */
+    private void pushPending() {
+        if (System.currentTimeMillis() < retryAtMillis) {
+            return;
+        }
+        try {
+            while (pushedOffset < store.sizeInBytes()) {
+                Map<String, Object> batch = new LinkedHashMap<>();
+                long batchEnd;
+                try (Conversation_store.Cursor cursor = store.openCursor(pushedOffset)) {
+                    while (batch.size() < PUSH_BATCH_SIZE && cursor.hasNext()) {
+                        Conversation_record record = cursor.next();
+                        if ((cursor.flags() & Record_codec.FLAG_REMOTE_ORIGIN) == 0) {
+                            batch.put(record.getConversationId(), toFirebase(record));
+                        }
+                    }
+                    batchEnd = cursor.position();
+                }
+                
+                if (!batch.isEmpty()) {
+                    request("PATCH", "/conversations.json", Json_util.toJson(batch));
+                }
+                pushedOffset = batchEnd;
+                saveState();
+            }
+            backoffMillis = 0;
+        } catch (IOException e) {
+            scheduleRetry(e);
+        }
+    }
+    
+    /**
+     * Fetches conversations synced by other devices since the watermark
+     */
+    private void pullChanges() {
+        if (System.currentTimeMillis() < retryAtMillis) {
+            return;
+        }
+        try {
+            while (true) {
+                String query = "?orderBy=" + encode("\"syncedAt\"")
+                    + "&startAt=" + pullWatermark
+                    + "&limitToFirst=" + PULL_PAGE_SIZE;
+                Object response = Json_util.parse(request("GET", "/conversations.json" + query, null));
+                if (!(response instanceof Map) || ((Map<?, ?>) response).isEmpty()) {
+                    break;
+                }
+                
+                // A page ends part way through a syncedAt value at most, and the next page starts
+                // at that value again; the reply is unordered, so records are checked against the
+                // watermark the page started from
+                Map<?, ?> conversations = (Map<?, ?>) response;
+                long startWatermark = pullWatermark;
+                Set<String> startKeys = watermarkKeys;
+                int pulled = 0;
+                for (Map.Entry<?, ?> entry : conversations.entrySet()) {
+                    if (!(entry.getValue() instanceof Map)) {
+                        continue;
+                    }
+                    String key = String.valueOf(entry.getKey());
+                    Map<?, ?> value = (Map<?, ?>) entry.getValue();
+                    long syncedAt = asLong(value.get("syncedAt"));
+                    if (syncedAt < startWatermark || (syncedAt == startWatermark && startKeys.contains(key))) {
+                        continue;
+                    }
+                    if (syncedAt > pullWatermark) {
+                        pullWatermark = syncedAt;
+                        watermarkKeys = new HashSet<>();
+                    }
+                    if (syncedAt == pullWatermark) {
+                        watermarkKeys.add(key);
+                    }
+                    pulled++;
+                    if (!deviceId.equals(value.get("device"))) {
+                        store.appendRemote(fromFirebase(key, value));
+                    }
+                }
+                saveState();
+                if (conversations.size() < PULL_PAGE_SIZE) {
+                    break;
+                }
+                if (pulled == 0) {
+                    // A whole page shares the watermark and was pulled before, so paging cannot go on
+                    System.err.println("Firebase sync: more than " + PULL_PAGE_SIZE
+                        + " conversations share syncedAt " + pullWatermark + "; some may not be pulled");
+                    break;
+                }
+            }
+            backoffMillis = 0;
+        } catch (IOException | IllegalArgumentException e) {
+            scheduleRetry(e);
+        }
+    }
+    
+    /**
+     * Backs off exponentially after a failure; queued work is retried afterwards
+     */
+    private void scheduleRetry(Exception e) {
+        backoffMillis = backoffMillis == 0 ? 1_000 : Math.min(MAX_BACKOFF_MS, backoffMillis * 2);
+        retryAtMillis = System.currentTimeMillis() + backoffMillis;
+        System.err.println("Firebase sync failed, retrying in " + backoffMillis / 1000 + "s: " + e.getMessage());
+        if (!executor.isShutdown()) {
+            executor.schedule(this::syncNow, backoffMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Converts a record to the JSON object stored in Firebase
+     * syncedAt is filled in by the server, which gives pulls a gap-free ordering even for
+     * conversations that were written while a device was offline
+     */
+    private Map<String, Object> toFirebase(Conversation_record record) {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("userQuery", record.getUserQuery());
+        value.put("chatGPTResponse", record.getChatGPTResponse());
+        value.put("perplexityResponse", record.getPerplexityResponse());
+        value.put("timestamp", record.getTimestamp());
+        value.put("device", deviceId);
+        Map<String, Object> serverTimestamp = new LinkedHashMap<>();
+        serverTimestamp.put(".sv", "timestamp");
+        value.put("syncedAt", serverTimestamp);
+        return value;
+    }
+    
+    private static Conversation_record fromFirebase(String id, Map<?, ?> value) {
+        return new Conversation_record(id, asLong(value.get("timestamp")),
+            (String) value.get("userQuery"),
+            (String) value.get("chatGPTResponse"),
+            (String) value.get("perplexityResponse"));
+    }
+    
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+    
+    /**
+     * Makes one REST request and returns the response body
+     * PATCH is sent as POST with X-HTTP-Method-Override, which Firebase supports and
+     * HttpURLConnection needs since it cannot send PATCH itself
+     */
+    private String request(String method, String path, String body) throws IOException {
+        String url = databaseUrl + path;
+        if (authToken != null && !authToken.isEmpty()) {
+            url += (path.contains("?") ? "&" : "?") + "auth=" + encode(authToken);
+        }
+        
+        requestCount++;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        if ("PATCH".equals(method)) {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+        } else {
+            connection.setRequestMethod(method);
+        }
+        
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        
+        int status = connection.getResponseCode();
+        InputStream stream = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        String response = readFully(stream);
+        if (status >= 400) {
+            throw new IOException("HTTP " + status + " from Firebase: " + response);
+        }
+        return response;
+    }
+    
+    private static String readFully(InputStream stream) throws IOException {
+        if (stream == null) {
+            return "";
+        }
+        try (InputStream in = stream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Persists offsets atomically so a crash never loses or duplicates queue state
+     */
+    private void saveState() throws IOException {
+        Properties state = new Properties();
+        state.setProperty("pushedOffset", Long.toString(pushedOffset));
+        state.setProperty("pullWatermark", Long.toString(pullWatermark));
+        // Firebase keys cannot contain a slash
+        state.setProperty("pullWatermarkKeys", String.join("/", watermarkKeys));
+        state.setProperty("deviceId", deviceId);
+        
+        File temporary = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            state.store(out, "Firebase sync state");
+        }
+        Files.move(temporary.toPath(), stateFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
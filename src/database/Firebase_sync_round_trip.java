@@ -0,0 +1,113 @@
+package database;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Round trip of conversations between two devices through Local_firebase_server
+ * One device saves more conversations than fit in a pull page, so several push batches
+ * share a syncedAt and pages end part way through one. The other device pulls them, is
+ * restarted from its saved sync state and pulls again; the check passes when it ends up
+ * with every conversation exactly once. Exits with status 1 otherwise.
+ *
+ * Usage: java database.Firebase_sync_round_trip [conversations]
+ */
+public class Firebase_sync_round_trip {
+    private static final long WAIT_MS = 30_000;
+    
+    public static void main(String[] args) throws Exception {
+        int conversations = args.length > 0 ? Integer.parseInt(args[0]) : 1_200;
+        Path directory = Files.createTempDirectory("firebase-sync-round-trip");
+        Local_firebase_server server = new Local_firebase_server(0);
+        server.start();
+        boolean passed;
+        try {
+            passed = run(server, directory, conversations);
+        } finally {
+            server.stop();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        System.out.println(passed ? "Round trip passed" : "Round trip FAILED");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+    
+    private static boolean run(Local_firebase_server server, Path directory, int conversations) throws Exception {
+        File senderDirectory = Files.createDirectory(directory.resolve("sender")).toFile();
+        File receiverDirectory = Files.createDirectory(directory.resolve("receiver")).toFile();
+        
+        Set<String> sent = new HashSet<>();
+        try (Conversation_store sender = new Conversation_store(senderDirectory)) {
+            for (int i = 0; i < conversations; i++) {
+                String id = UUID.randomUUID().toString();
+                sent.add(id);
+                sender.append(id, "Question " + i + "\nwith a second line", "ChatGPT answer " + i,
+                    "Perplexity answer " + i);
+            }
+            Firebase_sync senderSync = new Firebase_sync(server.getUrl(), null, sender, senderDirectory);
+            senderSync.start();
+            boolean pushed = waitFor(() -> remoteCount(server) == conversations);
+            senderSync.shutdown();
+            System.out.printf("Pushed %d of %d conversations in %d requests%n",
+                remoteCount(server), conversations, senderSync.getRequestCount());
+            if (!pushed) {
+                return false;
+            }
+        }
+        
+        try (Conversation_store receiver = new Conversation_store(receiverDirectory)) {
+            Firebase_sync receiverSync = new Firebase_sync(server.getUrl(), null, receiver, receiverDirectory);
+            receiverSync.start();
+            waitFor(() -> receiver.size() >= conversations);
+            receiverSync.shutdown();
+            System.out.printf("Pulled %d conversations%n", receiver.size());
+            
+            // A restarted device must not pull the conversations at its watermark again
+            Firebase_sync restartedSync = new Firebase_sync(server.getUrl(), null, receiver, receiverDirectory);
+            int requestsBefore = server.getRequestCount();
+            restartedSync.start();
+            waitFor(() -> server.getRequestCount() > requestsBefore);
+            restartedSync.shutdown();
+            
+            Set<String> received = new HashSet<>();
+            int duplicates = 0;
+            try (Conversation_store.Cursor cursor = receiver.openCursor()) {
+                while (cursor.hasNext()) {
+                    if (!received.add(cursor.next().getConversationId())) {
+                        duplicates++;
+                    }
+                }
+            }
+            System.out.printf("After a restart: %d conversations, %d duplicates, %d missing%n",
+                received.size() + duplicates, duplicates, sent.size() - received.size());
+            return duplicates == 0 && received.equals(sent);
+        }
+    }
+    
+    private static int remoteCount(Local_firebase_server server) {
+        Object remote = server.get("conversations");
+        return remote instanceof Map ? ((Map<?, ?>) remote).size() : 0;
+    }
+    
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+}
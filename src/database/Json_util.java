@@ -0,0 +1,279 @@
+package database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON helpers for the database package
+ * Used where pulling in a full JSON library would be overkill, e.g. for the Firebase REST API
+ */
+public final class Json_util {
+    
+    private Json_util() {
+    }
+    
+    /**
+     * Appends a value as a quoted and escaped JSON string
+     * @param out the builder to append to
+     * @param value the string value, or null for a JSON null
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendQuoted(StringBuilder out, String value) {
+        if (value == null) {
+            return out.append("null");
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+    
+    /**
+     * Serializes maps, lists, strings, numbers, booleans and null to JSON
+     * @param value the value to serialize
+     * @return the JSON text
+     */
+    public static String toJson(Object value) {
+        StringBuilder out = new StringBuilder();
+        appendJson(out, value);
+        return out.toString();
+    }
+    
+    /**
+     * Appends the JSON form of a value
+     * @param out the builder to append to
+     * @param value maps, lists, strings, numbers, booleans or null
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendJson(StringBuilder out, Object value) {
+        if (value == null || value instanceof String) {
+            return appendQuoted(out, (String) value);
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return out.append(value);
+        }
+        if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendQuoted(out, String.valueOf(entry.getKey())).append(':');
+                appendJson(out, entry.getValue());
+            }
+            return out.append('}');
+        }
+        if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendJson(out, item);
+            }
+            return out.append(']');
+        }
+        return appendQuoted(out, value.toString());
+    }
+    
+    /**
+     * Parses JSON text
+     * Objects become LinkedHashMaps, arrays ArrayLists, integral numbers Longs and
+     * other numbers Doubles
+     * @param json the JSON text
+     * @return the parsed value
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    public static Object parse(String json) {
+        Parser parser = new Parser(json);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position < json.length()) {
+            throw parser.error("Unexpected trailing content");
+        }
+        return value;
+    }
+    
+    /**
+     * Recursive descent JSON parser
+     */
+    private static class Parser {
+        private final String text;
+        private int position;
+        
+        Parser(String text) {
+            this.text = text;
+        }
+        
+        Object readValue() {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            char c = text.charAt(position);
+            switch (c) {
+                case '{': return readObject();
+                case '[': return readArray();
+                case '"': return readString();
+                case 't': expect("true"); return Boolean.TRUE;
+                case 'f': expect("false"); return Boolean.FALSE;
+                case 'n': expect("null"); return null;
+                default: return readNumber();
+            }
+        }
+        
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected object key");
+                }
+                String key = readString();
+                skipWhitespace();
+                if (peek() != ':') {
+                    throw error("Expected ':'");
+                }
+                position++;
+                object.put(key, readValue());
+                skipWhitespace();
+                char c = peek();
+                position++;
+                if (c == '}') {
+                    return object;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+        
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                char c = peek();
+                position++;
+                if (c == ']') {
+                    return array;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+        
+        private String readString() {
+            StringBuilder out = new StringBuilder();
+            position++;
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return out.toString();
+                }
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    case 't': out.append('\t'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw error("Truncated unicode escape");
+                        }
+                        out.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default: out.append(escaped);
+                }
+            }
+            throw error("Unterminated string");
+        }
+        
+        private Object readNumber() {
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String number = text.substring(start, position);
+            if (number.isEmpty()) {
+                throw error("Unexpected character");
+            }
+            try {
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    return Long.parseLong(number);
+                }
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number " + number);
+            }
+        }
+        
+        private void expect(String literal) {
+            if (!text.startsWith(literal, position)) {
+                throw error("Expected " + literal);
+            }
+            position += literal.length();
+        }
+        
+        private char peek() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            return text.charAt(position);
+        }
+        
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+        
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package database;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory stand-in for the Firebase Realtime Database REST API, bound to localhost
+ * Implements the subset used by Firebase_sync: GET with orderBy/startAt/limitToFirst,
+ * PUT, multi-path PATCH (also via X-HTTP-Method-Override) and the {".sv": "timestamp"}
+ * server value. Intended for tests and offline development.
+ *
+ * Usage: java database.Local_firebase_server [port]
+ * then run the app with -Dassistant.firebase.url=http://localhost:&lt;port&gt;
+ */
+public class Local_firebase_server {
+    private final HttpServer server;
+    private final Map<String, Object> root = new LinkedHashMap<>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private long lastServerTimestamp;
+    
+    /**
+     * Constructor binds the server to a localhost port
+     * @param port the port, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public Local_firebase_server(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+    }
+    
+    /**
+     * Starts serving requests
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stops the server
+     */
+    public void stop() {
+        server.stop(0);
+    }
+    
+    /**
+     * Gets the base URL to configure Firebase_sync with
+     * @return the URL of the database root
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+    
+    /**
+     * Gets the number of requests served so far
+     * @return the request count
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+    
+    /**
+     * Gets a copy of the data stored at a path
+     * @param path slash separated path, e.g. "conversations"
+     * @return the JSON value at that path, or null
+     */
+    public synchronized Object get(String path) {
+        Object value = resolve(splitPath(path));
+        return value == null ? null : Json_util.parse(Json_util.toJson(value));
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            String method = exchange.getRequestMethod();
+            String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            if ("POST".equals(method) && override != null) {
+                method = override.toUpperCase();
+            }
+            
+            String rawPath = exchange.getRequestURI().getPath();
+            if (!rawPath.endsWith(".json")) {
+                send(exchange, 400, "{\"error\":\"Paths must end in .json\"}");
+                return;
+            }
+            List<String> path = splitPath(rawPath.substring(0, rawPath.length() - ".json".length()));
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            
+            String response;
+            synchronized (this) {
+                switch (method) {
+                    case "GET":
+                        response = Json_util.toJson(query(resolve(path), query));
+                        break;
+                    case "PUT": {
+                        Object value = resolveServerValues(Json_util.parse(readBody(exchange)), nextServerTimestamp());
+                        set(path, value);
+                        response = Json_util.toJson(value);
+                        break;
+                    }
+                    case "PATCH": {
+                        Object body = Json_util.parse(readBody(exchange));
+                        if (!(body instanceof Map)) {
+                            send(exchange, 400, "{\"error\":\"PATCH body must be an object\"}");
+                            return;
+                        }
+                        // Like Firebase, every placeholder in one update gets the same time
+                        long timestamp = nextServerTimestamp();
+                        for (Map.Entry<?, ?> entry : ((Map<?, ?>) body).entrySet()) {
+                            List<String> childPath = new ArrayList<>(path);
+                            childPath.addAll(splitPath(String.valueOf(entry.getKey())));
+                            set(childPath, resolveServerValues(entry.getValue(), timestamp));
+                        }
+                        response = Json_util.toJson(body);
+                        break;
+                    }
+                    case "DELETE":
+                        set(path, null);
+                        response = "null";
+                        break;
+                    default:
+                        send(exchange, 405, "{\"error\":\"Unsupported method\"}");
+                        return;
+                }
+            }
+            send(exchange, 200, response);
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, Json_util.toJson(Map.of("error", e.getMessage())));
+        }
+    }
+    
+    /**
+     * Applies orderBy (child key), startAt and limitToFirst to the children of a node
+     * Children with the same value are ordered by key, as Firebase does.
+     */
+    private Object query(Object node, Map<String, String> query) {
+        String orderBy = query.get("orderBy");
+        if (orderBy == null || !(node instanceof Map)) {
+            return node;
+        }
+        String child = orderBy.replace("\"", "");
+        double startAt = query.containsKey("startAt") ? Double.parseDouble(query.get("startAt")) : -Double.MAX_VALUE;
+        int limit = query.containsKey("limitToFirst") ? Integer.parseInt(query.get("limitToFirst")) : Integer.MAX_VALUE;
+        
+        List<Map.Entry<String, Object>> matches = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : asMap(node).entrySet()) {
+            Object value = entry.getValue() instanceof Map ? ((Map<?, ?>) entry.getValue()).get(child) : null;
+            if (value instanceof Number && ((Number) value).doubleValue() >= startAt) {
+                matches.add(entry);
+            }
+        }
+        matches.sort((a, b) -> {
+            int order = Double.compare(
+                ((Number) ((Map<?, ?>) a.getValue()).get(child)).doubleValue(),
+                ((Number) ((Map<?, ?>) b.getValue()).get(child)).doubleValue());
+            return order != 0 ? order : a.getKey().compareTo(b.getKey());
+        });
+        
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : matches.subList(0, Math.min(limit, matches.size()))) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+    
+    /**
+     * Gets the server time of a write, strictly increasing from one request to the next
+     */
+    private long nextServerTimestamp() {
+        lastServerTimestamp = Math.max(System.currentTimeMillis(), lastServerTimestamp + 1);
+        return lastServerTimestamp;
+    }
+    
+    /**
+     * Replaces {".sv": "timestamp"} placeholders with the server time of the request
+     */
+    private static Object resolveServerValues(Object value, long timestamp) {
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            if (map.size() == 1 && "timestamp".equals(map.get(".sv"))) {
+                return timestamp;
+            }
+            Map<String, Object> resolved = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                resolved.put(String.valueOf(entry.getKey()), resolveServerValues(entry.getValue(), timestamp));
+            }
+            return resolved;
+        }
+        return value;
+    }
+    
+    private Object resolve(List<String> path) {
+        Object node = root;
+        for (String key : path) {
+            if (!(node instanceof Map)) {
+                return null;
+            }
+            node = ((Map<?, ?>) node).get(key);
+        }
+        return node;
+    }
+    
+    private void set(List<String> path, Object value) {
+        if (path.isEmpty()) {
+            root.clear();
+            if (value instanceof Map) {
+                root.putAll(asMap(value));
+            }
+            return;
+        }
+        Map<String, Object> node = root;
+        for (String key : path.subList(0, path.size() - 1)) {
+            Object child = node.get(key);
+            if (!(child instanceof Map)) {
+                child = new LinkedHashMap<String, Object>();
+                node.put(key, child);
+            }
+            node = asMap(child);
+        }
+        String last = path.get(path.size() - 1);
+        if (value == null) {
+            node.remove(last);
+        } else {
+            node.put(last, value);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+    
+    private static List<String> splitPath(String path) {
+        List<String> parts = new ArrayList<>();
+        for (String part : path.split("/")) {
+            if (!part.isEmpty()) {
+                parts.add(part);
+            }
+        }
+        return parts;
+    }
+    
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                          URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+    
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    /**
+     * Runs the stand-in server until the process is stopped
+     * @param args optional port (default 9000)
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9000;
+        Local_firebase_server server = new Local_firebase_server(port);
+        server.start();
+        System.out.println("Local Firebase stand-in listening at " + server.getUrl());
+    }
+}
@@ -0,0 +1,104 @@
+package database;
+
+import java.time.LocalDate;
+
+/**
+ * Aggregated performance of one provider on one day
+ * Sums are kept rather than averages, so partial aggregates of different chunks merge exactly
+ */
+public final class Metrics_aggregate {
+    private final LocalDate day;
+    private final String provider;
+    long count;
+    long latencySum;
+    int latencyMax;
+    long bytesSum;
+    long errors;
+    long cacheHits;
+    
+    Metrics_aggregate(LocalDate day, String provider) {
+        this.day = day;
+        this.provider = provider;
+    }
+    
+    /**
+     * Adds another aggregate of the same day and provider to this one
+     */
+    void merge(Metrics_aggregate other) {
+        count += other.count;
+        latencySum += other.latencySum;
+        latencyMax = Math.max(latencyMax, other.latencyMax);
+        bytesSum += other.bytesSum;
+        errors += other.errors;
+        cacheHits += other.cacheHits;
+    }
+    
+    /**
+     * Gets the day the calls were made on
+     * @return the day
+     */
+    public LocalDate getDay() {
+        return day;
+    }
+    
+    /**
+     * Gets the provider the calls were made to
+     * @return the provider, e.g. "chatgpt"
+     */
+    public String getProvider() {
+        return provider;
+    }
+    
+    /**
+     * Gets the number of calls
+     * @return the call count
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    /**
+     * Gets the mean time from dispatch until the answer was read
+     * @return the average latency in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        return count == 0 ? 0 : (double) latencySum / count;
+    }
+    
+    /**
+     * Gets the longest time from dispatch until the answer was read
+     * @return the maximum latency in milliseconds
+     */
+    public int getMaxLatencyMillis() {
+        return latencyMax;
+    }
+    
+    /**
+     * Gets the mean size of the answers
+     * @return the average answer size in bytes
+     */
+    public double getAverageResponseBytes() {
+        return count == 0 ? 0 : (double) bytesSum / count;
+    }
+    
+    /**
+     * Gets the fraction of calls that failed
+     * @return the error rate from 0 to 1
+     */
+    public double getErrorRate() {
+        return count == 0 ? 0 : (double) errors / count;
+    }
+    
+    /**
+     * Gets the fraction of calls answered without a provider round trip
+     * @return the cache hit rate from 0 to 1
+     */
+    public double getCacheHitRate() {
+        return count == 0 ? 0 : (double) cacheHits / count;
+    }
+    
+    @Override
+    public String toString() {
+        return "Metrics_aggregate[" + day + " " + provider + ", " + count + " calls]";
+    }
+}
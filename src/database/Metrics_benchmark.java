@@ -0,0 +1,63 @@
+package database;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of month-range aggregations over the columnar metrics store
+ * Fills an in-memory store with synthetic calls spread evenly over a number of days,
+ * then times repeated aggregations of the most recent 30 days
+ *
+ * Usage: java database.Metrics_benchmark [rows] [days]
+ */
+public class Metrics_benchmark {
+    private static final String[] PROVIDERS = {"chatgpt", "perplexity"};
+    private static final String[][] MODELS = {
+        {"gpt-4", "gpt-4o-mini", "gpt-4o"},
+        {"sonar-medium-online", "sonar-small-online", "sonar-medium-chat"}
+    };
+    private static final int RUNS = 10;
+    
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        
+        Metrics_store store = new Metrics_store(ZoneId.systemDefault());
+        Random random = new Random(42);
+        long end = System.currentTimeMillis();
+        long start = end - TimeUnit.DAYS.toMillis(days);
+        long step = Math.max(1, (end - start) / rows);
+        long loadStart = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            int provider = random.nextInt(PROVIDERS.length);
+            try {
+                store.append(new Query_metrics(start + i * step, PROVIDERS[provider],
+                    MODELS[provider][random.nextInt(3)], 200 + random.nextInt(5_000),
+                    500 + random.nextInt(20_000), random.nextInt(50) == 0, random.nextInt(10) == 0));
+            } catch (IOException e) {
+                // The in-memory store has no log to fail
+                throw new IllegalStateException(e);
+            }
+        }
+        System.out.printf("Loaded %,d rows over %d days in %d ms%n",
+            rows, days, (System.nanoTime() - loadStart) / 1_000_000);
+        
+        long from = end - TimeUnit.DAYS.toMillis(30);
+        long best = Long.MAX_VALUE;
+        List<Metrics_aggregate> result = null;
+        for (int run = 0; run < RUNS; run++) {
+            long runStart = System.nanoTime();
+            result = store.aggregate(from, end);
+            best = Math.min(best, System.nanoTime() - runStart);
+        }
+        long calls = 0;
+        for (Metrics_aggregate aggregate : result) {
+            calls += aggregate.getCount();
+        }
+        System.out.printf("Aggregated %,d calls into %d provider-days, best of %d runs: %.1f ms%n",
+            calls, result.size(), RUNS, best / 1_000_000.0);
+    }
+}
@@ -0,0 +1,431 @@
+package database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Columnar side store of per-query performance metrics
+ * Each column is a primitive array, and rows are grouped in chunks of at most CHUNK_SIZE
+ * rows partitioned by local day, so a report scans only the columns and days it needs.
+ * Providers and models are dictionary encoded as ints. Rows are also appended to a small
+ * binary log in the data directory and loaded back into columns on startup; a torn record
+ * at the end of the log is cut off.
+ * Aggregations split the chunks of the requested range across a fork/join pool and merge
+ * the per-chunk sums.
+ */
+public class Metrics_store implements Closeable {
+    private static final String METRICS_FILE_NAME = "metrics.bin";
+    // Maximum number of rows per chunk
+    static final int CHUNK_SIZE = 1 << 16;
+    // Rows a chunk has room for when it is created; it grows by doubling
+    private static final int INITIAL_CHUNK_CAPACITY = 256;
+    // Log record types: a dictionary string, which gets the next id, or a row
+    private static final int STRING_RECORD = 'S';
+    private static final int ROW_RECORD = 'R';
+    private static final byte ERROR_FLAG = 1;
+    private static final byte CACHE_HIT_FLAG = 2;
+    
+    private final File file;
+    private final ZoneId zone;
+    private DataOutputStream log;
+    // Dictionary shared by the provider and model columns
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final TreeMap<Long, List<Chunk>> partitions = new TreeMap<>();
+    private int rowCount;
+    // Bounds of the day the last row fell on, so consecutive rows skip the calendar math
+    private long cachedDay = Long.MIN_VALUE;
+    private long cachedDayStart;
+    private long cachedDayEnd;
+    
+    /**
+     * Constructor opens (or creates) the metrics log in the given data directory and loads it
+     * @param dataDirectory directory holding the metrics log
+     * @throws IOException if the log cannot be read or opened for appending
+     */
+    public Metrics_store(File dataDirectory) throws IOException {
+        this(new File(dataDirectory, METRICS_FILE_NAME), ZoneId.systemDefault());
+    }
+    
+    /**
+     * Constructor for a store kept only in memory, e.g. for benchmarks
+     * @param zone time zone that decides which day a row belongs to
+     */
+    Metrics_store(ZoneId zone) {
+        this.file = null;
+        this.zone = zone;
+    }
+    
+    private Metrics_store(File file, ZoneId zone) throws IOException {
+        this.file = file;
+        this.zone = zone;
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create data directory: " + directory);
+        }
+        if (file.exists()) {
+            load();
+        }
+        this.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+    
+    /**
+     * Appends the metrics of one call
+     * @param metrics the metrics to store
+     * @throws IOException if the row cannot be written to the log; it is still kept in memory
+     */
+    public synchronized void append(Query_metrics metrics) throws IOException {
+        int provider = stringId(metrics.getProvider());
+        int model = stringId(metrics.getModel());
+        byte flags = (byte) ((metrics.isError() ? ERROR_FLAG : 0) | (metrics.isCacheHit() ? CACHE_HIT_FLAG : 0));
+        addRow(metrics.getTimestamp(), provider, model, metrics.getLatencyMillis(), metrics.getResponseBytes(), flags);
+        
+        if (log != null) {
+            log.writeByte(ROW_RECORD);
+            log.writeLong(metrics.getTimestamp());
+            log.writeInt(provider);
+            log.writeInt(model);
+            log.writeInt(metrics.getLatencyMillis());
+            log.writeLong(metrics.getResponseBytes());
+            log.writeByte(flags);
+            log.flush();
+        }
+    }
+    
+    /**
+     * Gets the number of stored rows
+     * @return the row count
+     */
+    public synchronized int size() {
+        return rowCount;
+    }
+    
+    /**
+     * Aggregates the rows of a time range per provider and day, in parallel
+     * @param fromTimestamp start of the range, inclusive, in epoch milliseconds
+     * @param toTimestamp end of the range, exclusive, in epoch milliseconds
+     * @return one aggregate per provider and day with rows, ordered by day then provider
+     */
+    public List<Metrics_aggregate> aggregate(long fromTimestamp, long toTimestamp) {
+        if (fromTimestamp >= toTimestamp) {
+            return new ArrayList<>();
+        }
+        
+        // Snapshot the chunks in range; rows appended later are not seen
+        List<Chunk_view> views = new ArrayList<>();
+        String[] dictionary;
+        synchronized (this) {
+            dictionary = strings.toArray(new String[0]);
+            for (List<Chunk> chunks : partitions.subMap(dayOf(fromTimestamp), true, dayOf(toTimestamp - 1), true).values()) {
+                for (Chunk chunk : chunks) {
+                    if (chunk.maxTimestamp >= fromTimestamp && chunk.minTimestamp < toTimestamp) {
+                        views.add(new Chunk_view(chunk));
+                    }
+                }
+            }
+        }
+        
+        Map<String, Metrics_aggregate> merged = views.isEmpty() ? new HashMap<>()
+            : ForkJoinPool.commonPool().invoke(
+                new Aggregate_task(views, 0, views.size(), fromTimestamp, toTimestamp, dictionary));
+        List<Metrics_aggregate> result = new ArrayList<>(merged.values());
+        result.sort(Comparator.comparing(Metrics_aggregate::getDay).thenComparing(Metrics_aggregate::getProvider));
+        return result;
+    }
+    
+    /**
+     * Closes the metrics log
+     * @throws IOException if the log cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+    
+    private int stringId(String value) throws IOException {
+        String key = value == null ? "" : value;
+        Integer id = stringIds.get(key);
+        if (id == null) {
+            id = strings.size();
+            strings.add(key);
+            stringIds.put(key, id);
+            if (log != null) {
+                log.writeByte(STRING_RECORD);
+                log.writeUTF(key);
+            }
+        }
+        return id;
+    }
+    
+    private void addRow(long timestamp, int provider, int model, int latency, long bytes, byte flags) {
+        long day = dayOf(timestamp);
+        List<Chunk> chunks = partitions.computeIfAbsent(day, key -> new ArrayList<>());
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.size == CHUNK_SIZE) {
+            chunk = new Chunk(day);
+            chunks.add(chunk);
+        }
+        chunk.add(timestamp, provider, model, latency, bytes, flags);
+        rowCount++;
+    }
+    
+    private long dayOf(long timestamp) {
+        if (timestamp < cachedDayStart || timestamp >= cachedDayEnd || cachedDay == Long.MIN_VALUE) {
+            LocalDate date = Instant.ofEpochMilli(timestamp).atZone(zone).toLocalDate();
+            cachedDay = date.toEpochDay();
+            cachedDayStart = date.atStartOfDay(zone).toInstant().toEpochMilli();
+            cachedDayEnd = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        return cachedDay;
+    }
+    
+    /**
+     * Loads the log into columns, cutting off a torn or unreadable tail
+     */
+    private void load() throws IOException {
+        long[] position = new long[1];
+        long goodLength = 0;
+        InputStream counting = new FilterInputStream(new BufferedInputStream(new FileInputStream(file))) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    position[0]++;
+                }
+                return value;
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) {
+                    position[0] += count;
+                }
+                return count;
+            }
+        };
+        try (DataInputStream in = new DataInputStream(counting)) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type == STRING_RECORD) {
+                    String value = in.readUTF();
+                    stringIds.put(value, strings.size());
+                    strings.add(value);
+                } else if (type == ROW_RECORD) {
+                    long timestamp = in.readLong();
+                    int provider = in.readInt();
+                    int model = in.readInt();
+                    int latency = in.readInt();
+                    long bytes = in.readLong();
+                    byte flags = in.readByte();
+                    if (provider >= strings.size() || model >= strings.size()) {
+                        throw new IOException("Row refers to an unknown string");
+                    }
+                    addRow(timestamp, provider, model, latency, bytes, flags);
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+                goodLength = position[0];
+            }
+        } catch (EOFException e) {
+            System.err.println("Metrics log ends with a partial record; it is dropped");
+        } catch (IOException e) {
+            System.err.println("Metrics log is damaged after " + goodLength + " bytes: " + e.getMessage());
+        }
+        if (goodLength < file.length()) {
+            try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                truncate.setLength(goodLength);
+            }
+        }
+    }
+    
+    /**
+     * Up to CHUNK_SIZE rows of one day, one primitive array per column
+     * Arrays are replaced, never modified in place beyond size, when the chunk grows
+     */
+    private static final class Chunk {
+        private final long day;
+        private long[] timestamps = new long[INITIAL_CHUNK_CAPACITY];
+        private int[] providers = new int[INITIAL_CHUNK_CAPACITY];
+        private int[] models = new int[INITIAL_CHUNK_CAPACITY];
+        private int[] latencies = new int[INITIAL_CHUNK_CAPACITY];
+        private long[] bytes = new long[INITIAL_CHUNK_CAPACITY];
+        private byte[] flags = new byte[INITIAL_CHUNK_CAPACITY];
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private int size;
+        
+        Chunk(long day) {
+            this.day = day;
+        }
+        
+        void add(long timestamp, int provider, int model, int latency, long byteCount, byte flag) {
+            if (size == timestamps.length) {
+                int capacity = Math.min(CHUNK_SIZE, size * 2);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                providers = Arrays.copyOf(providers, capacity);
+                models = Arrays.copyOf(models, capacity);
+                latencies = Arrays.copyOf(latencies, capacity);
+                bytes = Arrays.copyOf(bytes, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            timestamps[size] = timestamp;
+            providers[size] = provider;
+            models[size] = model;
+            latencies[size] = latency;
+            bytes[size] = byteCount;
+            flags[size] = flag;
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            size++;
+        }
+    }
+    
+    /**
+     * The columns and size of a chunk at the time of the snapshot
+     * Rows below size are never written again, so a view can be scanned without locking
+     */
+    private static final class Chunk_view {
+        private final long day;
+        private final long[] timestamps;
+        private final int[] providers;
+        private final int[] latencies;
+        private final long[] bytes;
+        private final byte[] flags;
+        private final long minTimestamp;
+        private final long maxTimestamp;
+        private final int size;
+        
+        Chunk_view(Chunk chunk) {
+            this.day = chunk.day;
+            this.timestamps = chunk.timestamps;
+            this.providers = chunk.providers;
+            this.latencies = chunk.latencies;
+            this.bytes = chunk.bytes;
+            this.flags = chunk.flags;
+            this.minTimestamp = chunk.minTimestamp;
+            this.maxTimestamp = chunk.maxTimestamp;
+            this.size = chunk.size;
+        }
+    }
+    
+    /**
+     * Sums a range of chunks, splitting it in half until one chunk is left
+     * Results are keyed by day and provider id
+     */
+    private static final class Aggregate_task extends RecursiveTask<Map<String, Metrics_aggregate>> {
+        private final List<Chunk_view> views;
+        private final int from;
+        private final int to;
+        private final long fromTimestamp;
+        private final long toTimestamp;
+        private final String[] dictionary;
+        
+        Aggregate_task(List<Chunk_view> views, int from, int to, long fromTimestamp, long toTimestamp,
+                       String[] dictionary) {
+            this.views = views;
+            this.from = from;
+            this.to = to;
+            this.fromTimestamp = fromTimestamp;
+            this.toTimestamp = toTimestamp;
+            this.dictionary = dictionary;
+        }
+        
+        @Override
+        protected Map<String, Metrics_aggregate> compute() {
+            if (to - from == 1) {
+                return scan(views.get(from));
+            }
+            int middle = (from + to) >>> 1;
+            Aggregate_task left = new Aggregate_task(views, from, middle, fromTimestamp, toTimestamp, dictionary);
+            left.fork();
+            Map<String, Metrics_aggregate> result =
+                new Aggregate_task(views, middle, to, fromTimestamp, toTimestamp, dictionary).compute();
+            for (Map.Entry<String, Metrics_aggregate> entry : left.join().entrySet()) {
+                Metrics_aggregate existing = result.putIfAbsent(entry.getKey(), entry.getValue());
+                if (existing != null) {
+                    existing.merge(entry.getValue());
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * Sums one chunk into per-provider counters, then turns them into aggregates
+         */
+        private Map<String, Metrics_aggregate> scan(Chunk_view view) {
+            int providers = dictionary.length;
+            long[] count = new long[providers];
+            long[] latencySum = new long[providers];
+            int[] latencyMax = new int[providers];
+            long[] bytesSum = new long[providers];
+            long[] errors = new long[providers];
+            long[] cacheHits = new long[providers];
+            
+            // The timestamp column is only read when the chunk straddles a range boundary
+            boolean inside = view.minTimestamp >= fromTimestamp && view.maxTimestamp < toTimestamp;
+            for (int row = 0; row < view.size; row++) {
+                if (!inside && (view.timestamps[row] < fromTimestamp || view.timestamps[row] >= toTimestamp)) {
+                    continue;
+                }
+                int provider = view.providers[row];
+                int latency = view.latencies[row];
+                count[provider]++;
+                latencySum[provider] += latency;
+                if (latency > latencyMax[provider]) {
+                    latencyMax[provider] = latency;
+                }
+                bytesSum[provider] += view.bytes[row];
+                byte flag = view.flags[row];
+                errors[provider] += flag & ERROR_FLAG;
+                cacheHits[provider] += (flag & CACHE_HIT_FLAG) >> 1;
+            }
+            
+            Map<String, Metrics_aggregate> result = new HashMap<>();
+            LocalDate day = LocalDate.ofEpochDay(view.day);
+            for (int provider = 0; provider < providers; provider++) {
+                if (count[provider] == 0) {
+                    continue;
+                }
+                Metrics_aggregate aggregate = new Metrics_aggregate(day, dictionary[provider]);
+                aggregate.count = count[provider];
+                aggregate.latencySum = latencySum[provider];
+                aggregate.latencyMax = latencyMax[provider];
+                aggregate.bytesSum = bytesSum[provider];
+                aggregate.errors = errors[provider];
+                aggregate.cacheHits = cacheHits[provider];
+                result.put(view.day + "|" + provider, aggregate);
+            }
+            return result;
+        }
+    }
+}
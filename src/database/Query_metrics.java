@@ -0,0 +1,97 @@
+package database;
+
+/**
+ * Performance of one provider call made for a query
+ * Immutable; stored column by column in Metrics_store rather than as a row
+ */
+public final class Query_metrics {
+    private final long timestamp;
+    private final String provider;
+    private final String model;
+    private final int latencyMillis;
+    private final long responseBytes;
+    private final boolean error;
+    private final boolean cacheHit;
+    
+    /**
+     * Constructor initializes all fields
+     * @param timestamp time the call was made, in epoch milliseconds
+     * @param provider the provider, e.g. "chatgpt"
+     * @param model the model that answered
+     * @param latencyMillis time from dispatch until the answer was read
+     * @param responseBytes size of the answer
+     * @param error true if the call failed
+     * @param cacheHit true if the answer was served without a provider round trip
+     */
+    public Query_metrics(long timestamp, String provider, String model, int latencyMillis,
+                         long responseBytes, boolean error, boolean cacheHit) {
+        this.timestamp = timestamp;
+        this.provider = provider;
+        this.model = model;
+        this.latencyMillis = latencyMillis;
+        this.responseBytes = responseBytes;
+        this.error = error;
+        this.cacheHit = cacheHit;
+    }
+    
+    /**
+     * Gets the time the call was made
+     * @return the timestamp in epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Gets the provider that was called
+     * @return the provider, e.g. "chatgpt"
+     */
+    public String getProvider() {
+        return provider;
+    }
+    
+    /**
+     * Gets the model that answered
+     * @return the model name
+     */
+    public String getModel() {
+        return model;
+    }
+    
+    /**
+     * Gets the time from dispatch until the answer was read
+     * @return the latency in milliseconds
+     */
+    public int getLatencyMillis() {
+        return latencyMillis;
+    }
+    
+    /**
+     * Gets the size of the answer
+     * @return the answer size in bytes
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+    
+    /**
+     * Checks if the call failed
+     * @return true for a failed call
+     */
+    public boolean isError() {
+        return error;
+    }
+    
+    /**
+     * Checks if the answer was served without a provider round trip
+     * @return true for a cache hit
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+    
+    @Override
+    public String toString() {
+        return "Query_metrics[" + provider + "/" + model + " @ " + timestamp + ", " + latencyMillis + " ms]";
+    }
+}
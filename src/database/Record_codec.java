@@ -0,0 +1,511 @@
+package database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of conversation records
+ *
+ * Layout of one record (all integers are unsigned LEB128 varints):
+ *   flags, timestamp,
+ *   conversation id   (16 raw bytes when FLAG_UUID_ID is set, otherwise length + UTF-8),
+ *   user query        (length + UTF-8),
+ *   ChatGPT body, Perplexity body  (mode, raw length, stored length, bytes)
+ * A body with mode 0 is uncompressed UTF-8, mode 1 is raw Deflate, and any higher mode is
+ * raw Deflate primed with the shared dictionary of that id.
+ * There are no field names, and each record decodes on its own given its dictionaries.
+ */
+public class Record_codec {
+    public static final int FLAG_UUID_ID = 1;
+    // Set on records received through sync rather than created on this device
+    public static final int FLAG_REMOTE_ORIGIN = 2;
+    // Bodies shorter than this are stored as is; Deflate overhead outweighs the gain
+    private static final int MIN_COMPRESS_LENGTH = 64;
+    // Body modes stored in place of a dictionary id; trained dictionary ids start at FIRST_DICTIONARY_ID
+    private static final int STORED = 0;
+    private static final int PLAIN_DEFLATE = 1;
+    public static final int FIRST_DICTIONARY_ID = 2;
+    
+    private final Map<Integer, Compression_dictionary> dictionaries = new ConcurrentHashMap<>();
+    private volatile Compression_dictionary activeDictionary;
+    private final ThreadLocal<Deflater> deflaters =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    
+    /**
+     * Registers a dictionary for decoding and makes it the one used for new records
+     * @param dictionary the dictionary to use
+     */
+    public void setActiveDictionary(Compression_dictionary dictionary) {
+        dictionaries.put(dictionary.getId(), dictionary);
+        activeDictionary = dictionary;
+    }
+    
+    /**
+     * Registers a dictionary needed to decode older records
+     * @param dictionary the dictionary
+     */
+    public void addDictionary(Compression_dictionary dictionary) {
+        dictionaries.put(dictionary.getId(), dictionary);
+    }
+    
+    /**
+     * Gets the dictionary used for new records
+     * @return the active dictionary, or null if none has been trained yet
+     */
+    public Compression_dictionary getActiveDictionary() {
+        return activeDictionary;
+    }
+    
+    /**
+     * Encodes a record
+     * @param record the record to encode
+     * @param flags extra flag bits to store with the record
+     * @return the encoded bytes, without framing
+     */
+    public byte[] encode(Conversation_record record, int flags) {
+        Byte_sink out = new Byte_sink(256);
+        writeHeader(out, record.getConversationId(), record.getTimestamp(), record.getUserQuery(), flags);
+        writeBody(out, record.getChatGPTResponse());
+        writeBody(out, record.getPerplexityResponse());
+        return out.toByteArray();
+    }
+    
+    /**
+     * Encodes everything of a record up to its bodies, for records whose bodies are streamed
+     * @param conversationId the conversation id
+     * @param timestamp the record timestamp
+     * @param userQuery the user's query
+     * @param flags extra flag bits to store with the record
+     * @return the encoded bytes, to be followed by two bodies from encodeBody
+     */
+    public byte[] encodeHeader(String conversationId, long timestamp, String userQuery, int flags) {
+        Byte_sink out = new Byte_sink(256);
+        writeHeader(out, conversationId, timestamp, userQuery, flags);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Compresses a body as it is read, staging the output in memory or a temporary file
+     * The body is never held in memory as a whole, so this suits bodies of any size.
+     * Streamed bodies are always deflated since their size is not known up front.
+     * @param body the body text, read to the end but not closed
+     * @return the encoded body, which the caller must close
+     * @throws IOException if reading the body or staging its bytes fails
+     */
+    Streamed_body encodeBody(Reader body) throws IOException {
+        Compression_dictionary dictionary = activeDictionary;
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary.getBytes());
+        }
+        
+        Spill_output data = new Spill_output();
+        try {
+            // The deflater belongs to this thread and is reused; it is finished but never ended here
+            Counting_output raw = new Counting_output(new DeflaterOutputStream(data, deflater, 8192));
+            try (Writer writer = new OutputStreamWriter(raw, StandardCharsets.UTF_8)) {
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = body.read(buffer)) >= 0) {
+                    writer.write(buffer, 0, read);
+                }
+            }
+            if (raw.count > Integer.MAX_VALUE) {
+                throw new IOException("Response body too large to store");
+            }
+            
+            Byte_sink prefix = new Byte_sink(16);
+            prefix.writeVarLong(dictionary != null ? dictionary.getId() : PLAIN_DEFLATE);
+            prefix.writeVarLong(raw.count);
+            prefix.writeVarLong(data.length());
+            return new Streamed_body(prefix.toByteArray(), data);
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+    
+    private void writeHeader(Byte_sink out, String conversationId, long timestamp, String userQuery, int flags) {
+        UUID uuid = parseUuid(conversationId);
+        if (uuid != null) {
+            flags |= FLAG_UUID_ID;
+        } else {
+            flags &= ~FLAG_UUID_ID;
+        }
+        
+        out.writeVarLong(flags);
+        out.writeVarLong(timestamp);
+        if (uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeString(conversationId);
+        }
+        out.writeString(userQuery);
+    }
+    
+    /**
+     * Decodes a record
+     * @param buffer the record bytes, positioned at the start of the record
+     * @return the decoded record
+     * @throws IOException if the record is corrupt or needs an unknown dictionary
+     */
+    public Conversation_record decode(ByteBuffer buffer) throws IOException {
+        try {
+            int flags = (int) readVarLong(buffer);
+            long timestamp = readVarLong(buffer);
+            String id;
+            if ((flags & FLAG_UUID_ID) != 0) {
+                id = new UUID(buffer.getLong(), buffer.getLong()).toString();
+            } else {
+                id = readString(buffer);
+            }
+            String query = readString(buffer);
+            String chatGPT = readBody(buffer);
+            String perplexity = readBody(buffer);
+            return new Conversation_record(id, timestamp, query, chatGPT, perplexity);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt conversation record", e);
+        }
+    }
+    
+    /**
+     * Decodes the id, the timestamp and the start of the query of a record, skipping its bodies
+     * Lists of past conversations show only a short preview of each query, so neither the
+     * responses nor the rest of a long query, such as a pasted document, are decoded.
+     * @param buffer the record bytes, positioned at the start of the record; it may end anywhere
+     *        after the first 3 * maxQueryChars bytes of the query
+     * @param maxQueryChars most characters of the query to decode
+     * @return the record with the start of its query and null responses
+     * @throws IOException if the record is corrupt
+     */
+    public Conversation_record decodeSummary(ByteBuffer buffer, int maxQueryChars) throws IOException {
+        try {
+            int flags = (int) readVarLong(buffer);
+            long timestamp = readVarLong(buffer);
+            String id;
+            if ((flags & FLAG_UUID_ID) != 0) {
+                id = new UUID(buffer.getLong(), buffer.getLong()).toString();
+            } else {
+                id = readString(buffer);
+            }
+            // A character takes at most three UTF-8 bytes, so this many bytes hold enough of them
+            int length = (int) readVarLong(buffer);
+            int prefix = (int) Math.min(length, 3L * maxQueryChars);
+            if (prefix > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            byte[] bytes = buffer.array();
+            int start = buffer.arrayOffset() + buffer.position();
+            if (prefix < length && prefix > 0) {
+                // Do not cut a character in two: drop a last character whose bytes are not all there
+                int lead = prefix - 1;
+                while (lead > 0 && (bytes[start + lead] & 0xC0) == 0x80) {
+                    lead--;
+                }
+                int first = bytes[start + lead] & 0xFF;
+                int size = first >= 0xF0 ? 4 : first >= 0xE0 ? 3 : first >= 0xC0 ? 2 : 1;
+                if (lead + size > prefix) {
+                    prefix = lead;
+                }
+            }
+            String query = new String(bytes, start, prefix, StandardCharsets.UTF_8);
+            if (query.length() > maxQueryChars) {
+                int end = Character.isHighSurrogate(query.charAt(maxQueryChars - 1)) ? maxQueryChars - 1 : maxQueryChars;
+                query = query.substring(0, end);
+            }
+            return new Conversation_record(id, timestamp, query, null, null);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt conversation record", e);
+        }
+    }
+    
+    /**
+     * Reads only the flags and timestamp at the start of a record, used for indexing
+     * @param buffer the record bytes, positioned at the start of the record
+     * @return a two element array of flags and timestamp
+     */
+    public static long[] readHeader(ByteBuffer buffer) {
+        return new long[] { readVarLong(buffer), readVarLong(buffer) };
+    }
+    
+    /**
+     * Compresses a response body with the active dictionary when that makes it smaller
+     */
+    private void writeBody(Byte_sink out, String body) {
+        byte[] raw = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (raw.length >= MIN_COMPRESS_LENGTH) {
+            Compression_dictionary dictionary = activeDictionary;
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary.getBytes());
+            }
+            deflater.setInput(raw);
+            deflater.finish();
+            
+            byte[] compressed = new byte[raw.length];
+            int length = 0;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (deflater.finished() && length < raw.length) {
+                out.writeVarLong(dictionary != null ? dictionary.getId() : PLAIN_DEFLATE);
+                out.writeVarLong(raw.length);
+                out.writeVarLong(length);
+                out.write(compressed, 0, length);
+                return;
+            }
+        }
+        
+        out.writeVarLong(STORED);
+        out.writeVarLong(raw.length);
+        out.writeVarLong(raw.length);
+        out.write(raw, 0, raw.length);
+    }
+    
+    /**
+     * Reverses writeBody
+     */
+    private String readBody(ByteBuffer buffer) throws IOException {
+        int dictionaryId = (int) readVarLong(buffer);
+        int rawLength = (int) readVarLong(buffer);
+        int storedLength = (int) readVarLong(buffer);
+        
+        if (dictionaryId == STORED) {
+            String body = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                storedLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + storedLength);
+            return body;
+        }
+        
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        // Raw Deflate carries no dictionary marker, so the dictionary is set up front
+        if (dictionaryId >= FIRST_DICTIONARY_ID) {
+            Compression_dictionary dictionary = dictionaries.get(dictionaryId);
+            if (dictionary == null) {
+                throw new IOException("Missing compression dictionary " + dictionaryId);
+            }
+            inflater.setDictionary(dictionary.getBytes());
+        }
+        inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), storedLength);
+        buffer.position(buffer.position() + storedLength);
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, length, rawLength - length);
+                if (read == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed body");
+                }
+                length += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body", e);
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Parses a canonical UUID string, or returns null for any other id
+     */
+    private static UUID parseUuid(String id) {
+        if (id == null || id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) readVarLong(buffer);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+            length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+    
+    /**
+     * Reads an unsigned LEB128 varint
+     * @param buffer the buffer to read from
+     * @return the decoded value
+     */
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalArgumentException("Varint too long");
+            }
+        }
+    }
+    
+    /**
+     * Reads an unsigned LEB128 varint from a stream
+     * @param in the stream to read from
+     * @return the decoded value, or -1 at a clean end of stream
+     * @throws IOException if the stream ends inside the varint
+     */
+    public static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new IOException("Truncated varint");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Varint too long");
+            }
+        }
+    }
+    
+    /**
+     * Encodes a value as an unsigned LEB128 varint
+     * @param value the value to encode (must not be negative)
+     * @return the encoded bytes
+     */
+    public static byte[] varLong(long value) {
+        Byte_sink out = new Byte_sink(10);
+        out.writeVarLong(value);
+        return out.toByteArray();
+    }
+    
+    /**
+     * A body encoded by encodeBody: its mode and lengths, then the staged compressed bytes
+     */
+    static class Streamed_body implements Closeable {
+        private final byte[] prefix;
+        private final Spill_output data;
+        
+        private Streamed_body(byte[] prefix, Spill_output data) {
+            this.prefix = prefix;
+            this.data = data;
+        }
+        
+        /**
+         * Gets the encoded size
+         * @return the number of bytes writeTo writes
+         */
+        long length() {
+            return prefix.length + data.length();
+        }
+        
+        /**
+         * Writes the encoded body into a channel without moving its position
+         * @param target the channel to write to
+         * @param position where to write in the channel
+         * @return the position after the body
+         * @throws IOException if writing fails
+         */
+        long writeTo(FileChannel target, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(prefix);
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            return data.copyTo(target, position);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+    
+    /**
+     * Counts the uncompressed bytes on their way into the deflater
+     * Closing finishes the Deflate stream but leaves the staged output open.
+     */
+    private static class Counting_output extends OutputStream {
+        private final DeflaterOutputStream out;
+        private long count;
+        
+        Counting_output(DeflaterOutputStream out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            out.finish();
+        }
+    }
+    
+    /**
+     * Growable byte buffer with varint helpers
+     */
+    private static class Byte_sink extends ByteArrayOutputStream {
+        Byte_sink(int size) {
+            super(size);
+        }
+        
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+        
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+        
+        void writeString(String value) {
+            byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
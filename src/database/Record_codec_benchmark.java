@@ -0,0 +1,232 @@
+package database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark comparing the binary conversation store with the earlier text formats
+ * Generates a synthetic corpus of repetitive assistant-style responses, writes it as
+ * JSON lines with field names (the Map/Firebase shape), as the earlier tab separated log,
+ * and through Conversation_store, then reports sizes and history load times
+ *
+ * Usage: java database.Record_codec_benchmark [conversations]
+ */
+public class Record_codec_benchmark {
+    private static final int PAGE_SIZE = 50;
+    private static final String[] OPENINGS = {
+        "Based on my analysis, I would recommend considering the following approach.",
+        "That's an interesting question. Here's what I know about this topic.",
+        "According to the latest information available online, there are several points to consider.",
+        "I'd be happy to help you with that. Let me provide some information.",
+        "Multiple sources suggest that the answer depends on your specific situation."
+    };
+    private static final String[] SENTENCES = {
+        "First, it is important to understand the underlying %s before making any changes.",
+        "In most cases, the %s can be improved by following a few well-established practices.",
+        "You should also consider how the %s interacts with the rest of your system.",
+        "However, keep in mind that every %s has trade-offs in terms of cost and complexity.",
+        "A common mistake is to optimize the %s without measuring its actual impact first.",
+        "For example, many teams start by reviewing the %s and documenting their assumptions.",
+        "Additionally, the %s should be tested regularly to make sure it keeps working as expected.",
+        "If you are unsure, it may help to consult the official documentation for the %s."
+    };
+    private static final String[] TOPICS = {
+        "database schema", "network configuration", "caching strategy", "deployment pipeline",
+        "authentication flow", "user interface", "memory usage", "error handling", "test suite",
+        "build system", "logging setup", "API design"
+    };
+    private static final String[] CLOSINGS = {
+        "I hope this helps! Let me know if you have any other questions.",
+        "In summary, start small, measure carefully and iterate on the results.",
+        "Feel free to ask if you would like more details on any of these points."
+    };
+    
+    public static void main(String[] args) throws IOException {
+        int conversations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Path directory = Files.createTempDirectory("conversation-benchmark");
+        try {
+            run(directory, conversations);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+    
+    private static void run(Path directory, int conversations) throws IOException {
+        Random random = new Random(42);
+        Path jsonFile = directory.resolve("conversations.jsonl");
+        Path legacyFile = directory.resolve("conversations.log");
+        Conversation_store store = new Conversation_store(directory.resolve("store").toFile());
+        
+        try (Writer json = Files.newBufferedWriter(jsonFile, StandardCharsets.UTF_8);
+             Writer legacy = Files.newBufferedWriter(legacyFile, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < conversations; i++) {
+                String id = UUID.randomUUID().toString();
+                String topic = TOPICS[random.nextInt(TOPICS.length)];
+                String query = "How should I improve the " + topic + " of my project?";
+                String chatGPT = generateResponse(random);
+                String perplexity = generateResponse(random);
+                long timestamp = store.append(id, query, chatGPT, perplexity);
+                
+                line.setLength(0);
+                line.append("{\"conversationId\":");
+                Json_util.appendQuoted(line, id).append(",\"userQuery\":");
+                Json_util.appendQuoted(line, query).append(",\"chatGPTResponse\":");
+                Json_util.appendQuoted(line, chatGPT).append(",\"perplexityResponse\":");
+                Json_util.appendQuoted(line, perplexity).append(",\"timestamp\":").append(timestamp).append("}\n");
+                json.append(line);
+                
+                legacy.append(id).append('\t').append(Long.toString(timestamp)).append('\t')
+                    .append(query).append('\t').append(escape(chatGPT)).append('\t')
+                    .append(escape(perplexity)).append('\n');
+            }
+        }
+        
+        // Wait for the background dictionary training triggered by the first records
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (new File(directory.resolve("store").toFile(), "dictionaries").list() == null
+               && System.currentTimeMillis() < deadline) {
+            sleep(50);
+        }
+        store.close();
+        
+        // Rewrite the store now that a dictionary exists, so every record uses it
+        Path compressedDirectory = directory.resolve("store-trained");
+        Files.createDirectories(compressedDirectory.resolve("dictionaries"));
+        try (Stream<Path> dictionaries = Files.list(directory.resolve("store").resolve("dictionaries"))) {
+            for (Path dictionary : (Iterable<Path>) dictionaries::iterator) {
+                Files.copy(dictionary, compressedDirectory.resolve("dictionaries").resolve(dictionary.getFileName()));
+            }
+        }
+        Conversation_store trained = new Conversation_store(compressedDirectory.toFile());
+        Conversation_store source = new Conversation_store(directory.resolve("store").toFile());
+        try (Conversation_store.Cursor cursor = source.openCursor()) {
+            while (cursor.hasNext()) {
+                Conversation_record record = cursor.next();
+                trained.append(record.getConversationId(), record.getUserQuery(),
+                    record.getChatGPTResponse(), record.getPerplexityResponse());
+            }
+        }
+        source.close();
+        
+        long jsonSize = Files.size(jsonFile);
+        long legacySize = Files.size(legacyFile);
+        long binarySize = trained.sizeInBytes();
+        System.out.printf("Conversations:          %d%n", conversations);
+        System.out.printf("JSON lines with keys:   %,d bytes%n", jsonSize);
+        System.out.printf("Tab separated log:      %,d bytes%n", legacySize);
+        System.out.printf("Binary + dictionary:    %,d bytes (%.1fx smaller than JSON, %.1fx than log)%n",
+            binarySize, (double) jsonSize / binarySize, (double) legacySize / binarySize);
+        
+        trained.close();
+        
+        // Run each load a few times to warm up, then report the last round
+        for (int round = 0; round < 5; round++) {
+            long legacyPageNanos = timeLegacyFirstPage(legacyFile);
+            long binaryPageNanos = timeBinaryFirstPage(compressedDirectory.toFile());
+            long legacyNanos = timeLegacyLoad(legacyFile);
+            long binaryNanos = timeBinaryLoad(compressedDirectory.toFile());
+            if (round == 4) {
+                System.out.printf("Open + newest %d, log:    %.1f ms%n", PAGE_SIZE, legacyPageNanos / 1e6);
+                System.out.printf("Open + newest %d, binary: %.1f ms%n", PAGE_SIZE, binaryPageNanos / 1e6);
+                System.out.printf("Full scan, log:         %.1f ms%n", legacyNanos / 1e6);
+                System.out.printf("Full scan, binary:      %.1f ms%n", binaryNanos / 1e6);
+            }
+        }
+    }
+    
+    private static String generateResponse(Random random) {
+        StringBuilder response = new StringBuilder(OPENINGS[random.nextInt(OPENINGS.length)]);
+        int paragraphs = 2 + random.nextInt(3);
+        for (int p = 0; p < paragraphs; p++) {
+            response.append("\n\n");
+            int sentences = 3 + random.nextInt(4);
+            for (int s = 0; s < sentences; s++) {
+                if (s > 0) {
+                    response.append(' ');
+                }
+                response.append(String.format(SENTENCES[random.nextInt(SENTENCES.length)],
+                    TOPICS[random.nextInt(TOPICS.length)]));
+            }
+        }
+        return response.append("\n\n").append(CLOSINGS[random.nextInt(CLOSINGS.length)]).toString();
+    }
+    
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+    
+    private static long timeLegacyLoad(Path legacyFile) throws IOException {
+        long start = System.nanoTime();
+        long characters = 0;
+        try (BufferedReader reader = Files.newBufferedReader(legacyFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                characters += fields[3].replace("\\n", "\n").length() + fields[4].replace("\\n", "\n").length();
+            }
+        }
+        return characters > 0 ? System.nanoTime() - start : 0;
+    }
+    
+    private static long timeBinaryLoad(File storeDirectory) throws IOException {
+        long start = System.nanoTime();
+        long characters = 0;
+        try (Conversation_store store = new Conversation_store(storeDirectory);
+             Conversation_store.Cursor cursor = store.openCursor()) {
+            while (cursor.hasNext()) {
+                Conversation_record record = cursor.next();
+                characters += record.getChatGPTResponse().length() + record.getPerplexityResponse().length();
+            }
+        }
+        return characters > 0 ? System.nanoTime() - start : 0;
+    }
+    
+    /**
+     * The log has no index, so finding the newest records means scanning every line
+     */
+    private static long timeLegacyFirstPage(Path legacyFile) throws IOException {
+        long start = System.nanoTime();
+        Deque<String[]> newest = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(legacyFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                newest.addFirst(line.split("\t", -1));
+                if (newest.size() > PAGE_SIZE) {
+                    newest.removeLast();
+                }
+            }
+        }
+        return newest.size() == PAGE_SIZE ? System.nanoTime() - start : 0;
+    }
+    
+    private static long timeBinaryFirstPage(File storeDirectory) throws IOException {
+        long start = System.nanoTime();
+        try (Conversation_store store = new Conversation_store(storeDirectory)) {
+            List<Conversation_record> page = store.page(Long.MAX_VALUE, PAGE_SIZE);
+            return page.size() == PAGE_SIZE ? System.nanoTime() - start : 0;
+        }
+    }
+    
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output buffer that stays in memory up to a threshold and continues in a temporary file
+ * Used to stage large encoded bodies before they are copied into the store, and to hold
+ * provider responses, so a large conversation never has to fit in the heap. Bytes past an
+ * optional size cap are dropped and the output marked truncated. close() deletes the
+ * temporary file unless it has been handed over with finish().
+ */
+public class Spill_output extends OutputStream implements Closeable {
+    // Bytes kept in memory before spilling
+    static final int MEMORY_THRESHOLD = Integer.getInteger("assistant.store.memoryThreshold", 256 << 10);
+    
+    private final String filePrefix;
+    private final int memoryThreshold;
+    private final long maxBytes;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileStream;
+    private long length;
+    private boolean truncated;
+    
+    /**
+     * Constructor for the store's staging buffer, without a size cap
+     */
+    Spill_output() {
+        this("conversation-", MEMORY_THRESHOLD, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Constructor with explicit limits
+     * @param filePrefix prefix of the temporary file name
+     * @param memoryThreshold bytes kept in memory before spilling
+     * @param maxBytes bytes kept at most; later bytes are dropped
+     */
+    public Spill_output(String filePrefix, int memoryThreshold, long maxBytes) {
+        this.filePrefix = filePrefix;
+        this.memoryThreshold = memoryThreshold;
+        this.maxBytes = maxBytes;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+        if (length + count > maxBytes) {
+            truncated = true;
+            count = (int) Math.max(0, maxBytes - length);
+        }
+        if (count == 0) {
+            return;
+        }
+        if (fileStream == null && memory.size() + count > memoryThreshold) {
+            file = Files.createTempFile(filePrefix, ".spill");
+            fileStream = Files.newOutputStream(file);
+            memory.writeTo(fileStream);
+            memory = null;
+        }
+        if (fileStream != null) {
+            fileStream.write(bytes, offset, count);
+        } else {
+            memory.write(bytes, offset, count);
+        }
+        length += count;
+    }
+    
+    /**
+     * Gets the number of bytes kept
+     * @return the length
+     */
+    public long length() {
+        return length;
+    }
+    
+    /**
+     * Checks whether the size cap has been reached
+     * @return true if further bytes would be dropped
+     */
+    public boolean isFull() {
+        return length >= maxBytes;
+    }
+    
+    /**
+     * Checks whether bytes were dropped at the size cap, or the content was marked as cut short
+     * @return true if the content is incomplete
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+    
+    /**
+     * Marks the content as cut short, e.g. when the source ended early
+     */
+    public void markTruncated() {
+        truncated = true;
+    }
+    
+    /**
+     * Gets the bytes kept in memory
+     * @return a copy of the bytes, or null if they have spilled to the temporary file
+     */
+    public byte[] toByteArray() {
+        return fileStream == null ? memory.toByteArray() : null;
+    }
+    
+    /**
+     * Ends writing and hands the temporary file over to the caller, who must delete it
+     * The output cannot be used afterwards.
+     * @return the temporary file, or null if the bytes are in memory
+     * @throws IOException if the file cannot be closed
+     */
+    public Path finish() throws IOException {
+        if (fileStream == null) {
+            return null;
+        }
+        fileStream.close();
+        fileStream = null;
+        Path finished = file;
+        file = null;
+        return finished;
+    }
+    
+    /**
+     * Copies the buffered bytes into a channel without moving its position
+     * @param target the channel to write to
+     * @param position where to write in the channel
+     * @return the position after the copied bytes
+     * @throws IOException if reading the spill file or writing fails
+     */
+    long copyTo(FileChannel target, long position) throws IOException {
+        if (fileStream == null) {
+            ByteBuffer buffer = ByteBuffer.wrap(memory.toByteArray());
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            return position;
+        }
+        
+        fileStream.flush();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < length) {
+                long transferred = target.transferFrom(source, position + copied, length - copied);
+                if (transferred <= 0) {
+                    throw new IOException("Spill file ended early");
+                }
+                copied += transferred;
+            }
+        }
+        return position + length;
+    }
+    
+    /**
+     * Deletes the temporary file, if any
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileStream != null) {
+            fileStream.close();
+            Files.deleteIfExists(file);
+            fileStream = null;
+        }
+    }
+}
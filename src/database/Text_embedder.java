@@ -0,0 +1,122 @@
+package database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Embeds text as a fixed-length vector by feature hashing, without a model or a service
+ * Words, pairs of adjacent words and character trigrams of each word are hashed into
+ * signed buckets, so rephrasings that share words, and misspellings that share most of
+ * their trigrams, land close together. Common function words are skipped. Vectors are
+ * scaled to unit length, so the dot product of two embeddings is their cosine similarity.
+ */
+final class Text_embedder {
+    static final int DIMENSIONS = 128;
+    private static final float WORD_WEIGHT = 1.0f;
+    private static final float PAIR_WEIGHT = 0.8f;
+    private static final float TRIGRAM_WEIGHT = 0.3f;
+    // Seeds keep the three kinds of feature from colliding systematically
+    private static final int WORD_SEED = 0x9e3779b9;
+    private static final int PAIR_SEED = 0x85ebca6b;
+    private static final int TRIGRAM_SEED = 0xc2b2ae35;
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+        "a", "an", "and", "are", "as", "at", "be", "by", "can", "could", "do", "does", "for",
+        "from", "how", "i", "in", "is", "it", "its", "me", "my", "of", "on", "or", "please",
+        "should", "so", "tell", "that", "the", "this", "to", "was", "what", "when", "where",
+        "which", "who", "why", "will", "with", "would", "you", "your"));
+    
+    /**
+     * Embeds a text
+     * @param text the text, may be null
+     * @return a unit vector of DIMENSIONS components; all zeros if the text has no words
+     */
+    float[] embed(String text) {
+        float[] vector = new float[DIMENSIONS];
+        if (text == null) {
+            return vector;
+        }
+        
+        List<String> words = words(text);
+        int previousHash = 0;
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            int wordHash = hash(word, 0, word.length(), WORD_SEED);
+            add(vector, wordHash, WORD_WEIGHT);
+            if (i > 0) {
+                add(vector, mix(previousHash * 31 + wordHash + PAIR_SEED), PAIR_WEIGHT);
+            }
+            previousHash = wordHash;
+            
+            // Trigrams of the word with its boundaries marked, so short words get some too
+            String padded = "^" + word + "$";
+            for (int start = 0; start + 3 <= padded.length(); start++) {
+                add(vector, hash(padded, start, start + 3, TRIGRAM_SEED), TRIGRAM_WEIGHT);
+            }
+        }
+        
+        double norm = 0;
+        for (float component : vector) {
+            norm += component * component;
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+    
+    /**
+     * Splits text into lower-case words of letters and digits, leaving out stop words
+     */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                String candidate = word.toString();
+                if (!STOP_WORDS.contains(candidate)) {
+                    words.add(candidate);
+                }
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+    
+    /**
+     * Adds a feature to its bucket, with a sign taken from another bit of the hash so
+     * collisions cancel out on average rather than pile up
+     */
+    private static void add(float[] vector, int hash, float weight) {
+        int bucket = (hash >>> 1) % DIMENSIONS;
+        vector[bucket] += (hash & 1) == 0 ? weight : -weight;
+    }
+    
+    private static int hash(String text, int start, int end, int seed) {
+        int hash = seed;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ text.charAt(i)) * 0x01000193;
+        }
+        return mix(hash);
+    }
+    
+    /**
+     * Final avalanche step of MurmurHash3, so every input bit affects the bucket and sign
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,749 @@
+package database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate nearest-neighbor index of unit vectors, a hierarchical navigable small world graph
+ * Vectors and links live in memory-mapped files, so the index costs little heap however
+ * many nodes it holds. Nodes are numbered in insertion order and are never removed; each
+ * carries a key chosen by the caller, such as where its source record is stored.
+ * Every node has up to M0 links on the bottom layer; the few that also reach upper layers
+ * have up to M links per upper layer, in a separate file. A search descends greedily
+ * through the upper layers, then explores the bottom layer keeping the ef closest nodes
+ * seen. The header is updated only once a node is fully linked, so after a crash links to
+ * a half-inserted node are ignored and the node is inserted again.
+ * Searches run concurrently with each other; an insert excludes them while it rewires links.
+ */
+public class Vector_index implements Closeable {
+    private static final String VECTORS_FILE_NAME = "vectors.bin";
+    private static final String LINKS_FILE_NAME = "links.bin";
+    private static final String UPPER_LINKS_FILE_NAME = "upper_links.bin";
+    private static final int MAGIC = 0x484e5357;
+    private static final int VERSION = 1;
+    // Header at the start of the links file; the rest is reserved
+    private static final int HEADER_BYTES = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int DIMENSIONS_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int ENTRY_POINT_OFFSET = 16;
+    private static final int TOP_LEVEL_OFFSET = 20;
+    private static final int UPPER_END_OFFSET = 24;
+    // Links per node on each upper layer, and on the bottom layer
+    private static final int M = 16;
+    private static final int M0 = 2 * M;
+    private static final int MAX_LEVEL = 8;
+    private static final double LEVEL_MULTIPLIER = 1 / Math.log(M);
+    // Candidates kept while looking for the neighbors of a new node
+    private static final int EF_CONSTRUCTION = 100;
+    // Nodes per mapped segment of the vectors and links files
+    private static final int SEGMENT_NODES = 1 << 16;
+    // Ints per mapped segment of the upper links file
+    private static final int UPPER_SEGMENT_INTS = 1 << 20;
+    // Link record of a node: its level, where its upper links start, its key as two ints,
+    // then the bottom layer as a count followed by M0 ids
+    private static final int LINK_RECORD_INTS = 5 + M0;
+    private static final int LEVEL_INDEX = 0;
+    private static final int UPPER_START_INDEX = 1;
+    private static final int KEY_INDEX = 2;
+    private static final int BOTTOM_LINKS_INDEX = 4;
+    // Links of one upper layer: a count followed by M ids
+    private static final int UPPER_LAYER_INTS = 1 + M;
+    
+    private final int dimensions;
+    private final FileChannel vectorsChannel;
+    private final FileChannel linksChannel;
+    private final FileChannel upperLinksChannel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    private final List<FloatBuffer> vectorSegments = new ArrayList<>();
+    private final List<IntBuffer> linkSegments = new ArrayList<>();
+    private final List<IntBuffer> upperLinkSegments = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Random random = new Random();
+    // Marks of the nodes visited by the current search, one set per searching thread
+    private final ThreadLocal<Visited_set> visited = ThreadLocal.withInitial(Visited_set::new);
+    private int count;
+    private int entryPoint;
+    private int topLevel;
+    private int upperEnd;
+    private boolean closed;
+    
+    /**
+     * Constructor opens (or creates) the index in a directory
+     * An index written with other dimensions or another version is discarded; the caller
+     * finds it empty and adds its vectors again.
+     * @param directory directory holding the index files
+     * @param dimensions number of components of every vector, a multiple of 4
+     * @throws IOException if the directory cannot be created or the files cannot be mapped
+     */
+    public Vector_index(File directory, int dimensions) throws IOException {
+        if (dimensions <= 0 || dimensions % 4 != 0) {
+            throw new IllegalArgumentException("Dimensions must be a positive multiple of 4: " + dimensions);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create index directory: " + directory);
+        }
+        this.dimensions = dimensions;
+        this.vectorsChannel = open(new File(directory, VECTORS_FILE_NAME));
+        this.linksChannel = open(new File(directory, LINKS_FILE_NAME));
+        this.upperLinksChannel = open(new File(directory, UPPER_LINKS_FILE_NAME));
+        
+        // The header is checked before anything is mapped, so a stale index can be truncated
+        ByteBuffer existing = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        linksChannel.read(existing, 0);
+        boolean usable = existing.position() == HEADER_BYTES
+            && existing.getInt(MAGIC_OFFSET) == MAGIC
+            && existing.getInt(VERSION_OFFSET) == VERSION
+            && existing.getInt(DIMENSIONS_OFFSET) == dimensions;
+        if (!usable) {
+            vectorsChannel.truncate(0);
+            linksChannel.truncate(0);
+            upperLinksChannel.truncate(0);
+        }
+        
+        this.header = linksChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        mappings.add(header);
+        if (usable) {
+            count = header.getInt(COUNT_OFFSET);
+            entryPoint = header.getInt(ENTRY_POINT_OFFSET);
+            topLevel = header.getInt(TOP_LEVEL_OFFSET);
+            upperEnd = header.getInt(UPPER_END_OFFSET);
+        } else {
+            header.putInt(MAGIC_OFFSET, MAGIC);
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(DIMENSIONS_OFFSET, dimensions);
+            reset();
+        }
+        ensureNodeCapacity(count);
+        ensureUpperCapacity(upperEnd);
+    }
+    
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    /**
+     * Gets the number of vectors in the index
+     * @return the node count; the next vector added gets this id
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Gets the key of a node
+     * @param id the node id, below size()
+     * @return the key the node was added with
+     */
+    public long getKey(int id) {
+        lock.readLock().lock();
+        try {
+            if (id < 0 || id >= count) {
+                throw new IndexOutOfBoundsException("No node " + id + " in an index of " + count);
+            }
+            return key(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Removes every node; the space they took is reused by the nodes added next
+     * @throws IOException if the index is closed
+     */
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Vector index is closed");
+            }
+            reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Adds a vector and links it into the graph
+     * @param vector a unit vector with the index's dimensions
+     * @param key value kept with the node and returned with it by searches
+     * @return the id of the new node
+     * @throws IOException if the index is closed or its files cannot be extended
+     */
+    public int add(float[] vector, long key) throws IOException {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+        }
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("Vector index is closed");
+            }
+            int id = count;
+            ensureNodeCapacity(id + 1);
+            int level = randomLevel();
+            writeNode(id, vector, key, level);
+            
+            if (entryPoint < 0) {
+                entryPoint = id;
+                topLevel = level;
+            } else {
+                int current = entryPoint;
+                float currentDistance = distance(vector, current);
+                for (int layer = topLevel; layer > level; layer--) {
+                    current = closestOnLayer(vector, current, currentDistance, layer, id);
+                    currentDistance = distance(vector, current);
+                }
+                int[] ids = new int[EF_CONSTRUCTION];
+                float[] distances = new float[EF_CONSTRUCTION];
+                int[] selected = new int[M];
+                for (int layer = Math.min(level, topLevel); layer >= 0; layer--) {
+                    Node_heap found = searchLayer(vector, current, currentDistance, EF_CONSTRUCTION, layer, id);
+                    int foundCount = found.drainAscending(ids, distances);
+                    int linked = selectNeighbors(ids, distances, foundCount, M, selected);
+                    setLinks(id, layer, selected, linked);
+                    for (int i = 0; i < linked; i++) {
+                        addLink(selected[i], id, layer);
+                    }
+                    // The closest node found is where the search of the layer below starts
+                    current = ids[0];
+                    currentDistance = distances[0];
+                }
+                if (level > topLevel) {
+                    entryPoint = id;
+                    topLevel = level;
+                }
+            }
+            count = id + 1;
+            writeHeader();
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the nodes closest to a vector
+     * @param query a unit vector with the index's dimensions
+     * @param limit maximum number of nodes returned
+     * @param ef number of candidates kept while searching, at least limit; larger is more
+     *           accurate and slower
+     * @return the closest nodes found, most similar first
+     */
+    public List<Neighbor> search(float[] query, int limit, int ef) {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + query.length);
+        }
+        lock.readLock().lock();
+        try {
+            if (closed || entryPoint < 0 || limit <= 0) {
+                return Collections.emptyList();
+            }
+            int current = entryPoint;
+            float currentDistance = distance(query, current);
+            for (int layer = topLevel; layer > 0; layer--) {
+                current = closestOnLayer(query, current, currentDistance, layer, count);
+                currentDistance = distance(query, current);
+            }
+            int candidates = Math.max(ef, limit);
+            Node_heap found = searchLayer(query, current, currentDistance, candidates, 0, count);
+            int[] ids = new int[candidates];
+            float[] distances = new float[candidates];
+            int foundCount = found.drainAscending(ids, distances);
+            List<Neighbor> neighbors = new ArrayList<>(Math.min(limit, foundCount));
+            for (int i = 0; i < foundCount && i < limit; i++) {
+                neighbors.add(new Neighbor(ids[i], key(ids[i]), 1 - distances[i]));
+            }
+            return neighbors;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Flushes the mapped files and closes them; later searches find nothing
+     * @throws IOException if a file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (MappedByteBuffer mapping : mappings) {
+                mapping.force();
+            }
+            vectorsChannel.close();
+            linksChannel.close();
+            upperLinksChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Walks greedily towards the query on one layer
+     * @return the closest node reachable by always moving to a closer neighbor
+     */
+    private int closestOnLayer(float[] query, int start, float startDistance, int layer, int limit) {
+        int[] links = new int[M];
+        int current = start;
+        float currentDistance = startDistance;
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            int linkCount = links(current, layer, links);
+            for (int i = 0; i < linkCount; i++) {
+                int next = links[i];
+                if (next >= limit) {
+                    continue;
+                }
+                float nextDistance = distance(query, next);
+                if (nextDistance < currentDistance) {
+                    current = next;
+                    currentDistance = nextDistance;
+                    moved = true;
+                }
+            }
+        }
+        return current;
+    }
+    
+    /**
+     * Explores one layer from a start node, keeping the ef closest nodes seen
+     * Nodes at or above limit are not yet fully inserted and are skipped
+     * @return the closest nodes found, farthest on top
+     */
+    private Node_heap searchLayer(float[] query, int start, float startDistance, int ef, int layer, int limit) {
+        Visited_set seen = visited.get();
+        seen.clear(limit);
+        Node_heap candidates = new Node_heap(ef, false);
+        Node_heap results = new Node_heap(ef + 1, true);
+        seen.add(start);
+        candidates.push(start, startDistance);
+        results.push(start, startDistance);
+        int[] links = new int[layer == 0 ? M0 : M];
+        
+        while (candidates.size() > 0) {
+            if (candidates.topDistance() > results.topDistance() && results.size() >= ef) {
+                break;
+            }
+            int current = candidates.pop();
+            int linkCount = links(current, layer, links);
+            for (int i = 0; i < linkCount; i++) {
+                int next = links[i];
+                if (next >= limit || !seen.add(next)) {
+                    continue;
+                }
+                float nextDistance = distance(query, next);
+                if (results.size() < ef || nextDistance < results.topDistance()) {
+                    candidates.push(next, nextDistance);
+                    results.push(next, nextDistance);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Picks links among candidates sorted closest first, skipping a candidate that is
+     * closer to an already picked node than to the target, so links spread in different
+     * directions rather than bunch up in one cluster
+     * @return the number of ids written to selected
+     */
+    private int selectNeighbors(int[] ids, float[] distances, int candidateCount, int max, int[] selected) {
+        float[] candidate = new float[dimensions];
+        int selectedCount = 0;
+        for (int i = 0; i < candidateCount && selectedCount < max; i++) {
+            readVector(ids[i], candidate);
+            boolean diverse = true;
+            for (int j = 0; j < selectedCount && diverse; j++) {
+                diverse = distance(candidate, selected[j]) >= distances[i];
+            }
+            if (diverse) {
+                selected[selectedCount++] = ids[i];
+            }
+        }
+        return selectedCount;
+    }
+    
+    /**
+     * Links a node to a new node, pruning its links if it already has as many as allowed
+     */
+    private void addLink(int node, int newNode, int layer) {
+        int max = layer == 0 ? M0 : M;
+        int[] links = new int[max + 1];
+        int linkCount = links(node, layer, links);
+        links[linkCount++] = newNode;
+        if (linkCount <= max) {
+            setLinks(node, layer, links, linkCount);
+            return;
+        }
+        
+        float[] vector = new float[dimensions];
+        readVector(node, vector);
+        float[] distances = new float[linkCount];
+        for (int i = 0; i < linkCount; i++) {
+            distances[i] = distance(vector, links[i]);
+        }
+        // Insertion sort, closest first; there are only max + 1 links
+        for (int i = 1; i < linkCount; i++) {
+            int id = links[i];
+            float distance = distances[i];
+            int j = i - 1;
+            while (j >= 0 && distances[j] > distance) {
+                links[j + 1] = links[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            links[j + 1] = id;
+            distances[j + 1] = distance;
+        }
+        int[] kept = new int[max];
+        setLinks(node, layer, kept, selectNeighbors(links, distances, linkCount, max, kept));
+    }
+    
+    private int randomLevel() {
+        double level = -Math.log(1 - random.nextDouble()) * LEVEL_MULTIPLIER;
+        return (int) Math.min(level, MAX_LEVEL);
+    }
+    
+    /**
+     * Cosine distance between a vector and a node; both are unit vectors
+     */
+    private float distance(float[] vector, int node) {
+        FloatBuffer segment = vectorSegments.get(node / SEGMENT_NODES);
+        int base = (node % SEGMENT_NODES) * dimensions;
+        // Four running sums let the additions overlap instead of waiting on each other
+        float dot0 = 0;
+        float dot1 = 0;
+        float dot2 = 0;
+        float dot3 = 0;
+        for (int i = 0; i < dimensions; i += 4) {
+            dot0 += vector[i] * segment.get(base + i);
+            dot1 += vector[i + 1] * segment.get(base + i + 1);
+            dot2 += vector[i + 2] * segment.get(base + i + 2);
+            dot3 += vector[i + 3] * segment.get(base + i + 3);
+        }
+        return 1 - (dot0 + dot1 + dot2 + dot3);
+    }
+    
+    private void readVector(int node, float[] vector) {
+        FloatBuffer segment = vectorSegments.get(node / SEGMENT_NODES);
+        int base = (node % SEGMENT_NODES) * dimensions;
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = segment.get(base + i);
+        }
+    }
+    
+    /**
+     * Writes a new node's vector and an empty link record for each of its layers
+     */
+    private void writeNode(int node, float[] vector, long key, int level) throws IOException {
+        FloatBuffer vectors = vectorSegments.get(node / SEGMENT_NODES);
+        int base = (node % SEGMENT_NODES) * dimensions;
+        for (int i = 0; i < dimensions; i++) {
+            vectors.put(base + i, vector[i]);
+        }
+        
+        int upperStart = 0;
+        if (level > 0) {
+            // An upper links block never straddles two mapped segments
+            int size = level * UPPER_LAYER_INTS;
+            upperStart = upperEnd;
+            if (upperStart % UPPER_SEGMENT_INTS + size > UPPER_SEGMENT_INTS) {
+                upperStart = (upperStart / UPPER_SEGMENT_INTS + 1) * UPPER_SEGMENT_INTS;
+            }
+            upperEnd = upperStart + size;
+            ensureUpperCapacity(upperEnd);
+        }
+        IntBuffer links = linkSegments.get(node / SEGMENT_NODES);
+        int record = (node % SEGMENT_NODES) * LINK_RECORD_INTS;
+        links.put(record + LEVEL_INDEX, level);
+        links.put(record + UPPER_START_INDEX, upperStart);
+        links.put(record + KEY_INDEX, (int) (key >>> 32));
+        links.put(record + KEY_INDEX + 1, (int) key);
+        links.put(record + BOTTOM_LINKS_INDEX, 0);
+        for (int layer = 1; layer <= level; layer++) {
+            int start = upperStart + (layer - 1) * UPPER_LAYER_INTS;
+            upperLinkSegments.get(start / UPPER_SEGMENT_INTS).put(start % UPPER_SEGMENT_INTS, 0);
+        }
+    }
+    
+    private long key(int node) {
+        IntBuffer segment = linkSegments.get(node / SEGMENT_NODES);
+        int record = (node % SEGMENT_NODES) * LINK_RECORD_INTS;
+        return ((long) segment.get(record + KEY_INDEX) << 32) | (segment.get(record + KEY_INDEX + 1) & 0xffffffffL);
+    }
+    
+    /**
+     * Copies a node's links on a layer
+     * @return the number of links, 0 if the node does not reach the layer
+     */
+    private int links(int node, int layer, int[] out) {
+        IntBuffer segment = linkSegments.get(node / SEGMENT_NODES);
+        int record = (node % SEGMENT_NODES) * LINK_RECORD_INTS;
+        int start;
+        if (layer == 0) {
+            start = record + BOTTOM_LINKS_INDEX;
+        } else if (layer <= segment.get(record + LEVEL_INDEX)) {
+            int upperStart = segment.get(record + UPPER_START_INDEX) + (layer - 1) * UPPER_LAYER_INTS;
+            segment = upperLinkSegments.get(upperStart / UPPER_SEGMENT_INTS);
+            start = upperStart % UPPER_SEGMENT_INTS;
+        } else {
+            return 0;
+        }
+        int linkCount = Math.min(segment.get(start), out.length);
+        for (int i = 0; i < linkCount; i++) {
+            out[i] = segment.get(start + 1 + i);
+        }
+        return linkCount;
+    }
+    
+    private void setLinks(int node, int layer, int[] ids, int linkCount) {
+        IntBuffer segment = linkSegments.get(node / SEGMENT_NODES);
+        int record = (node % SEGMENT_NODES) * LINK_RECORD_INTS;
+        int start;
+        if (layer == 0) {
+            start = record + BOTTOM_LINKS_INDEX;
+        } else {
+            int upperStart = segment.get(record + UPPER_START_INDEX) + (layer - 1) * UPPER_LAYER_INTS;
+            segment = upperLinkSegments.get(upperStart / UPPER_SEGMENT_INTS);
+            start = upperStart % UPPER_SEGMENT_INTS;
+        }
+        for (int i = 0; i < linkCount; i++) {
+            segment.put(start + 1 + i, ids[i]);
+        }
+        // The count goes last, so a reader never sees more links than were written
+        segment.put(start, linkCount);
+    }
+    
+    private void reset() {
+        count = 0;
+        entryPoint = -1;
+        topLevel = -1;
+        upperEnd = 0;
+        writeHeader();
+    }
+    
+    private void writeHeader() {
+        header.putInt(COUNT_OFFSET, count);
+        header.putInt(ENTRY_POINT_OFFSET, entryPoint);
+        header.putInt(TOP_LEVEL_OFFSET, topLevel);
+        header.putInt(UPPER_END_OFFSET, upperEnd);
+    }
+    
+    /**
+     * Maps vector and link segments until there is room for the given number of nodes
+     * Mapping past the end of a file extends it
+     */
+    private void ensureNodeCapacity(int nodes) throws IOException {
+        while (vectorSegments.size() * (long) SEGMENT_NODES < nodes) {
+            long segment = vectorSegments.size();
+            long vectorBytes = (long) SEGMENT_NODES * dimensions * Float.BYTES;
+            MappedByteBuffer vectors = vectorsChannel.map(
+                FileChannel.MapMode.READ_WRITE, segment * vectorBytes, vectorBytes);
+            vectors.order(ByteOrder.LITTLE_ENDIAN);
+            long linkBytes = (long) SEGMENT_NODES * LINK_RECORD_INTS * Integer.BYTES;
+            MappedByteBuffer links = linksChannel.map(
+                FileChannel.MapMode.READ_WRITE, HEADER_BYTES + segment * linkBytes, linkBytes);
+            links.order(ByteOrder.LITTLE_ENDIAN);
+            mappings.add(vectors);
+            mappings.add(links);
+            vectorSegments.add(vectors.asFloatBuffer());
+            linkSegments.add(links.asIntBuffer());
+        }
+    }
+    
+    private void ensureUpperCapacity(int ints) throws IOException {
+        while (upperLinkSegments.size() * (long) UPPER_SEGMENT_INTS < ints) {
+            long segmentBytes = (long) UPPER_SEGMENT_INTS * Integer.BYTES;
+            MappedByteBuffer upper = upperLinksChannel.map(FileChannel.MapMode.READ_WRITE,
+                upperLinkSegments.size() * segmentBytes, segmentBytes);
+            upper.order(ByteOrder.LITTLE_ENDIAN);
+            mappings.add(upper);
+            upperLinkSegments.add(upper.asIntBuffer());
+        }
+    }
+    
+    /**
+     * A node found by a search, with its key and its cosine similarity to the query
+     */
+    public static class Neighbor {
+        private final int id;
+        private final long key;
+        private final float similarity;
+        
+        Neighbor(int id, long key, float similarity) {
+            this.id = id;
+            this.key = key;
+            this.similarity = similarity;
+        }
+        
+        public int getId() {
+            return id;
+        }
+        
+        public long getKey() {
+            return key;
+        }
+        
+        public float getSimilarity() {
+            return similarity;
+        }
+    }
+    
+    /**
+     * Binary heap of node ids keyed by distance, with the farthest or the closest on top
+     */
+    private static class Node_heap {
+        private final boolean farthestFirst;
+        private int[] ids;
+        private float[] distances;
+        private int size;
+        
+        Node_heap(int capacity, boolean farthestFirst) {
+            this.farthestFirst = farthestFirst;
+            this.ids = new int[capacity];
+            this.distances = new float[capacity];
+        }
+        
+        int size() {
+            return size;
+        }
+        
+        float topDistance() {
+            return distances[0];
+        }
+        
+        void push(int id, float distance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!above(distance, distances[parent])) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
+        
+        /**
+         * Removes the top node
+         * @return its id
+         */
+        int pop() {
+            int top = ids[0];
+            size--;
+            int id = ids[size];
+            float distance = distances[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(distances[child + 1], distances[child])) {
+                    child++;
+                }
+                if (!above(distances[child], distance)) {
+                    break;
+                }
+                ids[i] = ids[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+            return top;
+        }
+        
+        /**
+         * Empties a farthest-first heap into arrays, closest first
+         * @return the number of nodes written
+         */
+        int drainAscending(int[] outIds, float[] outDistances) {
+            int drained = Math.min(size, outIds.length);
+            while (size > drained) {
+                pop();
+            }
+            for (int i = drained - 1; i >= 0; i--) {
+                outDistances[i] = distances[0];
+                outIds[i] = pop();
+            }
+            return drained;
+        }
+        
+        private boolean above(float distance, float other) {
+            return farthestFirst ? distance > other : distance < other;
+        }
+    }
+    
+    /**
+     * Set of node ids visited by a search, cleared in constant time by changing its mark
+     */
+    private static class Visited_set {
+        private int[] marks = new int[0];
+        private int mark;
+        
+        void clear(int nodes) {
+            if (marks.length < nodes) {
+                marks = new int[Math.max(nodes, marks.length * 2)];
+                mark = 0;
+            }
+            mark++;
+            if (mark == 0) {
+                Arrays.fill(marks, 0);
+                mark = 1;
+            }
+        }
+        
+        /**
+         * Marks a node as visited
+         * @return true if it was not visited before
+         */
+        boolean add(int node) {
+            if (marks[node] == mark) {
+                return false;
+            }
+            marks[node] = mark;
+            return true;
+        }
+    }
+}
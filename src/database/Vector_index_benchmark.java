@@ -0,0 +1,109 @@
+package database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark of nearest-neighbor lookups in the conversation vector index
+ * Embeds synthetic queries built from a few thousand words, adds them to an index in a
+ * temporary directory, then times searches for new queries and measures how many of the
+ * true top results each search returns. The true results come from a search that keeps
+ * every node it reaches as a candidate, so it visits the whole graph.
+ *
+ * Usage: java database.Vector_index_benchmark [vectors] [searches]
+ */
+public class Vector_index_benchmark {
+    private static final int VOCABULARY_SIZE = 5_000;
+    private static final int RESULTS = 5;
+    private static final int EF = 64;
+    // Searches also checked against a search of the whole graph, which is slow
+    private static final int RECALL_SAMPLES = 50;
+    
+    public static void main(String[] args) throws IOException {
+        int vectors = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int searches = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path directory = Files.createTempDirectory("vector-index-benchmark");
+        try {
+            run(directory, vectors, searches);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+    
+    private static void run(Path directory, int vectors, int searches) throws IOException {
+        Random random = new Random(42);
+        String[] vocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < vocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 3 + random.nextInt(6); length > 0; length--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            vocabulary[i] = word.toString();
+        }
+        Text_embedder embedder = new Text_embedder();
+        
+        try (Vector_index index = new Vector_index(directory.toFile(), Text_embedder.DIMENSIONS)) {
+            long loadStart = System.nanoTime();
+            for (int i = 0; i < vectors; i++) {
+                index.add(embedder.embed(query(vocabulary, random)), i);
+            }
+            System.out.printf("Indexed %,d queries in %d ms%n", vectors, (System.nanoTime() - loadStart) / 1_000_000);
+            
+            float[][] queries = new float[searches][];
+            for (int i = 0; i < searches; i++) {
+                queries[i] = embedder.embed(query(vocabulary, random));
+            }
+            // Warm up the JIT and the page cache before timing
+            for (float[] query : queries) {
+                index.search(query, RESULTS, EF);
+            }
+            long searchStart = System.nanoTime();
+            for (float[] query : queries) {
+                index.search(query, RESULTS, EF);
+            }
+            double averageMicros = (System.nanoTime() - searchStart) / 1_000.0 / searches;
+            System.out.printf("Top %d of %,d searches, ef %d: %.1f us on average%n",
+                RESULTS, searches, EF, averageMicros);
+            
+            System.out.printf("Recall against a full search: %.1f%%%n",
+                100 * recall(index, queries, Math.min(RECALL_SAMPLES, searches)));
+        }
+    }
+    
+    /**
+     * A query of a handful of words, drawn so that common words repeat across queries
+     */
+    private static String query(String[] vocabulary, Random random) {
+        StringBuilder query = new StringBuilder();
+        for (int words = 4 + random.nextInt(8); words > 0; words--) {
+            double skewed = Math.pow(random.nextDouble(), 2);
+            query.append(vocabulary[(int) (skewed * vocabulary.length)]).append(' ');
+        }
+        return query.toString();
+    }
+    
+    private static double recall(Vector_index index, float[][] queries, int samples) {
+        int found = 0;
+        for (int i = 0; i < samples; i++) {
+            List<Vector_index.Neighbor> approximate = index.search(queries[i], RESULTS, EF);
+            List<Vector_index.Neighbor> exact = index.search(queries[i], RESULTS, index.size());
+            for (Vector_index.Neighbor neighbor : exact) {
+                for (Vector_index.Neighbor candidate : approximate) {
+                    if (candidate.getId() == neighbor.getId()) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        return found / (double) (samples * RESULTS);
+    }
+}
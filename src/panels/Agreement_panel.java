@@ -0,0 +1,146 @@
+package panels;
+
+import javax.swing.*;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Highlighter;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import panels.Priority_scheduler.Lane;
+
+/**
+ * Panel summarizing how much the two providers' latest answers agree
+ * Diffs the answers word by word in the background and highlights agreements and
+ * differences in the ChatGPT and Perplexity panels. Updates that arrive while a diff is
+ * running are coalesced, so only the newest texts are diffed next.
+ */
+public class Agreement_panel extends JPanel {
+    private static final Highlighter.HighlightPainter AGREEMENT_PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(214, 240, 214));
+    private static final Highlighter.HighlightPainter DIFFERENCE_PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 228, 196));
+    
+    private ChatGPT_panel chatGPTPanel;
+    private Perplexity_panel perplexityPanel;
+    private Background_panel backgroundPanel;
+    private JLabel summaryLabel;
+    private JCheckBox highlightBox;
+    
+    // Only touched by the single diff task that runs at a time
+    private final Word_diff wordDiff = new Word_diff();
+    private final AtomicReference<String[]> pendingTexts = new AtomicReference<>();
+    private final AtomicBoolean diffScheduled = new AtomicBoolean();
+    
+    // Latest result, only touched on the Event Dispatch Thread
+    private String[] shownTexts;
+    private Word_diff.Result shownResult;
+    
+    /**
+     * Constructor initializes the panel
+     * @param chatGPTPanel the ChatGPT response panel
+     * @param perplexityPanel the Perplexity response panel
+     * @param backgroundPanel runs the diffs off the Event Dispatch Thread
+     */
+    public Agreement_panel(ChatGPT_panel chatGPTPanel, Perplexity_panel perplexityPanel,
+                           Background_panel backgroundPanel) {
+        this.chatGPTPanel = chatGPTPanel;
+        this.perplexityPanel = perplexityPanel;
+        this.backgroundPanel = backgroundPanel;
+        initializeUI();
+    }
+    
+    /**
+     * Initializes the UI components of the panel
+     */
+    private void initializeUI() {
+        setLayout(new FlowLayout(FlowLayout.LEFT));
+        
+        summaryLabel = new JLabel("Agreement: no answers to compare yet");
+        highlightBox = new JCheckBox("Highlight agreement", true);
+        highlightBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyHighlights();
+            }
+        });
+        
+        add(summaryLabel);
+        add(highlightBox);
+    }
+    
+    /**
+     * Compares the latest answers of both providers
+     * May be called from any thread and as often as text arrives; while a response is
+     * streaming, pass the full text received so far and only the new tail is diffed
+     * @param chatGPTResponse the ChatGPT answer as displayed
+     * @param perplexityResponse the Perplexity answer as displayed
+     */
+    public void compare(String chatGPTResponse, String perplexityResponse) {
+        pendingTexts.set(new String[] {chatGPTResponse, perplexityResponse});
+        scheduleDiff();
+    }
+    
+    private void scheduleDiff() {
+        if (!diffScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (backgroundPanel.executeTask(Lane.INTERACTIVE, this::runDiffs) == null) {
+                diffScheduled.set(false);
+            }
+        } catch (RejectedExecutionException e) {
+            diffScheduled.set(false);
+            System.err.println("Could not schedule answer comparison: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Diffs the newest pending texts until no more arrive
+     */
+    private void runDiffs() {
+        try {
+            String[] texts;
+            while ((texts = pendingTexts.getAndSet(null)) != null) {
+                Word_diff.Result result = wordDiff.update(texts[0], texts[1]);
+                String[] diffed = texts;
+                SwingUtilities.invokeLater(() -> showResult(diffed, result));
+            }
+        } finally {
+            diffScheduled.set(false);
+        }
+        // Texts may have arrived between the last check and clearing the flag
+        if (pendingTexts.get() != null) {
+            scheduleDiff();
+        }
+    }
+    
+    private void showResult(String[] texts, Word_diff.Result result) {
+        shownTexts = texts;
+        shownResult = result;
+        summaryLabel.setText(String.format("Agreement: %.0f%% of words in common (%,d shared, %,d ChatGPT, %,d Perplexity)",
+            result.getSimilarity() * 100, result.getMatchedWords(), result.getLeftWords(), result.getRightWords()));
+        applyHighlights();
+    }
+    
+    /**
+     * Highlights the latest result in both response panels, or clears the highlights
+     */
+    private void applyHighlights() {
+        if (shownResult == null) {
+            return;
+        }
+        boolean enabled = highlightBox.isSelected();
+        chatGPTPanel.highlightLatestResponse(shownTexts[0],
+            enabled ? shownResult.getLeftMatches() : null,
+            enabled ? shownResult.getLeftDifferences() : null,
+            AGREEMENT_PAINTER, DIFFERENCE_PAINTER);
+        perplexityPanel.highlightLatestResponse(shownTexts[1],
+            enabled ? shownResult.getRightMatches() : null,
+            enabled ? shownResult.getRightDifferences() : null,
+            AGREEMENT_PAINTER, DIFFERENCE_PAINTER);
+    }
+}
@@ -1,33 +1,193 @@
 package panels;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+import panels.Priority_scheduler.Lane;
+import panels.Priority_scheduler.Rejection_policy;
 
 /**
  * Panel for managing background tasks and thread management
  * Provides utilities for running background tasks and cleanup operations
+ * Tasks run on a fixed set of workers in priority lanes (see Priority_scheduler):
+ * interactive work is always picked first, and bulk jobs such as export can use every
+ * worker but one, so user-facing tasks keep a low latency while bulk work runs
+ * The database package's own background threads (dictionary training, vector index
+ * catch-up and Firebase sync) do not go through here: that package sits below the UI and
+ * also runs in the headless Assistant_server, which has no scheduler. The CPU-bound ones run
+ * at minimum priority so they give way to these workers, and sync mostly waits on the network.
  */
 public class Background_panel {
-    private ExecutorService executor;
+    // Minimum time between progress updates delivered to the UI
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    // Queue capacity per lane, indexed by Lane ordinal
+    private static final int[] LANE_CAPACITIES = {256, 1024, 256};
+    // Tasks are submitted from the Event Dispatch Thread, which must neither run them nor
+    // wait for room, so a full lane rejects; callers retry later or tell the user
+    private static final Rejection_policy[] LANE_POLICIES = {
+        Rejection_policy.REJECT, Rejection_policy.REJECT, Rejection_policy.REJECT
+    };
+    
+    private Priority_scheduler scheduler;
     private boolean isRunning;
     
     /**
-     * Constructor initializes the thread pool for background tasks
+     * Constructor initializes the worker pool for background tasks
      */
     public Background_panel() {
-        this.executor = Executors.newCachedThreadPool();
+        this.scheduler = createScheduler();
         this.isRunning = true;
     }
     
+    private static Priority_scheduler createScheduler() {
+        int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return new Priority_scheduler(workers, LANE_CAPACITIES, LANE_POLICIES);
+    }
+    
     /**
-     * Executes a task in the background
+     * Executes a task in the background in the normal lane
+     * The task is silently dropped if background tasks are stopped
      * @param task The runnable task to execute
+     * @throws RejectedExecutionException if the normal lane is full and rejects new tasks
+     */
+    public void executeTask(Runnable task) throws RejectedExecutionException {
+        executeTask(Lane.NORMAL, task);
+    }
+    
+    /**
+     * Executes a task in the background in the given priority lane
+     * @param lane the priority lane
+     * @param task The runnable task to execute
+     * @return a future for the task, or null if not running
+     * @throws RejectedExecutionException if the lane is full and rejects new tasks
+     */
+    public Future<?> executeTask(Lane lane, Runnable task) {
+        if (!isRunning()) {
+            return null;
+        }
+        return scheduler.submit(lane, task);
+    }
+    
+    /**
+     * Gets the number of tasks waiting in a lane
+     * @param lane the priority lane
+     * @return the queue depth
+     */
+    public int getQueueDepth(Lane lane) {
+        return scheduler.getQueueDepth(lane);
+    }
+    
+    /**
+     * Describes the queue depth of every lane, e.g. for a status line
+     * @return text such as "INTERACTIVE=0 NORMAL=3 BULK=12"
+     */
+    public String describeQueues() {
+        StringBuilder description = new StringBuilder();
+        for (Lane lane : Lane.values()) {
+            if (description.length() > 0) {
+                description.append(' ');
+            }
+            description.append(lane).append('=').append(scheduler.getQueueDepth(lane));
+        }
+        return description.toString();
+    }
+    
+    /**
+     * Receives progress and completion of a long running background task
+     * All callbacks are delivered on the Event Dispatch Thread
+     */
+    public interface ProgressListener {
+        /**
+         * Called periodically while the task runs
+         * @param completed units of work completed so far
+         * @param total total units of work
+         */
+        void onProgress(long completed, long total);
+        
+        /**
+         * Called once when the task ends
+         * @param error null on success, a CancellationException if cancelled, otherwise the failure
+         */
+        void onComplete(Exception error);
+    }
+    
+    /**
+     * A background task that reports its progress
+     */
+    public interface ProgressTask {
+        /**
+         * Runs the task; cancellation interrupts the running thread
+         * @param progress receives progress updates as (completed, total)
+         * @throws Exception if the task fails
+         */
+        void run(ProgressReporter progress) throws Exception;
+    }
+    
+    /**
+     * Callback used by a running task to report progress
+     */
+    public interface ProgressReporter {
+        /**
+         * Reports progress; may be called from any thread and as often as needed
+         * @param completed units of work completed so far
+         * @param total total units of work
+         */
+        void report(long completed, long total);
+    }
+    
+    /**
+     * Executes a long running task in the bulk lane with progress reporting
+     * @param task the task to execute
+     * @param listener receives progress and completion on the Event Dispatch Thread
+     * @return a future whose cancel(true) interrupts the task, or null if not running
      */
-    public void executeTask(Runnable task) {
-        if (isRunning && !executor.isShutdown()) {
-            executor.submit(task);
+    public Future<?> executeTask(ProgressTask task, ProgressListener listener) {
+        return executeTask(Lane.BULK, task, listener);
+    }
+    
+    /**
+     * Executes a long running task in the background with progress reporting
+     * Progress updates are throttled before being handed to the Event Dispatch Thread
+     * @param lane the priority lane
+     * @param task the task to execute
+     * @param listener receives progress and completion on the Event Dispatch Thread
+     * @return a future whose cancel(true) interrupts the task, or null if not running
+     * @throws RejectedExecutionException if the lane is full and rejects new tasks
+     */
+    public Future<?> executeTask(Lane lane, ProgressTask task, ProgressListener listener) {
+        if (!isRunning()) {
+            return null;
         }
+        
+        return scheduler.submit(lane, () -> {
+            long[] lastUpdate = {0};
+            Exception error = null;
+            try {
+                task.run((completed, total) -> {
+                    long now = System.currentTimeMillis();
+                    if (completed >= total || now - lastUpdate[0] >= PROGRESS_INTERVAL_MS) {
+                        lastUpdate[0] = now;
+                        SwingUtilities.invokeLater(() -> listener.onProgress(completed, total));
+                    }
+                });
+                if (Thread.currentThread().isInterrupted()) {
+                    error = new CancellationException("Task cancelled");
+                }
+            } catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+                error = new CancellationException("Task cancelled");
+            } catch (Exception e) {
+                error = Thread.currentThread().isInterrupted()
+                    ? new CancellationException("Task cancelled") : e;
+            }
+            
+            Exception result = error;
+            SwingUtilities.invokeLater(() -> listener.onComplete(result));
+        });
     }
     
     /**
@@ -35,42 +195,42 @@ public class Background_panel {
      * Should be called when the application is closing
      */
     public void shutdown() {
-        if (isRunning && !executor.isShutdown()) {
+        if (isRunning && !scheduler.isShutdown()) {
             isRunning = false;
             
             // First attempt a graceful shutdown
-            executor.shutdown();
+            scheduler.shutdown();
             
             try {
                 // Wait for tasks to complete
-                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
                     // Force shutdown if tasks don't complete in time
-                    executor.shutdownNow();
+                    scheduler.shutdownNow();
                 }
             } catch (InterruptedException e) {
                 // Re-interrupt the thread
                 Thread.currentThread().interrupt();
                 // Force shutdown
-                executor.shutdownNow();
+                scheduler.shutdownNow();
             }
         }
     }
     
     /**
      * Checks if background tasks are still running
-     * @return true if the executor is still running
+     * @return true if the scheduler is still running
      */
     public boolean isRunning() {
-        return isRunning && !executor.isShutdown();
+        return isRunning && !scheduler.isShutdown();
     }
     
     /**
-     * Creates a new executor if the current one is shut down
+     * Creates a new scheduler if the current one is shut down
      * Useful for restarting background operations after a shutdown
      */
     public void restart() {
-        if (!isRunning || executor.isShutdown()) {
-            executor = Executors.newCachedThreadPool();
+        if (!isRunning || scheduler.isShutdown()) {
+            scheduler = createScheduler();
             isRunning = true;
         }
     }
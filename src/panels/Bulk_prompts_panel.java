@@ -0,0 +1,176 @@
+package panels;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import api_calls.ChatGPT_api_handler;
+import api_calls.Perplexity_api_handler;
+import api_calls.Prompt_batcher;
+
+/**
+ * Panel for running many short prompts, one per line, against one provider
+ * Meant for bulk classification or extraction jobs. With batching turned on, short prompts
+ * are packed several to a request by a Prompt_batcher, and the status line shows how many
+ * requests the job took.
+ */
+public class Bulk_prompts_panel extends JPanel {
+    private static final String CHATGPT = "ChatGPT";
+    private static final String PERPLEXITY = "Perplexity";
+    
+    private final ChatGPT_api_handler chatGPTHandler;
+    private final Perplexity_api_handler perplexityHandler;
+    private final Prompt_batcher chatGPTBatcher;
+    private final Prompt_batcher perplexityBatcher;
+    private final Results_table_model resultsModel = new Results_table_model();
+    private JTextArea promptsArea;
+    private JComboBox<String> providerBox;
+    private JCheckBox batchingBox;
+    private JButton runButton;
+    private JLabel statusLabel;
+    
+    /**
+     * Constructor initializes the panel
+     * @param chatGPTHandler the ChatGPT API handler
+     * @param perplexityHandler the Perplexity API handler
+     */
+    public Bulk_prompts_panel(ChatGPT_api_handler chatGPTHandler, Perplexity_api_handler perplexityHandler) {
+        this.chatGPTHandler = chatGPTHandler;
+        this.perplexityHandler = perplexityHandler;
+        this.chatGPTBatcher = new Prompt_batcher(chatGPTHandler);
+        this.perplexityBatcher = new Prompt_batcher(perplexityHandler);
+        initializeUI();
+    }
+    
+    /**
+     * Initializes the UI components of the panel
+     */
+    private void initializeUI() {
+        setLayout(new BorderLayout());
+        
+        providerBox = new JComboBox<>(new String[] {CHATGPT, PERPLEXITY});
+        batchingBox = new JCheckBox("Pack short prompts into shared requests");
+        runButton = new JButton("Run");
+        runButton.addActionListener(e -> runPrompts());
+        statusLabel = new JLabel("One prompt per line");
+        
+        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controlPanel.add(providerBox);
+        controlPanel.add(batchingBox);
+        controlPanel.add(runButton);
+        controlPanel.add(statusLabel);
+        
+        promptsArea = new JTextArea(8, 60);
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+            new JScrollPane(promptsArea), new JScrollPane(new JTable(resultsModel)));
+        splitPane.setResizeWeight(0.3);
+        
+        add(controlPanel, BorderLayout.NORTH);
+        add(splitPane, BorderLayout.CENTER);
+    }
+    
+    /**
+     * Sends every non-blank line as a prompt and fills in the answers as they arrive
+     */
+    private void runPrompts() {
+        List<String> prompts = new ArrayList<>();
+        for (String line : promptsArea.getText().split("\n")) {
+            if (!line.trim().isEmpty()) {
+                prompts.add(line.trim());
+            }
+        }
+        if (prompts.isEmpty()) {
+            return;
+        }
+        
+        boolean chatGPT = CHATGPT.equals(providerBox.getSelectedItem());
+        boolean batching = batchingBox.isSelected();
+        Prompt_batcher batcher = chatGPT ? chatGPTBatcher : perplexityBatcher;
+        long requestsBefore = batcher.getRequestCount();
+        long start = System.nanoTime();
+        resultsModel.setPrompts(prompts);
+        runButton.setEnabled(false);
+        statusLabel.setText("Running " + prompts.size() + " prompts...");
+        
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int i = 0; i < prompts.size(); i++) {
+            String prompt = prompts.get(i);
+            CompletableFuture<String> answer;
+            if (batching) {
+                answer = batcher.submit(prompt);
+            } else if (chatGPT) {
+                answer = chatGPTHandler.makeAsyncApiCall(prompt);
+            } else {
+                answer = perplexityHandler.makeAsyncApiCall(prompt);
+            }
+            int row = i;
+            answers.add(answer.whenComplete((text, ex) -> SwingUtilities.invokeLater(() ->
+                resultsModel.setAnswer(row, ex == null ? text : "Error: " + ex.getMessage()))));
+        }
+        
+        CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).whenComplete((v, ex) ->
+            SwingUtilities.invokeLater(() -> {
+                long requests = batching ? batcher.getRequestCount() - requestsBefore : prompts.size();
+                statusLabel.setText(String.format("%d prompts in %d requests, %.1f s",
+                    prompts.size(), requests, (System.nanoTime() - start) / 1e9));
+                runButton.setEnabled(true);
+            }));
+    }
+    
+    /**
+     * Sends any prompts still waiting for a batch and stops the batchers
+     */
+    public void shutdown() {
+        chatGPTBatcher.shutdown();
+        perplexityBatcher.shutdown();
+    }
+    
+    /**
+     * One row per prompt, with its answer once it arrives
+     */
+    private static class Results_table_model extends AbstractTableModel {
+        private static final String[] COLUMNS = {"#", "Prompt", "Answer"};
+        private List<String> prompts = new ArrayList<>();
+        private String[] answers = new String[0];
+        
+        void setPrompts(List<String> prompts) {
+            this.prompts = prompts;
+            this.answers = new String[prompts.size()];
+            fireTableDataChanged();
+        }
+        
+        void setAnswer(int row, String answer) {
+            if (row < answers.length) {
+                answers[row] = answer;
+                fireTableCellUpdated(row, 2);
+            }
+        }
+        
+        @Override
+        public int getRowCount() {
+            return prompts.size();
+        }
+        
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+        
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+        
+        @Override
+        public Object getValueAt(int row, int column) {
+            switch (column) {
+                case 0: return row + 1;
+                case 1: return prompts.get(row);
+                default: return answers[row] == null ? "..." : answers[row];
+            }
+        }
+    }
+}
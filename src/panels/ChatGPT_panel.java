@@ -4,7 +4,11 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Highlighter;
+import javax.swing.border.TitledBorder;
 import api_calls.ChatGPT_api_handler;
+import api_calls.Model_router;
 
 /**
  * Panel for displaying ChatGPT responses
@@ -12,9 +16,12 @@ import api_calls.ChatGPT_api_handler;
  */
 public class ChatGPT_panel extends JPanel {
     private ChatGPT_api_handler apiHandler;
-    private JTextArea responseArea;
+    private JTextPane responseArea;
+    private Markdown_renderer renderer;
     private JScrollPane scrollPane;
     private JButton clearButton;
+    private StringBuilder latestResponse;
+    private Runnable pendingHighlight;
     
     /**
      * Constructor initializes the panel with the API handler
@@ -33,15 +40,15 @@ public class ChatGPT_panel extends JPanel {
         setLayout(new BorderLayout());
         setBorder(BorderFactory.createTitledBorder("ChatGPT Responses"));
         
-        // Initialize the response text area
-        responseArea = new JTextArea();
+        // Initialize the response text pane, which shows answers rendered from Markdown
+        responseArea = new JTextPane();
         responseArea.setEditable(false);
-        responseArea.setLineWrap(true);
-        responseArea.setWrapStyleWord(true);
         responseArea.setFont(new Font("SansSerif", Font.PLAIN, 14));
+        renderer = new Markdown_renderer(responseArea.getStyledDocument());
+        renderer.setRenderedListener(this::responseRendered);
         
         // Add welcome message
-        responseArea.setText("ChatGPT responses will appear here.\n");
+        renderer.clear("ChatGPT responses will appear here.\n");
         
         // Create scroll pane for the response area
         scrollPane = new JScrollPane(responseArea);
@@ -69,13 +76,59 @@ public class ChatGPT_panel extends JPanel {
      * @param response The ChatGPT response
      */
     public void displayResponse(String query, String response) {
-        // Format and append the query and response
-        String formattedText = "\n-------------------\n";
-        formattedText += "Query: " + query + "\n\n";
-        formattedText += "ChatGPT: " + response + "\n";
+        displayResponse(query, response, null);
+    }
+    
+    /**
+     * Displays a response from ChatGPT along with the model route that produced it
+     * @param query The user's query
+     * @param response The ChatGPT response
+     * @param route the route chosen by the model router, or null if unknown
+     */
+    public void displayResponse(String query, String response, Model_router.Route route) {
+        startResponse(query, route);
+        appendResponse(response);
+    }
+    
+    /**
+     * Starts a new response whose text will arrive in pieces
+     * Must be called on the Event Dispatch Thread
+     * @param query The user's query
+     * @param route the route chosen by the model router, or null if unknown
+     */
+    public void startResponse(String query, Model_router.Route route) {
+        responseArea.getHighlighter().removeAllHighlights();
+        latestResponse = new StringBuilder();
+        pendingHighlight = null;
         
-        // Append to the text area
-        responseArea.append(formattedText);
+        // Report the chosen route in the header and the panel title
+        String source = route == null ? "ChatGPT" : "ChatGPT via " + route;
+        if (route != null && getBorder() instanceof TitledBorder) {
+            ((TitledBorder) getBorder()).setTitle("ChatGPT Responses - " + route);
+            repaint();
+        }
+        renderer.beginResponse("\n-------------------\nQuery: " + query + "\n\n" + source + ":\n");
+    }
+    
+    /**
+     * Appends text to the response started last; only the trailing open block is re-rendered
+     * Must be called on the Event Dispatch Thread
+     * @param delta The Markdown text that arrived since the previous call
+     */
+    public void appendResponse(String delta) {
+        if (latestResponse != null) {
+            latestResponse.append(delta);
+            renderer.appendMarkdown(delta);
+        }
+    }
+    
+    /**
+     * Called after each document update; keeps the latest response visible and highlighted
+     */
+    private void responseRendered() {
+        if (pendingHighlight != null) {
+            pendingHighlight.run();
+        }
         
         // Scroll to the bottom to show the latest response
         SwingUtilities.invokeLater(() -> {
@@ -88,7 +141,66 @@ public class ChatGPT_panel extends JPanel {
      * Clears all conversation history from the panel
      */
     public void clearConversation() {
-        responseArea.setText("ChatGPT responses will appear here.\n");
+        responseArea.getHighlighter().removeAllHighlights();
+        latestResponse = null;
+        pendingHighlight = null;
+        renderer.clear("ChatGPT responses will appear here.\n");
+    }
+    
+    /**
+     * Highlights character ranges of the latest response
+     * Does nothing if another response has been displayed since; if the response is still
+     * being rendered, the highlights are applied once the rendered text matches
+     * @param response the response the ranges refer to
+     * @param agreements flattened start/end pairs within the response, or null
+     * @param differences flattened start/end pairs within the response, or null
+     * @param agreementPainter painter for agreeing ranges
+     * @param differencePainter painter for differing ranges
+     */
+    public void highlightLatestResponse(String response, int[] agreements, int[] differences,
+                                        Highlighter.HighlightPainter agreementPainter,
+                                        Highlighter.HighlightPainter differencePainter) {
+        pendingHighlight = () -> applyHighlights(response, agreements, differences,
+                                                 agreementPainter, differencePainter);
+        pendingHighlight.run();
+    }
+    
+    private void applyHighlights(String response, int[] agreements, int[] differences,
+                                 Highlighter.HighlightPainter agreementPainter,
+                                 Highlighter.HighlightPainter differencePainter) {
+        Highlighter highlighter = responseArea.getHighlighter();
+        highlighter.removeAllHighlights();
+        if (response == null || latestResponse == null || !response.contentEquals(latestResponse)) {
+            pendingHighlight = null;
+            return;
+        }
+        if (renderer.getRenderedSourceLength() < response.length()) {
+            // Not rendered yet; applied again after the next update
+            return;
+        }
+        
+        try {
+            addHighlights(highlighter, agreements, agreementPainter);
+            addHighlights(highlighter, differences, differencePainter);
+        } catch (BadLocationException e) {
+            // The text changed underneath the highlights; leave it unhighlighted
+            highlighter.removeAllHighlights();
+        }
+    }
+    
+    private void addHighlights(Highlighter highlighter, int[] ranges,
+                               Highlighter.HighlightPainter painter) throws BadLocationException {
+        if (ranges == null) {
+            return;
+        }
+        for (int i = 0; i + 1 < ranges.length; i += 2) {
+            // Ranges refer to the Markdown source, which differs from the rendered text
+            int start = renderer.toDocumentOffset(ranges[i]);
+            int end = renderer.toDocumentOffset(ranges[i + 1] - 1) + 1;
+            if (start >= 0 && end > start) {
+                highlighter.addHighlight(start, end, painter);
+            }
+        }
     }
     
     /**
@@ -97,12 +209,8 @@ public class ChatGPT_panel extends JPanel {
      */
     public void setLoading(boolean isLoading) {
         if (isLoading) {
-            responseArea.append("\nFetching response from ChatGPT...\n");
-            // Scroll to make the loading message visible
-            SwingUtilities.invokeLater(() -> {
-                JScrollBar vertical = scrollPane.getVerticalScrollBar();
-                vertical.setValue(vertical.getMaximum());
-            });
+            // The message becomes visible once rendered, which scrolls to the bottom
+            renderer.appendPlain("\nFetching response from ChatGPT...\n");
         }
     }
 }
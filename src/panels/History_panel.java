@@ -0,0 +1,313 @@
+package panels;
+
+import javax.swing.*;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+import database.Conversation_record;
+import database.Database_handler;
+import panels.Priority_scheduler.Lane;
+
+/**
+ * Panel for browsing past conversations
+ * The list is virtualized: it knows only how many conversations there are, and rows are
+ * fetched from the store a page at a time in the background when they scroll into view.
+ * Pages ahead of the viewport in the scroll direction are prefetched, and only a bounded
+ * number of decoded pages is kept, least recently used first out. Rows hold short
+ * previews; the full conversation is read when a row is selected.
+ */
+public class History_panel extends JPanel {
+    // Rows fetched per page
+    private static final int PAGE_SIZE = 100;
+    // Pages kept in memory
+    private static final int CACHED_PAGES = 20;
+    // Pages fetched beyond the visible ones, in the scroll direction
+    private static final int PREFETCH_PAGES = 2;
+    // Characters of the query kept per row
+    private static final int QUERY_PREVIEW_CHARS = 200;
+    private static final int ROW_HEIGHT = 22;
+    
+    private final Database_handler dbHandler;
+    private final Background_panel backgroundPanel;
+    private final History_list_model listModel = new History_list_model();
+    private JList<History_row> historyList;
+    private JTextArea detailArea;
+    private JLabel statusLabel;
+    private int lastFirstVisible;
+    // Incremented on reload so results of earlier fetches are ignored
+    private int generation;
+    private int detailRequest;
+    
+    /**
+     * Constructor initializes the panel and loads the newest conversations
+     * @param dbHandler the database handler holding the conversations
+     * @param backgroundPanel runs the page fetches off the Event Dispatch Thread
+     */
+    public History_panel(Database_handler dbHandler, Background_panel backgroundPanel) {
+        this.dbHandler = dbHandler;
+        this.backgroundPanel = backgroundPanel;
+        initializeUI();
+        reload();
+    }
+    
+    /**
+     * Initializes the UI components of the panel
+     */
+    private void initializeUI() {
+        setLayout(new BorderLayout());
+        
+        historyList = new JList<>(listModel);
+        // Fixed cell sizes let the list lay out and paint only the visible rows without
+        // asking the model for every element
+        historyList.setFixedCellHeight(ROW_HEIGHT);
+        historyList.setFixedCellWidth(200);
+        historyList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        historyList.setCellRenderer(new DefaultListCellRenderer() {
+            private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                History_row row = (History_row) value;
+                setText(row == null ? "Loading..."
+                    : dateFormat.format(new Date(row.timestamp)) + "  " + row.queryPreview);
+                return this;
+            }
+        });
+        historyList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                showDetails(historyList.getSelectedIndex());
+            }
+        });
+        
+        JScrollPane listScrollPane = new JScrollPane(historyList);
+        listScrollPane.getViewport().addChangeListener(e -> fetchVisiblePages());
+        
+        detailArea = new JTextArea();
+        detailArea.setEditable(false);
+        detailArea.setLineWrap(true);
+        detailArea.setWrapStyleWord(true);
+        
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+            listScrollPane, new JScrollPane(detailArea));
+        splitPane.setResizeWeight(0.6);
+        
+        JButton reloadButton = new JButton("Reload");
+        reloadButton.addActionListener(e -> reload());
+        statusLabel = new JLabel();
+        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controlPanel.add(reloadButton);
+        controlPanel.add(statusLabel);
+        
+        add(controlPanel, BorderLayout.NORTH);
+        add(splitPane, BorderLayout.CENTER);
+    }
+    
+    /**
+     * Drops all cached pages and shows the current set of conversations, newest first
+     */
+    public void reload() {
+        generation++;
+        int total = dbHandler.getConversationCount();
+        listModel.reset(total);
+        statusLabel.setText(total + " conversations");
+        detailArea.setText("");
+        SwingUtilities.invokeLater(this::fetchVisiblePages);
+    }
+    
+    /**
+     * Fetches the pages under the viewport, then the pages ahead of it in the scroll direction
+     */
+    private void fetchVisiblePages() {
+        int first = historyList.getFirstVisibleIndex();
+        int last = historyList.getLastVisibleIndex();
+        if (first < 0) {
+            first = 0;
+            last = Math.min(listModel.getSize(), PAGE_SIZE) - 1;
+        }
+        if (last < 0) {
+            return;
+        }
+        boolean scrollingUp = first < lastFirstVisible;
+        lastFirstVisible = first;
+        
+        int firstPage = first / PAGE_SIZE;
+        int lastPage = last / PAGE_SIZE;
+        for (int page = firstPage; page <= lastPage; page++) {
+            listModel.fetch(page, Lane.INTERACTIVE);
+        }
+        for (int ahead = 1; ahead <= PREFETCH_PAGES; ahead++) {
+            listModel.fetch(scrollingUp ? firstPage - ahead : lastPage + ahead, Lane.NORMAL);
+        }
+    }
+    
+    /**
+     * Reads the full conversation of a row in the background and shows it
+     */
+    private void showDetails(int row) {
+        int request = ++detailRequest;
+        if (row < 0) {
+            detailArea.setText("");
+            return;
+        }
+        int position = listModel.positionOf(row);
+        detailArea.setText("Loading...");
+        submit(Lane.INTERACTIVE, () -> {
+            List<Conversation_record> records = dbHandler.historyRange(position, position + 1);
+            SwingUtilities.invokeLater(() -> {
+                if (request != detailRequest) {
+                    return;
+                }
+                if (records.isEmpty()) {
+                    detailArea.setText("Conversation not found");
+                    return;
+                }
+                Conversation_record record = records.get(0);
+                detailArea.setText("Query:\n" + record.getUserQuery()
+                    + "\n\nChatGPT:\n" + record.getChatGPTResponse()
+                    + "\n\nPerplexity:\n" + record.getPerplexityResponse());
+                detailArea.setCaretPosition(0);
+            });
+        });
+    }
+    
+    private boolean submit(Lane lane, Runnable task) {
+        try {
+            return backgroundPanel.executeTask(lane, task) != null;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * The short form of a conversation shown in the list
+     */
+    private static class History_row {
+        private final long timestamp;
+        private final String queryPreview;
+        
+        History_row(Conversation_record record) {
+            this.timestamp = record.getTimestamp();
+            String query = record.getUserQuery() == null ? "" : record.getUserQuery().replace('\n', ' ');
+            this.queryPreview = query.length() > QUERY_PREVIEW_CHARS
+                ? query.substring(0, QUERY_PREVIEW_CHARS) + "..." : query;
+        }
+    }
+    
+    /**
+     * List model that knows the row count and serves rows from an LRU of fetched pages
+     * Only touched on the Event Dispatch Thread
+     */
+    private class History_list_model extends AbstractListModel<History_row> {
+        private final Map<Integer, History_row[]> pages =
+            new LinkedHashMap<Integer, History_row[]>(CACHED_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, History_row[]> eldest) {
+                    return size() > CACHED_PAGES;
+                }
+            };
+        private final Set<Integer> pending = new HashSet<>();
+        // Number of conversations when the list was loaded; row 0 is position total - 1
+        private int total;
+        
+        void reset(int total) {
+            int oldSize = this.total;
+            pages.clear();
+            pending.clear();
+            this.total = 0;
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+            this.total = total;
+            if (total > 0) {
+                fireIntervalAdded(this, 0, total - 1);
+            }
+        }
+        
+        int positionOf(int row) {
+            return total - 1 - row;
+        }
+        
+        @Override
+        public int getSize() {
+            return total;
+        }
+        
+        @Override
+        public History_row getElementAt(int row) {
+            History_row[] page = pages.get(row / PAGE_SIZE);
+            if (page == null) {
+                // Rows are requested while painting, so a missing page is one in view
+                fetch(row / PAGE_SIZE, Lane.INTERACTIVE);
+                return null;
+            }
+            int offset = row % PAGE_SIZE;
+            return offset < page.length ? page[offset] : null;
+        }
+        
+        /**
+         * Fetches a page in the background unless it is cached or already being fetched
+         */
+        void fetch(int page, Lane lane) {
+            int firstRow = page * PAGE_SIZE;
+            if (page < 0 || firstRow >= total || pages.containsKey(page) || !pending.add(page)) {
+                return;
+            }
+            int lastRow = Math.min(total, firstRow + PAGE_SIZE) - 1;
+            int fromPosition = positionOf(lastRow);
+            int toPosition = positionOf(firstRow) + 1;
+            int fetchGeneration = generation;
+            boolean submitted = submit(lane, () -> {
+                // One character past the preview tells whether the query was cut
+                List<Conversation_record> records;
+                try {
+                    records = dbHandler.historySummaries(fromPosition, toPosition, QUERY_PREVIEW_CHARS + 1);
+                } catch (RuntimeException e) {
+                    SwingUtilities.invokeLater(() -> pageFailed(page, fetchGeneration));
+                    throw e;
+                }
+                if (records.size() != toPosition - fromPosition) {
+                    // The read failed and was logged; the page is not cached so it can be retried
+                    SwingUtilities.invokeLater(() -> pageFailed(page, fetchGeneration));
+                    return;
+                }
+                History_row[] rows = new History_row[records.size()];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = new History_row(records.get(i));
+                }
+                SwingUtilities.invokeLater(() -> pageFetched(page, rows, fetchGeneration));
+            });
+            if (!submitted) {
+                // Retried the next time the page is painted or scrolled to
+                pending.remove(page);
+            }
+        }
+        
+        private void pageFetched(int page, History_row[] rows, int fetchGeneration) {
+            if (fetchGeneration != generation) {
+                return;
+            }
+            pending.remove(page);
+            pages.put(page, rows);
+            int firstRow = page * PAGE_SIZE;
+            fireContentsChanged(this, firstRow, Math.min(total, firstRow + PAGE_SIZE) - 1);
+        }
+        
+        /**
+         * Forgets a page whose fetch failed, so it is fetched again the next time it is painted
+         */
+        private void pageFailed(int page, int fetchGeneration) {
+            if (fetchGeneration == generation) {
+                pending.remove(page);
+            }
+        }
+    }
+}
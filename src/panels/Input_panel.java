@@ -4,26 +4,95 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import api_calls.ChatGPT_api_handler;
+import api_calls.Connection_prewarmer;
+import api_calls.Map_reduce_query;
+import api_calls.Model_router;
 import api_calls.Perplexity_api_handler;
+import api_calls.Response_body;
+import database.Conversation_record;
 import database.Database_handler;
+import database.Query_metrics;
+import tracing.Flight_events;
+import tracing.Span;
+import tracing.Tracer;
 
 /**
  * Panel for handling user input and query submission
  * Manages the user interface for entering queries and submitting to both AI models
+ * Queries are pipelined: the input stays usable while earlier queries are in flight,
+ * up to a configurable number run at once, and answers are shown in submission order.
+ * Inputs over the map-reduce threshold, such as pasted documents, are answered chunk by
+ * chunk across both providers rather than sent as one prompt. Other queries are sent with
+ * the most similar earlier exchanges, found in the local vector index, as context.
+ * Only a bounded preview of each answer is kept in memory; full answers stay in their
+ * response bodies (on disk when large) and are streamed into the store in the background.
+ * Each query is traced from submission until its answers are displayed, keyed by its
+ * conversation id; the save that follows is traced as part of the same query.
  */
 public class Input_panel extends JPanel {
+    // Number of finished queries kept visible in the queue list
+    private static final int FINISHED_ITEMS_SHOWN = 10;
+    // Seconds to wait for pending saves when shutting down
+    private static final int SAVE_SHUTDOWN_SECONDS = 10;
+    // Earlier exchanges sent along with a query as context, 0 to send queries alone
+    private static final int CONTEXT_EXCHANGES = Integer.getInteger("assistant.retrieval.exchanges", 3);
+    // How similar an earlier query must be to count as related, from 0 to 1
+    private static final double CONTEXT_MIN_SIMILARITY =
+        Double.parseDouble(System.getProperty("assistant.retrieval.minSimilarity", "0.4"));
+    // Characters of each earlier answer included in the context
+    private static final int CONTEXT_ANSWER_CHARS = 600;
+    
     private JTextArea inputArea;
     private JButton submitButton;
     private JProgressBar progressBar;
+    private JSpinner parallelismSpinner;
+    private DefaultListModel<Pending_query> queueModel;
+    // Submitted queries not dispatched yet, oldest first
+    private final Deque<Pending_query> waitingQueries = new ArrayDeque<>();
+    // Submitted queries whose answers are not displayed yet, in submission order
+    private final Deque<Pending_query> undisplayedQueries = new ArrayDeque<>();
+    private int queriesInFlight;
+    private int nextSequence = 1;
     private ChatGPT_api_handler chatGPTHandler;
     private Perplexity_api_handler perplexityHandler;
     private Database_handler dbHandler;
     private ChatGPT_panel chatGPTPanel;
     private Perplexity_panel perplexityPanel;
+    private Agreement_panel agreementPanel;
+    private Connection_prewarmer prewarmer;
+    // Answers long documents by chunking them across both providers
+    private Map_reduce_query mapReduce;
+    private Window focusWindow;
+    // Saves conversations one at a time, in display order, off the Event Dispatch Thread
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "conversation-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Looks up related earlier exchanges and starts map-reduce queries off the Event Dispatch Thread
+    private final ExecutorService contextExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "context-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     /**
      * Constructor initializes the panel with API handlers and database
@@ -37,6 +106,10 @@ public class Input_panel extends JPanel {
         this.chatGPTHandler = chatGPTHandler;
         this.perplexityHandler = perplexityHandler;
         this.dbHandler = dbHandler;
+        // Warm provider connections in the background while the user is typing
+        this.prewarmer = new Connection_prewarmer(Arrays.asList(
+            chatGPTHandler.getApiEndpoint(), perplexityHandler.getApiEndpoint()));
+        this.mapReduce = new Map_reduce_query(chatGPTHandler, perplexityHandler);
         initializeUI();
     }
     
@@ -50,6 +123,14 @@ public class Input_panel extends JPanel {
         this.perplexityPanel = perplexityPanel;
     }
     
+    /**
+     * Sets the panel that compares the two answers after each query
+     * @param agreementPanel the agreement panel
+     */
+    public void setAgreementPanel(Agreement_panel agreementPanel) {
+        this.agreementPanel = agreementPanel;
+    }
+    
     /**
      * Initializes the UI components of the panel
      */
@@ -64,6 +145,14 @@ public class Input_panel extends JPanel {
         inputArea.setWrapStyleWord(true);
         inputArea.setFont(new Font("SansSerif", Font.PLAIN, 14));
         
+        // Any keystroke counts as activity for connection pre-warming
+        inputArea.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                prewarmer.onUserActivity();
+            }
+        });
+        
         // Create scroll pane for the input area
         JScrollPane scrollPane = new JScrollPane(inputArea);
         
@@ -91,17 +180,80 @@ public class Input_panel extends JPanel {
             }
         });
         
+        // Number of queries sent to the providers at the same time
+        int parallelism = Math.max(1, Math.min(ChatGPT_api_handler.MAX_CONCURRENT_REQUESTS,
+            Integer.getInteger("assistant.pipeline.parallelism", 2)));
+        parallelismSpinner = new JSpinner(new SpinnerNumberModel(
+            parallelism, 1, ChatGPT_api_handler.MAX_CONCURRENT_REQUESTS, 1));
+        parallelismSpinner.addChangeListener(e -> dispatchQueries());
+        
+        // Visible queue of submitted queries and their status
+        queueModel = new DefaultListModel<>();
+        JList<Pending_query> queueList = new JList<>(queueModel);
+        queueList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                Pending_query item = (Pending_query) value;
+                setText("#" + item.sequence + " " + item.status.label + ": " + item.query);
+                setToolTipText(item.error != null ? item.error : item.query);
+                return this;
+            }
+        });
+        JScrollPane queueScrollPane = new JScrollPane(queueList);
+        queueScrollPane.setPreferredSize(new Dimension(360, 0));
+        queueScrollPane.setBorder(BorderFactory.createTitledBorder("Queue"));
+        
         // Add components to button panel
         buttonPanel.add(progressBar);
+        buttonPanel.add(new JLabel("Parallel queries:"));
+        buttonPanel.add(parallelismSpinner);
         buttonPanel.add(submitButton);
         
         // Add components to the panel
         add(scrollPane, BorderLayout.CENTER);
+        add(queueScrollPane, BorderLayout.EAST);
         add(buttonPanel, BorderLayout.SOUTH);
     }
     
     /**
-     * Submits the user query to both AI services
+     * Starts pre-warming connections when the application window gains focus
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        Window window = SwingUtilities.getWindowAncestor(this);
+        if (window != null && focusWindow != window) {
+            focusWindow = window;
+            window.addWindowFocusListener(new WindowAdapter() {
+                @Override
+                public void windowGainedFocus(WindowEvent e) {
+                    prewarmer.onUserActivity();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Stops background connection pre-warming and waits for pending saves
+     */
+    public void shutdown() {
+        prewarmer.shutdown();
+        contextExecutor.shutdown();
+        saveExecutor.shutdown();
+        try {
+            if (!saveExecutor.awaitTermination(SAVE_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Gave up waiting for conversations to be saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Queues the user query for both AI services
+     * The input is cleared right away so the next query can be typed
      */
     private void submitQuery() {
         // Get the user's query
@@ -125,71 +277,318 @@ public class Input_panel extends JPanel {
             return;
         }
         
-        // Generate a unique ID for this conversation
-        String conversationId = UUID.randomUUID().toString();
+        // Generate a unique ID for this conversation and queue it
+        Pending_query item = new Pending_query(nextSequence++, UUID.randomUUID().toString(), query);
+        item.span = Tracer.startTrace(item.conversationId, "submitQuery")
+            .setAttribute("query.sequence", item.sequence)
+            .setAttribute("query.chars", query.length());
+        item.waitSpan = Tracer.startSpan("pipeline.queue", item.span);
+        Flight_events.Submit_event submitEvent = new Flight_events.Submit_event();
+        submitEvent.begin();
+        submitEvent.queryChars = query.length();
+        submitEvent.finish(item.conversationId, "");
+        waitingQueries.addLast(item);
+        undisplayedQueries.addLast(item);
+        queueModel.addElement(item);
         
-        // Set UI to loading state
-        setLoading(true);
+        // Clear input area for next query
+        inputArea.setText("");
         
-        // Show loading indicators in response panels
-        if (chatGPTPanel != null) {
-            chatGPTPanel.setLoading(true);
+        dispatchQueries();
+    }
+    
+    /**
+     * Sends waiting queries to both providers while fewer than the configured number are in flight
+     * Only called on the Event Dispatch Thread
+     */
+    private void dispatchQueries() {
+        int parallelism = (Integer) parallelismSpinner.getValue();
+        while (queriesInFlight < parallelism && !waitingQueries.isEmpty()) {
+            Pending_query item = waitingQueries.pollFirst();
+            queriesInFlight++;
+            updateStatus(item, Query_status.RUNNING);
+            item.waitSpan.end();
+            
+            // The provider calls and the completion callback are traced under the query's span
+            CompletableFuture<Response_body> chatGPTFuture;
+            CompletableFuture<Response_body> perplexityFuture;
+            BiConsumer<Void, Throwable> onBothComplete;
+            try (Span.Scope scope = item.span.makeCurrent()) {
+                // Route each provider's call to a model, then make asynchronous API calls
+                item.chatGPTRoute = chatGPTHandler.getRouter().route(item.query);
+                item.perplexityRoute = perplexityHandler.getRouter().route(item.query);
+                item.dispatchedMillis = System.currentTimeMillis();
+                long dispatchedNanos = System.nanoTime();
+                CompletableFuture<Response_body> chatGPTCall;
+                CompletableFuture<Response_body> perplexityCall;
+                if (mapReduce.isLongInput(item.query)) {
+                    // Long documents are chunked across both providers and the answers merged;
+                    // splitting and starting the map calls happens off the EDT
+                    CompletableFuture<Map_reduce_query.Result> result = CompletableFuture.supplyAsync(
+                        Tracer.wrap(() -> mapReduce.run(item.query, item.chatGPTRoute, item.perplexityRoute)),
+                        contextExecutor);
+                    chatGPTCall = result.thenCompose(Map_reduce_query.Result::getChatGPTAnswer);
+                    perplexityCall = result.thenCompose(Map_reduce_query.Result::getPerplexityAnswer);
+                } else {
+                    // The calls start once related earlier exchanges have been looked up
+                    CompletableFuture<String> prompt = CompletableFuture.supplyAsync(
+                        Tracer.wrap(() -> promptWithContext(item.query)), contextExecutor);
+                    chatGPTCall = prompt.thenCompose(text -> {
+                        try (Span.Scope callScope = item.span.makeCurrent()) {
+                            return chatGPTHandler.makeAsyncBodyCall(text, item.chatGPTRoute);
+                        }
+                    });
+                    perplexityCall = prompt.thenCompose(text -> {
+                        try (Span.Scope callScope = item.span.makeCurrent()) {
+                            return perplexityHandler.makeAsyncBodyCall(text, item.perplexityRoute);
+                        }
+                    });
+                }
+                // Each call's latency is taken when it completes, before the pair is handled
+                chatGPTFuture = chatGPTCall
+                    .whenComplete((body, ex) -> item.chatGPTLatencyMillis = elapsedMillis(dispatchedNanos));
+                perplexityFuture = perplexityCall
+                    .whenComplete((body, ex) -> item.perplexityLatencyMillis = elapsedMillis(dispatchedNanos));
+                onBothComplete = Tracer.wrap(
+                    (Void v, Throwable ex) -> responsesArrived(item, chatGPTFuture, perplexityFuture, ex));
+            }
+            
+            // Handle responses when both are complete
+            CompletableFuture.allOf(chatGPTFuture, perplexityFuture).whenComplete(onBothComplete);
         }
-        if (perplexityPanel != null) {
-            perplexityPanel.setLoading(true);
+        updateProgress();
+    }
+    
+    /**
+     * Puts the most similar earlier exchanges, if any are similar enough, ahead of a query
+     * Runs on the context lookup thread
+     */
+    private String promptWithContext(String query) {
+        List<Conversation_record> related;
+        try (Span span = Tracer.startSpan("context.lookup")) {
+            related = dbHandler.relatedConversations(query, CONTEXT_EXCHANGES, CONTEXT_MIN_SIMILARITY);
         }
         
-        // Make asynchronous API calls
-        CompletableFuture<String> chatGPTFuture = chatGPTHandler.makeAsyncApiCall(query);
-        CompletableFuture<String> perplexityFuture = perplexityHandler.makeAsyncApiCall(query);
+        StringBuilder prompt = new StringBuilder();
+        for (Conversation_record record : related) {
+            String answer = record.getChatGPTResponse();
+            if (answer == null || answer.isEmpty() || answer.startsWith("Error")) {
+                answer = record.getPerplexityResponse();
+            }
+            // Failed calls are stored with their error message, which is no use as context
+            if (answer == null || answer.isEmpty() || answer.startsWith("Error")) {
+                continue;
+            }
+            if (prompt.length() == 0) {
+                prompt.append("Earlier exchanges that may be relevant:\n");
+            }
+            prompt.append("\nQ: ").append(record.getUserQuery())
+                .append("\nA: ").append(answer.length() > CONTEXT_ANSWER_CHARS
+                    ? answer.substring(0, CONTEXT_ANSWER_CHARS) + "..." : answer)
+                .append('\n');
+        }
+        if (prompt.length() == 0) {
+            return query;
+        }
+        return prompt.append("\nCurrent question:\n").append(query).toString();
+    }
+    
+    /**
+     * Reads the previews of both answers, or records the failure, then hands the query to the EDT
+     * Runs on the thread that completed the last of the two calls
+     */
+    private void responsesArrived(Pending_query item, CompletableFuture<Response_body> chatGPTFuture,
+                                  CompletableFuture<Response_body> perplexityFuture, Throwable ex) {
+        if (ex == null) {
+            item.chatGPTBody = chatGPTFuture.join();
+            item.perplexityBody = perplexityFuture.join();
+            // Previews are read here so the Event Dispatch Thread never touches spill files
+            try (Span span = Tracer.startSpan("response.preview")) {
+                item.chatGPTResponse = item.chatGPTBody.preview(Response_body.PREVIEW_CHARS);
+                item.perplexityResponse = item.perplexityBody.preview(Response_body.PREVIEW_CHARS);
+            }
+        } else {
+            item.error = "Error processing query: " + ex.getMessage();
+            closeBody(chatGPTFuture);
+            closeBody(perplexityFuture);
+        }
+        recordMetrics(item, item.chatGPTRoute, item.chatGPTLatencyMillis, item.chatGPTBody,
+            chatGPTHandler.getCassette().isReplaying());
+        recordMetrics(item, item.perplexityRoute, item.perplexityLatencyMillis, item.perplexityBody,
+            perplexityHandler.getCassette().isReplaying());
         
-        // Handle responses when both are complete
-        CompletableFuture.allOf(chatGPTFuture, perplexityFuture).thenAccept(v -> {
-            // Get results from completed futures
-            String chatGPTResponse = chatGPTFuture.join();
-            String perplexityResponse = perplexityFuture.join();
+        // Update UI on the EDT
+        SwingUtilities.invokeLater(() -> queryFinished(item));
+    }
+    
+    /**
+     * Stores the performance of one provider call in the background
+     * @param body the answer, or null if the call failed without one
+     * @param cacheHit true if the answer was replayed rather than fetched
+     */
+    private void recordMetrics(Pending_query item, Model_router.Route route, long latencyMillis,
+                               Response_body body, boolean cacheHit) {
+        Query_metrics metrics = new Query_metrics(item.dispatchedMillis, route.getProvider(), route.getModel(),
+            (int) Math.min(Integer.MAX_VALUE, latencyMillis), body != null ? body.length() : 0,
+            body == null || body.isError(), cacheHit);
+        saveExecutor.execute(() -> dbHandler.recordQueryMetrics(metrics));
+    }
+    
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+    
+    /**
+     * Records a finished query, shows every answer that is next in order, and dispatches more
+     */
+    private void queryFinished(Pending_query item) {
+        queriesInFlight--;
+        if (item.error != null) {
+            System.err.println("Query #" + item.sequence + " failed: " + item.error);
+            updateStatus(item, Query_status.FAILED);
+            item.span.recordError(item.error).end();
+        } else {
+            updateStatus(item, Query_status.READY);
+            item.waitSpan = Tracer.startSpan("pipeline.order", item.span);
+        }
+        
+        // Answers are displayed strictly in submission order
+        while (!undisplayedQueries.isEmpty() && undisplayedQueries.peekFirst().status != Query_status.RUNNING
+               && undisplayedQueries.peekFirst().status != Query_status.QUEUED) {
+            Pending_query next = undisplayedQueries.pollFirst();
+            if (next.status == Query_status.READY) {
+                next.waitSpan.end();
+                displayAnswers(next);
+                updateStatus(next, Query_status.DONE);
+                // The query's trace covers its answers being inserted into the panels
+                Markdown_renderer.invokeAfterPendingUpdates(next.span::end);
+            }
+        }
+        pruneFinishedItems();
+        dispatchQueries();
+    }
+    
+    /**
+     * Shows a finished query's answers and saves the conversation
+     */
+    private void displayAnswers(Pending_query item) {
+        try (Span.Scope scope = item.span.makeCurrent()) {
+            // Update response panels; the renderers trace the document updates under the query's span
+            if (chatGPTPanel != null) {
+                chatGPTPanel.displayResponse(item.query, item.chatGPTResponse, item.chatGPTRoute);
+            }
+            if (perplexityPanel != null) {
+                perplexityPanel.displayResponse(item.query, item.perplexityResponse, item.perplexityRoute);
+            }
+            
+            // Compare the answers in the background
+            if (agreementPanel != null) {
+                agreementPanel.compare(item.chatGPTResponse, item.perplexityResponse);
+            }
             
-            // Update UI on the EDT
-            SwingUtilities.invokeLater(() -> {
-                // Update response panels
-                if (chatGPTPanel != null) {
-                    chatGPTPanel.displayResponse(query, chatGPTResponse);
+            // Save to database, streaming the full answers rather than the previews
+            saveExecutor.execute(Tracer.wrap(() -> {
+                try (Span span = Tracer.startSpan("saveConversation");
+                     Response_body chatGPT = item.chatGPTBody;
+                     Response_body perplexity = item.perplexityBody;
+                     Reader chatGPTReader = chatGPT.openReader();
+                     Reader perplexityReader = perplexity.openReader()) {
+                    if (!dbHandler.saveConversation(item.conversationId, item.query, chatGPTReader, perplexityReader)) {
+                        span.recordError("not saved");
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to save query #" + item.sequence + ": " + e.getMessage());
                 }
-                if (perplexityPanel != null) {
-                    perplexityPanel.displayResponse(query, perplexityResponse);
+            }));
+        }
+    }
+    
+    /**
+     * Closes the body of a call that completed normally, when the other call failed
+     */
+    private static void closeBody(CompletableFuture<Response_body> future) {
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            future.join().close();
+        }
+    }
+    
+    private void updateStatus(Pending_query item, Query_status status) {
+        item.status = status;
+        int index = queueModel.indexOf(item);
+        if (index >= 0) {
+            queueModel.set(index, item);
+        }
+    }
+    
+    /**
+     * Drops the oldest finished items so the queue list does not grow without bound
+     */
+    private void pruneFinishedItems() {
+        int finished = 0;
+        for (int i = queueModel.size() - 1; i >= 0; i--) {
+            Query_status status = queueModel.get(i).status;
+            if (status == Query_status.DONE || status == Query_status.FAILED) {
+                if (++finished > FINISHED_ITEMS_SHOWN) {
+                    queueModel.remove(i);
                 }
-                
-                // Save to database
-                dbHandler.saveConversation(conversationId, query, chatGPTResponse, perplexityResponse);
-                
-                // Reset UI loading state
-                setLoading(false);
-                
-                // Clear input area for next query
-                inputArea.setText("");
-            });
-        }).exceptionally(ex -> {
-            // Handle any exceptions
-            SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(this, 
-                    "Error processing query: " + ex.getMessage(), 
-                    "Error", 
-                    JOptionPane.ERROR_MESSAGE);
-                
-                // Reset UI loading state
-                setLoading(false);
-            });
-            return null;
-        });
+            }
+        }
     }
     
     /**
-     * Sets the loading state of the UI
-     * @param isLoading true to show loading, false to hide
+     * Shows the progress bar while any query is waiting or in flight
      */
-    private void setLoading(boolean isLoading) {
-        submitButton.setEnabled(!isLoading);
-        progressBar.setVisible(isLoading);
-        inputArea.setEditable(!isLoading);
+    private void updateProgress() {
+        progressBar.setVisible(queriesInFlight > 0 || !waitingQueries.isEmpty());
+    }
+    
+    /**
+     * Status of a query in the pipeline
+     */
+    private enum Query_status {
+        QUEUED("Queued"),
+        RUNNING("Running"),
+        READY("Waiting for earlier queries"),
+        DONE("Done"),
+        FAILED("Failed");
+        
+        private final String label;
+        
+        Query_status(String label) {
+            this.label = label;
+        }
+    }
+    
+    /**
+     * A submitted query and its answers once they arrive
+     */
+    private static class Pending_query {
+        private final int sequence;
+        private final String conversationId;
+        private final String query;
+        private volatile Query_status status = Query_status.QUEUED;
+        // Previews shown in the panels
+        private volatile String chatGPTResponse;
+        private volatile String perplexityResponse;
+        // Full answers, closed once saved
+        private volatile Response_body chatGPTBody;
+        private volatile Response_body perplexityBody;
+        private volatile String error;
+        private Model_router.Route chatGPTRoute;
+        private Model_router.Route perplexityRoute;
+        // Performance of the two calls, recorded for reports
+        private volatile long dispatchedMillis;
+        private volatile long chatGPTLatencyMillis;
+        private volatile long perplexityLatencyMillis;
+        // Root span of the query's trace
+        private Span span;
+        // Time spent waiting for a free slot, then for earlier queries to be displayed
+        private Span waitSpan;
+        
+        Pending_query(int sequence, String conversationId, String query) {
+            this.sequence = sequence;
+            this.conversationId = conversationId;
+            this.query = query;
+        }
     }
 }
@@ -0,0 +1,674 @@
+package panels;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+import tracing.Flight_events;
+import tracing.Span;
+import tracing.Tracer;
+
+/**
+ * Renders Markdown answers into a StyledDocument as their text arrives
+ * Supports headings, paragraphs with bold, italic, inline code and links, bullet and
+ * numbered lists, block quotes, rules, tables and fenced code blocks with syntax highlighting.
+ *
+ * Rendering is incremental: blocks that are complete (ended by a blank line, a closing
+ * fence, or a single line heading or rule) are rendered once and never touched again, and
+ * each new piece of text only re-renders the trailing open block. Inside a code fence every
+ * complete line is committed, so a long code block costs the same per piece as a short one. Styled runs are computed
+ * on a background thread; the Event Dispatch Thread only swaps the open block's runs in the
+ * document. Highlighted code lines are cached and shared between renderers.
+ *
+ * All methods may be called from any thread; operations are applied to the document in
+ * the order they were called. Each document update of an answer is traced as an edt.render
+ * span and a Render_event of the query that was current when its text was appended.
+ */
+public class Markdown_renderer {
+    // Single thread shared by all renderers, which keeps their operations in call order
+    private static final ExecutorService RENDER_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "markdown-render");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int CODE_LINE_CACHE_SIZE = 4096;
+    // Highlighted code lines keyed by language and line, only used on the render thread
+    private static final Map<String, Run[]> CODE_LINE_CACHE = new LinkedHashMap<String, Run[]>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Run[]> eldest) {
+            return size() > CODE_LINE_CACHE_SIZE;
+        }
+    };
+    
+    private static final Pattern HEADING = Pattern.compile("^ {0,3}(#{1,6})\\s+(.*?)\\s*#*\\s*$");
+    private static final Pattern RULE = Pattern.compile("^ {0,3}([-*_])(\\s*\\1){2,}\\s*$");
+    private static final Pattern LIST_ITEM = Pattern.compile("^(\\s*)([-*+]|\\d{1,9}[.)])\\s+");
+    private static final Pattern QUOTE = Pattern.compile("^\\s{0,3}>\\s?");
+    private static final Pattern TABLE_SEPARATOR = Pattern.compile("^\\s*:?-{2,}:?\\s*$");
+    private static final Set<String> HASH_COMMENT_LANGUAGES = new HashSet<>(Arrays.asList(
+        "python", "py", "sh", "bash", "shell", "zsh", "ruby", "rb", "yaml", "yml", "toml", "r", "perl", "dockerfile"));
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+        "abstract", "and", "as", "async", "await", "boolean", "break", "case", "catch", "class", "const",
+        "continue", "def", "default", "do", "double", "elif", "else", "enum", "except", "export", "extends",
+        "false", "final", "finally", "float", "fn", "for", "from", "func", "function", "go", "if", "impl",
+        "implements", "import", "in", "instanceof", "int", "interface", "is", "lambda", "let", "long",
+        "match", "mut", "new", "nil", "none", "not", "null", "or", "package", "pass", "private",
+        "protected", "pub", "public", "raise", "return", "select", "self", "static", "struct", "super",
+        "switch", "this", "throw", "throws", "true", "try", "type", "typeof", "use", "var", "void",
+        "where", "while", "with", "yield", "None", "True", "False", "SELECT", "FROM", "WHERE", "INSERT",
+        "UPDATE", "DELETE", "JOIN", "ORDER", "GROUP", "BY", "CREATE", "TABLE"));
+    
+    static final SimpleAttributeSet PLAIN = style("SansSerif", 14, false, false, null, null);
+    private static final SimpleAttributeSet CODE = style("Monospaced", 13, false, false, null, new Color(242, 242, 242));
+    private static final SimpleAttributeSet CODE_KEYWORD = derive(CODE, true, false, new Color(0, 0, 150));
+    private static final SimpleAttributeSet CODE_STRING = derive(CODE, false, false, new Color(0, 120, 0));
+    private static final SimpleAttributeSet CODE_COMMENT = derive(CODE, false, true, new Color(120, 120, 120));
+    private static final SimpleAttributeSet CODE_NUMBER = derive(CODE, false, false, new Color(140, 0, 140));
+    private static final SimpleAttributeSet QUOTE_STYLE = derive(PLAIN, false, true, new Color(90, 90, 90));
+    private static final SimpleAttributeSet RULE_STYLE = derive(PLAIN, false, false, new Color(160, 160, 160));
+    private static final SimpleAttributeSet TABLE = style("Monospaced", 13, false, false, null, null);
+    private static final SimpleAttributeSet TABLE_HEADER = derive(TABLE, true, false, null);
+    private static final SimpleAttributeSet LINK = derive(PLAIN, false, false, new Color(0, 70, 200));
+    private static final SimpleAttributeSet[] HEADINGS = new SimpleAttributeSet[6];
+    static {
+        StyleConstants.setUnderline(LINK, true);
+        int[] sizes = {22, 19, 17, 15, 14, 14};
+        for (int i = 0; i < HEADINGS.length; i++) {
+            HEADINGS[i] = style("SansSerif", sizes[i], true, false, null, null);
+        }
+    }
+    
+    private final StyledDocument document;
+    private volatile Runnable renderedListener;
+    
+    // Parse state, only touched on the render thread
+    private final StringBuilder source = new StringBuilder();
+    private int committedSource;
+    // Language of the code fence open at committedSource, or null outside a fence
+    private String openFence;
+    
+    // Document state, only touched on the Event Dispatch Thread
+    private int responseStart = -1;
+    private int committedLength;
+    private int tailLength;
+    private int renderedSourceLength;
+    // Verbatim copied text as (source offset, offset from response start, length) triples
+    private int[] segments = new int[96];
+    private int segmentCount;
+    private int committedSegmentCount;
+    
+    /**
+     * Constructor binds the renderer to a document
+     * @param document the document answers are appended to
+     */
+    public Markdown_renderer(StyledDocument document) {
+        this.document = document;
+    }
+    
+    /**
+     * Runs a task on the Event Dispatch Thread once every operation called so far, on any
+     * renderer, has been applied to its document
+     * @param task the task, e.g. ending the span of a query whose answers were just displayed
+     */
+    public static void invokeAfterPendingUpdates(Runnable task) {
+        RENDER_EXECUTOR.execute(() -> SwingUtilities.invokeLater(task));
+    }
+    
+    /**
+     * Sets a callback run on the Event Dispatch Thread after each update of the document
+     * @param listener the callback
+     */
+    public void setRenderedListener(Runnable listener) {
+        this.renderedListener = listener;
+    }
+    
+    /**
+     * Appends plain text, then starts a new Markdown answer after it
+     * @param header text shown before the answer
+     */
+    public void beginResponse(String header) {
+        RENDER_EXECUTOR.execute(() -> {
+            source.setLength(0);
+            committedSource = 0;
+            openFence = null;
+            SwingUtilities.invokeLater(() -> {
+                insert(document.getLength(), header, PLAIN);
+                responseStart = document.getLength();
+                committedLength = 0;
+                tailLength = 0;
+                renderedSourceLength = 0;
+                segmentCount = 0;
+                committedSegmentCount = 0;
+                fireRendered();
+            });
+        });
+    }
+    
+    /**
+     * Appends Markdown text to the current answer
+     * @param delta the text that arrived since the previous call
+     */
+    public void appendMarkdown(String delta) {
+        Span parent = Tracer.current();
+        String conversationId = Tracer.currentConversationId();
+        RENDER_EXECUTOR.execute(() -> {
+            source.append(delta);
+            String fence = openFence;
+            int commit = findCommitPoint(committedSource);
+            
+            // Newly completed blocks are rendered once; the open tail is rendered every time
+            List<Run> committed = new ArrayList<>();
+            renderBlocks(source.substring(committedSource, commit), committedSource, fence, committed);
+            List<Run> tail = new ArrayList<>();
+            renderBlocks(source.substring(commit), commit, openFence, tail);
+            committedSource = commit;
+            int sourceLength = source.length();
+            
+            SwingUtilities.invokeLater(() -> {
+                Flight_events.Render_event renderEvent = new Flight_events.Render_event();
+                renderEvent.begin();
+                try (Span.Scope scope = parent.makeCurrent(); Span span = Tracer.startSpan("edt.render")) {
+                    apply(committed, tail, sourceLength);
+                } finally {
+                    renderEvent.finish(conversationId, "");
+                }
+            });
+        });
+    }
+    
+    /**
+     * Ends the current answer and appends plain text
+     * @param text the text to append
+     */
+    public void appendPlain(String text) {
+        RENDER_EXECUTOR.execute(() -> SwingUtilities.invokeLater(() -> {
+            responseStart = -1;
+            insert(document.getLength(), text, PLAIN);
+            fireRendered();
+        }));
+    }
+    
+    /**
+     * Replaces the whole document with plain text
+     * @param text the new text
+     */
+    public void clear(String text) {
+        RENDER_EXECUTOR.execute(() -> SwingUtilities.invokeLater(() -> {
+            responseStart = -1;
+            segmentCount = 0;
+            renderedSourceLength = 0;
+            try {
+                document.remove(0, document.getLength());
+            } catch (BadLocationException e) {
+                System.err.println("Error clearing document: " + e.getMessage());
+            }
+            insert(0, text, PLAIN);
+            fireRendered();
+        }));
+    }
+    
+    /**
+     * Gets how many characters of the current answer are shown; call on the Event Dispatch Thread
+     * @return the rendered source length, or -1 if no answer is open
+     */
+    public int getRenderedSourceLength() {
+        return responseStart < 0 ? -1 : renderedSourceLength;
+    }
+    
+    /**
+     * Maps a character offset in the current answer's Markdown to the document
+     * Call on the Event Dispatch Thread
+     * @param sourceOffset offset in the Markdown source
+     * @return the document offset, or -1 if that character is not shown verbatim
+     */
+    public int toDocumentOffset(int sourceOffset) {
+        if (responseStart < 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = segmentCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int base = middle * 3;
+            if (sourceOffset < segments[base]) {
+                high = middle - 1;
+            } else if (sourceOffset >= segments[base] + segments[base + 2]) {
+                low = middle + 1;
+            } else {
+                return responseStart + segments[base + 1] + sourceOffset - segments[base];
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Replaces the previously rendered open tail with the new runs
+     */
+    private void apply(List<Run> committed, List<Run> tail, int sourceLength) {
+        if (responseStart < 0) {
+            return;
+        }
+        try {
+            document.remove(responseStart + committedLength, tailLength);
+        } catch (BadLocationException e) {
+            System.err.println("Error updating rendered response: " + e.getMessage());
+            return;
+        }
+        segmentCount = committedSegmentCount;
+        committedLength += insertRuns(committed, committedLength);
+        committedSegmentCount = segmentCount;
+        tailLength = insertRuns(tail, committedLength);
+        renderedSourceLength = sourceLength;
+        fireRendered();
+    }
+    
+    private int insertRuns(List<Run> runs, int offset) {
+        int length = 0;
+        for (Run run : runs) {
+            insert(responseStart + offset + length, run.text, run.style);
+            if (run.source >= 0) {
+                addSegment(run.source, offset + length, run.text.length());
+            }
+            length += run.text.length();
+        }
+        return length;
+    }
+    
+    private void addSegment(int sourceOffset, int outputOffset, int length) {
+        if ((segmentCount + 1) * 3 > segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+        int base = segmentCount * 3;
+        segments[base] = sourceOffset;
+        segments[base + 1] = outputOffset;
+        segments[base + 2] = length;
+        segmentCount++;
+    }
+    
+    private void insert(int offset, String text, AttributeSet style) {
+        try {
+            document.insertString(offset, text, style);
+        } catch (BadLocationException e) {
+            System.err.println("Error inserting rendered text: " + e.getMessage());
+        }
+    }
+    
+    private void fireRendered() {
+        if (renderedListener != null) {
+            renderedListener.run();
+        }
+    }
+    
+    /**
+     * Finds the end of the last complete block, or complete code line, at or after from
+     * Only whole lines are considered; the partial last line always belongs to the open block.
+     * Updates openFence to the fence that is open at the returned offset.
+     */
+    private int findCommitPoint(int from) {
+        int commit = from;
+        String fence = openFence;
+        int lineStart = from;
+        int newline;
+        while ((newline = source.indexOf("\n", lineStart)) >= 0) {
+            String line = source.substring(lineStart, newline);
+            String trimmed = line.trim();
+            if (trimmed.startsWith("```")) {
+                fence = fence == null ? trimmed.substring(3).trim().toLowerCase() : null;
+                commit = newline + 1;
+            } else if (fence != null || trimmed.isEmpty() || HEADING.matcher(line).matches()
+                       || RULE.matcher(line).matches()) {
+                commit = newline + 1;
+            }
+            lineStart = newline + 1;
+        }
+        // The fence only changes on lines that are committed, so this is its state at commit
+        openFence = fence;
+        return commit;
+    }
+    
+    /**
+     * Renders the blocks of a piece of source into runs
+     * @param text the source piece, which may end with a partial line
+     * @param base offset of the piece within the answer
+     * @param fenceLanguage language of the code fence the piece starts in, or null
+     * @param out receives the runs
+     */
+    private void renderBlocks(String text, int base, String fenceLanguage, List<Run> out) {
+        List<int[]> lines = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int newline = text.indexOf('\n', start);
+            int end = newline < 0 ? text.length() : newline;
+            lines.add(new int[] {start, end, newline < 0 ? 0 : 1});
+            start = end + 1;
+        }
+        
+        int i = fenceLanguage == null ? 0 : renderCode(text, base, lines, 0, fenceLanguage, out);
+        while (i < lines.size()) {
+            int[] line = lines.get(i);
+            String content = text.substring(line[0], line[1]);
+            String trimmed = content.trim();
+            int lineBase = base + line[0];
+            String lineEnd = line[2] == 1 ? "\n" : "";
+            
+            if (trimmed.startsWith("```")) {
+                i = renderCode(text, base, lines, i + 1, trimmed.substring(3).trim().toLowerCase(), out);
+                continue;
+            }
+            
+            if (trimmed.startsWith("|")) {
+                int end = i;
+                while (end < lines.size() && text.substring(lines.get(end)[0], lines.get(end)[1]).trim().startsWith("|")) {
+                    end++;
+                }
+                renderTable(text, base, lines.subList(i, end), out);
+                i = end;
+                continue;
+            }
+            
+            Matcher matcher;
+            if (trimmed.isEmpty()) {
+                out.add(new Run(lineEnd, PLAIN, -1));
+            } else if ((matcher = HEADING.matcher(content)).matches()) {
+                int level = matcher.group(1).length();
+                renderInline(matcher.group(2), lineBase + matcher.start(2), HEADINGS[level - 1], out);
+                out.add(new Run(lineEnd, HEADINGS[level - 1], -1));
+            } else if (RULE.matcher(content).matches()) {
+                out.add(new Run("\u2500".repeat(40) + lineEnd, RULE_STYLE, -1));
+            } else if ((matcher = LIST_ITEM.matcher(content)).lookingAt()) {
+                String marker = matcher.group(2);
+                String bullet = Character.isDigit(marker.charAt(0)) ? marker + " " : "\u2022 ";
+                out.add(new Run("  ".repeat(1 + matcher.group(1).length() / 2) + bullet, PLAIN, -1));
+                renderInline(content.substring(matcher.end()), lineBase + matcher.end(), PLAIN, out);
+                out.add(new Run(lineEnd, PLAIN, -1));
+            } else if ((matcher = QUOTE.matcher(content)).lookingAt()) {
+                out.add(new Run("\u2502 ", QUOTE_STYLE, -1));
+                renderInline(content.substring(matcher.end()), lineBase + matcher.end(), QUOTE_STYLE, out);
+                out.add(new Run(lineEnd, QUOTE_STYLE, -1));
+            } else {
+                renderInline(content, lineBase, PLAIN, out);
+                out.add(new Run(lineEnd, PLAIN, -1));
+            }
+            i++;
+        }
+    }
+    
+    /**
+     * Renders the lines of a code fence up to and including its closing fence
+     * @return the index of the first line after the fence
+     */
+    private int renderCode(String text, int base, List<int[]> lines, int i, String language, List<Run> out) {
+        while (i < lines.size()) {
+            int[] codeLine = lines.get(i);
+            String code = text.substring(codeLine[0], codeLine[1]);
+            i++;
+            if (code.trim().startsWith("```")) {
+                break;
+            }
+            highlightCode(language, code, base + codeLine[0], out);
+            if (codeLine[2] == 1) {
+                out.add(new Run("\n", CODE, -1));
+            }
+        }
+        return i;
+    }
+    
+    /**
+     * Renders table rows with columns padded to equal width in a monospaced font
+     */
+    private void renderTable(String text, int base, List<int[]> rows, List<Run> out) {
+        List<List<int[]>> cells = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        for (int[] row : rows) {
+            List<int[]> rowCells = new ArrayList<>();
+            String line = text.substring(row[0], row[1]);
+            int first = line.indexOf('|') + 1;
+            int last = line.trim().endsWith("|") && line.lastIndexOf('|') >= first ? line.lastIndexOf('|') : line.length();
+            int cellStart = first;
+            boolean separator = true;
+            for (int p = first; p <= last; p++) {
+                if (p == last || (line.charAt(p) == '|' && line.charAt(p - 1) != '\\')) {
+                    String cell = line.substring(cellStart, p);
+                    int lead = cell.length() - cell.stripLeading().length();
+                    String value = cell.strip();
+                    rowCells.add(new int[] {row[0] + cellStart + lead, value.length()});
+                    separator &= TABLE_SEPARATOR.matcher(cell).matches();
+                    cellStart = p + 1;
+                }
+            }
+            if (separator) {
+                rowCells = null;
+            } else {
+                for (int c = 0; c < rowCells.size(); c++) {
+                    if (c == widths.size()) {
+                        widths.add(0);
+                    }
+                    widths.set(c, Math.max(widths.get(c), rowCells.get(c)[1]));
+                }
+            }
+            cells.add(rowCells);
+        }
+        
+        boolean header = rows.size() > 1 && cells.get(1) == null;
+        for (int r = 0; r < rows.size(); r++) {
+            List<int[]> rowCells = cells.get(r);
+            String lineEnd = rows.get(r)[2] == 1 ? "\n" : "";
+            if (rowCells == null) {
+                int total = 0;
+                for (int width : widths) {
+                    total += width + 3;
+                }
+                out.add(new Run("\u2500".repeat(Math.max(1, total - 1)) + lineEnd, TABLE, -1));
+                continue;
+            }
+            SimpleAttributeSet style = header && r == 0 ? TABLE_HEADER : TABLE;
+            for (int c = 0; c < rowCells.size(); c++) {
+                int[] cell = rowCells.get(c);
+                if (c > 0) {
+                    out.add(new Run(" \u2502 ", TABLE, -1));
+                }
+                if (cell[1] > 0) {
+                    out.add(new Run(text.substring(cell[0], cell[0] + cell[1]), style, base + cell[0]));
+                }
+                int padding = widths.get(c) - cell[1];
+                if (padding > 0 && c < rowCells.size() - 1) {
+                    out.add(new Run(" ".repeat(padding), TABLE, -1));
+                }
+            }
+            out.add(new Run(lineEnd, TABLE, -1));
+        }
+    }
+    
+    /**
+     * Renders inline formatting: `code`, **bold**, *italic*, _italic_ and [links](url)
+     */
+    private void renderInline(String text, int base, SimpleAttributeSet style, List<Run> out) {
+        int plainStart = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            int close;
+            if (c == '`' && (close = text.indexOf('`', i + 1)) > i + 1) {
+                addText(text, plainStart, i, base, style, out);
+                out.add(new Run(text.substring(i + 1, close), CODE, base + i + 1));
+                i = plainStart = close + 1;
+            } else if ((c == '*' || c == '_') && i + 1 < text.length() && text.charAt(i + 1) == c
+                       && (close = findClosing(text, i + 2, String.valueOf(c).repeat(2))) > 0) {
+                addText(text, plainStart, i, base, style, out);
+                addText(text, i + 2, close, base, derive(style, true, false, null), out);
+                i = plainStart = close + 2;
+            } else if ((c == '*' || c == '_') && (i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)))
+                       && (close = findClosing(text, i + 1, String.valueOf(c))) > 0) {
+                addText(text, plainStart, i, base, style, out);
+                addText(text, i + 1, close, base, derive(style, false, true, null), out);
+                i = plainStart = close + 1;
+            } else if (c == '[' && (close = text.indexOf("](", i + 1)) > i + 1 && text.indexOf(')', close) > 0) {
+                int end = text.indexOf(')', close);
+                addText(text, plainStart, i, base, style, out);
+                SimpleAttributeSet linkStyle = new SimpleAttributeSet(style);
+                linkStyle.addAttributes(LINK);
+                addText(text, i + 1, close, base, linkStyle, out);
+                i = plainStart = end + 1;
+            } else {
+                i++;
+            }
+        }
+        addText(text, plainStart, text.length(), base, style, out);
+    }
+    
+    /**
+     * Finds a closing marker that follows a non-space character, or -1
+     */
+    private static int findClosing(String text, int from, String marker) {
+        if (from >= text.length() || Character.isWhitespace(text.charAt(from))) {
+            return -1;
+        }
+        int close = text.indexOf(marker, from + 1);
+        while (close > 0 && Character.isWhitespace(text.charAt(close - 1))) {
+            close = text.indexOf(marker, close + 1);
+        }
+        return close;
+    }
+    
+    private static void addText(String text, int start, int end, int base, AttributeSet style, List<Run> out) {
+        if (end > start) {
+            out.add(new Run(text.substring(start, end), style, base + start));
+        }
+    }
+    
+    /**
+     * Adds the highlighted runs of one code line, using the shared cache
+     */
+    private static void highlightCode(String language, String line, int base, List<Run> out) {
+        String key = language + '\n' + line;
+        Run[] runs = CODE_LINE_CACHE.get(key);
+        if (runs == null) {
+            runs = tokenizeCode(language, line);
+            CODE_LINE_CACHE.put(key, runs);
+        }
+        for (Run run : runs) {
+            out.add(new Run(run.text, run.style, base + run.source));
+        }
+    }
+    
+    /**
+     * Splits a code line into comment, string, number, keyword and plain runs
+     * Offsets in the returned runs are relative to the line; block comments spanning lines are not tracked
+     */
+    private static Run[] tokenizeCode(String language, String line) {
+        List<Run> runs = new ArrayList<>();
+        String lineComment = HASH_COMMENT_LANGUAGES.contains(language) ? "#" : "sql".equals(language) ? "--" : "//";
+        int plainStart = 0;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            int end = -1;
+            SimpleAttributeSet style = null;
+            if (line.startsWith(lineComment, i)) {
+                end = line.length();
+                style = CODE_COMMENT;
+            } else if (line.startsWith("/*", i)) {
+                int close = line.indexOf("*/", i + 2);
+                end = close < 0 ? line.length() : close + 2;
+                style = CODE_COMMENT;
+            } else if (c == '"' || c == '\'' || c == '`') {
+                end = i + 1;
+                while (end < line.length() && line.charAt(end) != c) {
+                    end += line.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(line.length(), end + 1);
+                style = CODE_STRING;
+            } else if (Character.isDigit(c) && (i == 0 || !Character.isJavaIdentifierPart(line.charAt(i - 1)))) {
+                end = i;
+                while (end < line.length() && (Character.isLetterOrDigit(line.charAt(end)) || line.charAt(end) == '.')) {
+                    end++;
+                }
+                style = CODE_NUMBER;
+            } else if (Character.isJavaIdentifierStart(c) && (i == 0 || !Character.isJavaIdentifierPart(line.charAt(i - 1)))) {
+                end = i;
+                while (end < line.length() && Character.isJavaIdentifierPart(line.charAt(end))) {
+                    end++;
+                }
+                if (!KEYWORDS.contains(line.substring(i, end))) {
+                    i = end;
+                    continue;
+                }
+                style = CODE_KEYWORD;
+            }
+            
+            if (style == null) {
+                i++;
+                continue;
+            }
+            if (i > plainStart) {
+                runs.add(new Run(line.substring(plainStart, i), CODE, plainStart));
+            }
+            runs.add(new Run(line.substring(i, end), style, i));
+            i = plainStart = end;
+        }
+        if (line.length() > plainStart) {
+            runs.add(new Run(line.substring(plainStart), CODE, plainStart));
+        }
+        return runs.toArray(new Run[0]);
+    }
+    
+    private static SimpleAttributeSet style(String family, int size, boolean bold, boolean italic,
+                                            Color foreground, Color background) {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        StyleConstants.setFontFamily(style, family);
+        StyleConstants.setFontSize(style, size);
+        StyleConstants.setBold(style, bold);
+        StyleConstants.setItalic(style, italic);
+        if (foreground != null) {
+            StyleConstants.setForeground(style, foreground);
+        }
+        if (background != null) {
+            StyleConstants.setBackground(style, background);
+        }
+        return style;
+    }
+    
+    private static SimpleAttributeSet derive(AttributeSet base, boolean bold, boolean italic, Color foreground) {
+        SimpleAttributeSet style = new SimpleAttributeSet(base);
+        if (bold) {
+            StyleConstants.setBold(style, true);
+        }
+        if (italic) {
+            StyleConstants.setItalic(style, true);
+        }
+        if (foreground != null) {
+            StyleConstants.setForeground(style, foreground);
+        }
+        return style;
+    }
+    
+    /**
+     * A piece of styled output and the offset of its text in the source, or -1 if generated
+     */
+    private static class Run {
+        private final String text;
+        private final AttributeSet style;
+        private final int source;
+        
+        Run(String text, AttributeSet style, int source) {
+            this.text = text;
+            this.style = style;
+            this.source = source;
+        }
+    }
+}
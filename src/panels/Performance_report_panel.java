@@ -0,0 +1,135 @@
+package panels;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import database.Database_handler;
+import database.Metrics_aggregate;
+import panels.Priority_scheduler.Lane;
+
+/**
+ * Panel reporting latency, response length, error rate and cache hit rate per provider and day
+ * The aggregation runs in the background over the columnar metrics store.
+ */
+public class Performance_report_panel extends JPanel {
+    private final Database_handler dbHandler;
+    private final Background_panel backgroundPanel;
+    private final Report_table_model reportModel = new Report_table_model();
+    private JSpinner daysSpinner;
+    private JButton runButton;
+    private JLabel statusLabel;
+    
+    /**
+     * Constructor initializes the panel and runs the default report
+     * @param dbHandler the database handler holding the metrics
+     * @param backgroundPanel runs the aggregation off the Event Dispatch Thread
+     */
+    public Performance_report_panel(Database_handler dbHandler, Background_panel backgroundPanel) {
+        this.dbHandler = dbHandler;
+        this.backgroundPanel = backgroundPanel;
+        initializeUI();
+        runReport();
+    }
+    
+    /**
+     * Initializes the UI components of the panel
+     */
+    private void initializeUI() {
+        setLayout(new BorderLayout());
+        
+        daysSpinner = new JSpinner(new SpinnerNumberModel(30, 1, 3650, 1));
+        runButton = new JButton("Run Report");
+        runButton.addActionListener(e -> runReport());
+        statusLabel = new JLabel();
+        
+        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controlPanel.add(new JLabel("Last days:"));
+        controlPanel.add(daysSpinner);
+        controlPanel.add(runButton);
+        controlPanel.add(statusLabel);
+        
+        add(controlPanel, BorderLayout.NORTH);
+        add(new JScrollPane(new JTable(reportModel)), BorderLayout.CENTER);
+    }
+    
+    /**
+     * Aggregates the selected range in the background and shows the result
+     */
+    private void runReport() {
+        long to = System.currentTimeMillis();
+        long from = to - TimeUnit.DAYS.toMillis((Integer) daysSpinner.getValue());
+        runButton.setEnabled(false);
+        statusLabel.setText("Aggregating...");
+        try {
+            Future<?> task = backgroundPanel.executeTask(Lane.INTERACTIVE, () -> {
+                long start = System.nanoTime();
+                List<Metrics_aggregate> rows = dbHandler.aggregateQueryMetrics(from, to);
+                long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                SwingUtilities.invokeLater(() -> {
+                    reportModel.setRows(rows);
+                    statusLabel.setText(rows.size() + " rows in " + elapsedMillis + " ms");
+                    runButton.setEnabled(true);
+                });
+            });
+            if (task == null) {
+                statusLabel.setText("Background tasks are stopped");
+                runButton.setEnabled(true);
+            }
+        } catch (RejectedExecutionException e) {
+            statusLabel.setText("Busy, try again");
+            runButton.setEnabled(true);
+        }
+    }
+    
+    /**
+     * One row per provider and day
+     */
+    private static class Report_table_model extends AbstractTableModel {
+        private static final String[] COLUMNS = {
+            "Day", "Provider", "Calls", "Avg latency (ms)", "Max latency (ms)",
+            "Avg response (KB)", "Error rate", "Cache hit rate"
+        };
+        private List<Metrics_aggregate> rows = new ArrayList<>();
+        
+        void setRows(List<Metrics_aggregate> rows) {
+            this.rows = rows;
+            fireTableDataChanged();
+        }
+        
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+        
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+        
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+        
+        @Override
+        public Object getValueAt(int row, int column) {
+            Metrics_aggregate aggregate = rows.get(row);
+            switch (column) {
+                case 0: return aggregate.getDay().toString();
+                case 1: return aggregate.getProvider();
+                case 2: return aggregate.getCount();
+                case 3: return String.format("%.0f", aggregate.getAverageLatencyMillis());
+                case 4: return aggregate.getMaxLatencyMillis();
+                case 5: return String.format("%.1f", aggregate.getAverageResponseBytes() / 1024);
+                case 6: return String.format("%.1f%%", aggregate.getErrorRate() * 100);
+                default: return String.format("%.1f%%", aggregate.getCacheHitRate() * 100);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package panels;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed pool of workers that runs tasks in priority lanes
+ * Each worker owns one deque per lane; submissions are spread round-robin across workers and
+ * idle workers steal from the others, so the pool stays busy without a single shared queue.
+ * Workers always take interactive work first, and bulk work may occupy at most all but one
+ * worker, which keeps a worker free to pick up interactive tasks with low latency.
+ * Every lane has a bounded capacity with its own policy for what happens when it is full.
+ */
+public class Priority_scheduler {
+    
+    /**
+     * Task priority lanes, highest priority first
+     */
+    public enum Lane {
+        INTERACTIVE,
+        NORMAL,
+        BULK
+    }
+    
+    /**
+     * What to do with a task submitted to a full lane
+     */
+    public enum Rejection_policy {
+        // Throw a RejectedExecutionException
+        REJECT,
+        // Run the task on the submitting thread, slowing the producer down
+        CALLER_RUNS,
+        // Block the submitting thread until the lane has room (backpressure)
+        BLOCK,
+        // Drop the oldest queued task of the lane to make room
+        DISCARD_OLDEST
+    }
+    
+    private static final Lane[] LANES = Lane.values();
+    
+    private final Worker[] workers;
+    private final Semaphore[] capacity;
+    private final Rejection_policy[] policies;
+    private final AtomicInteger[] queued;
+    private final AtomicInteger runningBulk = new AtomicInteger();
+    private final int maxRunningBulk;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Condition workAvailable = idleLock.newCondition();
+    private volatile boolean shutdown;
+    private volatile boolean stopNow;
+    
+    /**
+     * Constructor starts the worker threads
+     * @param workerCount number of worker threads
+     * @param capacities maximum queued tasks per lane, indexed by Lane ordinal
+     * @param policies rejection policy per lane, indexed by Lane ordinal
+     */
+    public Priority_scheduler(int workerCount, int[] capacities, Rejection_policy[] policies) {
+        this.workers = new Worker[Math.max(1, workerCount)];
+        this.capacity = new Semaphore[LANES.length];
+        this.policies = policies.clone();
+        this.queued = new AtomicInteger[LANES.length];
+        for (int lane = 0; lane < LANES.length; lane++) {
+            capacity[lane] = new Semaphore(capacities[lane]);
+            queued[lane] = new AtomicInteger();
+        }
+        this.maxRunningBulk = Math.max(1, workers.length - 1);
+        
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+    
+    /**
+     * Submits a task to a lane
+     * @param lane the priority lane
+     * @param task the task to run
+     * @return a future for the task; cancel(true) interrupts it if running
+     * @throws RejectedExecutionException if the scheduler is shut down, or the lane is full
+     *         and its policy is REJECT
+     */
+    public Future<?> submit(Lane lane, Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler is shut down");
+        }
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        int index = lane.ordinal();
+        
+        if (!capacity[index].tryAcquire()) {
+            switch (policies[index]) {
+                case CALLER_RUNS:
+                    future.run();
+                    return future;
+                case BLOCK:
+                    try {
+                        capacity[index].acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for lane " + lane, e);
+                    }
+                    break;
+                case DISCARD_OLDEST:
+                    if (!discardOldest(index)) {
+                        throw new RejectedExecutionException("Lane " + lane + " is full");
+                    }
+                    break;
+                default:
+                    throw new RejectedExecutionException("Lane " + lane + " is full");
+            }
+        }
+        
+        queued[index].incrementAndGet();
+        Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+        worker.queues[index].addLast(future);
+        signalWork();
+        return future;
+    }
+    
+    /**
+     * Gets the number of tasks waiting in a lane
+     * @param lane the lane
+     * @return the queue depth
+     */
+    public int getQueueDepth(Lane lane) {
+        return queued[lane.ordinal()].get();
+    }
+    
+    /**
+     * Stops accepting tasks; queued tasks still run
+     */
+    public void shutdown() {
+        shutdown = true;
+        signalWork();
+    }
+    
+    /**
+     * Stops accepting tasks, drops queued ones and interrupts running ones
+     */
+    public void shutdownNow() {
+        shutdown = true;
+        stopNow = true;
+        for (Worker worker : workers) {
+            for (ConcurrentLinkedDeque<FutureTask<?>> queue : worker.queues) {
+                FutureTask<?> task;
+                while ((task = queue.pollFirst()) != null) {
+                    task.cancel(false);
+                }
+            }
+            worker.thread.interrupt();
+        }
+    }
+    
+    /**
+     * Checks whether shutdown has been requested
+     * @return true once shut down
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+    
+    /**
+     * Waits for all workers to finish after a shutdown
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return true if all workers finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            worker.thread.join(remaining);
+            if (worker.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Removes the oldest queued task of a lane across all workers
+     */
+    private boolean discardOldest(int lane) {
+        for (Worker worker : workers) {
+            FutureTask<?> oldest = worker.queues[lane].pollFirst();
+            if (oldest != null) {
+                oldest.cancel(false);
+                queued[lane].decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void signalWork() {
+        idleLock.lock();
+        try {
+            workAvailable.signalAll();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+    
+    /**
+     * A worker thread with its own per-lane deques
+     */
+    private class Worker implements Runnable {
+        private final int index;
+        private final Thread thread;
+        @SuppressWarnings("unchecked")
+        private final ConcurrentLinkedDeque<FutureTask<?>>[] queues =
+            (ConcurrentLinkedDeque<FutureTask<?>>[]) new ConcurrentLinkedDeque<?>[LANES.length];
+        
+        Worker(int index) {
+            this.index = index;
+            for (int lane = 0; lane < LANES.length; lane++) {
+                queues[lane] = new ConcurrentLinkedDeque<>();
+            }
+            this.thread = new Thread(this, "background-worker-" + index);
+            this.thread.setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (!stopNow) {
+                FutureTask<?> task = null;
+                boolean bulk = false;
+                for (int lane = 0; lane < LANES.length && task == null; lane++) {
+                    bulk = LANES[lane] == Lane.BULK;
+                    // Reserve a bulk slot before taking, so the cap holds under races
+                    if (bulk && runningBulk.incrementAndGet() > maxRunningBulk) {
+                        runningBulk.decrementAndGet();
+                        break;
+                    }
+                    task = take(lane);
+                    if (task == null && bulk) {
+                        runningBulk.decrementAndGet();
+                    }
+                }
+                
+                if (task == null) {
+                    if (shutdown && isIdle()) {
+                        return;
+                    }
+                    waitForWork();
+                    continue;
+                }
+                
+                try {
+                    task.run();
+                } finally {
+                    if (bulk) {
+                        runningBulk.decrementAndGet();
+                        // A worker may be waiting only because the bulk cap was reached
+                        if (queued[Lane.BULK.ordinal()].get() > 0) {
+                            signalWork();
+                        }
+                    }
+                    // Clear any interrupt left by a cancelled task
+                    Thread.interrupted();
+                }
+            }
+        }
+        
+        /**
+         * Takes the oldest task of a lane from this worker, otherwise steals the newest from another
+         */
+        private FutureTask<?> take(int lane) {
+            FutureTask<?> task = queues[lane].pollFirst();
+            for (int i = 1; task == null && i < workers.length; i++) {
+                task = workers[(index + i) % workers.length].queues[lane].pollLast();
+            }
+            if (task != null) {
+                queued[lane].decrementAndGet();
+                capacity[lane].release();
+            }
+            return task;
+        }
+        
+        private boolean isIdle() {
+            for (AtomicInteger depth : queued) {
+                if (depth.get() > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Checks whether a task could be taken now, given the bulk cap
+         */
+        private boolean hasRunnableWork() {
+            for (int lane = 0; lane < LANES.length; lane++) {
+                if (queued[lane].get() > 0
+                        && (LANES[lane] != Lane.BULK || runningBulk.get() < maxRunningBulk)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Blocks until work may be available or the scheduler stops
+         * The condition is checked under the lock that submitters signal under, so a task
+         * queued after the worker found nothing cannot slip past before it starts waiting.
+         */
+        private void waitForWork() {
+            idleLock.lock();
+            try {
+                while (!stopNow && !hasRunnableWork() && !(shutdown && isIdle())) {
+                    workAvailable.await();
+                }
+            } catch (InterruptedException e) {
+                // Interrupts are only used by shutdownNow, checked by the loop
+            } finally {
+                idleLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package panels;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tracing.Span;
+import tracing.Trace;
+import tracing.Tracer;
+
+/**
+ * Panel listing the slowest recent queries and the span tree of the selected one
+ * Shows where a query's time went: waiting in the pipeline, queueing in the executor,
+ * connect, time to first byte, reading, parsing, rendering and saving. Also holds the
+ * sampling controls for the trace files.
+ */
+public class Trace_viewer_panel extends JPanel {
+    // Number of traces listed
+    private static final int TRACES_SHOWN = 50;
+    
+    private final Trace_table_model traceModel = new Trace_table_model();
+    private final Span_table_model spanModel = new Span_table_model();
+    private JTable traceTable;
+    
+    /**
+     * Constructor initializes the panel with the current traces
+     */
+    public Trace_viewer_panel() {
+        initializeUI();
+        refresh();
+    }
+    
+    /**
+     * Initializes the UI components of the panel
+     */
+    private void initializeUI() {
+        setLayout(new BorderLayout());
+        
+        traceTable = new JTable(traceModel);
+        traceTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        traceTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                int row = traceTable.getSelectedRow();
+                spanModel.setTrace(row >= 0 ? traceModel.traces.get(row) : null);
+            }
+        });
+        JScrollPane traceScrollPane = new JScrollPane(traceTable);
+        traceScrollPane.setBorder(BorderFactory.createTitledBorder("Slowest recent queries"));
+        
+        JTable spanTable = new JTable(spanModel);
+        spanTable.getColumnModel().getColumn(0).setPreferredWidth(220);
+        spanTable.getColumnModel().getColumn(4).setPreferredWidth(360);
+        JScrollPane spanScrollPane = new JScrollPane(spanTable);
+        spanScrollPane.setBorder(BorderFactory.createTitledBorder("Spans"));
+        
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, traceScrollPane, spanScrollPane);
+        splitPane.setResizeWeight(0.4);
+        
+        // Sampling controls apply to traces that finish from now on
+        JSpinner sampleSpinner = new JSpinner(new SpinnerNumberModel(
+            (int) Math.round(Tracer.getSampleRate() * 100), 0, 100, 5));
+        sampleSpinner.addChangeListener(e -> Tracer.setSampleRate((Integer) sampleSpinner.getValue() / 100.0));
+        JSpinner slowSpinner = new JSpinner(new SpinnerNumberModel(
+            Long.valueOf(Tracer.getSlowThresholdMillis()), Long.valueOf(0), Long.valueOf(Long.MAX_VALUE), Long.valueOf(500)));
+        slowSpinner.addChangeListener(e -> Tracer.setSlowThresholdMillis((Long) slowSpinner.getValue()));
+        JButton refreshButton = new JButton("Refresh");
+        refreshButton.addActionListener(e -> refresh());
+        
+        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controlPanel.add(new JLabel("Write % of traces:"));
+        controlPanel.add(sampleSpinner);
+        controlPanel.add(new JLabel("Always write traces slower than (ms):"));
+        controlPanel.add(slowSpinner);
+        controlPanel.add(refreshButton);
+        controlPanel.add(new JLabel("Files: " + Tracer.traceDirectory().getPath()));
+        
+        add(controlPanel, BorderLayout.NORTH);
+        add(splitPane, BorderLayout.CENTER);
+    }
+    
+    /**
+     * Reloads the slowest recent traces
+     */
+    public void refresh() {
+        traceModel.setTraces(Tracer.slowestRecentTraces(TRACES_SHOWN));
+        spanModel.setTrace(null);
+    }
+    
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1_000_000.0);
+    }
+    
+    /**
+     * One row per trace, slowest first
+     */
+    private static class Trace_table_model extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Started", "Duration (ms)", "Query", "Spans", "Written", "Error"};
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        private List<Trace> traces = new ArrayList<>();
+        
+        void setTraces(List<Trace> traces) {
+            this.traces = traces;
+            fireTableDataChanged();
+        }
+        
+        @Override
+        public int getRowCount() {
+            return traces.size();
+        }
+        
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+        
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+        
+        @Override
+        public Object getValueAt(int row, int column) {
+            Trace trace = traces.get(row);
+            Span root = trace.getRootSpan();
+            switch (column) {
+                case 0: return timeFormat.format(new Date(root.getStartEpochNanos() / 1_000_000));
+                case 1: return millis(root.getDurationNanos());
+                case 2: return "#" + root.getAttributes().get("query.sequence") + " " + trace.getTraceId();
+                case 3: return trace.getSpans().size();
+                case 4: return trace.isExported() ? "yes" : "no";
+                default: return firstError(trace);
+            }
+        }
+        
+        private static String firstError(Trace trace) {
+            for (Span span : trace.getSpans()) {
+                if (span.getError() != null) {
+                    return span.getName() + ": " + span.getError();
+                }
+            }
+            return "";
+        }
+    }
+    
+    /**
+     * The spans of one trace in tree order, indented by depth
+     */
+    private static class Span_table_model extends AbstractTableModel {
+        private static final String[] COLUMNS = {"Span", "Offset (ms)", "Duration (ms)", "Share of query", "Attributes"};
+        private final List<Span> rows = new ArrayList<>();
+        private final List<Integer> depths = new ArrayList<>();
+        private Span root;
+        
+        void setTrace(Trace trace) {
+            rows.clear();
+            depths.clear();
+            root = trace == null ? null : trace.getRootSpan();
+            if (trace != null) {
+                Map<String, List<Span>> children = new HashMap<>();
+                for (Span span : trace.getSpans()) {
+                    if (span.getParentSpanId() != null) {
+                        children.computeIfAbsent(span.getParentSpanId(), id -> new ArrayList<>()).add(span);
+                    }
+                }
+                addTree(root, 0, children);
+            }
+            fireTableDataChanged();
+        }
+        
+        private void addTree(Span span, int depth, Map<String, List<Span>> children) {
+            rows.add(span);
+            depths.add(depth);
+            for (Span child : children.getOrDefault(span.getSpanId(), List.of())) {
+                addTree(child, depth + 1, children);
+            }
+        }
+        
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+        
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+        
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+        
+        @Override
+        public Object getValueAt(int row, int column) {
+            Span span = rows.get(row);
+            switch (column) {
+                case 0:
+                    String name = "  ".repeat(depths.get(row)) + span.getName();
+                    return span.getError() != null ? name + " (failed)" : name;
+                case 1: return millis(span.getStartEpochNanos() - root.getStartEpochNanos());
+                case 2: return span.isEnded() ? millis(span.getDurationNanos()) : "running";
+                case 3:
+                    // Share of the whole query; children of parallel calls can add up to more than 100%
+                    if (!span.isEnded() || root.getDurationNanos() <= 0) {
+                        return "";
+                    }
+                    return String.format("%.0f%%", 100.0 * span.getDurationNanos() / root.getDurationNanos());
+                default: return span.getAttributes().toString();
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package panels;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Word level diff between two answers, used to show where the providers agree
+ * Uses Myers' O(ND) algorithm with the linear space middle snake refinement, so memory
+ * grows linearly with the number of words. Words are compared case-insensitively and
+ * punctuation is ignored.
+ *
+ * update() is incremental: when both texts only grew since the previous call (as they do
+ * while a response streams in), the matches found earlier are kept up to a stable anchor
+ * and only the tails after it are diffed again.
+ *
+ * Instances are not thread safe; run them on one background thread at a time.
+ */
+public class Word_diff {
+    // Matches this close to the old end of either text are diffed again on an update,
+    // since words arriving later may align better with them
+    private static final int ANCHOR_SLACK = 16;
+    
+    private final Map<String, Integer> vocabulary = new HashMap<>();
+    private final Tokens left = new Tokens();
+    private final Tokens right = new Tokens();
+    // Matched runs as (leftIndex, rightIndex, length) triples, in order
+    private int[] snakes = new int[48];
+    private int snakeCount;
+    private String leftText;
+    private String rightText;
+    
+    /**
+     * Diffs two texts, reusing earlier work when both texts only had words appended
+     * @param newLeft the full left text
+     * @param newRight the full right text
+     * @return the diff result
+     */
+    public Result update(String newLeft, String newRight) {
+        int anchorLeft = 0;
+        int anchorRight = 0;
+        if (leftText != null && newLeft.startsWith(leftText) && newRight.startsWith(rightText)) {
+            // The last word of each side may still be growing, so tokenize it again
+            int keepLeft = Math.max(0, left.count - 1);
+            int keepRight = Math.max(0, right.count - 1);
+            int limitLeft = Math.max(0, keepLeft - ANCHOR_SLACK);
+            int limitRight = Math.max(0, keepRight - ANCHOR_SLACK);
+            
+            // Drop or shorten trailing matches that reach past the anchor limits
+            while (snakeCount > 0) {
+                int base = (snakeCount - 1) * 3;
+                int length = Math.min(snakes[base + 2],
+                    Math.min(limitLeft - snakes[base], limitRight - snakes[base + 1]));
+                if (length > 0) {
+                    snakes[base + 2] = length;
+                    anchorLeft = snakes[base] + length;
+                    anchorRight = snakes[base + 1] + length;
+                    break;
+                }
+                snakeCount--;
+            }
+            left.truncate(keepLeft);
+            right.truncate(keepRight);
+        } else {
+            left.truncate(0);
+            right.truncate(0);
+            snakeCount = 0;
+            vocabulary.clear();
+        }
+        
+        tokenize(newLeft, left);
+        tokenize(newRight, right);
+        leftText = newLeft;
+        rightText = newRight;
+        
+        diff(anchorLeft, left.count, anchorRight, right.count);
+        return buildResult();
+    }
+    
+    /**
+     * Diffs two texts from scratch
+     * @param leftText the left text
+     * @param rightText the right text
+     * @return the diff result
+     */
+    public static Result diff(String leftText, String rightText) {
+        return new Word_diff().update(leftText, rightText);
+    }
+    
+    /**
+     * Appends the words of text that start at or after the end of the tokens already present
+     */
+    private void tokenize(String text, Tokens tokens) {
+        int position = tokens.count == 0 ? 0 : tokens.ends[tokens.count - 1];
+        int length = text.length();
+        StringBuilder word = new StringBuilder();
+        while (position < length) {
+            while (position < length && !Character.isLetterOrDigit(text.charAt(position))) {
+                position++;
+            }
+            int start = position;
+            word.setLength(0);
+            while (position < length && Character.isLetterOrDigit(text.charAt(position))) {
+                word.append(Character.toLowerCase(text.charAt(position)));
+                position++;
+            }
+            if (position > start) {
+                Integer id = vocabulary.get(word.toString());
+                if (id == null) {
+                    id = vocabulary.size();
+                    vocabulary.put(word.toString(), id);
+                }
+                tokens.add(id, start, position);
+            }
+        }
+    }
+    
+    /**
+     * Diffs left[leftStart, leftEnd) against right[rightStart, rightEnd), appending the
+     * matched runs in order
+     */
+    private void diff(int leftStart, int leftEnd, int rightStart, int rightEnd) {
+        int[] a = left.ids;
+        int[] b = right.ids;
+        
+        // Common prefix and suffix need no search
+        int prefix = 0;
+        while (leftStart + prefix < leftEnd && rightStart + prefix < rightEnd
+               && a[leftStart + prefix] == b[rightStart + prefix]) {
+            prefix++;
+        }
+        addSnake(leftStart, rightStart, prefix);
+        leftStart += prefix;
+        rightStart += prefix;
+        
+        int suffix = 0;
+        while (leftEnd - suffix > leftStart && rightEnd - suffix > rightStart
+               && a[leftEnd - suffix - 1] == b[rightEnd - suffix - 1]) {
+            suffix++;
+        }
+        
+        int n = leftEnd - suffix - leftStart;
+        int m = rightEnd - suffix - rightStart;
+        if (n > 0 && m > 0) {
+            int[] split = middleSnake(a, leftStart, n, b, rightStart, m);
+            if (split != null) {
+                diff(leftStart, leftStart + split[0], rightStart, rightStart + split[1]);
+                diff(leftStart + split[0], leftStart + n, rightStart + split[1], rightStart + m);
+            }
+        }
+        addSnake(leftEnd - suffix, rightEnd - suffix, suffix);
+    }
+    
+    /**
+     * Finds the middle of an optimal edit path by searching forward and backward at once
+     * Both ranges are non-empty and differ at their first and last words
+     * @return the split point (x, y) relative to the range starts, or null if nothing matches
+     */
+    private static int[] middleSnake(int[] a, int aStart, int n, int[] b, int bStart, int m) {
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD + 1;
+        int length = 2 * maxD + 3;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // When delta is odd the paths can first overlap during the forward pass
+        boolean front = (delta & 1) != 0;
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        
+        for (int d = 0; d < maxD; d++) {
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int index = offset + k;
+                int x = (k == -d || (k != d && forward[index - 1] < forward[index + 1]))
+                    ? forward[index + 1] : forward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[index] = x;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (front) {
+                    int other = offset + delta - k;
+                    if (other >= 0 && other < length && backward[other] != -1 && x >= n - backward[other]) {
+                        return new int[] {x, y};
+                    }
+                }
+            }
+            
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int index = offset + k;
+                int x = (k == -d || (k != d && backward[index - 1] < backward[index + 1]))
+                    ? backward[index + 1] : backward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aStart + n - x - 1] == b[bStart + m - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[index] = x;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!front) {
+                    int other = offset + delta - k;
+                    if (other >= 0 && other < length && forward[other] != -1) {
+                        int forwardX = forward[other];
+                        if (forwardX >= n - x) {
+                            return new int[] {forwardX, forwardX - (other - offset)};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    
+    private void addSnake(int x, int y, int length) {
+        if (length <= 0) {
+            return;
+        }
+        // Merge with the previous run when contiguous
+        if (snakeCount > 0) {
+            int base = (snakeCount - 1) * 3;
+            if (snakes[base] + snakes[base + 2] == x && snakes[base + 1] + snakes[base + 2] == y) {
+                snakes[base + 2] += length;
+                return;
+            }
+        }
+        if ((snakeCount + 1) * 3 > snakes.length) {
+            snakes = Arrays.copyOf(snakes, snakes.length * 2);
+        }
+        int base = snakeCount * 3;
+        snakes[base] = x;
+        snakes[base + 1] = y;
+        snakes[base + 2] = length;
+        snakeCount++;
+    }
+    
+    private Result buildResult() {
+        Range_builder leftMatches = new Range_builder();
+        Range_builder leftDifferences = new Range_builder();
+        Range_builder rightMatches = new Range_builder();
+        Range_builder rightDifferences = new Range_builder();
+        int matched = 0;
+        int leftIndex = 0;
+        int rightIndex = 0;
+        
+        for (int s = 0; s <= snakeCount; s++) {
+            int x = s < snakeCount ? snakes[s * 3] : left.count;
+            int y = s < snakeCount ? snakes[s * 3 + 1] : right.count;
+            int length = s < snakeCount ? snakes[s * 3 + 2] : 0;
+            
+            leftDifferences.add(left, leftIndex, x);
+            rightDifferences.add(right, rightIndex, y);
+            leftMatches.add(left, x, x + length);
+            rightMatches.add(right, y, y + length);
+            matched += length;
+            leftIndex = x + length;
+            rightIndex = y + length;
+        }
+        
+        int total = left.count + right.count;
+        double similarity = total == 0 ? 1.0 : 2.0 * matched / total;
+        return new Result(similarity, matched, left.count, right.count,
+            leftMatches.toArray(), leftDifferences.toArray(),
+            rightMatches.toArray(), rightDifferences.toArray());
+    }
+    
+    /**
+     * Growable arrays of word ids and their character ranges in the text
+     */
+    private static class Tokens {
+        int[] ids = new int[256];
+        int[] starts = new int[256];
+        int[] ends = new int[256];
+        int count;
+        
+        void add(int id, int start, int end) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ids[count] = id;
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+        
+        void truncate(int newCount) {
+            count = Math.min(count, newCount);
+        }
+    }
+    
+    /**
+     * Collects character ranges for runs of words, flattened as start/end pairs
+     */
+    private static class Range_builder {
+        private int[] ranges = new int[16];
+        private int size;
+        
+        void add(Tokens tokens, int fromWord, int toWord) {
+            if (toWord <= fromWord) {
+                return;
+            }
+            if (size == ranges.length) {
+                ranges = Arrays.copyOf(ranges, size * 2);
+            }
+            ranges[size++] = tokens.starts[fromWord];
+            ranges[size++] = tokens.ends[toWord - 1];
+        }
+        
+        int[] toArray() {
+            return Arrays.copyOf(ranges, size);
+        }
+    }
+    
+    /**
+     * Outcome of a diff: similarity plus the agreeing and differing character ranges of each text
+     * Ranges are flattened start/end pairs with exclusive ends
+     */
+    public static class Result {
+        private final double similarity;
+        private final int matchedWords;
+        private final int leftWords;
+        private final int rightWords;
+        private final int[] leftMatches;
+        private final int[] leftDifferences;
+        private final int[] rightMatches;
+        private final int[] rightDifferences;
+        
+        Result(double similarity, int matchedWords, int leftWords, int rightWords,
+               int[] leftMatches, int[] leftDifferences, int[] rightMatches, int[] rightDifferences) {
+            this.similarity = similarity;
+            this.matchedWords = matchedWords;
+            this.leftWords = leftWords;
+            this.rightWords = rightWords;
+            this.leftMatches = leftMatches;
+            this.leftDifferences = leftDifferences;
+            this.rightMatches = rightMatches;
+            this.rightDifferences = rightDifferences;
+        }
+        
+        /**
+         * Gets the share of words in common, 2 * matched / (left words + right words)
+         * @return similarity between 0 and 1
+         */
+        public double getSimilarity() {
+            return similarity;
+        }
+        
+        /**
+         * Gets the number of words both texts have in common
+         * @return the matched word count
+         */
+        public int getMatchedWords() {
+            return matchedWords;
+        }
+        
+        /**
+         * Gets the number of words in the left text
+         * @return the left word count
+         */
+        public int getLeftWords() {
+            return leftWords;
+        }
+        
+        /**
+         * Gets the number of words in the right text
+         * @return the right word count
+         */
+        public int getRightWords() {
+            return rightWords;
+        }
+        
+        /**
+         * Gets the character ranges of the left text that the right text shares
+         * @return flattened start/end pairs
+         */
+        public int[] getLeftMatches() {
+            return leftMatches;
+        }
+        
+        /**
+         * Gets the character ranges of the left text missing from the right text
+         * @return flattened start/end pairs
+         */
+        public int[] getLeftDifferences() {
+            return leftDifferences;
+        }
+        
+        /**
+         * Gets the character ranges of the right text that the left text shares
+         * @return flattened start/end pairs
+         */
+        public int[] getRightMatches() {
+            return rightMatches;
+        }
+        
+        /**
+         * Gets the character ranges of the right text missing from the left text
+         * @return flattened start/end pairs
+         */
+        public int[] getRightDifferences() {
+            return rightDifferences;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the phases of a query
+ * Every event carries the conversation id and the provider, so a recording can be broken
+ * down per query and phase next to the JVM's own allocation, GC and I/O events; see
+ * assistant.jfc for a ready-made configuration and Flight_recording_analyzer for a summary.
+ * Events are created on every query but only committed while a recording has them enabled,
+ * so they cost next to nothing otherwise. Events emitted below the panels take the
+ * conversation id from the current trace, so they carry an empty id when tracing is disabled.
+ *
+ * Usage: java -XX:StartFlightRecording:settings=src/tracing/assistant.jfc,filename=assistant.jfr ...
+ */
+public final class Flight_events {
+    public static final String CHATGPT = "chatgpt";
+    public static final String PERPLEXITY = "perplexity";
+
+    private Flight_events() {
+    }
+
+    /**
+     * Fields shared by all query events
+     */
+    @Category({"Combined AI Assistant", "Query"})
+    @StackTrace(false)
+    public abstract static class Query_event extends Event {
+        @Label("Conversation Id")
+        public String conversationId;
+
+        @Label("Provider")
+        @Description("The provider the work was for; empty for phases covering both")
+        public String provider;
+
+        /**
+         * Ends the event and commits it if a recording has it enabled
+         * The shared fields are only filled in when the event is kept.
+         * @param conversationId the conversation id, empty if unknown
+         * @param provider CHATGPT, PERPLEXITY, or empty for both
+         */
+        public void finish(String conversationId, String provider) {
+            end();
+            if (shouldCommit()) {
+                this.conversationId = conversationId;
+                this.provider = provider;
+                commit();
+            }
+        }
+    }
+
+    @Name("assistant.QuerySubmit")
+    @Label("Query Submit")
+    @Description("A query submitted from the input panel")
+    public static final class Submit_event extends Query_event {
+        @Label("Query Length")
+        public int queryChars;
+    }
+
+    @Name("assistant.ProviderRequest")
+    @Label("Provider Request")
+    @Description("One call to a provider, from the start of the request to the parsed answer")
+    public static final class Provider_request_event extends Query_event {
+        @Label("Model")
+        public String model;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("assistant.ResponseTransfer")
+    @Label("Response Transfer")
+    @Description("Sending a request and reading the response body, or replaying it from a cassette")
+    public static final class Transfer_event extends Query_event {
+        @Label("Status")
+        public int status;
+
+        @Label("Bytes Sent")
+        @Description("Zero for replayed responses")
+        @DataAmount
+        public long requestBytes;
+
+        @Label("Bytes Received")
+        @DataAmount
+        public long responseBytes;
+
+        @Label("Replayed")
+        public boolean replayed;
+    }
+
+    @Name("assistant.ResponseParse")
+    @Label("Response Parse")
+    @Description("Extracting the answer from a response body")
+    public static final class Parse_event extends Query_event {
+        @Label("Body Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("assistant.EdtRender")
+    @Label("EDT Render")
+    @Description("Inserting a rendered answer into its panel on the event dispatch thread")
+    public static final class Render_event extends Query_event {
+    }
+
+    @Name("assistant.ConversationSave")
+    @Label("Conversation Save")
+    @Description("Appending a conversation to the store")
+    public static final class Save_event extends Query_event {
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytes;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+}
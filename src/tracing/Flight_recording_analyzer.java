@@ -0,0 +1,266 @@
+package tracing;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes a flight recording of the assistant per query phase and per query
+ * Reads the events of Flight_events and the JVM's allocation samples from a recording made
+ * with assistant.jfc, then prints the time and allocation of each phase over all queries,
+ * followed by the slowest queries broken down by phase. An allocation sample counts towards
+ * a phase when it was taken on the thread running the phase while the phase ran; phases
+ * that nest, such as a transfer within a provider request, are each credited, so the phase
+ * figures overlap rather than add up. Sampled allocation is an estimate, good for comparing
+ * phases rather than for exact byte counts.
+ *
+ * Usage: java tracing.Flight_recording_analyzer recording.jfr [slowest queries to list]
+ */
+public class Flight_recording_analyzer {
+    private static final String EVENT_PREFIX = "assistant.";
+    private static final int DEFAULT_QUERIES = 10;
+
+    /**
+     * One phase event from the recording
+     */
+    private static class Phase {
+        private final String name;
+        private final String conversationId;
+        private final long threadId;
+        private final long startNanos;
+        private final long endNanos;
+        private long allocatedBytes;
+
+        Phase(String name, String conversationId, long threadId, long startNanos, long endNanos) {
+            this.name = name;
+            this.conversationId = conversationId;
+            this.threadId = threadId;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        long durationNanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    /**
+     * Allocation samples of one thread, in time order once sorted
+     */
+    private static class Allocation_samples {
+        private long[] times = new long[64];
+        private long[] weights = new long[64];
+        private int size;
+
+        void add(long time, long weight) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            times[size] = time;
+            weights[size] = weight;
+            size++;
+        }
+
+        void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> times[i]));
+            long[] sortedTimes = new long[size];
+            long[] sortedWeights = new long[size];
+            for (int i = 0; i < size; i++) {
+                sortedTimes[i] = times[order[i]];
+                sortedWeights[i] = weights[order[i]];
+            }
+            times = sortedTimes;
+            weights = sortedWeights;
+        }
+
+        /**
+         * Sums the samples taken from start to end, inclusive
+         */
+        long sum(long start, long end) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < start) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            long total = 0;
+            for (int i = low; i < size && times[i] <= end; i++) {
+                total += weights[i];
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Totals of one phase, over all queries or within one query
+     */
+    private static class Phase_totals {
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+        private long allocatedBytes;
+
+        void add(Phase phase) {
+            count++;
+            totalNanos += phase.durationNanos();
+            maxNanos = Math.max(maxNanos, phase.durationNanos());
+            allocatedBytes += phase.allocatedBytes;
+        }
+    }
+
+    /**
+     * The phases of one query
+     */
+    private static class Query {
+        private final String conversationId;
+        private final Map<String, Phase_totals> phases = new TreeMap<>();
+        private long startNanos = Long.MAX_VALUE;
+        private long endNanos = Long.MIN_VALUE;
+
+        Query(String conversationId) {
+            this.conversationId = conversationId;
+        }
+
+        void add(Phase phase) {
+            phases.computeIfAbsent(phase.name, name -> new Phase_totals()).add(phase);
+            startNanos = Math.min(startNanos, phase.startNanos);
+            endNanos = Math.max(endNanos, phase.endNanos);
+        }
+
+        long durationNanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java tracing.Flight_recording_analyzer recording.jfr [slowest queries to list]");
+            return;
+        }
+        int queryLimit = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_QUERIES;
+
+        List<Phase> phases = new ArrayList<>();
+        Map<Long, Allocation_samples> samplesByThread = new HashMap<>();
+        read(Paths.get(args[0]), phases, samplesByThread);
+        if (phases.isEmpty()) {
+            System.out.println("No assistant events in the recording; was it made with assistant.jfc?");
+            return;
+        }
+
+        for (Allocation_samples samples : samplesByThread.values()) {
+            samples.sort();
+        }
+        Map<String, Phase_totals> totals = new TreeMap<>();
+        Map<String, Query> queries = new HashMap<>();
+        for (Phase phase : phases) {
+            Allocation_samples samples = samplesByThread.get(phase.threadId);
+            if (samples != null) {
+                phase.allocatedBytes = samples.sum(phase.startNanos, phase.endNanos);
+            }
+            totals.computeIfAbsent(phase.name, name -> new Phase_totals()).add(phase);
+            // Without tracing, provider phases carry no id and cannot be tied to a query
+            if (!phase.conversationId.isEmpty()) {
+                queries.computeIfAbsent(phase.conversationId, Query::new).add(phase);
+            }
+        }
+
+        System.out.printf("%-32s %7s %11s %9s %9s %13s%n", "Phase", "Count", "Total ms", "Avg ms", "Max ms", "Allocated KB");
+        for (Map.Entry<String, Phase_totals> entry : totals.entrySet()) {
+            Phase_totals phase = entry.getValue();
+            System.out.printf("%-32s %7d %11.1f %9.1f %9.1f %13d%n", entry.getKey(), phase.count,
+                millis(phase.totalNanos), millis(phase.totalNanos) / phase.count, millis(phase.maxNanos),
+                phase.allocatedBytes / 1024);
+        }
+
+        List<Query> slowest = new ArrayList<>(queries.values());
+        slowest.sort(Comparator.comparingLong(Query::durationNanos).reversed());
+        System.out.printf("%nSlowest %d of %d queries, from submit to the last phase:%n",
+            Math.min(queryLimit, slowest.size()), slowest.size());
+        for (Query query : slowest.subList(0, Math.min(queryLimit, slowest.size()))) {
+            System.out.printf("%s  %.1f ms%n", query.conversationId, millis(query.durationNanos()));
+            for (Map.Entry<String, Phase_totals> entry : query.phases.entrySet()) {
+                Phase_totals phase = entry.getValue();
+                System.out.printf("    %-28s %9.1f ms %9d KB%n", entry.getKey(), millis(phase.totalNanos),
+                    phase.allocatedBytes / 1024);
+            }
+        }
+    }
+
+    /**
+     * Collects the phase events and the allocation samples, by thread, from a recording
+     */
+    private static void read(Path file, List<Phase> phases, Map<Long, Allocation_samples> samplesByThread)
+            throws IOException {
+        try (RecordingFile recording = new RecordingFile(file)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String type = event.getEventType().getName();
+                RecordedThread thread = event.getThread();
+                long threadId = thread != null ? thread.getJavaThreadId() : -1;
+                if (type.startsWith(EVENT_PREFIX)) {
+                    String provider = event.hasField("provider") ? event.getString("provider") : null;
+                    String name = type.substring(EVENT_PREFIX.length());
+                    if (provider != null && !provider.isEmpty()) {
+                        name += " " + provider;
+                    }
+                    String conversationId = event.getString("conversationId");
+                    phases.add(new Phase(name, conversationId != null ? conversationId : "", threadId,
+                        nanos(event.getStartTime()), nanos(event.getEndTime())));
+                } else if (threadId >= 0) {
+                    long weight = allocationWeight(event);
+                    if (weight > 0) {
+                        samplesByThread.computeIfAbsent(threadId, id -> new Allocation_samples())
+                            .add(nanos(event.getStartTime()), weight);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the bytes an allocation event stands for
+     * Recent JVMs record throttled samples with a weight; older ones record TLAB events instead.
+     * @return the weight, or 0 if the event is not about allocation
+     */
+    private static long allocationWeight(RecordedEvent event) {
+        switch (event.getEventType().getName()) {
+            case "jdk.ObjectAllocationSample":
+                return event.getLong("weight");
+            case "jdk.ObjectAllocationInNewTLAB":
+                return event.getLong("tlabSize");
+            case "jdk.ObjectAllocationOutsideTLAB":
+                return event.getLong("allocationSize");
+            default:
+                return 0;
+        }
+    }
+
+    private static long nanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,263 @@
+package tracing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import database.Json_util;
+
+/**
+ * Writes ended spans to rolling files in the OTLP-JSON format
+ * Each line of traces.jsonl is one ExportTraceServiceRequest, as written by the
+ * OpenTelemetry collector's file exporter, so the files can be replayed into any OTLP
+ * backend. When the current file reaches the size limit it becomes traces.1.jsonl, older
+ * files move up by one and the oldest is deleted.
+ * Spans are written by a daemon thread; when it falls behind, new spans are dropped
+ * rather than slowing down queries.
+ */
+class Otlp_file_exporter {
+    static final String SERVICE_NAME = "combined-ai-assistant";
+    private static final String SCOPE_NAME = "tracing";
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int SHUTDOWN_SECONDS = 2;
+    // OTLP status code for a failed span
+    private static final int STATUS_ERROR = 2;
+    // OTLP span kind for work done inside the application
+    private static final int KIND_INTERNAL = 1;
+
+    private final File directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedSpans = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private Writer writer;
+    private long fileBytes;
+
+    /**
+     * Constructor using the file limits from system properties
+     * (assistant.tracing.maxFileBytes and assistant.tracing.maxFiles)
+     * @param directory the directory the trace files are written to
+     */
+    Otlp_file_exporter(File directory) {
+        this(directory,
+             Long.getLong("assistant.tracing.maxFileBytes", 8L << 20),
+             Integer.getInteger("assistant.tracing.maxFiles", 5));
+    }
+
+    /**
+     * Constructor with explicit file limits
+     * @param directory the directory the trace files are written to
+     * @param maxFileBytes size at which the current file is rolled over
+     * @param maxFiles number of files kept, including the current one
+     */
+    Otlp_file_exporter(File directory, long maxFileBytes, int maxFiles) {
+        this.directory = directory;
+        this.maxFileBytes = Math.max(1024, maxFileBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+        this.writerThread = new Thread(this::writeLoop, "trace-exporter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues spans to be written
+     * @param spans ended spans
+     */
+    void export(List<Span> spans) {
+        for (Span span : spans) {
+            if (!running || !queue.offer(span)) {
+                droppedSpans.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of spans dropped because the writer fell behind or failed
+     * @return the dropped span count
+     */
+    long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    /**
+     * Writes the queued spans and stops the writer thread
+     */
+    void shutdown() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Span> batch = new ArrayList<>();
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Span first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    // Shutting down; write what is left
+                }
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+            }
+        } finally {
+            closeWriter();
+        }
+    }
+
+    /**
+     * Writes spans as one line, then rolls the file over if it is full
+     */
+    private void writeBatch(List<Span> spans) {
+        String line = toJson(spans) + "\n";
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (writer == null) {
+                openWriter();
+            }
+            writer.write(line);
+            writer.flush();
+            fileBytes += bytes.length;
+            if (fileBytes >= maxFileBytes) {
+                rollOver();
+            }
+        } catch (IOException e) {
+            droppedSpans.addAndGet(spans.size());
+            System.err.println("Failed to write traces: " + e.getMessage());
+            closeWriter();
+        }
+    }
+
+    private void openWriter() throws IOException {
+        Files.createDirectories(directory.toPath());
+        File current = fileAt(0);
+        fileBytes = current.length();
+        // A stream rather than a channel, which the shutdown interrupt would close
+        writer = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(current, true), StandardCharsets.UTF_8));
+    }
+
+    private void rollOver() throws IOException {
+        closeWriter();
+        Files.deleteIfExists(fileAt(maxFiles - 1).toPath());
+        for (int index = maxFiles - 2; index >= 0; index--) {
+            File file = fileAt(index);
+            if (file.exists()) {
+                Files.move(file.toPath(), fileAt(index + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close trace file: " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    private File fileAt(int index) {
+        return new File(directory, index == 0 ? "traces.jsonl" : "traces." + index + ".jsonl");
+    }
+
+    /**
+     * Builds an ExportTraceServiceRequest for spans of any number of traces
+     */
+    static String toJson(List<Span> spans) {
+        List<Object> otlpSpans = new ArrayList<>();
+        for (Span span : spans) {
+            otlpSpans.add(toOtlp(span));
+        }
+
+        Map<String, Object> scope = new LinkedHashMap<>();
+        scope.put("name", SCOPE_NAME);
+        Map<String, Object> scopeSpans = new LinkedHashMap<>();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", otlpSpans);
+
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("attributes", List.of(toOtlpAttribute("service.name", SERVICE_NAME)));
+        Map<String, Object> resourceSpans = new LinkedHashMap<>();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", List.of(scopeSpans));
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("resourceSpans", List.of(resourceSpans));
+        return Json_util.toJson(request);
+    }
+
+    private static Map<String, Object> toOtlp(Span span) {
+        Map<String, Object> otlp = new LinkedHashMap<>();
+        otlp.put("traceId", span.getTrace().getTraceId());
+        otlp.put("spanId", span.getSpanId());
+        if (span.getParentSpanId() != null) {
+            otlp.put("parentSpanId", span.getParentSpanId());
+        }
+        otlp.put("name", span.getName());
+        otlp.put("kind", KIND_INTERNAL);
+        // 64-bit integers are strings in OTLP-JSON
+        otlp.put("startTimeUnixNano", Long.toString(span.getStartEpochNanos()));
+        otlp.put("endTimeUnixNano", Long.toString(span.getStartEpochNanos() + span.getDurationNanos()));
+
+        List<Object> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+            attributes.add(toOtlpAttribute(attribute.getKey(), attribute.getValue()));
+        }
+        otlp.put("attributes", attributes);
+
+        if (span.getError() != null) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("code", STATUS_ERROR);
+            status.put("message", span.getError());
+            otlp.put("status", status);
+        }
+        return otlp;
+    }
+
+    private static Map<String, Object> toOtlpAttribute(String key, Object value) {
+        Map<String, Object> anyValue = new LinkedHashMap<>();
+        if (value instanceof Boolean) {
+            anyValue.put("boolValue", value);
+        } else if (value instanceof Double || value instanceof Float) {
+            anyValue.put("doubleValue", value);
+        } else if (value instanceof Number) {
+            anyValue.put("intValue", value.toString());
+        } else {
+            anyValue.put("stringValue", String.valueOf(value));
+        }
+        Map<String, Object> attribute = new LinkedHashMap<>();
+        attribute.put("key", key);
+        attribute.put("value", anyValue);
+        return attribute;
+    }
+}
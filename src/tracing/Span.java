@@ -0,0 +1,176 @@
+package tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One timed operation within a trace, such as an API call or a database save
+ * Spans form a tree through their parent ids. They are ended exactly once, either
+ * explicitly or by closing them in a try-with-resources block; further calls do nothing.
+ * A span that is not recording (tracing disabled, or no trace to belong to) accepts all
+ * calls and ignores them.
+ */
+public class Span implements AutoCloseable {
+    // Shared span used wherever there is nothing to record
+    static final Span NOOP = new Span(null, "", null, "", 0, 0);
+
+    private final Trace trace;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String name;
+    private final long startEpochNanos;
+    private final long startNanoTime;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private volatile long durationNanos = -1;
+    private volatile String error;
+
+    Span(Trace trace, String spanId, String parentSpanId, String name, long startEpochNanos, long startNanoTime) {
+        this.trace = trace;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.startEpochNanos = startEpochNanos;
+        this.startNanoTime = startNanoTime;
+    }
+
+    /**
+     * Checks whether calls on this span are recorded
+     * @return false for the no-op span
+     */
+    public boolean isRecording() {
+        return trace != null;
+    }
+
+    /**
+     * Sets an attribute
+     * @param key the attribute name, e.g. "http.bytes"
+     * @param value a string, number or boolean
+     * @return this span for chaining
+     */
+    public Span setAttribute(String key, Object value) {
+        if (trace != null && value != null) {
+            synchronized (attributes) {
+                attributes.put(key, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Marks the span as failed
+     * @param message what went wrong
+     * @return this span for chaining
+     */
+    public Span recordError(String message) {
+        if (trace != null) {
+            error = message == null ? "error" : message;
+        }
+        return this;
+    }
+
+    /**
+     * Makes this span the current one on the calling thread, so new spans become its children
+     * @return a scope that restores the previous current span when closed
+     */
+    public Scope makeCurrent() {
+        return Tracer.makeCurrent(this);
+    }
+
+    /**
+     * Ends the span; only the first call has an effect
+     */
+    public void end() {
+        if (trace != null && ended.compareAndSet(false, true)) {
+            durationNanos = System.nanoTime() - startNanoTime;
+            trace.spanEnded(this);
+        }
+    }
+
+    /**
+     * Ends the span
+     */
+    @Override
+    public void close() {
+        end();
+    }
+
+    Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Gets the id of the span, unique within its trace
+     * @return the span id
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * Gets the id of the parent span
+     * @return the parent id, or null for the root of a trace
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * Gets the name of the operation the span covers
+     * @return the span name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets when the span started
+     * @return the start time in nanoseconds since the epoch
+     */
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    /**
+     * Gets the duration of an ended span
+     * @return the duration in nanoseconds, or -1 while the span is open
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Checks if the span has ended
+     * @return true once end() has been called
+     */
+    public boolean isEnded() {
+        return durationNanos >= 0;
+    }
+
+    /**
+     * Gets the error recorded on the span
+     * @return the error message, or null if the span did not fail
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Gets a copy of the attributes
+     * @return the attributes in the order they were first set
+     */
+    public Map<String, Object> getAttributes() {
+        synchronized (attributes) {
+            return new LinkedHashMap<>(attributes);
+        }
+    }
+
+    /**
+     * Restores the previously current span when closed
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,116 @@
+package tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All spans recorded for one query, identified by the conversation id
+ * The sampling decision is made when the root span ends, so slow and failed traces
+ * can be kept even at a low sampling rate; spans that end afterwards, e.g. a save that
+ * outlives the root, follow that decision.
+ */
+public class Trace {
+    private final String traceId;
+    private final String conversationId;
+    private final boolean sampledByRate;
+    private final List<Span> spans = new ArrayList<>();
+    private Span root;
+    private boolean decided;
+    private boolean exported;
+
+    Trace(String traceId, String conversationId, boolean sampledByRate) {
+        this.traceId = traceId;
+        this.conversationId = conversationId;
+        this.sampledByRate = sampledByRate;
+    }
+
+    /**
+     * Gets the trace id, the conversation id as 32 hex digits
+     * @return the trace id
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Gets the conversation id the trace was started with
+     * @return the conversation id
+     */
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    /**
+     * Gets the root span, which covers the whole query
+     * @return the root span
+     */
+    public synchronized Span getRootSpan() {
+        return root;
+    }
+
+    /**
+     * Gets the spans started so far, in start order
+     * @return a snapshot of the spans
+     */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    /**
+     * Checks whether the trace was written to the trace files
+     * @return true if it was sampled, slow or failed; false if dropped or undecided
+     */
+    public synchronized boolean isExported() {
+        return exported;
+    }
+
+    synchronized void spanStarted(Span span) {
+        if (root == null) {
+            root = span;
+        }
+        spans.add(span);
+    }
+
+    /**
+     * Exports ended spans once the trace is known to be kept
+     */
+    void spanEnded(Span span) {
+        List<Span> toExport;
+        synchronized (this) {
+            if (span == root) {
+                decided = true;
+                exported = sampledByRate || Tracer.keepRegardlessOfRate(this);
+                toExport = new ArrayList<>();
+                if (exported) {
+                    for (Span ended : spans) {
+                        if (ended.isEnded()) {
+                            toExport.add(ended);
+                        }
+                    }
+                }
+            } else if (decided && exported) {
+                toExport = List.of(span);
+            } else {
+                return;
+            }
+        }
+        if (span == root) {
+            Tracer.traceFinished(this);
+        }
+        if (!toExport.isEmpty()) {
+            Tracer.export(toExport);
+        }
+    }
+
+    /**
+     * Checks whether any span of the trace failed
+     */
+    synchronized boolean hasError() {
+        for (Span span : spans) {
+            if (span.getError() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,273 @@
+package tracing;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import database.Conversation_store;
+
+/**
+ * Entry point of the per-query tracing layer
+ * Each query gets a trace whose id is its conversation id. Spans started on a thread
+ * become children of that thread's current span; work handed to another thread or to a
+ * CompletableFuture stage keeps its parent by being wrapped with wrap(...).
+ * Kept traces are written to rolling OTLP-JSON files, and the most recent traces are
+ * held in memory for the slowest-queries viewer.
+ *
+ * Configuration (system properties):
+ * assistant.tracing.enabled (default true), assistant.tracing.sampleRate (fraction of
+ * traces written, default 1.0), assistant.tracing.slowMs (traces at least this slow are
+ * always written, default 5000), assistant.tracing.dir (default the traces folder in the
+ * data directory), assistant.tracing.maxFileBytes, assistant.tracing.maxFiles and
+ * assistant.tracing.recentTraces (traces kept for the viewer, default 200)
+ */
+public final class Tracer {
+    private static final boolean ENABLED =
+        Boolean.parseBoolean(System.getProperty("assistant.tracing.enabled", "true"));
+    private static final int RECENT_TRACES = Integer.getInteger("assistant.tracing.recentTraces", 200);
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    // Most recently finished traces, oldest first
+    private static final Deque<Trace> RECENT = new ArrayDeque<>();
+    private static volatile double sampleRate =
+        Double.parseDouble(System.getProperty("assistant.tracing.sampleRate", "1.0"));
+    private static volatile long slowMillis = Long.getLong("assistant.tracing.slowMs", 5_000);
+    private static Otlp_file_exporter exporter;
+
+    private Tracer() {
+    }
+
+    /**
+     * Starts the trace of a query and returns its root span
+     * The root span is not made current; use makeCurrent() where children should attach to it.
+     * @param conversationId the conversation UUID, which becomes the trace id
+     * @param name the root span name, e.g. "submitQuery"
+     * @return the root span, or a no-op span if tracing is disabled
+     */
+    public static Span startTrace(String conversationId, String name) {
+        if (!ENABLED) {
+            return Span.NOOP;
+        }
+        boolean sampled = ThreadLocalRandom.current().nextDouble() < sampleRate;
+        Trace trace = new Trace(toTraceId(conversationId), conversationId, sampled);
+        return start(trace, null, name);
+    }
+
+    /**
+     * Starts a child of the calling thread's current span
+     * @param name the span name, e.g. "http.connect"
+     * @return the new span, or a no-op span if there is no current span
+     */
+    public static Span startSpan(String name) {
+        return startSpan(name, current());
+    }
+
+    /**
+     * Starts a child of a given span
+     * @param name the span name
+     * @param parent the parent span
+     * @return the new span, or a no-op span if the parent is not recording
+     */
+    public static Span startSpan(String name, Span parent) {
+        if (parent == null || !parent.isRecording()) {
+            return Span.NOOP;
+        }
+        return start(parent.getTrace(), parent.getSpanId(), name);
+    }
+
+    /**
+     * Gets the calling thread's current span
+     * @return the current span, or the no-op span if there is none
+     */
+    public static Span current() {
+        Span span = CURRENT.get();
+        return span == null ? Span.NOOP : span;
+    }
+
+    /**
+     * Gets the conversation id of the calling thread's current trace
+     * Lets code below the panels, such as the API handlers, tag its work with the query it
+     * belongs to without the id being passed down.
+     * @return the conversation id, or an empty string if there is no current trace
+     */
+    public static String currentConversationId() {
+        Span span = current();
+        return span.isRecording() ? span.getTrace().getConversationId() : "";
+    }
+
+    /**
+     * Wraps a task so it runs with the calling thread's current span as its current span
+     * @param task the task to wrap
+     * @return the wrapped task
+     */
+    public static Runnable wrap(Runnable task) {
+        Span parent = current();
+        return () -> {
+            try (Span.Scope scope = makeCurrent(parent)) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Wraps a supplier, e.g. for CompletableFuture.supplyAsync, so it keeps the current span
+     * @param supplier the supplier to wrap
+     * @return the wrapped supplier
+     */
+    public static <T> Supplier<T> wrap(Supplier<T> supplier) {
+        Span parent = current();
+        return () -> {
+            try (Span.Scope scope = makeCurrent(parent)) {
+                return supplier.get();
+            }
+        };
+    }
+
+    /**
+     * Wraps a completion callback, e.g. for CompletableFuture.whenComplete, so it keeps the current span
+     * @param action the callback to wrap
+     * @return the wrapped callback
+     */
+    public static <T, U> BiConsumer<T, U> wrap(BiConsumer<T, U> action) {
+        Span parent = current();
+        return (t, u) -> {
+            try (Span.Scope scope = makeCurrent(parent)) {
+                action.accept(t, u);
+            }
+        };
+    }
+
+    /**
+     * Sets the fraction of traces written to the trace files
+     * Slow and failed traces are written regardless.
+     * @param rate a fraction from 0 to 1
+     */
+    public static void setSampleRate(double rate) {
+        sampleRate = Math.max(0, Math.min(1, rate));
+    }
+
+    /**
+     * Gets the fraction of traces written to the trace files
+     * @return a fraction from 0 to 1
+     */
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the duration from which traces are written regardless of the sample rate
+     * @param millis the threshold in milliseconds
+     */
+    public static void setSlowThresholdMillis(long millis) {
+        slowMillis = millis;
+    }
+
+    /**
+     * Gets the duration from which traces are written regardless of the sample rate
+     * @return the threshold in milliseconds
+     */
+    public static long getSlowThresholdMillis() {
+        return slowMillis;
+    }
+
+    /**
+     * Gets the slowest of the recently finished traces
+     * @param limit the maximum number of traces to return
+     * @return the traces, slowest first
+     */
+    public static List<Trace> slowestRecentTraces(int limit) {
+        List<Trace> traces;
+        synchronized (RECENT) {
+            traces = new ArrayList<>(RECENT);
+        }
+        traces.sort(Comparator.comparingLong((Trace trace) -> trace.getRootSpan().getDurationNanos()).reversed());
+        return traces.subList(0, Math.min(limit, traces.size()));
+    }
+
+    /**
+     * Gets the directory the trace files are written to
+     * @return the trace directory
+     */
+    public static File traceDirectory() {
+        String configured = System.getProperty("assistant.tracing.dir");
+        if (configured != null && !configured.isEmpty()) {
+            return new File(configured);
+        }
+        return new File(Conversation_store.defaultDataDirectory(), "traces");
+    }
+
+    /**
+     * Writes the spans still queued for export and stops the exporter
+     */
+    public static synchronized void shutdown() {
+        if (exporter != null) {
+            exporter.shutdown();
+            exporter = null;
+        }
+    }
+
+    static Span.Scope makeCurrent(Span span) {
+        Span previous = CURRENT.get();
+        CURRENT.set(span);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Decides whether a trace is written even though the sample rate dropped it
+     */
+    static boolean keepRegardlessOfRate(Trace trace) {
+        return trace.hasError() || trace.getRootSpan().getDurationNanos() >= slowMillis * 1_000_000;
+    }
+
+    static void traceFinished(Trace trace) {
+        synchronized (RECENT) {
+            RECENT.addLast(trace);
+            while (RECENT.size() > RECENT_TRACES) {
+                RECENT.pollFirst();
+            }
+        }
+    }
+
+    static void export(List<Span> spans) {
+        exporter().export(spans);
+    }
+
+    private static synchronized Otlp_file_exporter exporter() {
+        if (exporter == null) {
+            exporter = new Otlp_file_exporter(traceDirectory());
+        }
+        return exporter;
+    }
+
+    private static Span start(Trace trace, String parentSpanId, String name) {
+        String spanId = String.format("%016x", ThreadLocalRandom.current().nextLong());
+        Span span = new Span(trace, spanId, parentSpanId, name,
+            System.currentTimeMillis() * 1_000_000, System.nanoTime());
+        trace.spanStarted(span);
+        return span;
+    }
+
+    /**
+     * Turns a conversation UUID into a 32 hex digit trace id
+     */
+    private static String toTraceId(String conversationId) {
+        String hex = conversationId.replace("-", "").toLowerCase();
+        if (hex.length() == 32 && hex.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            return hex;
+        }
+        // Not a UUID; derive a stable id from the text instead
+        return String.format("%016x%016x", (long) conversationId.hashCode(), (long) hex.hashCode());
+    }
+}